@@ -42,8 +42,15 @@ import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import static java.text.MessageFormat.format;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
@@ -51,7 +58,13 @@ import javax.annotation.Nullable;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.commands.*;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
 import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSink;
 import uk.ac.susx.mlcl.byblo.measures.impl.LambdaDivergence;
 import uk.ac.susx.mlcl.byblo.measures.impl.LeeSkewDivergence;
 import uk.ac.susx.mlcl.byblo.measures.impl.LpSpaceDistance;
@@ -59,6 +72,9 @@ import uk.ac.susx.mlcl.byblo.measures.impl.Weeds;
 import uk.ac.susx.mlcl.lib.MiscUtil;
 import uk.ac.susx.mlcl.lib.commands.*;
 import uk.ac.susx.mlcl.lib.io.FileFactory;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.ObjectPipe;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
 import uk.ac.susx.mlcl.lib.io.TempFileFactory;
 
 /**
@@ -124,6 +140,11 @@ public final class FullBuild extends AbstractCommand {
     /**
      *
      */
+    @Parameter(names = {"-et", "--enumerator-type"},
+    description = "Type of the string enumerators used to index entries and features. JDBM "
+    + "holds them on disk, so the vocabulary may exceed the heap; MMAP looks up a "
+    + "memory-mapped dictionary, but holds strings added during the build on the heap.",
+    hidden = HIDE_UNCOMMON_PARAMETERS)
     private EnumeratorType enumeratorType = EnumeratorType.JDBM;
     /**
      *
@@ -290,6 +311,7 @@ public final class FullBuild extends AbstractCommand {
 
         enumerate("Enumerating strings"),
         count("Counting events"),
+        reenumerate("Reassigning ids by frequency"),
         filter("Filtering"),
         allpairs("All-Pairs Similarity Search"),
         knn("K-Nearest Neighbours"),
@@ -318,8 +340,37 @@ public final class FullBuild extends AbstractCommand {
     @Parameter(names = {"-s", "--stages"},
     converter = StageConverter.class,
     description = "Comma-separated list of stages to run. "
-    + "The standard behaviour is to run all required stages (as listed in the default value.)")
-    private Set<Stage> stagesToRun = EnumSet.allOf(Stage.class);
+    + "The standard behaviour is to run all required stages (as listed in the default value.) "
+    + "The reenumerate stage, which reassigns ids in descending frequency order, is only run "
+    + "when listed.")
+    private Set<Stage> stagesToRun = EnumSet.complementOf(EnumSet.of(Stage.reenumerate));
+    /**
+     *
+     */
+    @Parameter(names = {"-fec", "--fused-enumerate-count"},
+    description = "When both the enumerate and count stages are run, enumerate the instances while "
+    + "counting them, rather than writing and re-reading an enumerated copy.")
+    private boolean fusedEnumerateCount = false;
+    /**
+     *
+     */
+    @Parameter(names = {"-fcf", "--fused-count-filter"},
+    description = "When both the count and filter stages are run, apply the frequency filters while "
+    + "writing the counts. Ignored if any filter pattern or whitelist is set.")
+    private boolean fusedCountFilter = false;
+    /**
+     *
+     */
+    @Parameter(names = {"-sp", "--streaming-pipeline"},
+    description = "When the allpairs, knn and unenumerate stages are all run, run them concurrently, "
+    + "passing sims and neighbours between them through bounded in-memory pipes rather than files.")
+    private boolean streamingPipeline = false;
+    /**
+     *
+     */
+    @Parameter(names = {"-ki", "--keep-intermediate"},
+    description = "With the streaming pipeline, also write the sims and neighbours files.")
+    private boolean keepIntermediateFiles = false;
 
     /**
      * Default constructor for testing. Normally this class you only be instantiated through the
@@ -362,69 +413,130 @@ public final class FullBuild extends AbstractCommand {
             final File featureEnumeratorFile = new File(outputDir, instancesFile.getName() + ".feature-index");
             final File instancesEnumeratedFile = new File(outputDir, instancesFile.getName() + ".enumerated");
 
-            LOG.info("\n=== Stage 1 of 6: Enumerating Strings ===\n");
+            final File entriesFile = new File(outputDir, instancesFile.getName() + ".entries");
+            final File featuresFile = new File(outputDir, instancesFile.getName() + ".features");
+            final File eventsFile = new File(outputDir, instancesFile.getName() + ".events");
+
+            // Fusing the first two stages enumerates the instances as they are
+            // counted, so the enumerated copy is never written.
+            final boolean fused = fusedEnumerateCount
+                    && stagesToRun.contains(Stage.enumerate)
+                    && stagesToRun.contains(Stage.count);
+
+            final File entriesFilteredFile = suffixed(entriesFile, ".filtered");
+            final File featuresFilteredFile = suffixed(featuresFile, ".filtered");
+            final File eventsFilteredFile = suffixed(eventsFile, ".filtered");
+
+            // Frequency filters can be applied by the count itself, which then
+            // writes the filtered files in place of the counted ones.
+            final boolean filterWhileCounting = isFilterWhileCounting();
+            final File countEntriesFile = filterWhileCounting ? entriesFilteredFile : entriesFile;
+            final File countFeaturesFile = filterWhileCounting ? featuresFilteredFile : featuresFile;
+            final File countEventsFile = filterWhileCounting ? eventsFilteredFile : eventsFile;
 
-            if (stagesToRun.contains(Stage.enumerate)) {
+            LOG.info("\n=== Stage 1 of 7: Enumerating Strings ===\n");
+
+            if (fused) {
+                checkValidInputFile("Instances file", instancesFile);
+                runEnumerateAndCount(countEntriesFile, countFeaturesFile, countEventsFile,
+                                     entryEnumeratorFile, featureEnumeratorFile,
+                                     filterWhileCounting);
+            } else if (stagesToRun.contains(Stage.enumerate)) {
                 checkValidInputFile("Instances file", instancesFile);
                 runIndex(instancesEnumeratedFile, featureEnumeratorFile, entryEnumeratorFile);
             } else {
                 LOG.info("Skipped stage.");
             }
 
-            final File entriesFile = new File(outputDir, instancesFile.getName() + ".entries");
-            final File featuresFile = new File(outputDir, instancesFile.getName() + ".features");
-            final File eventsFile = new File(outputDir, instancesFile.getName() + ".events");
+            LOG.info("\n=== Stage 2 of 7: Counting ===\n");
 
-            LOG.info("\n=== Stage 2 of 6: Counting ===\n");
+            if (fused) {
+                LOG.info("Counted during enumeration.");
+            } else if (stagesToRun.contains(Stage.count)) {
+                runCount(instancesEnumeratedFile, countEntriesFile, countFeaturesFile, countEventsFile,
+                         filterWhileCounting);
+            } else {
+                LOG.info("Skipped stage.");
+            }
 
-            if (stagesToRun.contains(Stage.count)) {
-                runCount(instancesEnumeratedFile, entriesFile, featuresFile, eventsFile);
+            // Once ids are reassigned, all later stages read the reordered
+            // files and indexes in place of the counted ones.
+            final boolean reordered = stagesToRun.contains(Stage.reenumerate);
+            final File entriesReorderedFile = suffixed(countEntriesFile, ".reordered");
+            final File featuresReorderedFile = suffixed(countFeaturesFile, ".reordered");
+            final File eventsReorderedFile = suffixed(countEventsFile, ".reordered");
+            final File entryEnumeratorReorderedFile = suffixed(entryEnumeratorFile, ".reordered");
+            final File featureEnumeratorReorderedFile = suffixed(featureEnumeratorFile, ".reordered");
+
+            LOG.info("\n=== Stage 3 of 7: Reassigning Ids ===\n");
+
+            if (reordered) {
+                runReenumerate(countEntriesFile, countFeaturesFile, countEventsFile,
+                               entriesReorderedFile, featuresReorderedFile, eventsReorderedFile,
+                               entryEnumeratorFile, featureEnumeratorFile,
+                               entryEnumeratorReorderedFile, featureEnumeratorReorderedFile);
             } else {
                 LOG.info("Skipped stage.");
             }
 
-            final File entriesFilteredFile = suffixed(entriesFile, ".filtered");
-            final File featuresFilteredFile = suffixed(featuresFile, ".filtered");
-            final File eventsFilteredFile = suffixed(eventsFile, ".filtered");
+            final File countedEntriesFile = reordered ? entriesReorderedFile : countEntriesFile;
+            final File countedFeaturesFile = reordered ? featuresReorderedFile : countFeaturesFile;
+            final File countedEventsFile = reordered ? eventsReorderedFile : countEventsFile;
+            final File entryIndexFile = reordered ? entryEnumeratorReorderedFile : entryEnumeratorFile;
+            final File featureIndexFile = reordered ? featureEnumeratorReorderedFile : featureEnumeratorFile;
 
+            final File similarityEntriesFile = filterWhileCounting ? countedEntriesFile : entriesFilteredFile;
+            final File similarityFeaturesFile = filterWhileCounting ? countedFeaturesFile : featuresFilteredFile;
+            final File similarityEventsFile = filterWhileCounting ? countedEventsFile : eventsFilteredFile;
 
-            LOG.info("\n=== Stage 3 of 6: Filtering ===\n");
+            LOG.info("\n=== Stage 4 of 7: Filtering ===\n");
 
-            if (stagesToRun.contains(Stage.filter)) {
-                runFilter(entriesFile, featuresFile, eventsFile, entriesFilteredFile,
-                          featuresFilteredFile, eventsFilteredFile, entryEnumeratorFile,
-                          featureEnumeratorFile);
+            if (filterWhileCounting) {
+                LOG.info("Filtered during counting.");
+            } else if (stagesToRun.contains(Stage.filter)) {
+                runFilter(countedEntriesFile, countedFeaturesFile, countedEventsFile,
+                          entriesFilteredFile, featuresFilteredFile, eventsFilteredFile,
+                          entryIndexFile, featureIndexFile);
             } else {
                 LOG.info("Skipped stage.");
             }
 
 
-            LOG.info("\n=== Stage 4 of 6: All-Pairs ===\n");
+            LOG.info("\n=== Stage 5 of 7: All-Pairs ===\n");
 
             final File simsFile = new File(outputDir, instancesFile.getName() + ".sims");
+            final File neighboursFile = suffixed(simsFile, ".neighbours");
+            final File neighboursStringsFile = suffixed(neighboursFile, ".strings");
+
+            // The last three stages each consume the previous stage's output in
+            // a single pass, so they can run together without files between.
+            final boolean streamed = isStreamedSimilarity();
 
-            if (stagesToRun.contains(Stage.allpairs)) {
-                runAllPairs(entriesFilteredFile, featuresFilteredFile, eventsFilteredFile, simsFile);
+            if (streamed) {
+                runStreamingSimilarity(similarityEntriesFile, similarityFeaturesFile, similarityEventsFile,
+                                       simsFile, neighboursFile, neighboursStringsFile, entryIndexFile);
+            } else if (stagesToRun.contains(Stage.allpairs)) {
+                runAllPairs(similarityEntriesFile, similarityFeaturesFile, similarityEventsFile, simsFile);
             } else {
                 LOG.info("Skipped stage.");
             }
 
-            final File neighboursFile = suffixed(simsFile, ".neighbours");
-
-            LOG.info("\n=== Stage 5 of 6: K-Nearest-Neighbours ===\n");
+            LOG.info("\n=== Stage 6 of 7: K-Nearest-Neighbours ===\n");
 
-            if (stagesToRun.contains(Stage.knn)) {
+            if (streamed) {
+                LOG.info("Ran concurrently with all-pairs.");
+            } else if (stagesToRun.contains(Stage.knn)) {
                 runKNN(simsFile, neighboursFile);
             } else {
                 LOG.info("Skipped stage.");
             }
 
-            final File neighboursStringsFile = suffixed(neighboursFile, ".strings");
-
-            LOG.info("\n=== Stage 6 of 6: Un-Enumerating ===\n");
+            LOG.info("\n=== Stage 7 of 7: Un-Enumerating ===\n");
 
-            if (stagesToRun.contains(Stage.unenumerate)) {
-                runUnindexSim(neighboursFile, neighboursStringsFile, entryEnumeratorFile);
+            if (streamed) {
+                LOG.info("Ran concurrently with all-pairs.");
+            } else if (stagesToRun.contains(Stage.unenumerate)) {
+                runUnindexSim(neighboursFile, neighboursStringsFile, entryIndexFile);
             } else {
                 LOG.info("Skipped stage.");
             }
@@ -465,6 +577,8 @@ public final class FullBuild extends AbstractCommand {
             LOG.info(sb.toString());
         }
 
+        deleteIndexFiles(entryEnumeratorFile, featureEnumeratorFile);
+
         IndexingCommands.IndexInstances indexCmd = new IndexingCommands.IndexInstances();
         indexCmd.setSourceFile(instancesFile);
         indexCmd.setDestinationFile(instancesEnumeratedFile);
@@ -473,6 +587,7 @@ public final class FullBuild extends AbstractCommand {
         indexCmd.getIndexDelegate().setEntryEnumeratorFile(entryEnumeratorFile);
         indexCmd.getIndexDelegate().setFeatureEnumeratorFile(featureEnumeratorFile);
         indexCmd.getIndexDelegate().setEnumeratorType(enumeratorType);
+        indexCmd.setNumThreads(numThreads);
 
         if (!indexCmd.runCommand()) {
             throw new RuntimeException("Indexing command failed.");
@@ -491,13 +606,85 @@ public final class FullBuild extends AbstractCommand {
      * @param entriesFile
      * @param featuresFile
      * @param eventsFile
+     * @param filter
      * @throws IOException
      */
     private void runCount(File instancesEnumeratedFile, File entriesFile,
-                          File featuresFile, File eventsFile) throws IOException {
+                          File featuresFile, File eventsFile, boolean filter) throws IOException {
 
         checkValidInputFile("Enumerated instances file",
                             instancesEnumeratedFile);
+        runCount(instancesEnumeratedFile, entriesFile, featuresFile, eventsFile, null, null, filter);
+    }
+
+    /**
+     * The count stage can only stand in for the filter stage when both are
+     * run, and every filter is a frequency threshold; patterns and
+     * whitelists need the filter stage.
+     */
+    private boolean isFilterWhileCounting() {
+        if (!fusedCountFilter
+                || !stagesToRun.contains(Stage.count)
+                || !stagesToRun.contains(Stage.filter))
+            return false;
+        if (filterEntryPattern != null || filterEntryWhitelist != null
+                || filterFeaturePattern != null || filterFeatureWhitelist != null) {
+            LOG.warn("Filter patterns or whitelists are set, so filtering will run as a separate stage.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Enumerate and count the raw instances file in a single pass, writing
+     * only the indexes and the counts.
+     *
+     * @param entriesFile
+     * @param featuresFile
+     * @param eventsFile
+     * @param entryEnumeratorFile
+     * @param featureEnumeratorFile
+     * @param filter
+     * @throws IOException
+     */
+    private void runEnumerateAndCount(File entriesFile, File featuresFile, File eventsFile,
+                                      File entryEnumeratorFile, File featureEnumeratorFile,
+                                      boolean filter)
+            throws IOException {
+        checkValidOutputFile("Feature index file", featureEnumeratorFile);
+        checkValidOutputFile("Entry index file", entryEnumeratorFile);
+
+        deleteIndexFiles(entryEnumeratorFile, featureEnumeratorFile);
+
+        runCount(instancesFile, entriesFile, featuresFile, eventsFile,
+                 entryEnumeratorFile, featureEnumeratorFile, filter);
+    }
+
+    /**
+     * The enumerate stage always builds new indexes, so discard any that were
+     * left by a previous build; they may have been written by another
+     * enumerator type.
+     */
+    private static void deleteIndexFiles(File... indexFiles) {
+        for (File file : indexFiles) {
+            if (file.isFile() && !file.delete())
+                LOG.warn(format("Unable to delete existing index file {0}", file));
+        }
+    }
+
+    /**
+     * Count the instances file. When the enumerator files are given the
+     * instances are read as strings and enumerated as they are counted;
+     * otherwise they must already be enumerated. When <code>filter</code> is
+     * set the frequency filters are applied as the counts are written.
+     */
+    private void runCount(File instancesFile, File entriesFile,
+                          File featuresFile, File eventsFile,
+                          @Nullable File entryEnumeratorFile,
+                          @Nullable File featureEnumeratorFile,
+                          boolean filter) throws IOException {
+        final boolean enumerate = entryEnumeratorFile != null;
+
         checkValidOutputFile("Entries file", entriesFile);
         checkValidOutputFile("Features file", featuresFile);
         checkValidOutputFile("Events file", eventsFile);
@@ -509,17 +696,26 @@ public final class FullBuild extends AbstractCommand {
         if (LOG.isInfoEnabled()) {
             StringBuilder sb = new StringBuilder();
             appendStageStart(startTime, sb);
-            sb.append(format(" * Input instances file: {0}\n", instancesEnumeratedFile));
+            sb.append(format(" * Input instances file: {0}\n", instancesFile));
+            if (enumerate) {
+                sb.append(format(" * Output entry index: {0}\n", entryEnumeratorFile));
+                sb.append(format(" * Output feature index: {0}\n", featureEnumeratorFile));
+            }
             sb.append(format(" * Output entries file: {0}\n", entriesFile));
             sb.append(format(" * Output features file: {0}\n", featuresFile));
             sb.append(format(" * Output events file: {0}\n", eventsFile));
+            if (filter) {
+                sb.append(" * Min. Entry Freq: ").append(filterEntryMinFreq).append(NL);
+                sb.append(" * Min. Feature Freq: ").append(filterFeatureMinFreq).append(NL);
+                sb.append(" * Min. Event Freq: ").append(filterEventMinFreq).append(NL);
+            }
             sb.append(NL);
             LOG.info(sb.toString());
         }
 
         ExternalCountCommand countCmd = new ExternalCountCommand();
         countCmd.setCharset(getCharset());
-        countCmd.setInstancesFile(instancesEnumeratedFile);
+        countCmd.setInstancesFile(instancesFile);
         countCmd.setEntriesFile(entriesFile);
         countCmd.setFeaturesFile(featuresFile);
         countCmd.setEventsFile(eventsFile);
@@ -529,6 +725,17 @@ public final class FullBuild extends AbstractCommand {
         countCmd.setEnumeratedEntries(true);
         countCmd.setEnumeratedFeatures(true);
         countCmd.setEnumeratorType(enumeratorType);
+        if (enumerate) {
+            countCmd.setEnumerateInstances(true);
+            countCmd.setEntryEnumeratorFile(entryEnumeratorFile);
+            countCmd.setFeatureEnumeratorFile(featureEnumeratorFile);
+        }
+
+        if (filter) {
+            countCmd.setFilterEntryMinFreq(filterEntryMinFreq);
+            countCmd.setFilterFeatureMinFreq(filterFeatureMinFreq);
+            countCmd.setFilterEventMinFreq(filterEventMinFreq);
+        }
 
         countCmd.setNumThreads(numThreads);
 
@@ -546,6 +753,69 @@ public final class FullBuild extends AbstractCommand {
         logStageEnd(startTime, endTime);
     }
 
+    private void runReenumerate(File entriesFile, File featuresFile, File eventsFile,
+                                File entriesReorderedFile, File featuresReorderedFile,
+                                File eventsReorderedFile,
+                                File entryEnumeratorFile, File featureEnumeratorFile,
+                                File entryEnumeratorReorderedFile,
+                                File featureEnumeratorReorderedFile)
+            throws IOException {
+        checkValidInputFile("Entries file", entriesFile);
+        checkValidInputFile("Features file", featuresFile);
+        checkValidInputFile("Events file", eventsFile);
+        checkValidOutputFile("Reordered entries file", entriesReorderedFile);
+        checkValidOutputFile("Reordered features file", featuresReorderedFile);
+        checkValidOutputFile("Reordered events file", eventsReorderedFile);
+
+        File reenumerateTempDir = createTempSubDir(tempBaseDir);
+        FileFactory reenumerateTmpFact = new TempFileFactory(reenumerateTempDir);
+
+        final long startTime = System.currentTimeMillis();
+        if (LOG.isInfoEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            appendStageStart(startTime, sb);
+            sb.append(format(" * Input entries file: {0}\n", entriesFile));
+            sb.append(format(" * Input features file: {0}\n", featuresFile));
+            sb.append(format(" * Input events file: {0}\n", eventsFile));
+            sb.append(format(" * Output entries file: {0}\n", entriesReorderedFile));
+            sb.append(format(" * Output features file: {0}\n", featuresReorderedFile));
+            sb.append(format(" * Output events file: {0}\n", eventsReorderedFile));
+            sb.append(format(" * Output entries index: {0}\n", entryEnumeratorReorderedFile));
+            sb.append(format(" * Output features index: {0}\n", featureEnumeratorReorderedFile));
+            sb.append(NL);
+            LOG.info(sb.toString());
+        }
+
+        ReenumerateCommand reenumerateCmd = new ReenumerateCommand();
+        reenumerateCmd.setCharset(getCharset());
+        reenumerateCmd.setInputEntriesFile(entriesFile);
+        reenumerateCmd.setInputFeaturesFile(featuresFile);
+        reenumerateCmd.setInputEventsFile(eventsFile);
+        reenumerateCmd.setOutputEntriesFile(entriesReorderedFile);
+        reenumerateCmd.setOutputFeaturesFile(featuresReorderedFile);
+        reenumerateCmd.setOutputEventsFile(eventsReorderedFile);
+        reenumerateCmd.setOutputEntryEnumeratorFile(entryEnumeratorReorderedFile);
+        reenumerateCmd.setOutputFeatureEnumeratorFile(featureEnumeratorReorderedFile);
+
+        reenumerateCmd.setEntryEnumeratorFile(entryEnumeratorFile);
+        reenumerateCmd.setFeatureEnumeratorFile(featureEnumeratorFile);
+        reenumerateCmd.setEnumeratorType(enumeratorType);
+        reenumerateCmd.setTempFiles(reenumerateTmpFact);
+
+        if (!reenumerateCmd.runCommand()) {
+            throw new RuntimeException("Re-enumerate command failed.");
+        }
+
+        deleteTempDir(reenumerateTempDir, "Re-enumerate");
+
+        checkValidInputFile("Reordered entries file", entriesReorderedFile);
+        checkValidInputFile("Reordered features file", featuresReorderedFile);
+        checkValidInputFile("Reordered events file", eventsReorderedFile);
+
+        final long endTime = System.currentTimeMillis();
+        logStageEnd(startTime, endTime);
+    }
+
     private void runFilter(File entriesFile, File featuresFile, File eventsFile,
                            File entriesFilteredFile, File featuresFilteredFile,
                            File eventsFilteredFile,
@@ -558,9 +828,6 @@ public final class FullBuild extends AbstractCommand {
         checkValidOutputFile("Filtered features file", featuresFilteredFile);
         checkValidOutputFile("Filtered events file", eventsFilteredFile);
 
-        File filterTempDir = createTempSubDir(tempBaseDir);
-        FileFactory filterTmpFact = new TempFileFactory(filterTempDir);
-
         final long startTime = System.currentTimeMillis();
         if (LOG.isInfoEnabled()) {
             StringBuilder sb = new StringBuilder();
@@ -590,7 +857,6 @@ public final class FullBuild extends AbstractCommand {
         filterCmd.setOutputEntriesFile(entriesFilteredFile);
         filterCmd.setOutputFeaturesFile(featuresFilteredFile);
         filterCmd.setOutputEventsFile(eventsFilteredFile);
-        filterCmd.setTempFiles(filterTmpFact);
 
         filterCmd.setFilterEventMinFreq(filterEventMinFreq);
         filterCmd.setFilterEntryMinFreq(filterEntryMinFreq);
@@ -605,6 +871,7 @@ public final class FullBuild extends AbstractCommand {
         filterCmd.setEntryEnumeratorFile(entryEnumeratorFile);
         filterCmd.setFeatureEnumeratorFile(featureEnumeratorFile);
         filterCmd.setEnumeratorType(enumeratorType);
+        filterCmd.setNumThreads(numThreads);
 
         if (!filterCmd.runCommand()) {
             throw new RuntimeException("Filter command failed.");
@@ -614,8 +881,6 @@ public final class FullBuild extends AbstractCommand {
         checkValidInputFile("Filtered features file", featuresFilteredFile);
         checkValidInputFile("Filtered events file", eventsFilteredFile);
 
-        deleteTempDir(filterTempDir, "Filter");
-
         final long endTime = System.currentTimeMillis();
         logStageEnd(startTime, endTime);
     }
@@ -645,6 +910,21 @@ public final class FullBuild extends AbstractCommand {
         }
 
 
+        AllPairsCommand allPairsCmd = newAllPairsCommand(
+                entriesFilteredFile, featuresFilteredFile, eventsFilteredFile, simsFile);
+
+        if (!allPairsCmd.runCommand()) {
+            throw new RuntimeException("All-Pairs command failed.");
+        }
+
+        checkValidInputFile("Sims file", simsFile);
+
+        final long endTime = System.currentTimeMillis();
+        logStageEnd(startTime, endTime);
+    }
+
+    private AllPairsCommand newAllPairsCommand(File entriesFilteredFile, File featuresFilteredFile,
+                                               File eventsFilteredFile, File simsFile) {
         AllPairsCommand allPairsCmd = new AllPairsCommand();
         allPairsCmd.setCharset(getCharset());
 
@@ -670,15 +950,7 @@ public final class FullBuild extends AbstractCommand {
         allPairsCmd.setEnumeratedEntries(true);
         allPairsCmd.setEnumeratedFeatures(true);
         allPairsCmd.setEnumeratorType(enumeratorType);
-
-        if (!allPairsCmd.runCommand()) {
-            throw new RuntimeException("All-Pairs command failed.");
-        }
-
-        checkValidInputFile("Sims file", simsFile);
-
-        final long endTime = System.currentTimeMillis();
-        logStageEnd(startTime, endTime);
+        return allPairsCmd;
     }
 
     private void runKNN(File simsFile, File neighboursFile) throws IOException {
@@ -699,6 +971,22 @@ public final class FullBuild extends AbstractCommand {
             LOG.info(sb.toString());
         }
 
+        ExternalKnnSimsCommand knnCmd = newKnnCommand(simsFile, neighboursFile, knnTmpFact);
+
+        if (!knnCmd.runCommand()) {
+            throw new RuntimeException("KNN command failed.");
+        }
+
+        checkValidInputFile("Neighbours file", neighboursFile);
+
+        deleteTempDir(knnTempDir, "K-Nearest-Neighbours");
+
+        final long endTime = System.currentTimeMillis();
+        logStageEnd(startTime, endTime);
+    }
+
+    private ExternalKnnSimsCommand newKnnCommand(File simsFile, File neighboursFile,
+                                                 FileFactory knnTmpFact) {
         ExternalKnnSimsCommand knnCmd = new ExternalKnnSimsCommand();
         knnCmd.setCharset(getCharset());
         knnCmd.setSourceFile(simsFile);
@@ -711,12 +999,178 @@ public final class FullBuild extends AbstractCommand {
         knnCmd.setTempFileFactory(knnTmpFact);
         knnCmd.setNumThreads(numThreads);
         knnCmd.setK(k);
+        return knnCmd;
+    }
 
-        if (!knnCmd.runCommand()) {
-            throw new RuntimeException("KNN command failed.");
+    /**
+     * The streaming pipeline covers the all-pairs, k-nearest-neighbours and
+     * un-enumerating stages, so it is only used when all three are run.
+     */
+    private boolean isStreamedSimilarity() {
+        if (!streamingPipeline)
+            return false;
+        if (!stagesToRun.containsAll(EnumSet.of(Stage.allpairs, Stage.knn, Stage.unenumerate))) {
+            LOG.warn("The streaming pipeline requires the allpairs, knn and unenumerate stages, "
+                    + "so they will run separately.");
+            return false;
         }
+        return true;
+    }
 
-        checkValidInputFile("Neighbours file", neighboursFile);
+    /**
+     * Run the all-pairs, k-nearest-neighbours and un-enumerating stages
+     * concurrently. Sims pass from the all-pairs search to a streaming
+     * neighbour selection, and the neighbours from there to the strings file,
+     * through bounded pipes; a stage that gets ahead waits for the next. The
+     * sims and neighbours files are written only if intermediate files are to
+     * be kept.
+     * <p/>
+     * The filtered events are not streamed into the all-pairs search, because
+     * it seeks back and forth over them.
+     */
+    private void runStreamingSimilarity(File entriesFilteredFile, File featuresFilteredFile,
+                                        File eventsFilteredFile, File simsFile,
+                                        File neighboursFile, final File neighboursStringsFile,
+                                        File entryEnumeratorFile) throws IOException {
+        checkValidInputFile("Filtered entries file", entriesFilteredFile);
+        checkValidInputFile("Filtered features file", featuresFilteredFile);
+        checkValidInputFile("Filtered events file", eventsFilteredFile);
+        checkValidOutputFile("Neighbours strings file", neighboursStringsFile);
+        if (keepIntermediateFiles) {
+            checkValidOutputFile("Sims file", simsFile);
+            checkValidOutputFile("Neighbours file", neighboursFile);
+        }
+
+        File knnTempDir = createTempSubDir(tempBaseDir);
+        FileFactory knnTmpFact = new TempFileFactory(knnTempDir);
+
+        final long startTime = System.currentTimeMillis();
+        if (LOG.isInfoEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            appendStageStart(startTime, sb);
+            sb.append(format(" * Input entries file: {0}\n", entriesFilteredFile));
+            sb.append(format(" * Input features file: {0}\n", featuresFilteredFile));
+            sb.append(format(" * Input events file: {0}\n", eventsFilteredFile));
+            if (keepIntermediateFiles) {
+                sb.append(format(" * Output sims file: {0}\n", simsFile));
+                sb.append(format(" * Output neighbours file: {0}\n", neighboursFile));
+            }
+            sb.append(format(" * Output neighbours strings file: {0}\n", neighboursStringsFile));
+            sb.append(format(" * Measure: {0}{1}\n", measureName,
+                             measureReversed ? "(reversed)" : ""));
+            sb.append(format(" * Accept sims range: {0} to {1}\n",
+                             minSimilarity, maxSimilarity));
+            sb.append(format(" * K: {0}\n", k));
+            sb.append(NL);
+            LOG.info(sb.toString());
+        }
+
+        final ObjectPipe<Weighted<TokenPair>> simsPipe = new ObjectPipe<Weighted<TokenPair>>();
+        final ObjectPipe<Weighted<TokenPair>> neighboursPipe = new ObjectPipe<Weighted<TokenPair>>();
+        final DoubleEnumerating enumeratedIdx = new DoubleEnumeratingDelegate(
+                EnumeratorType.Memory, true, true, null, null);
+
+        final AllPairsCommand allPairsCmd = newAllPairsCommand(
+                entriesFilteredFile, featuresFilteredFile, eventsFilteredFile, simsFile);
+        allPairsCmd.setSimsSink(keepIntermediateFiles
+                ? ObjectIO.tee(simsPipe.sink(), BybloIO.openSimsSink(simsFile, getCharset(), enumeratedIdx))
+                : simsPipe.sink());
+
+        final ExternalKnnSimsCommand knnCmd = newKnnCommand(simsFile, neighboursFile, knnTmpFact);
+        knnCmd.setStreaming(true);
+        knnCmd.setSimsSource(simsPipe.source());
+        knnCmd.setNeighboursSink(keepIntermediateFiles
+                ? ObjectIO.tee(neighboursPipe.sink(),
+                               BybloIO.openNeighboursSink(neighboursFile, getCharset(), enumeratedIdx))
+                : neighboursPipe.sink());
+
+        final DoubleEnumeratingDelegate stringsIdx = new DoubleEnumeratingDelegate(
+                enumeratorType, false, false, entryEnumeratorFile, null);
+
+        // When a stage fails, for any reason including an Error, the pipes on
+        // either side of it are failed or closed, so that no other stage is
+        // left waiting on it. The stage's own failure is reported by its future.
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        final Map<Stage, Future<Void>> futures = new EnumMap<Stage, Future<Void>>(Stage.class);
+        futures.put(Stage.allpairs, executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                boolean completed = false;
+                try {
+                    if (!allPairsCmd.runCommand())
+                        throw new RuntimeException("All-Pairs command failed.");
+                    completed = true;
+                } finally {
+                    if (!completed)
+                        simsPipe.fail(new IOException("All-Pairs stage failed."));
+                }
+                return null;
+            }
+        }));
+        futures.put(Stage.knn, executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                boolean completed = false;
+                try {
+                    if (!knnCmd.runCommand())
+                        throw new RuntimeException("KNN command failed.");
+                    completed = true;
+                } finally {
+                    if (!completed) {
+                        try {
+                            simsPipe.source().close();
+                        } finally {
+                            neighboursPipe.fail(new IOException("K-Nearest-Neighbours stage failed."));
+                        }
+                    }
+                }
+                return null;
+            }
+        }));
+        futures.put(Stage.unenumerate, executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                final ObjectSource<Weighted<TokenPair>> src = neighboursPipe.source();
+                try {
+                    final WeightedTokenPairSink sink = BybloIO.openNeighboursSink(
+                            neighboursStringsFile, getCharset(), stringsIdx);
+                    try {
+                        ObjectIO.copy(src, sink);
+                    } finally {
+                        sink.flush();
+                        sink.close();
+                    }
+                } finally {
+                    src.close();
+                    stringsIdx.closeEnumerator();
+                }
+                return null;
+            }
+        }));
+        executor.shutdown();
+
+        Throwable failure = null;
+        for (Map.Entry<Stage, Future<Void>> future : futures.entrySet()) {
+            try {
+                future.getValue().get();
+            } catch (ExecutionException ex) {
+                LOG.error(format("Stage {0} failed.", future.getKey()), ex.getCause());
+                if (failure == null)
+                    failure = ex.getCause();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                throw new RuntimeException(ex);
+            }
+        }
+        if (failure != null)
+            throw new RuntimeException("Streaming pipeline failed.", failure);
+
+        if (keepIntermediateFiles) {
+            checkValidInputFile("Sims file", simsFile);
+            checkValidInputFile("Neighbours file", neighboursFile);
+        }
+        checkValidInputFile("Neighbours strings file", neighboursStringsFile);
 
         deleteTempDir(knnTempDir, "K-Nearest-Neighbours");
 
@@ -748,6 +1202,7 @@ public final class FullBuild extends AbstractCommand {
         unindexCmd.getIndexDelegate().setEnumeratedEntries(true);
         unindexCmd.getIndexDelegate().setEntryEnumeratorFile(entryEnumeratorFile);
         unindexCmd.getIndexDelegate().setEnumeratorType(enumeratorType);
+        unindexCmd.setPreloadStrings(true);
 
         if (!unindexCmd.runCommand()) {
             throw new RuntimeException("Unindexing command failed.");
@@ -933,6 +1388,38 @@ public final class FullBuild extends AbstractCommand {
         this.numThreads = numThreads;
     }
 
+    public boolean isFusedEnumerateCount() {
+        return fusedEnumerateCount;
+    }
+
+    public void setFusedEnumerateCount(boolean fusedEnumerateCount) {
+        this.fusedEnumerateCount = fusedEnumerateCount;
+    }
+
+    public boolean isFusedCountFilter() {
+        return fusedCountFilter;
+    }
+
+    public void setFusedCountFilter(boolean fusedCountFilter) {
+        this.fusedCountFilter = fusedCountFilter;
+    }
+
+    public boolean isStreamingPipeline() {
+        return streamingPipeline;
+    }
+
+    public void setStreamingPipeline(boolean streamingPipeline) {
+        this.streamingPipeline = streamingPipeline;
+    }
+
+    public boolean isKeepIntermediateFiles() {
+        return keepIntermediateFiles;
+    }
+
+    public void setKeepIntermediateFiles(boolean keepIntermediateFiles) {
+        this.keepIntermediateFiles = keepIntermediateFiles;
+    }
+
     public boolean isSkipIndex1() {
         return skipIndex1;
     }
@@ -1006,6 +1493,7 @@ public final class FullBuild extends AbstractCommand {
             sb.append(format(" * Character encoding: {0}\n",
                              getCharset()));
             sb.append(format(" * Num. Threads: {0}\n", numThreads));
+            sb.append(format(" * Enumerator type: {0}\n", enumeratorType));
             sb.append(format(" * {0}\n",
                              MiscUtil.memoryInfoString()));
             sb.append(format(" * Java Spec: {0} {1}, {2}\n",
@@ -1024,6 +1512,13 @@ public final class FullBuild extends AbstractCommand {
                              System.getProperty("os.version"),
                              System.getProperty("os.arch")));
             sb.append(" * Running stages: ").append(stagesToRun).append(NL);
+            if (fusedEnumerateCount)
+                sb.append(" * Fused enumerate and count stages").append(NL);
+            if (fusedCountFilter)
+                sb.append(" * Fused count and filter stages").append(NL);
+            if (streamingPipeline)
+                sb.append(" * Streaming pipeline").append(keepIntermediateFiles
+                        ? ", keeping intermediate files" : "").append(NL);
 
             sb.append(NL);
             LOG.info(sb.toString());
@@ -67,6 +67,7 @@ public final class Tools extends AbstractCommand {
         tmp.put("allpairs", AllPairsCommand.class);
         tmp.put("count", ExternalCountCommand.class);
         tmp.put("filter", FilterCommand.class);
+        tmp.put("reenumerate", ReenumerateCommand.class);
         tmp.put("index", IndexingCommands.IndexInstances.class);
         tmp.put("index-instances", IndexingCommands.IndexInstances.class);
         tmp.put("index-entries", IndexingCommands.IndexEntries.class);
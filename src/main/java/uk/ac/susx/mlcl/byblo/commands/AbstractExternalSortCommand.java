@@ -54,9 +54,11 @@ import java.io.Flushable;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.text.MessageFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.Future;
 
 /**
@@ -73,9 +75,7 @@ public abstract class AbstractExternalSortCommand<T>
 
     private static final String KEY_SRC_FILE = "sort.src.file";
 
-    private static final String KEY_SRC_FILE_A = "sort.src.file.a";
-
-    private static final String KEY_SRC_FILE_B = "sort.src.file.b";
+    private static final String KEY_SRC_FILES = "sort.src.files";
 
     private static final String KEY_DST_FILE = "sort.dst.file";
 
@@ -93,9 +93,31 @@ public abstract class AbstractExternalSortCommand<T>
             description = "Reverse the result of comparisons.")
     private boolean reverse = false;
 
+    @Parameter(names = {"--merge-fan-in"},
+            description = "Maximum number of temporary files merged together at once.")
+    private int mergeFanIn = ExternalCountCommand.DEFAULT_MERGE_FAN_IN;
+
+    @Parameter(names = {"--merge-prefetch"},
+            description = "Number of records read ahead from each merge input on a background thread; 0 disables.")
+    private int mergePrefetch = 0;
+
+    @Parameter(names = {"--replacement-selection"},
+            description = "Generate runs by replacement selection, producing longer and fewer runs at the cost of "
+                    + "generating them on a single thread.")
+    private boolean replacementSelection = false;
+
+    @Parameter(names = {"--no-presorted-detection"},
+            description = "Always sort, rather than first checking whether the input is already (nearly) sorted.")
+    private boolean presortedDetectionDisabled = false;
+
     private Comparator<T> comparator;
 
-    private File[] nextFileToMerge;
+    /**
+     * Number of natural runs merged directly by the last run of the command, or 0 if the input was sorted.
+     */
+    private int naturalRunCount = 0;
+
+    private Queue<File> mergeQueue;
 
     private final ProgressAggregate progress = new ProgressAggregate(this);
 
@@ -118,6 +140,10 @@ public abstract class AbstractExternalSortCommand<T>
         return fileDelegate;
     }
 
+    ProgressAggregate getProgress() {
+        return progress;
+    }
+
     FileFactory getTempFileFactory() {
         return tempFileFactory;
     }
@@ -135,6 +161,48 @@ public abstract class AbstractExternalSortCommand<T>
         this.reverse = reverse;
     }
 
+    public final int getMergeFanIn() {
+        return mergeFanIn;
+    }
+
+    public final void setMergeFanIn(int mergeFanIn) {
+        Checks.checkRangeIncl("mergeFanIn", mergeFanIn, 2, Integer.MAX_VALUE);
+        this.mergeFanIn = mergeFanIn;
+    }
+
+    public final int getMergePrefetch() {
+        return mergePrefetch;
+    }
+
+    public final void setMergePrefetch(int mergePrefetch) {
+        Checks.checkRangeIncl("mergePrefetch", mergePrefetch, 0, Integer.MAX_VALUE);
+        this.mergePrefetch = mergePrefetch;
+    }
+
+    public final boolean isReplacementSelection() {
+        return replacementSelection;
+    }
+
+    public final void setReplacementSelection(boolean replacementSelection) {
+        this.replacementSelection = replacementSelection;
+    }
+
+    public final boolean isPresortedDetection() {
+        return !presortedDetectionDisabled;
+    }
+
+    public final void setPresortedDetection(boolean presortedDetection) {
+        this.presortedDetectionDisabled = !presortedDetection;
+    }
+
+    /**
+     * @return number of natural runs that the last run of the command found in its input and merged directly,
+     *         without sorting, or 0 if the input was sorted
+     */
+    final int getNaturalRunCount() {
+        return naturalRunCount;
+    }
+
     Comparator<T> getComparator() {
         return isReverse() ? Comparators.reverse(comparator) : comparator;
     }
@@ -185,10 +253,8 @@ public abstract class AbstractExternalSortCommand<T>
             throw new NullPointerException();
         }
 
-        nextFileToMerge = new File[64];
-
-        final SeekableObjectSource<T, ?> src = openSource(getFileDelegate().getSourceFile());
-        final ObjectSource<Chunk<T>> chunks = Chunker.newInstance(src, maxChunkSize);
+        mergeQueue = new ArrayDeque<File>();
+        naturalRunCount = 0;
 
         progress.startAdjusting();
         progress.setState(State.RUNNING);
@@ -197,14 +263,51 @@ public abstract class AbstractExternalSortCommand<T>
         progress.addChildProgressReporter(finalMoveTask);
         progress.endAdjusting();
 
+        final File presorted = isPresortedDetection()
+                ? mergeNaturalRuns(openSource(getFileDelegate().getSourceFile()))
+                : null;
+
         progress.startAdjusting();
-        while (chunks.hasNext()) {
-            clearCompleted(false);
+        if (presorted != null) {
+            mergeQueue.add(presorted);
+        } else if (isReplacementSelection()) {
+            final SeekableObjectSource<T, ?> src = openSource(getFileDelegate().getSourceFile());
+            // All of the memory otherwise shared between the sort workers goes to the selection heap
+            final int capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+                    (long) maxChunkSize * (getNumThreads() + PRELOAD_SIZE));
+            try {
+                final ReplacementSelector<T> selector = new ReplacementSelector<T>(src, getComparator(), capacity);
+                while (selector.hasNextRun()) {
+                    clearCompleted(false);
+
+                    final File dst = getTempFileFactory().createFile();
+                    final ObjectSink<T> sink = openSink(dst);
+                    try {
+                        selector.writeRun(sink);
+                        if (sink instanceof Flushable)
+                            ((Flushable) sink).flush();
+                    } finally {
+                        sink.close();
+                    }
+                    queueMergeTask(dst);
+                    progress.endAdjusting();
+                    progress.startAdjusting();
+                }
+                LOG.info(MessageFormat.format("Generated {0} runs by replacement selection.", selector.getRunCount()));
+            } finally {
+                src.close();
+            }
+        } else {
+            final SeekableObjectSource<T, ?> src = openSource(getFileDelegate().getSourceFile());
+            final ObjectSource<Chunk<T>> chunks = Chunker.newInstance(src, maxChunkSize);
+            while (chunks.hasNext()) {
+                clearCompleted(false);
 
-            Chunk<T> chunk = chunks.read();
-            submitTask(createSortTask(chunk, getTempFileFactory().createFile()));
-            progress.endAdjusting();
-            progress.startAdjusting();
+                Chunk<T> chunk = chunks.read();
+                submitTask(createSortTask(chunk, getTempFileFactory().createFile()));
+                progress.endAdjusting();
+                progress.startAdjusting();
+            }
         }
 
         clearCompleted(true);
@@ -212,57 +315,30 @@ public abstract class AbstractExternalSortCommand<T>
         progress.startAdjusting();
 
 
-        // Finally merge any remaining files up the stack
-        // XXX ideal this should happen automatically.
-        for (int i = 0; i < nextFileToMerge.length - 1; i++) {
-            if (nextFileToMerge[i] == null) {
-
-                // nothing
+        // Finally merge any remaining files
+        while (mergeQueue.size() > 1) {
+            ObjectKWayMergeTask<T> mergeTask = createMergeTask(
+                    pollMergeQueue(), getTempFileFactory().createFile());
 
-            } else if (nextFileToMerge[i + 1] == null) {
+            mergeTask.run();
 
-                nextFileToMerge[i + 1] = nextFileToMerge[i];
-                nextFileToMerge[i] = null;
+            if (mergeTask.isExceptionTrapped())
+                mergeTask.throwTrappedException();
+            closeMergeTask(mergeTask);
 
-            } else {
-                File tmp = getTempFileFactory().createFile();
-
-                ObjectMergeTask<T> mergeTask = createMergeTask(
-                        nextFileToMerge[i], nextFileToMerge[i + 1], tmp);
-
-                mergeTask.run();
-
-                if (mergeTask.isExceptionTrapped())
-                    mergeTask.throwTrappedException();
-                if (mergeTask.getSink() instanceof Flushable)
-                    ((Flushable) mergeTask.getSink()).flush();
-                if (mergeTask.getSink() instanceof Closeable)
-                    ((Closeable) mergeTask.getSink()).close();
-                if (mergeTask.getSourceA() instanceof Closeable)
-                    ((Closeable) mergeTask.getSourceA()).close();
-                if (mergeTask.getSourceB() instanceof Closeable)
-                    ((Closeable) mergeTask.getSourceB()).close();
-
-                if (!nextFileToMerge[i].delete() && LOG.isWarnEnabled())
-                    LOG.
-                            warn("Failed to delete input file 1 to completed merge: "
-                                    + nextFileToMerge[i].getName());
-
-                if (!nextFileToMerge[i + 1].delete() && LOG.isWarnEnabled())
-                    LOG.
-                            warn("Failed to delete input file 2 to completed merge: "
-                                    + nextFileToMerge[i + 1].getName());
-
-
-                nextFileToMerge[i] = null;
-                nextFileToMerge[i + 1] = tmp;
-                progress.endAdjusting();
-                progress.startAdjusting();
+            if (!DEBUG) {
+                for (String mergedSrc : mergeTask.getProperty(KEY_SRC_FILES).split(File.pathSeparator)) {
+                    if (!new File(mergedSrc).delete() && LOG.isWarnEnabled())
+                        LOG.warn("Failed to delete input file to completed merge: " + mergedSrc);
+                }
             }
 
+            mergeQueue.add(new File(mergeTask.getProperty(KEY_DST_FILE)));
+            progress.endAdjusting();
+            progress.startAdjusting();
         }
 
-        finalMoveTask.setSrcFile(nextFileToMerge[nextFileToMerge.length - 1]);
+        finalMoveTask.setSrcFile(mergeQueue.poll());
         finalMoveTask.run();
         if (finalMoveTask.isExceptionTrapped())
             finalMoveTask.throwTrappedException();
@@ -272,6 +348,95 @@ public abstract class AbstractExternalSortCommand<T>
 
     }
 
+    /**
+     * Scan the source for natural runs: maximal sequences that are already in order. If there are no more than the
+     * merge fan-in, the runs are merged straight into a temporary file, which is returned. The common case of fully
+     * sorted input is written during the scan itself, so it is read only once.
+     * <p/>
+     * The scan stops as soon as it finds too many runs, and null is returned, so on unsorted input it costs very
+     * little.
+     *
+     * @param src source to scan, which is closed on return
+     * @return temporary file holding the sorted output, or null if the input must be sorted
+     * @throws Exception if reading or writing fails
+     */
+    @SuppressWarnings("unchecked")
+    private <P> File mergeNaturalRuns(final SeekableObjectSource<T, P> src) throws Exception {
+        final Comparator<T> comparator = getComparator();
+        final List<P> runStarts = new ArrayList<P>();
+        final List<Long> runLengths = new ArrayList<Long>();
+
+        File copyFile = getTempFileFactory().createFile();
+        ObjectSink<T> copySink = openSink(copyFile);
+        try {
+            P runStart = src.position();
+            long runLength = 0;
+            T previous = null;
+            while (src.hasNext()) {
+                final P position = src.position();
+                final T record = src.read();
+                if (previous != null && comparator.compare(previous, record) > 0) {
+                    if (copySink != null) {
+                        copySink.close();
+                        copySink = null;
+                        if (!copyFile.delete() && LOG.isWarnEnabled())
+                            LOG.warn("Failed to delete temporary file: " + copyFile);
+                        copyFile = null;
+                    }
+                    runStarts.add(runStart);
+                    runLengths.add(runLength);
+                    if (runStarts.size() >= getMergeFanIn()) {
+                        LOG.info("Input is not sorted; sorting.");
+                        return null;
+                    }
+                    runStart = position;
+                    runLength = 0;
+                }
+                if (copySink != null)
+                    copySink.write(record);
+                previous = record;
+                ++runLength;
+            }
+            runStarts.add(runStart);
+            runLengths.add(runLength);
+        } finally {
+            src.close();
+            if (copySink != null) {
+                if (copySink instanceof Flushable)
+                    ((Flushable) copySink).flush();
+                copySink.close();
+            }
+        }
+
+        if (copyFile != null) {
+            LOG.info("Input is already sorted; skipping sort.");
+            naturalRunCount = 1;
+            return copyFile;
+        }
+
+        LOG.info(MessageFormat.format("Input consists of {0} sorted runs; merging them directly.", runStarts.size()));
+        final List<ObjectSource<T>> sources = new ArrayList<ObjectSource<T>>(runStarts.size());
+        for (int i = 0; i < runStarts.size(); i++) {
+            final SeekableObjectSource<T, P> run =
+                    (SeekableObjectSource<T, P>) openSource(getFileDelegate().getSourceFile());
+            run.position(runStarts.get(i));
+            sources.add(ObjectIO.limit(run, runLengths.get(i)));
+        }
+
+        final File mergeFile = getTempFileFactory().createFile();
+        final ObjectKWayMergeTask<T> mergeTask = new ObjectKWayMergeTask<T>(sources, openSink(mergeFile));
+        mergeTask.setComparator(comparator);
+        mergeTask.setPrefetchBlockSize(getMergePrefetch());
+        progress.addChildProgressReporter(mergeTask);
+
+        mergeTask.run();
+        closeMergeTask(mergeTask);
+        if (mergeTask.isExceptionTrapped())
+            mergeTask.throwTrappedException();
+        naturalRunCount = runStarts.size();
+        return mergeFile;
+    }
+
     void handleCompletedTask(Task task) throws Exception {
         Checks.checkNotNull("task", task);
         task.throwTrappedException();
@@ -288,29 +453,18 @@ public abstract class AbstractExternalSortCommand<T>
                 ((Closeable) sortTask.getSink()).close();
             if (sortTask.getSource() instanceof Closeable)
                 ((Closeable) sortTask.getSource()).close();
-            queueMergeTask(new File(task.getProperty(KEY_DST_FILE)), 0);
+            queueMergeTask(new File(task.getProperty(KEY_DST_FILE)));
 
-        } else if (task instanceof ObjectMergeTask) {
+        } else if (task instanceof ObjectKWayMergeTask) {
 
-            ObjectMergeTask<?> mergeTask = (ObjectMergeTask) task;
-            if (mergeTask.getSink() instanceof Flushable)
-                ((Flushable) mergeTask.getSink()).flush();
-            if (mergeTask.getSink() instanceof Closeable)
-                ((Closeable) mergeTask.getSink()).close();
-            if (mergeTask.getSourceA() instanceof Closeable)
-                ((Closeable) mergeTask.getSourceA()).close();
-            if (mergeTask.getSourceB() instanceof Closeable)
-                ((Closeable) mergeTask.getSourceB()).close();
-
-            int depth = Integer.parseInt(mergeTask.getProperty("depth"));
-            queueMergeTask(new File(task.getProperty(KEY_DST_FILE)), depth + 1);
+            ObjectKWayMergeTask<?> mergeTask = (ObjectKWayMergeTask) task;
+            closeMergeTask(mergeTask);
 
+            queueMergeTask(new File(task.getProperty(KEY_DST_FILE)));
 
             if (!DEBUG) {
-                submitTask(createDeleteTask(new File(task.getProperty(
-                        KEY_SRC_FILE_A))));
-                submitTask(createDeleteTask(new File(task.getProperty(
-                        KEY_SRC_FILE_B))));
+                for (String src : task.getProperty(KEY_SRC_FILES).split(File.pathSeparator))
+                    submitTask(createDeleteTask(new File(src)));
             }
 
         } else if (task instanceof FileDeleteTask) {
@@ -327,24 +481,33 @@ public abstract class AbstractExternalSortCommand<T>
         return super.submitTask(task);
     }
 
-    void queueMergeTask(File file, int depth) throws Exception {
+    void queueMergeTask(File file) throws Exception {
         Checks.checkNotNull("file", file);
 
-        if (nextFileToMerge[depth] == null) {
-
-            nextFileToMerge[depth] = file;
-
-        } else {
-
-            File srcA = nextFileToMerge[depth];
-            nextFileToMerge[depth] = null;
-            File dst = getTempFileFactory().createFile();
-            ObjectMergeTask<T> mergeTask = createMergeTask(srcA, file, dst);
-            mergeTask.setProperty("depth", Integer.toString(depth));
+        mergeQueue.add(file);
+        if (mergeQueue.size() >= getMergeFanIn()) {
+            ObjectKWayMergeTask<T> mergeTask = createMergeTask(
+                    pollMergeQueue(), getTempFileFactory().createFile());
             submitTask(mergeTask);
+        }
+    }
 
+    private List<File> pollMergeQueue() {
+        final int n = Math.min(mergeQueue.size(), getMergeFanIn());
+        final List<File> files = new ArrayList<File>(n);
+        for (int i = 0; i < n; i++)
+            files.add(mergeQueue.poll());
+        return files;
+    }
 
-        }
+    private static void closeMergeTask(ObjectKWayMergeTask<?> mergeTask) throws IOException {
+        if (mergeTask.getSink() instanceof Flushable)
+            ((Flushable) mergeTask.getSink()).flush();
+        if (mergeTask.getSink() instanceof Closeable)
+            ((Closeable) mergeTask.getSink()).close();
+        for (ObjectSource<?> source : mergeTask.getSources())
+            if (source instanceof Closeable)
+                ((Closeable) source).close();
     }
 
     FileDeleteTask createDeleteTask(File file) {
@@ -369,17 +532,23 @@ public abstract class AbstractExternalSortCommand<T>
         return task;
     }
 
-    ObjectMergeTask<T> createMergeTask(File srcA, File srcB, File dst) throws IOException {
-        ObjectSource<T> source1 = openSource(srcA);
-        ObjectSource<T> source2 = openSource(srcB);
+    ObjectKWayMergeTask<T> createMergeTask(List<File> srcs, File dst) throws IOException {
+        final List<ObjectSource<T>> sources = new ArrayList<ObjectSource<T>>(srcs.size());
+        final StringBuilder srcNames = new StringBuilder();
+        for (File src : srcs) {
+            sources.add(openSource(src));
+            if (srcNames.length() > 0)
+                srcNames.append(File.pathSeparator);
+            srcNames.append(src);
+        }
         ObjectSink<T> sink = openSink(dst);
 
-        ObjectMergeTask<T> mergeTask =
-                new ObjectMergeTask<T>(source1, source2, sink);
+        ObjectKWayMergeTask<T> mergeTask =
+                new ObjectKWayMergeTask<T>(sources, sink);
         mergeTask.setComparator(this.getComparator());
+        mergeTask.setPrefetchBlockSize(getMergePrefetch());
 
-        mergeTask.setProperty(KEY_SRC_FILE_A, srcA.toString());
-        mergeTask.setProperty(KEY_SRC_FILE_B, srcB.toString());
+        mergeTask.setProperty(KEY_SRC_FILES, srcNames.toString());
         mergeTask.setProperty(KEY_DST_FILE, dst.toString());
 
         progress.addChildProgressReporter(mergeTask);
@@ -393,7 +562,11 @@ public abstract class AbstractExternalSortCommand<T>
         return super.toStringHelper().
                 add("in", getFileDelegate().getSourceFile()).
                 add("out", getFileDelegate().getDestinationFile()).
-                add("temp", getTempFileFactory());
+                add("temp", getTempFileFactory()).
+                add("mergeFanIn", getMergeFanIn()).
+                add("mergePrefetch", getMergePrefetch()).
+                add("replacementSelection", isReplacementSelection()).
+                add("presortedDetection", isPresortedDetection());
     }
 
     public final void setCharset(Charset charset) {
@@ -62,11 +62,13 @@ import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.commands.*;
 import uk.ac.susx.mlcl.lib.events.ReportLoggingProgressListener;
 import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
 import uk.ac.susx.mlcl.lib.io.ObjectSource;
 import uk.ac.susx.mlcl.lib.io.Tell;
 
 import javax.annotation.CheckReturnValue;
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -109,6 +111,12 @@ public class AllPairsCommand extends AbstractCommand {
             validateWith = OutputFileValidator.class)
     private File outputFile;
 
+    /**
+     * Recipient of the sims in place of the output file, such as a pipe to a
+     * stage that is running concurrently; null to write the output file.
+     */
+    private transient ObjectSink<Weighted<TokenPair>> simsSink = null;
+
     @Parameter(names = {"-t", "--threads"},
             description = "Number of concurrent processing threads.")
     private int numThreads = Runtime.getRuntime().availableProcessors() + 1;
@@ -314,7 +322,7 @@ public class AllPairsCommand extends AbstractCommand {
             // Create a sink object that will act as a recipient for all pairs that
             // are produced by the algorithm.
 
-            WeightedTokenPairSink sink = openSimsSink();
+            final ObjectSink<Weighted<TokenPair>> sink = simsSink != null ? simsSink : openSimsSink();
 
 
             final NaiveApssTask apss = newAlgorithmInstance();
@@ -332,7 +340,8 @@ public class AllPairsCommand extends AbstractCommand {
 
             apss.run();
 
-            sink.flush();
+            if (sink instanceof Flushable)
+                ((Flushable) sink).flush();
             sink.close();
 
             sourceA.close();
@@ -547,6 +556,20 @@ public class AllPairsCommand extends AbstractCommand {
         this.outputFile = outputFile;
     }
 
+    final ObjectSink<Weighted<TokenPair>> getSimsSink() {
+        return simsSink;
+    }
+
+    /**
+     * Write the sims to <code>simsSink</code>, which is closed on completion,
+     * rather than to the output file.
+     *
+     * @param simsSink sink to write sims to, or null to write the output file
+     */
+    public final void setSimsSink(ObjectSink<Weighted<TokenPair>> simsSink) {
+        this.simsSink = simsSink;
+    }
+
     final Charset getCharset() {
         return fileDelegate.getCharset();
     }
@@ -34,16 +34,19 @@ import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.beust.jcommander.ParametersDelegate;
 import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.EnumeratingDelegates;
 import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
 import uk.ac.susx.mlcl.byblo.io.*;
 import uk.ac.susx.mlcl.byblo.tasks.CountTask;
 import uk.ac.susx.mlcl.lib.AbstractParallelCommandTask;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.MiscUtil;
+import uk.ac.susx.mlcl.lib.collect.IntBitSet;
 import uk.ac.susx.mlcl.lib.commands.*;
 import uk.ac.susx.mlcl.lib.events.ProgressAggregate;
 import uk.ac.susx.mlcl.lib.events.ProgressListener;
@@ -51,11 +54,11 @@ import uk.ac.susx.mlcl.lib.events.ProgressReporting;
 import uk.ac.susx.mlcl.lib.events.ReportLoggingProgressListener;
 import uk.ac.susx.mlcl.lib.io.*;
 import uk.ac.susx.mlcl.lib.tasks.FileDeleteTask;
-import uk.ac.susx.mlcl.lib.tasks.ObjectMergeTask;
-import uk.ac.susx.mlcl.lib.tasks.ObjectSortTask;
+import uk.ac.susx.mlcl.lib.tasks.ObjectKWayMergeTask;
 import uk.ac.susx.mlcl.lib.tasks.Task;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.util.*;
@@ -75,9 +78,7 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
 
     private static final String KEY_SRC_FILE = "KEY_SRC_FILE";
 
-    private static final String KEY_SRC_FILE_A = "KEY_SRC_FILE_A";
-
-    private static final String KEY_SRC_FILE_B = "KEY_SRC_FILE_B";
+    private static final String KEY_SRC_FILES = "KEY_SRC_FILES";
 
     private static final String KEY_DST_FILE = "KEY_DST_FILE";
 
@@ -87,14 +88,14 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
 
     private static final String KEY_DST_EVENTS_FILE = "KEY_DST_EVENTS_FILE";
 
+    private static final String KEY_RUNS_FILE = "KEY_RUNS_FILE";
+
     private static final String VALUE_TASK_TYPE_DELETE = "VALUE_TASK_TYPE_DELETE";
 
     private static final String VALUE_TASK_TYPE_COUNT = "VALUE_TASK_TYPE_COUNT";
 
     private static final String VALUE_TASK_TYPE_MERGE = "VALUE_TASK_TYPE_MERGE";
 
-    private static final String VALUE_TASK_TYPE_SORT = "VALUE_TASK_TYPE_SORT";
-
     protected static final String VALUE_DATA_TYPE_INPUT = "VALUE_DATA_TYPE_INPUT";
 
     private static final String VALUE_DATA_TYPE_ENTRIES = "VALUE_DATA_TYPE_ENTRIES";
@@ -105,6 +106,11 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
 
     private static final boolean DEBUG = false;
 
+    /**
+     * Default number of sorted temporary files merged together at once.
+     */
+    public static final int DEFAULT_MERGE_FAN_IN = 64;
+
     private final ProgressAggregate progress = new ProgressAggregate(this);
 
     @ParametersDelegate
@@ -133,12 +139,55 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
             description = "Directory used for holding temporary files.", converter = TempFileFactoryConverter.class)
     private FileFactory tempFileFactory = new TempFileFactory();
 
+    @Parameter(names = {"--merge-fan-in"},
+            description = "Maximum number of temporary files merged together at once.")
+    private int mergeFanIn = DEFAULT_MERGE_FAN_IN;
+
+    @Parameter(names = {"--merge-prefetch"},
+            description = "Number of records read ahead from each merge input on a background thread; 0 disables.")
+    private int mergePrefetch = 0;
+
+    @Parameter(names = {"-ei", "--enumerate-instances"},
+            description = "Read an instances file of strings, enumerating it while counting. Requires the "
+                    + "enumerator files; the outputs are written according to the enumerated flags.")
+    private boolean enumerateInstances = false;
+
+    @Parameter(names = {"-fef", "--filter-entry-freq"},
+            description = "Minimum entry frequency threshold, applied while writing the counts.",
+            converter = DoubleConverter.class)
+    private double filterEntryMinFreq = 0;
+
+    @Parameter(names = {"-fff", "--filter-feature-freq"},
+            description = "Minimum feature frequency threshold, applied while writing the counts.",
+            converter = DoubleConverter.class)
+    private double filterFeatureMinFreq = 0;
+
+    @Parameter(names = {"-fvf", "--filter-event-freq"},
+            description = "Minimum event frequency threshold, applied while writing the counts.",
+            converter = DoubleConverter.class)
+    private double filterEventMinFreq = 0;
+
     private Queue<File> mergeEntryQueue;
 
     private Queue<File> mergeFeaturesQueue;
 
     private Queue<File> mergeEventQueue;
 
+    /**
+     * Number of merges still to complete over the sorted runs of each spilled
+     * count file, which is deleted once they have all completed. Runs are
+     * merged at most the fan-in at a time.
+     */
+    private Map<File, Integer> pendingRunMerges;
+
+    private long maxCountBytes = Long.MAX_VALUE;
+
+    /**
+     * Upper bound on each count task's memory budget, or 0 to use only the
+     * budget estimated from the free memory.
+     */
+    private long countBytesLimit = 0;
+
     public ExternalCountCommand(final File instancesFile,
                                 final File eventsFile, final File entriesFile,
                                 final File featuresFile, Charset charset,
@@ -188,6 +237,82 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         this.tempFileFactory = tempFileFactory;
     }
 
+    public final int getMergeFanIn() {
+        return mergeFanIn;
+    }
+
+    public final void setMergeFanIn(int mergeFanIn) {
+        Checks.checkRangeIncl("mergeFanIn", mergeFanIn, 2, Integer.MAX_VALUE);
+        this.mergeFanIn = mergeFanIn;
+    }
+
+    public final int getMergePrefetch() {
+        return mergePrefetch;
+    }
+
+    public final void setMergePrefetch(int mergePrefetch) {
+        Checks.checkRangeIncl("mergePrefetch", mergePrefetch, 0, Integer.MAX_VALUE);
+        this.mergePrefetch = mergePrefetch;
+    }
+
+    final long getCountBytesLimit() {
+        return countBytesLimit;
+    }
+
+    final void setCountBytesLimit(long countBytesLimit) {
+        Checks.checkRangeIncl("countBytesLimit", countBytesLimit, 0, Long.MAX_VALUE);
+        this.countBytesLimit = countBytesLimit;
+    }
+
+    public final boolean isEnumerateInstances() {
+        return enumerateInstances;
+    }
+
+    /**
+     * When set the input is read as raw strings, and enumerated on the main
+     * thread as it is chunked; counting then proceeds on ids exactly as it
+     * would for a pre-enumerated file. This saves writing, and re-reading, an
+     * enumerated copy of the instances.
+     *
+     * @param enumerateInstances whether to enumerate the instances file
+     */
+    public final void setEnumerateInstances(boolean enumerateInstances) {
+        this.enumerateInstances = enumerateInstances;
+    }
+
+    public final double getFilterEntryMinFreq() {
+        return filterEntryMinFreq;
+    }
+
+    public final void setFilterEntryMinFreq(double filterEntryMinFreq) {
+        this.filterEntryMinFreq = filterEntryMinFreq;
+    }
+
+    public final double getFilterFeatureMinFreq() {
+        return filterFeatureMinFreq;
+    }
+
+    public final void setFilterFeatureMinFreq(double filterFeatureMinFreq) {
+        this.filterFeatureMinFreq = filterFeatureMinFreq;
+    }
+
+    public final double getFilterEventMinFreq() {
+        return filterEventMinFreq;
+    }
+
+    public final void setFilterEventMinFreq(double filterEventMinFreq) {
+        this.filterEventMinFreq = filterEventMinFreq;
+    }
+
+    /**
+     * @return true if any frequency threshold is set, in which case the
+     *         outputs are those {@link FilterCommand} would produce from the
+     *         counts with the same thresholds.
+     */
+    public final boolean isFiltering() {
+        return filterEntryMinFreq > 0 || filterFeatureMinFreq > 0 || filterEventMinFreq > 0;
+    }
+
     final File getFeaturesFile() {
         return featuresFile;
     }
@@ -254,7 +379,20 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         progress.setMessage("Merging and aggregating results");
 
         clearCompleted(true);
-        finish();
+
+        // Merge whatever is left over after the full merges into one file each
+        submitMergeEntriesTask(null, true);
+        submitMergeFeaturesTask(null, true);
+        // When filtering, the last events merge is left until the entry and
+        // feature marginals are known, and filters as it writes.
+        if (!isFiltering())
+            submitMergeEventsTask(null, true);
+        clearCompleted(true);
+
+        if (isFiltering())
+            finishFiltered();
+        else
+            finish();
 
         if (indexDelegate.isEnumeratorOpen()) {
             indexDelegate.saveEnumerator();
@@ -298,11 +436,19 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         mergeEntryQueue = new ArrayDeque<File>();
         mergeFeaturesQueue = new ArrayDeque<File>();
         mergeEventQueue = new ArrayDeque<File>();
+        pendingRunMerges = new HashMap<File, Integer>();
 
         final SeekableObjectSource<TokenPair, Tell> src = openInstancesSource(getInputFile());
 
-        final int maxChunkSize = estimateMaxChunkSize();
-        LOG.info(MessageFormat.format("Estimated maximum chunk size: {0}", maxChunkSize));
+        final long bytesPerTask = estimateBytesPerTask();
+        final int maxChunkSize = estimateMaxChunkSize(bytesPerTask);
+        maxCountBytes = Math.max(1, bytesPerTask
+                - maxChunkSize * CountTask.BYTES_REQUIRED_PER_INSTANCE);
+        if (countBytesLimit > 0)
+            maxCountBytes = Math.min(maxCountBytes, countBytesLimit);
+        LOG.info(MessageFormat.format(
+                "Estimated maximum chunk size: {0}; count memory budget: {1} bytes",
+                maxChunkSize, maxCountBytes));
 
         final ObjectSource<Chunk<TokenPair>> chunks = Chunker.newInstance(src, maxChunkSize);
 
@@ -358,69 +504,63 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
             if (countTask.getSource() instanceof Closeable)
                 ((Closeable) countTask.getSource()).close();
 
-            submitSortEntriesTask(new File(task.getProperty(KEY_DST_ENTRIES_FILE)));
-            submitSortFeaturesTask(new File(task.getProperty(KEY_DST_FEATURES_FILE)));
-            submitSortEventsTask(new File(task.getProperty(KEY_DST_EVENTS_FILE)));
+            final File entriesDst = new File(task.getProperty(KEY_DST_ENTRIES_FILE));
+            final File featuresDst = new File(task.getProperty(KEY_DST_FEATURES_FILE));
+            final File eventsDst = new File(task.getProperty(KEY_DST_EVENTS_FILE));
+
+            // Counts are already sorted into index order, unless the task
+            // ran out memory and spilled a sequence of sorted runs, which are
+            // merged in place.
+            if (countTask.getRunCount() > 1) {
+                submitMergeEntryRunsTasks(entriesDst, countTask.getEntryRunLengths());
+                submitMergeFeatureRunsTasks(featuresDst, countTask.getFeatureRunLengths());
+                submitMergeEventRunsTasks(eventsDst, countTask.getEventRunLengths());
+            } else {
+                submitMergeEntriesTask(entriesDst, false);
+                submitMergeFeaturesTask(featuresDst, false);
+                submitMergeEventsTask(eventsDst, false);
+            }
 
             File src = new File(task.getProperty(KEY_SRC_FILE));
             if (!DEBUG && !this.getInputFile().equals(src))
                 submitDeleteTask(src);
 
-        } else if (taskType.equals(VALUE_TASK_TYPE_SORT)) {
-
-            final File src = new File(task.getProperty(KEY_SRC_FILE));
-            final File dst = new File(task.getProperty(KEY_DST_FILE));
-
-            ObjectSortTask<?> sortTask = (ObjectSortTask<?>) task;
-            if (sortTask.getSink() instanceof Flushable)
-                ((Flushable) sortTask.getSink()).flush();
-            if (sortTask.getSink() instanceof Closeable)
-                ((Closeable) sortTask.getSink()).close();
-            if (sortTask.getSource() instanceof Closeable)
-                ((Closeable) sortTask.getSource()).close();
-
-            if (dataType.equals(VALUE_DATA_TYPE_ENTRIES))
-                submitMergeEntriesTask(dst);
-            else if (dataType.equals(VALUE_DATA_TYPE_FEATURES))
-                submitMergeFeaturesTask(dst);
-            else if (dataType.equals(VALUE_DATA_TYPE_EVENTS))
-                submitMergeEventsTask(dst);
-            else
-                throw new AssertionError();
-
-            if (!DEBUG && !src.equals(dst))
-                submitDeleteTask(src);
-
         } else if (taskType.equals(VALUE_TASK_TYPE_MERGE)) {
 
-            final File srcA = new File(task.getProperty(KEY_SRC_FILE_A));
-            final File srcB = new File(task.getProperty(KEY_SRC_FILE_B));
             final File dst = new File(task.getProperty(KEY_DST_FILE));
 
-            ObjectMergeTask<?> mergeTask = (ObjectMergeTask<?>) task;
+            ObjectKWayMergeTask<?> mergeTask = (ObjectKWayMergeTask<?>) task;
 
             if (mergeTask.getSink() instanceof Flushable)
                 ((Flushable) mergeTask.getSink()).flush();
-
             if (mergeTask.getSink() instanceof Closeable)
                 ((Closeable) mergeTask.getSink()).close();
-            if (mergeTask.getSourceA() instanceof Closeable)
-                ((Closeable) mergeTask.getSourceA()).close();
-            if (mergeTask.getSourceB() instanceof Closeable)
-                ((Closeable) mergeTask.getSourceB()).close();
+            for (ObjectSource<?> source : mergeTask.getSources())
+                if (source instanceof Closeable)
+                    ((Closeable) source).close();
 
             if (dataType.equals(VALUE_DATA_TYPE_ENTRIES))
-                submitMergeEntriesTask(dst);
+                submitMergeEntriesTask(dst, false);
             else if (dataType.equals(VALUE_DATA_TYPE_FEATURES))
-                submitMergeFeaturesTask(dst);
+                submitMergeFeaturesTask(dst, false);
             else if (dataType.equals(VALUE_DATA_TYPE_EVENTS))
-                submitMergeEventsTask(dst);
+                submitMergeEventsTask(dst, false);
             else
                 throw new AssertionError();
 
-            if (!DEBUG) {
-                submitDeleteTask(srcA);
-                submitDeleteTask(srcB);
+            if (task.getProperty(KEY_RUNS_FILE) != null) {
+                final File runsFile = new File(task.getProperty(KEY_RUNS_FILE));
+                final int pending = pendingRunMerges.get(runsFile) - 1;
+                if (pending > 0) {
+                    pendingRunMerges.put(runsFile, pending);
+                } else {
+                    pendingRunMerges.remove(runsFile);
+                    if (!DEBUG)
+                        submitDeleteTask(runsFile);
+                }
+            } else if (!DEBUG) {
+                for (String src : task.getProperty(KEY_SRC_FILES).split(File.pathSeparator))
+                    submitDeleteTask(new File(src));
             }
 
         } else {
@@ -458,22 +598,159 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
 
     }
 
-    private Comparator<Weighted<Token>> getEntryOrder() {
-        return indexDelegate.isEnumeratedEntries() ? Weighted.recordOrder(Token
-                .indexOrder()) : Weighted.recordOrder(Token
-                .stringOrder(indexDelegate.getEntriesEnumeratorCarrier()));
+    /**
+     * Produce filtered outputs from the remaining merge files. The entries and
+     * features are fully merged, so the ids they reject can be read from them
+     * directly. The last events merge runs in this thread, writing through a
+     * {@link FilteringEventsSink}, so unfiltered events are never written to
+     * the output. Finally the entries and features files are written, keeping
+     * only those that occur in an accepted event. If anything fails, the
+     * partially written outputs are deleted.
+     */
+    void finishFiltered() throws Exception {
+        checkState();
+
+        boolean completed = false;
+        try {
+            writeFiltered();
+            completed = true;
+        } finally {
+            if (!completed)
+                for (File file : new File[]{getEventsFile(), getEntriesFile(), getFeaturesFile()})
+                    if (file.exists() && !file.delete())
+                        LOG.warn("Unable to delete partial output file " + file);
+        }
+    }
+
+    private void writeFiltered() throws Exception {
+
+        final File entriesMerge = mergeEntryQueue.poll();
+        if (entriesMerge == null)
+            throw new AssertionError(
+                    "The entry merge queue is empty but final copy has not been completed.");
+        final File featuresMerge = mergeFeaturesQueue.poll();
+        if (featuresMerge == null)
+            throw new AssertionError(
+                    "The feature merge queue is empty but final copy has not been completed.");
+        if (mergeEventQueue.isEmpty())
+            throw new AssertionError(
+                    "The entry/feature merge queue is empty but final copy has not been completed.");
+
+        progress.setMessage("Filtering entries and features");
+        final IntBitSet rejectedEntries = rejectBelow(
+                openEntriesSource(entriesMerge), filterEntryMinFreq, FilterCommand.FILTERED_ID);
+        final IntBitSet rejectedFeatures = rejectBelow(
+                openFeaturesSource(featuresMerge), filterFeatureMinFreq, FilterCommand.FILTERED_ID);
+
+        progress.setMessage("Merging and filtering events");
+        final List<File> eventsMerges = new ArrayList<File>(mergeEventQueue);
+        mergeEventQueue.clear();
+
+        final List<ObjectSource<Weighted<TokenPair>>> srcs =
+                new ArrayList<ObjectSource<Weighted<TokenPair>>>(eventsMerges.size());
+        FilteringEventsSink filter = null;
+        WeightSumReducerObjectSink<TokenPair> snk = null;
+        try {
+            for (File srcFile : eventsMerges)
+                srcs.add(openEventsSource(srcFile));
+            filter = new FilteringEventsSink(
+                    BybloIO.openEventsSink(getEventsFile(), getCharset(), indexDelegate),
+                    rejectedEntries, rejectedFeatures, filterEventMinFreq,
+                    FilterCommand.FILTERED_ID, FilterCommand.FILTERED_ID);
+            snk = new WeightSumReducerObjectSink<TokenPair>(filter);
+
+            final ObjectKWayMergeTask<Weighted<TokenPair>> task =
+                    new ObjectKWayMergeTask<Weighted<TokenPair>>(srcs, snk);
+            task.setComparator(Weighted.recordOrder(TokenPair.indexOrder()));
+            task.setPrefetchBlockSize(getMergePrefetch());
+            task.run();
+            while (task.isExceptionTrapped())
+                task.throwTrappedException();
+        } finally {
+            for (ObjectSource<?> source : srcs)
+                if (source instanceof Closeable)
+                    ((Closeable) source).close();
+            if (snk != null)
+                snk.close();
+            else if (filter != null)
+                filter.close();
+        }
+
+        LOG.info(MessageFormat.format("Accepted {0} of {1} events.",
+                filter.getAcceptCount(), filter.getReadCount()));
+
+        progress.setMessage("Writing filtered entries and features");
+        final ObjectSource<Weighted<Token>> entriesSrc = openEntriesSource(entriesMerge);
+        ObjectSink<Weighted<Token>> entriesSnk = null;
+        try {
+            entriesSnk = openEntriesSink(getEntriesFile());
+        } finally {
+            if (entriesSnk == null)
+                entriesSrc.close();
+        }
+        writeLive(entriesSrc, entriesSnk, filter.getLiveEntries(), FilterCommand.FILTERED_ID);
+
+        final ObjectSource<Weighted<Token>> featuresSrc = openFeaturesSource(featuresMerge);
+        ObjectSink<Weighted<Token>> featuresSnk = null;
+        try {
+            featuresSnk = openFeaturesSink(getFeaturesFile());
+        } finally {
+            if (featuresSnk == null)
+                featuresSrc.close();
+        }
+        writeLive(featuresSrc, featuresSnk, filter.getLiveFeatures(), FilterCommand.FILTERED_ID);
+
+        if (!DEBUG) {
+            final List<File> merges = new ArrayList<File>(eventsMerges);
+            merges.add(entriesMerge);
+            merges.add(featuresMerge);
+            for (File file : merges)
+                if (!file.delete())
+                    LOG.warn("Unable to delete temporary file " + file);
+        }
     }
 
-    private Comparator<Weighted<Token>> getFeatureOrder()  {
-        return indexDelegate.isEnumeratedFeatures() ? Weighted.recordOrder(Token.indexOrder())
-                : Weighted.recordOrder(Token.stringOrder(indexDelegate.getFeaturesEnumeratorCarrier()));
+    // Read a fully merged entries or features file, returning the ids whose
+    // weight falls below the threshold.
+    private static IntBitSet rejectBelow(ObjectSource<Weighted<Token>> src, double minFreq, int filteredId)
+            throws IOException {
+        final IntBitSet rejected = new IntBitSet();
+        try {
+            while (src.hasNext()) {
+                final Weighted<Token> record = src.read();
+                if (record.record().id() != filteredId && record.weight() < minFreq)
+                    rejected.add(record.record().id());
+            }
+        } finally {
+            if (src instanceof Closeable)
+                ((Closeable) src).close();
+        }
+        return rejected;
     }
 
-    private Comparator<Weighted<TokenPair>> getEventOrder() {
-        return (indexDelegate.isEnumeratedEntries()
-                && indexDelegate.isEnumeratedFeatures())
-                ? Weighted.recordOrder(TokenPair.indexOrder())
-                : Weighted.recordOrder(TokenPair.stringOrder(indexDelegate));
+    // Copy the records whose ids are live, summing the weight of the rest
+    // into the special filtered record.
+    private static void writeLive(ObjectSource<Weighted<Token>> src, ObjectSink<Weighted<Token>> snk,
+                                  IntBitSet live, int filteredId) throws IOException {
+        double filteredWeight = 0;
+        try {
+            while (src.hasNext()) {
+                final Weighted<Token> record = src.read();
+                if (record.record().id() != filteredId && live.contains(record.record().id()))
+                    snk.write(record);
+                else
+                    filteredWeight += record.weight();
+            }
+            if (filteredWeight != 0)
+                snk.write(new Weighted<Token>(new Token(filteredId), filteredWeight));
+        } finally {
+            if (src instanceof Closeable)
+                ((Closeable) src).close();
+            if (snk instanceof Flushable)
+                ((Flushable) snk).flush();
+            if (snk instanceof Closeable)
+                ((Closeable) snk).close();
+        }
     }
 
     void submitCountTask(ObjectSource<TokenPair> instanceSource,
@@ -485,7 +762,10 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         ObjectSink<Weighted<TokenPair>> eventsSink = openEventsSink(outEvents);
 
         CountTask task = new CountTask(instanceSource, eventsSink, entrySink,
-                featureSink, getEventOrder(), getEntryOrder(), getFeatureOrder());
+                featureSink, Weighted.recordOrder(TokenPair.indexOrder()),
+                Weighted.recordOrder(Token.indexOrder()),
+                Weighted.recordOrder(Token.indexOrder()));
+        task.setMaxBytes(maxCountBytes);
 
         task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_COUNT);
 
@@ -505,59 +785,169 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         submitTask(deleteTask);
     }
 
-    private void submitSortEntriesTask(final File srcFile) throws IOException,
-            InterruptedException {
-        File dstFile = tempFileFactory.createFile("mrg.ent.", "");
+    private void submitMergeEntryRunsTasks(final File runsFile, long[] runLengths)
+            throws IOException, InterruptedException {
+        final List<Tell> runStarts = findRunStarts(openEntriesSource(runsFile), runLengths);
+        final List<ObjectSource<Weighted<Token>>> runs =
+                new ArrayList<ObjectSource<Weighted<Token>>>(runLengths.length);
+        for (int i = 0; i < runLengths.length; i++) {
+            runs.add(new RunSource<Weighted<Token>>(runStarts.get(i), runLengths[i]) {
+                @Override
+                SeekableObjectSource<Weighted<Token>, Tell> open() throws IOException {
+                    return openEntriesSource(runsFile);
+                }
+            });
+        }
+        final List<List<ObjectSource<Weighted<Token>>>> groups = Lists.partition(runs, getMergeFanIn());
+        pendingRunMerges.put(runsFile, groups.size());
+        for (List<ObjectSource<Weighted<Token>>> group : groups) {
+            final File dstFile = tempFileFactory.createFile("mrg.ent.", "");
+            ObjectKWayMergeTask<Weighted<Token>> task = new ObjectKWayMergeTask<Weighted<Token>>(
+                    new ArrayList<ObjectSource<Weighted<Token>>>(group), openEntriesSink(dstFile));
+            task.setComparator(Weighted.recordOrder(Token.indexOrder()));
+            submitRunsMergeTask(task, VALUE_DATA_TYPE_ENTRIES, runsFile, dstFile);
+        }
+    }
 
-        ObjectSource<Weighted<Token>> src = openEntriesSource(srcFile);
-        ObjectSink<Weighted<Token>> snk = openEntriesSink(dstFile);
+    private void submitMergeFeatureRunsTasks(final File runsFile, long[] runLengths)
+            throws IOException, InterruptedException {
+        final List<Tell> runStarts = findRunStarts(openFeaturesSource(runsFile), runLengths);
+        final List<ObjectSource<Weighted<Token>>> runs =
+                new ArrayList<ObjectSource<Weighted<Token>>>(runLengths.length);
+        for (int i = 0; i < runLengths.length; i++) {
+            runs.add(new RunSource<Weighted<Token>>(runStarts.get(i), runLengths[i]) {
+                @Override
+                SeekableObjectSource<Weighted<Token>, Tell> open() throws IOException {
+                    return openFeaturesSource(runsFile);
+                }
+            });
+        }
+        final List<List<ObjectSource<Weighted<Token>>>> groups = Lists.partition(runs, getMergeFanIn());
+        pendingRunMerges.put(runsFile, groups.size());
+        for (List<ObjectSource<Weighted<Token>>> group : groups) {
+            final File dstFile = tempFileFactory.createFile("mrg.feat.", "");
+            ObjectKWayMergeTask<Weighted<Token>> task = new ObjectKWayMergeTask<Weighted<Token>>(
+                    new ArrayList<ObjectSource<Weighted<Token>>>(group), openFeaturesSink(dstFile));
+            task.setComparator(Weighted.recordOrder(Token.indexOrder()));
+            submitRunsMergeTask(task, VALUE_DATA_TYPE_FEATURES, runsFile, dstFile);
+        }
+    }
 
-        ObjectSortTask<Weighted<Token>> task = new ObjectSortTask<Weighted<Token>>(src, snk);
-        task.setComparator(Weighted.recordOrder(Token.indexOrder()));
+    private void submitMergeEventRunsTasks(final File runsFile, long[] runLengths)
+            throws IOException, InterruptedException {
+        final List<Tell> runStarts = findRunStarts(openEventsSource(runsFile), runLengths);
+        final List<ObjectSource<Weighted<TokenPair>>> runs =
+                new ArrayList<ObjectSource<Weighted<TokenPair>>>(runLengths.length);
+        for (int i = 0; i < runLengths.length; i++) {
+            runs.add(new RunSource<Weighted<TokenPair>>(runStarts.get(i), runLengths[i]) {
+                @Override
+                SeekableObjectSource<Weighted<TokenPair>, Tell> open() throws IOException {
+                    return openEventsSource(runsFile);
+                }
+            });
+        }
+        final List<List<ObjectSource<Weighted<TokenPair>>>> groups = Lists.partition(runs, getMergeFanIn());
+        pendingRunMerges.put(runsFile, groups.size());
+        for (List<ObjectSource<Weighted<TokenPair>>> group : groups) {
+            final File dstFile = tempFileFactory.createFile("mrg.evnt.", "");
+            ObjectKWayMergeTask<Weighted<TokenPair>> task = new ObjectKWayMergeTask<Weighted<TokenPair>>(
+                    new ArrayList<ObjectSource<Weighted<TokenPair>>>(group), openEventsSink(dstFile));
+            task.setComparator(Weighted.recordOrder(TokenPair.indexOrder()));
+            submitRunsMergeTask(task, VALUE_DATA_TYPE_EVENTS, runsFile, dstFile);
+        }
+    }
 
-        task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_SORT);
-        task.setProperty(KEY_DATA_TYPE, VALUE_DATA_TYPE_ENTRIES);
-        task.setProperty(KEY_SRC_FILE, srcFile.toString());
-        task.setProperty(KEY_DST_FILE, dstFile.toString());
+    /**
+     * Find the position at which each run starts with a single scan through
+     * the runs file, which is closed afterwards.
+     *
+     * @param scan       source over the runs file
+     * @param runLengths number of records in each run, in file order
+     * @return the start of each run, in file order
+     */
+    private static <T> List<Tell> findRunStarts(
+            SeekableObjectSource<T, Tell> scan, long[] runLengths) throws IOException {
+        final List<Tell> runStarts = new ArrayList<Tell>(runLengths.length);
+        try {
+            for (long runLength : runLengths) {
+                runStarts.add(scan.position());
+                for (long i = 0; i < runLength; i++)
+                    scan.read();
+            }
+        } finally {
+            scan.close();
+        }
+        return runStarts;
+    }
 
-        progress.addChildProgressReporter(task);
+    /**
+     * Source over a single run of a runs file, limited to the length of the
+     * run in the way natural runs are merged by
+     * {@link AbstractExternalSortCommand}. The runs file is not opened until
+     * the source is first read, so a merge task only holds handles for its
+     * own group of runs, and only while it is running. The handle is released
+     * when the completed task's sources are closed.
+     */
+    private abstract static class RunSource<T> implements ObjectSource<T> {
 
-        submitTask(task);
-    }
+        private final Tell start;
 
-    private void submitSortFeaturesTask(final File srcFile) throws IOException,
-            InterruptedException {
-        File dstFile = tempFileFactory.createFile("mrg.feat.", "");
+        private final long length;
 
-        ObjectSource<Weighted<Token>> src = openFeaturesSource(srcFile);
-        ObjectSink<Weighted<Token>> snk = openFeaturesSink(dstFile);
+        private ObjectSource<T> inner = null;
 
-        ObjectSortTask<Weighted<Token>> task = new ObjectSortTask<Weighted<Token>>(src, snk);
-        task.setComparator(Weighted.recordOrder(Token.indexOrder()));
+        private boolean closed = false;
 
-        task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_SORT);
-        task.setProperty(KEY_DATA_TYPE, VALUE_DATA_TYPE_FEATURES);
-        task.setProperty(KEY_SRC_FILE, srcFile.toString());
-        task.setProperty(KEY_DST_FILE, dstFile.toString());
+        RunSource(Tell start, long length) {
+            this.start = start;
+            this.length = length;
+        }
 
-        progress.addChildProgressReporter(task);
+        abstract SeekableObjectSource<T, Tell> open() throws IOException;
 
-        submitTask(task);
-    }
+        private ObjectSource<T> inner() throws IOException {
+            if (closed)
+                throw new ClosedChannelException();
+            if (inner == null) {
+                final SeekableObjectSource<T, Tell> src = open();
+                src.position(start);
+                inner = ObjectIO.limit(src, length);
+            }
+            return inner;
+        }
 
-    private void submitSortEventsTask(File srcFile) throws IOException,
-            InterruptedException {
-        File dstFile = tempFileFactory.createFile("mrg.feat.", "");
+        @Override
+        public T read() throws IOException {
+            return inner().read();
+        }
 
-        ObjectSource<Weighted<TokenPair>> src = openEventsSource(srcFile);
-        ObjectSink<Weighted<TokenPair>> snk = openEventsSink(dstFile);
+        @Override
+        public boolean hasNext() throws IOException {
+            return inner().hasNext();
+        }
 
-        ObjectSortTask<Weighted<TokenPair>> task = new ObjectSortTask<Weighted<TokenPair>>(src, snk);
-        task.setComparator(Weighted.recordOrder(TokenPair.indexOrder()));
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
 
-        task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_SORT);
-        task.setProperty(KEY_DATA_TYPE, VALUE_DATA_TYPE_EVENTS);
-        task.setProperty(KEY_SRC_FILE, srcFile.toString());
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (inner != null) {
+                inner.close();
+                inner = null;
+            }
+        }
+    }
+
+    private void submitRunsMergeTask(ObjectKWayMergeTask<?> task, String dataType,
+                                     File runsFile, File dstFile)
+            throws InterruptedException {
+        task.setPrefetchBlockSize(getMergePrefetch());
+        task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_MERGE);
+        task.setProperty(KEY_DATA_TYPE, dataType);
+        task.setProperty(KEY_RUNS_FILE, runsFile.toString());
         task.setProperty(KEY_DST_FILE, dstFile.toString());
 
         progress.addChildProgressReporter(task);
@@ -565,90 +955,112 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         submitTask(task);
     }
 
-    private void submitMergeEntriesTask(File dst) throws IOException,
-            InterruptedException {
-        mergeEntryQueue.add(dst);
-        if (mergeEntryQueue.size() >= 2) {
-            File srcFileA = mergeEntryQueue.poll();
-            File srcFileB = mergeEntryQueue.poll();
-            File dstFile = tempFileFactory.createFile("mrg.ent.", "");
+    /**
+     * Add the sorted file <code>dst</code> to the entries merge queue. When
+     * the queue reaches the fan-in, or when <code>force</code> is true and
+     * there is more than one file queued, the queued files are merged.
+     */
+    private void submitMergeEntriesTask(File dst, boolean force)
+            throws IOException, InterruptedException {
+        if (dst != null)
+            mergeEntryQueue.add(dst);
+        final List<File> srcFiles = pollMergeQueue(mergeEntryQueue, force);
+        if (srcFiles == null)
+            return;
+        final File dstFile = tempFileFactory.createFile("mrg.ent.", "");
+
+        final List<ObjectSource<Weighted<Token>>> srcs =
+                new ArrayList<ObjectSource<Weighted<Token>>>(srcFiles.size());
+        for (File srcFile : srcFiles)
+            srcs.add(openEntriesSource(srcFile));
+        ObjectSink<Weighted<Token>> snk = openEntriesSink(dstFile);
 
-            ObjectSource<Weighted<Token>> srcA = openEntriesSource(srcFileA);
-            ObjectSource<Weighted<Token>> srcB = openEntriesSource(srcFileB);
-            ObjectSink<Weighted<Token>> snk = openEntriesSink(dstFile);
+        ObjectKWayMergeTask<Weighted<Token>> task = new ObjectKWayMergeTask<Weighted<Token>>(srcs, snk);
+        task.setComparator(Weighted.recordOrder(Token.indexOrder()));
 
-            ObjectMergeTask<Weighted<Token>> task = new ObjectMergeTask<Weighted<Token>>(srcA, srcB, snk);
-            task.setComparator(Weighted.recordOrder(Token.indexOrder()));
+        submitMergeTask(task, VALUE_DATA_TYPE_ENTRIES, srcFiles, dstFile);
+    }
 
-            task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_MERGE);
-            task.setProperty(KEY_DATA_TYPE, VALUE_DATA_TYPE_ENTRIES);
-            task.setProperty(KEY_SRC_FILE_A, srcFileA.toString());
-            task.setProperty(KEY_SRC_FILE_B, srcFileB.toString());
-            task.setProperty(KEY_DST_FILE, dstFile.toString());
+    private void submitMergeFeaturesTask(File dst, boolean force)
+            throws IOException, InterruptedException {
+        if (dst != null)
+            mergeFeaturesQueue.add(dst);
+        final List<File> srcFiles = pollMergeQueue(mergeFeaturesQueue, force);
+        if (srcFiles == null)
+            return;
+        final File dstFile = tempFileFactory.createFile("mrg.feat.", "");
+
+        final List<ObjectSource<Weighted<Token>>> srcs =
+                new ArrayList<ObjectSource<Weighted<Token>>>(srcFiles.size());
+        for (File srcFile : srcFiles)
+            srcs.add(openFeaturesSource(srcFile));
+        ObjectSink<Weighted<Token>> snk = openFeaturesSink(dstFile);
 
-            progress.addChildProgressReporter(task);
+        ObjectKWayMergeTask<Weighted<Token>> task = new ObjectKWayMergeTask<Weighted<Token>>(srcs, snk);
+        task.setComparator(Weighted.recordOrder(Token.indexOrder()));
 
-            submitTask(task);
-        }
+        submitMergeTask(task, VALUE_DATA_TYPE_FEATURES, srcFiles, dstFile);
     }
 
-    private void submitMergeFeaturesTask(File dst) throws IOException,
-            InterruptedException {
-        mergeFeaturesQueue.add(dst);
-        if (mergeFeaturesQueue.size() >= 2) {
-            File srcFileA = mergeFeaturesQueue.poll();
-            File srcFileB = mergeFeaturesQueue.poll();
-            File dstFile = tempFileFactory.createFile("mrg.feat.", "");
-
-            ObjectSource<Weighted<Token>> srcA = openFeaturesSource(srcFileA);
-            ObjectSource<Weighted<Token>> srcB = openFeaturesSource(srcFileB);
-            ObjectSink<Weighted<Token>> snk = openFeaturesSink(dstFile);
-
-            ObjectMergeTask<Weighted<Token>> task = new ObjectMergeTask<Weighted<Token>>(srcA, srcB, snk);
-            task.setComparator(Weighted.recordOrder(Token.indexOrder()));
+    private void submitMergeEventsTask(File dst, boolean force)
+            throws IOException, InterruptedException {
+        if (dst != null)
+            mergeEventQueue.add(dst);
+        final List<File> srcFiles = pollMergeQueue(mergeEventQueue, force);
+        if (srcFiles == null)
+            return;
+        final File dstFile = tempFileFactory.createFile("mrg.evnt.", "");
+
+        final List<ObjectSource<Weighted<TokenPair>>> srcs =
+                new ArrayList<ObjectSource<Weighted<TokenPair>>>(srcFiles.size());
+        for (File srcFile : srcFiles)
+            srcs.add(openEventsSource(srcFile));
+        ObjectSink<Weighted<TokenPair>> snk = openEventsSink(dstFile);
 
-            task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_MERGE);
-            task.setProperty(KEY_DATA_TYPE, VALUE_DATA_TYPE_FEATURES);
-            task.setProperty(KEY_SRC_FILE_A, srcFileA.toString());
-            task.setProperty(KEY_SRC_FILE_B, srcFileB.toString());
-            task.setProperty(KEY_DST_FILE, dstFile.toString());
+        ObjectKWayMergeTask<Weighted<TokenPair>> task = new ObjectKWayMergeTask<Weighted<TokenPair>>(srcs, snk);
+        task.setComparator(Weighted.recordOrder(TokenPair.indexOrder()));
 
-            progress.addChildProgressReporter(task);
+        submitMergeTask(task, VALUE_DATA_TYPE_EVENTS, srcFiles, dstFile);
+    }
 
-            submitTask(task);
+    /**
+     * @return the files to merge next, or null if no merge is due
+     */
+    private List<File> pollMergeQueue(Queue<File> queue, boolean force) {
+        if (queue.size() >= getMergeFanIn() || (force && queue.size() > 1)) {
+            final int n = Math.min(queue.size(), getMergeFanIn());
+            final List<File> files = new ArrayList<File>(n);
+            for (int i = 0; i < n; i++)
+                files.add(queue.poll());
+            return files;
         }
+        return null;
     }
 
-    private void submitMergeEventsTask(File dst) throws IOException,
-            InterruptedException {
-        mergeEventQueue.add(dst);
-        if (mergeEventQueue.size() >= 2) {
-            File srcFileA = mergeEventQueue.poll();
-            File srcFileB = mergeEventQueue.poll();
-            File dstFile = tempFileFactory.createFile("mrg.evnt.", "");
-
-            ObjectSource<Weighted<TokenPair>> srcA = openEventsSource(srcFileA);
-            ObjectSource<Weighted<TokenPair>> srcB = openEventsSource(srcFileB);
-            ObjectSink<Weighted<TokenPair>> snk = openEventsSink(dstFile);
-
-            ObjectMergeTask<Weighted<TokenPair>> task = new ObjectMergeTask<Weighted<TokenPair>>(srcA, srcB, snk);
-            task.setComparator(Weighted.recordOrder(TokenPair.indexOrder()));
+    private void submitMergeTask(ObjectKWayMergeTask<?> task, String dataType,
+                                 List<File> srcFiles, File dstFile)
+            throws InterruptedException {
+        final StringBuilder srcs = new StringBuilder();
+        for (File srcFile : srcFiles) {
+            if (srcs.length() > 0)
+                srcs.append(File.pathSeparator);
+            srcs.append(srcFile);
+        }
 
-            task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_MERGE);
-            task.setProperty(KEY_DATA_TYPE, VALUE_DATA_TYPE_EVENTS);
-            task.setProperty(KEY_SRC_FILE_A, srcFileA.toString());
-            task.setProperty(KEY_SRC_FILE_B, srcFileB.toString());
-            task.setProperty(KEY_DST_FILE, dstFile.toString());
+        task.setPrefetchBlockSize(getMergePrefetch());
+        task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_MERGE);
+        task.setProperty(KEY_DATA_TYPE, dataType);
+        task.setProperty(KEY_SRC_FILES, srcs.toString());
+        task.setProperty(KEY_DST_FILE, dstFile.toString());
 
-            progress.addChildProgressReporter(task);
+        progress.addChildProgressReporter(task);
 
-            submitTask(task);
-        }
+        submitTask(task);
     }
 
     SeekableObjectSource<Weighted<Token>, Tell> openEntriesSource(
             File file) throws IOException {
-        return BybloIO.openEntriesSource(file, getCharset(), indexDelegate);
+        return BybloIO.openEntriesCountsSource(file, getCharset(), indexDelegate);
     }
 
     ObjectSink<Weighted<Token>> openEntriesSink(File file)
@@ -659,7 +1071,7 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
 
     SeekableObjectSource<Weighted<Token>, Tell> openFeaturesSource(
             File file) throws IOException {
-        return BybloIO.openFeaturesSource(file, getCharset(), indexDelegate);
+        return BybloIO.openFeaturesCountsSource(file, getCharset(), indexDelegate);
     }
 
     ObjectSink<Weighted<Token>> openFeaturesSink(File file)
@@ -670,7 +1082,7 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
 
     WeightedTokenPairSource openEventsSource(File file)
             throws IOException {
-        return BybloIO.openEventsSource(file, getCharset(), indexDelegate);
+        return BybloIO.openEventsCountsSource(file, getCharset(), indexDelegate);
     }
 
     ObjectSink<Weighted<TokenPair>> openEventsSink(File file)
@@ -681,7 +1093,10 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
 
     SeekableObjectSource<TokenPair, Tell> openInstancesSource(
             File file) throws IOException {
-        return BybloIO.openInstancesSource(file, getCharset(), indexDelegate);
+        return BybloIO.openInstancesSource(file, getCharset(),
+                enumerateInstances
+                        ? EnumeratingDelegates.decorateEnumerated(indexDelegate, false)
+                        : indexDelegate);
     }
 
     protected ObjectSink<TokenPair> openInstancesSink(File file)
@@ -724,6 +1139,13 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         if (featuresFile.equals(entriesFile))
             throw new IllegalStateException("featuresFile == entriesFile");
 
+        if (enumerateInstances) {
+            if (indexDelegate.getEntryEnumeratorFile() == null)
+                throw new NullPointerException("entry enumerator file is null");
+            if (indexDelegate.getFeatureEnumeratorFile() == null)
+                throw new NullPointerException("feature enumerator file is null");
+        }
+
         // Check that the instances file exists and is readable
         if (!inputFile.exists())
             throw new FileNotFoundException("instances file does not exist: " + inputFile);
@@ -762,7 +1184,13 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         return super.toStringHelper().add("in", inputFile)
                 .add("entriesOut", entriesFile)
                 .add("featuresOut", featuresFile).add("eventsOut", eventsFile)
-                .add("tempDir", tempFileFactory).add("fd", getFileDelegate())
+                .add("tempDir", tempFileFactory).add("mergeFanIn", mergeFanIn)
+                .add("mergePrefetch", mergePrefetch)
+                .add("enumerateInstances", enumerateInstances)
+                .add("filterEntryMinFreq", filterEntryMinFreq)
+                .add("filterFeatureMinFreq", filterFeatureMinFreq)
+                .add("filterEventMinFreq", filterEventMinFreq)
+                .add("fd", getFileDelegate())
                 .add("id", getIndexDelegate());
     }
 
@@ -794,6 +1222,14 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         indexDelegate.setEnumeratorType(type);
     }
 
+    public void setEntryEnumeratorFile(File entryEnumeratorFile) {
+        indexDelegate.setEntryEnumeratorFile(entryEnumeratorFile);
+    }
+
+    public void setFeatureEnumeratorFile(File featureEnumeratorFile) {
+        indexDelegate.setFeatureEnumeratorFile(featureEnumeratorFile);
+    }
+
     @Override
     public String getName() {
         return "ExternalCount";
@@ -834,27 +1270,42 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         return progress.getState();
     }
 
+    /**
+     * Calculate a conservative guess at the amount of memory available to
+     * each worker, given the available memory and number of simultaneous
+     * threads.
+     *
+     * @return maximum number of bytes that should be used per worker
+     */
+    private long estimateBytesPerTask() {
+        // Start by at least trying to GC whatever junk is lying around
+        System.gc();
+        final long bytesAvailable = MiscUtil.freeMaxMemory();
+        final int numTasks = (getNumThreads() + PRELOAD_SIZE);
+        return bytesAvailable / numTasks;
+    }
+
     /**
      * Calculate a conservative guess at the maximum chunk size we can get away
-     * with given the available memory, and number of simultaneous threads.
+     * with given the memory available to each worker. Half the memory is
+     * given over to buffering the chunk; the rest is the budget for counting,
+     * which spills to sorted runs rather than failing when exceeded.
      * <p/>
      * History: In previous version the end user was expected to set this value,
      * which obviously was a total disaster. Most wouldn't both (because they
      * didn't know what it was) and result was usually either code running too
      * slowly, or java running our of heap space.
      *
+     * @param bytesPerTask memory available to each worker
      * @return maximum number of events that should be loaded per worker
      */
-    private int estimateMaxChunkSize() {
-        // Start by at least trying to GC whatever junk is lying around
-        System.gc();
-        final long bytesAvailable = MiscUtil.freeMaxMemory();
-        final int numTasks = (getNumThreads() + PRELOAD_SIZE);
-        int chunkSize = (int) (bytesAvailable / (CountTask.BYTES_REQUIRED_PER_EVENT * numTasks));
+    private int estimateMaxChunkSize(long bytesPerTask) {
+        int chunkSize = (int) Math.min(Integer.MAX_VALUE,
+                bytesPerTask / (2 * CountTask.BYTES_REQUIRED_PER_INSTANCE));
         int maxChunkSize = 5000000;
         // In some system we might expect a very large amount of available
         // memory. In this case we shouldn't set chunk size too large or it
         // will never parallelise.
-        return Math.min(chunkSize, maxChunkSize);
+        return Math.max(1, Math.min(chunkSize, maxChunkSize));
     }
 }
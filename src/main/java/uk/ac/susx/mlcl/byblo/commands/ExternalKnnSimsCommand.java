@@ -32,23 +32,54 @@ package uk.ac.susx.mlcl.byblo.commands;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
+import com.google.common.base.Objects;
 import com.google.common.base.Objects.ToStringHelper;
+import com.google.common.base.Throwables;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
 import uk.ac.susx.mlcl.byblo.enumerators.EnumeratingDelegates;
+import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
 import uk.ac.susx.mlcl.byblo.enumerators.SingleEnumerating;
 import uk.ac.susx.mlcl.byblo.io.*;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import uk.ac.susx.mlcl.lib.Comparators;
 import uk.ac.susx.mlcl.lib.MemoryUsage;
+import uk.ac.susx.mlcl.lib.MiscUtil;
+import uk.ac.susx.mlcl.lib.collect.TopKHeap;
+import uk.ac.susx.mlcl.lib.commands.OutputFileValidator;
 import uk.ac.susx.mlcl.lib.io.KFirstReducingObjectSink;
+import uk.ac.susx.mlcl.lib.io.MergingObjectSource;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.ObjectPipe;
 import uk.ac.susx.mlcl.lib.io.ObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+import uk.ac.susx.mlcl.lib.tasks.AbstractTask;
 
 import javax.naming.OperationNotSupportedException;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.Flushable;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
@@ -62,9 +93,74 @@ public class ExternalKnnSimsCommand extends ExternalSortEventsCommand {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Number of partitions the held neighbours are spilled to when streaming runs out of memory.
+     */
+    private static final int SPILL_PARTITIONS = 16;
+
+    /**
+     * Spilled partitions are themselves re-partitioned if they do not fit in memory, up to this depth; beyond it a
+     * partition is processed in memory regardless.
+     */
+    private static final int MAX_SPILL_DEPTH = 6;
+
+    /**
+     * Rough cost of a held neighbour, allowing for the slack in the heap arrays.
+     */
+    private static final int BYTES_PER_HELD_NEIGHBOUR = 32;
+
+    /**
+     * Rough cost of each entry's heap before any neighbours are added.
+     */
+    private static final int BYTES_PER_HELD_ENTRY = 128;
+
+    /**
+     * Rough cost of a neighbour held while deriving the neighbour graphs in memory: the entry, neighbour and weight
+     * lists with their slack, the sort order, and the mutual pairs set.
+     */
+    private static final int BYTES_PER_GRAPH_NEIGHBOUR = 48;
+
     @Parameter(names = {"-k"}, description = "The number of neighbours to produce for each base entry.")
     private int k = DEFAULT_K;
 
+    @Parameter(names = {"--streaming"},
+            description = "Select neighbours in a single pass over the sims, holding at most k per entry, rather "
+                    + "than sorting all of the sims.")
+    private boolean streaming = false;
+
+    @Parameter(names = {"--partitions"},
+            description = "Partition the sims by entry as they are read, and select the neighbours of each "
+                    + "partition in parallel, with one thread per partition (implies --streaming).")
+    private int partitions = 1;
+
+    @Parameter(names = {"--reverse-output"},
+            description = "Also write reverse neighbours: for each entry, the entries that list it among their k "
+                    + "nearest neighbours.",
+            validateWith = OutputFileValidator.class)
+    private File reverseFile = null;
+
+    @Parameter(names = {"--mutual-output"},
+            description = "Also write the mutual k-nearest-neighbours graph: the neighbours that in turn list their "
+                    + "entry among their k nearest.",
+            validateWith = OutputFileValidator.class)
+    private File mutualFile = null;
+
+    /**
+     * Memory available to the streaming heaps before they are spilled; 0 to use half the free memory.
+     */
+    private long maxHeldBytes = 0;
+
+    /**
+     * Sims to select from in place of the source file, such as a pipe from a stage that is running concurrently; null
+     * to read the source file.
+     */
+    private transient ObjectSource<Weighted<TokenPair>> simsSource = null;
+
+    /**
+     * Recipient of the selected neighbours in place of the destination file; null to write the destination file.
+     */
+    private transient ObjectSink<Weighted<TokenPair>> neighboursSink = null;
+
     private Comparator<Weighted<TokenPair>> classComparator = Weighted.recordOrder(TokenPair.firstIndexOrder());
 
     private Comparator<Weighted<TokenPair>> nearnessComparator = Comparators.reverse(Weighted.<TokenPair>weightOrder());
@@ -121,6 +217,661 @@ public class ExternalKnnSimsCommand extends ExternalSortEventsCommand {
         this.k = k;
     }
 
+    public final boolean isStreaming() {
+        return streaming || partitions > 1;
+    }
+
+    public final void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public final int getPartitions() {
+        return partitions;
+    }
+
+    public final void setPartitions(int partitions) {
+        if (partitions < 1)
+            throw new IllegalArgumentException("partitions < 1");
+        this.partitions = partitions;
+    }
+
+    public final File getReverseFile() {
+        return reverseFile;
+    }
+
+    /**
+     * @param reverseFile file to write reverse neighbours to, or null not to
+     */
+    public final void setReverseFile(File reverseFile) {
+        this.reverseFile = reverseFile;
+    }
+
+    public final File getMutualFile() {
+        return mutualFile;
+    }
+
+    /**
+     * @param mutualFile file to write the mutual k-nearest-neighbours graph to, or null not to
+     */
+    public final void setMutualFile(File mutualFile) {
+        this.mutualFile = mutualFile;
+    }
+
+    public final ObjectSource<Weighted<TokenPair>> getSimsSource() {
+        return simsSource;
+    }
+
+    /**
+     * Read the sims from <code>simsSource</code>, which is closed on completion, rather than the source file. The sims
+     * can only be read once, so this requires streaming selection.
+     *
+     * @param simsSource source of sims, or null to read the source file
+     */
+    public final void setSimsSource(ObjectSource<Weighted<TokenPair>> simsSource) {
+        this.simsSource = simsSource;
+    }
+
+    public final ObjectSink<Weighted<TokenPair>> getNeighboursSink() {
+        return neighboursSink;
+    }
+
+    /**
+     * Write the neighbours to <code>neighboursSink</code>, which is closed on completion, rather than the destination
+     * file. The neighbours graphs are derived from the destination file, so they can not be written as well.
+     *
+     * @param neighboursSink sink to write neighbours to, or null to write the destination file
+     */
+    public final void setNeighboursSink(ObjectSink<Weighted<TokenPair>> neighboursSink) {
+        this.neighboursSink = neighboursSink;
+    }
+
+    final long getMaxHeldBytes() {
+        return maxHeldBytes;
+    }
+
+    final void setMaxHeldBytes(long maxHeldBytes) {
+        if (maxHeldBytes < 0)
+            throw new IllegalArgumentException("maxHeldBytes < 0");
+        this.maxHeldBytes = maxHeldBytes;
+    }
+
+    /**
+     * Streaming selection keeps the heaviest neighbours of each entry, and emits entries in id order, so it is only
+     * equivalent to the sort when the comparators are the defaults.
+     */
+    boolean isStreamingSupported() {
+        return !isReverse()
+                && getClassComparator().equals(Weighted.recordOrder(TokenPair.firstIndexOrder()))
+                && getNearnessComparator().equals(Comparators.reverse(Weighted.<TokenPair>weightOrder()));
+    }
+
+    @Override
+    protected void runTask() throws Exception {
+        if (simsSource != null || neighboursSink != null) {
+            if (!isStreaming() || !isStreamingSupported())
+                throw new IllegalStateException(
+                        "Reading or writing other than through files requires streaming selection.");
+            if (getReverseFile() != null || getMutualFile() != null)
+                throw new IllegalStateException(
+                        "Neighbour graphs can only be written when the neighbours are written to a file.");
+        }
+
+        if (isStreaming() && isStreamingSupported()) {
+            runStreaming();
+        } else {
+            if (isStreaming())
+                LOG.warn("Streaming selection requires the default comparators; sorting instead.");
+            super.runTask();
+        }
+
+        if (getReverseFile() != null || getMutualFile() != null)
+            writeNeighbourGraphs();
+    }
+
+    private void runStreaming() throws Exception {
+        getProgress().setState(State.RUNNING);
+
+        if (maxHeldBytes == 0)
+            System.gc();
+        final long budget = maxHeldBytes > 0 ? maxHeldBytes : MiscUtil.freeMaxMemory() / 2;
+        LOG.info(MessageFormat.format("Streaming neighbour selection with {0} bytes of heaps.", budget));
+
+        final ObjectSink<Weighted<TokenPair>> sink = neighboursSink != null
+                ? reduceNeighbours(neighboursSink)
+                : openSink(getFileDelegate().getDestinationFile());
+        final ObjectSource<Weighted<TokenPair>> src = simsSource != null
+                ? simsSource
+                : openSource(getFileDelegate().getSourceFile());
+        try {
+            if (getPartitions() > 1) {
+                selectPartitioned(src, sink, budget / getPartitions());
+            } else {
+                selectNeighbours(src, sink, budget, 0);
+            }
+        } finally {
+            if (sink instanceof Flushable)
+                ((Flushable) sink).flush();
+            sink.close();
+        }
+
+        getProgress().setState(State.COMPLETED);
+    }
+
+    /**
+     * Derive the reverse neighbours and mutual neighbours from the selected neighbours, which are at most k per entry,
+     * so they are usually read once into primitive arrays rather than sorted on disk. If the neighbours exceed the
+     * memory budget they are instead derived on disk, by {@link #writeNeighbourGraphsExternally()}.
+     * <p/>
+     * Reverse neighbours are written grouped by the listed entry, nearest first, with ties in the order of the
+     * neighbours file. Mutual neighbours are written in the order of the neighbours file.
+     *
+     * @throws Exception if reading or writing fails
+     */
+    private void writeNeighbourGraphs() throws Exception {
+        if (maxHeldBytes == 0)
+            System.gc();
+        final long budget = maxHeldBytes > 0 ? maxHeldBytes : MiscUtil.freeMaxMemory() / 2;
+
+        final IntArrayList entries = new IntArrayList();
+        final IntArrayList neighbours = new IntArrayList();
+        final DoubleArrayList weights = new DoubleArrayList();
+
+        final WeightedTokenPairSource src = BybloIO.openNeighboursSource(
+                getFileDelegate().getDestinationFile(), getCharset(), getIndexDelegate());
+        try {
+            while (src.hasNext()) {
+                if ((long) (entries.size() + 1) * BYTES_PER_GRAPH_NEIGHBOUR > budget) {
+                    LOG.info(MessageFormat.format(
+                            "Neighbours exceed {0} bytes; deriving the neighbour graphs on disk.", budget));
+                    entries.clear();
+                    neighbours.clear();
+                    weights.clear();
+                    writeNeighbourGraphsExternally();
+                    return;
+                }
+                final Weighted<TokenPair> neighbour = src.read();
+                entries.add(neighbour.record().id1());
+                neighbours.add(neighbour.record().id2());
+                weights.add(neighbour.weight());
+            }
+        } finally {
+            src.close();
+        }
+        final int n = entries.size();
+
+        if (getReverseFile() != null) {
+            final int[] order = new int[n];
+            for (int i = 0; i < n; i++)
+                order[i] = i;
+            // Merge sort is stable, so ties stay in file order
+            IntArrays.mergeSort(order, new AbstractIntComparator() {
+                @Override
+                public int compare(int i, int j) {
+                    final int a = neighbours.getInt(i);
+                    final int b = neighbours.getInt(j);
+                    return a < b ? -1 : a > b ? 1 : Double.compare(weights.getDouble(j), weights.getDouble(i));
+                }
+            });
+
+            final WeightedTokenPairSink sink = BybloIO.openNeighboursSink(
+                    getReverseFile(), getCharset(), getIndexDelegate());
+            try {
+                for (int i : order)
+                    sink.write(new Weighted<TokenPair>(
+                            new TokenPair(neighbours.getInt(i), entries.getInt(i)), weights.getDouble(i)));
+            } finally {
+                sink.flush();
+                sink.close();
+            }
+        }
+
+        if (getMutualFile() != null) {
+            final LongOpenHashSet pairs = new LongOpenHashSet(n);
+            for (int i = 0; i < n; i++)
+                pairs.add(pairKey(entries.getInt(i), neighbours.getInt(i)));
+
+            long mutual = 0;
+            final WeightedTokenPairSink sink = BybloIO.openNeighboursSink(
+                    getMutualFile(), getCharset(), getIndexDelegate());
+            try {
+                for (int i = 0; i < n; i++) {
+                    if (pairs.contains(pairKey(neighbours.getInt(i), entries.getInt(i)))) {
+                        sink.write(new Weighted<TokenPair>(
+                                new TokenPair(entries.getInt(i), neighbours.getInt(i)), weights.getDouble(i)));
+                        ++mutual;
+                    }
+                }
+            } finally {
+                sink.flush();
+                sink.close();
+            }
+            LOG.info(MessageFormat.format("{0} of {1} neighbours are mutual.", mutual, n));
+        }
+    }
+
+    /**
+     * Derive the neighbour graphs in bounded memory. The swapped neighbours are sorted on disk by listed entry, nearest
+     * first, with ties in the order of the neighbours file, which is the reverse graph. Mutual neighbours are then found
+     * by joining the reverse graph to the neighbours file, holding at most the k neighbours of one entry at a time.
+     *
+     * @throws Exception if reading, writing, or sorting fails
+     */
+    private void writeNeighbourGraphsExternally() throws Exception {
+        // Temporary files hold ids, whether or not the outputs are enumerated
+        final DoubleEnumerating enumerated = new DoubleEnumeratingDelegate(
+                EnumeratorType.Memory, true, true, null, null);
+
+        final File swapped = getTempFileFactory().createFile();
+        final WeightedTokenPairSource src = BybloIO.openNeighboursSource(
+                getFileDelegate().getDestinationFile(), getCharset(), getIndexDelegate());
+        final WeightedTokenPairSink swappedSink = BybloIO.openEventsSink(swapped, getCharset(), enumerated);
+        try {
+            while (src.hasNext()) {
+                final Weighted<TokenPair> neighbour = src.read();
+                swappedSink.write(new Weighted<TokenPair>(
+                        new TokenPair(neighbour.record().id2(), neighbour.record().id1()), neighbour.weight()));
+            }
+        } finally {
+            src.close();
+            swappedSink.flush();
+            swappedSink.close();
+        }
+
+        // The neighbours file lists entries in order, so ties on the listed
+        // entry and nearness are in file order when ordered by the lister.
+        final File reverse = getTempFileFactory().createFile();
+        final ExternalSortEventsCommand sortCmd = new ExternalSortEventsCommand(
+                swapped, reverse, getCharset(), enumerated);
+        sortCmd.setComparator(Comparators.fallback(getClassComparator(), Comparators.fallback(
+                getNearnessComparator(), Weighted.recordOrder(TokenPair.secondIndexOrder()))));
+        sortCmd.setTempFileFactory(getTempFileFactory());
+        sortCmd.setNumThreads(getNumThreads());
+        sortCmd.setMergeFanIn(getMergeFanIn());
+        if (!sortCmd.runCommand())
+            throw new RuntimeException("Sorting the reverse neighbours failed.");
+        deleteTempFile(swapped);
+
+        if (getReverseFile() != null) {
+            final WeightedTokenPairSource reverseSrc = BybloIO.openEventsSource(reverse, getCharset(), enumerated);
+            final WeightedTokenPairSink sink = BybloIO.openNeighboursSink(
+                    getReverseFile(), getCharset(), getIndexDelegate());
+            try {
+                ObjectIO.copy(reverseSrc, sink);
+            } finally {
+                reverseSrc.close();
+                sink.flush();
+                sink.close();
+            }
+        }
+
+        if (getMutualFile() != null)
+            writeMutualNeighbours(reverse, enumerated);
+
+        deleteTempFile(reverse);
+    }
+
+    /**
+     * Join the neighbours file to the reverse graph, both of which are grouped by entry in the same order. A neighbour
+     * is mutual if the reverse graph shows that it lists the entry in turn.
+     */
+    private void writeMutualNeighbours(final File reverse, final DoubleEnumerating enumerated) throws IOException {
+        final WeightedTokenPairSource src = BybloIO.openNeighboursSource(
+                getFileDelegate().getDestinationFile(), getCharset(), getIndexDelegate());
+        final WeightedTokenPairSource reverseSrc = BybloIO.openEventsSource(reverse, getCharset(), enumerated);
+        final WeightedTokenPairSink sink = BybloIO.openNeighboursSink(
+                getMutualFile(), getCharset(), getIndexDelegate());
+
+        final List<Weighted<TokenPair>> group = new ArrayList<Weighted<TokenPair>>(k);
+        final IntOpenHashSet groupNeighbours = new IntOpenHashSet(k);
+        final IntOpenHashSet mutualNeighbours = new IntOpenHashSet(k);
+        long mutual = 0;
+        long n = 0;
+        try {
+            Weighted<TokenPair> next = src.hasNext() ? src.read() : null;
+            Weighted<TokenPair> nextReverse = reverseSrc.hasNext() ? reverseSrc.read() : null;
+            while (next != null) {
+                final int entry = next.record().id1();
+                group.clear();
+                groupNeighbours.clear();
+                while (next != null && next.record().id1() == entry) {
+                    group.add(next);
+                    groupNeighbours.add(next.record().id2());
+                    next = src.hasNext() ? src.read() : null;
+                }
+                n += group.size();
+
+                while (nextReverse != null && getClassComparator().compare(nextReverse, group.get(0)) < 0)
+                    nextReverse = reverseSrc.hasNext() ? reverseSrc.read() : null;
+                mutualNeighbours.clear();
+                while (nextReverse != null && nextReverse.record().id1() == entry) {
+                    if (groupNeighbours.contains(nextReverse.record().id2()))
+                        mutualNeighbours.add(nextReverse.record().id2());
+                    nextReverse = reverseSrc.hasNext() ? reverseSrc.read() : null;
+                }
+
+                for (Weighted<TokenPair> neighbour : group) {
+                    if (mutualNeighbours.contains(neighbour.record().id2())) {
+                        sink.write(neighbour);
+                        ++mutual;
+                    }
+                }
+            }
+        } finally {
+            src.close();
+            reverseSrc.close();
+            sink.flush();
+            sink.close();
+        }
+        LOG.info(MessageFormat.format("{0} of {1} neighbours are mutual.", mutual, n));
+    }
+
+    private static long pairKey(final int entry, final int neighbour) {
+        return ((long) entry << 32) | (neighbour & 0xffffffffL);
+    }
+
+    /**
+     * Read every sim from <code>src</code> once, offering it to a bounded heap for its entry, and write the k nearest
+     * neighbours of each entry to <code>sink</code> in entry id order.
+     * <p/>
+     * If the heaps exceed the budget they are spilled, entry by entry, to partition files chosen by a hash of the
+     * entry id, and memory is released. Each spill of an entry holds only neighbours read before any later spill of the
+     * same entry, so re-reading a partition preserves the order of ties. Partitions are then processed recursively and
+     * their outputs, which hold disjoint entries, are merged.
+     *
+     * @param src    source of sims, which is closed on return
+     * @param sink   destination of the selected neighbours
+     * @param budget approximate number of bytes the heaps may occupy
+     * @param depth  recursion depth, which selects the partitioning hash
+     * @throws Exception if reading or writing fails
+     */
+    private void selectNeighbours(final ObjectSource<Weighted<TokenPair>> src,
+                                  final ObjectSink<Weighted<TokenPair>> sink,
+                                  final long budget, final int depth) throws Exception {
+        final Int2ObjectMap<TopKHeap> heaps = new Int2ObjectOpenHashMap<TopKHeap>();
+        final File[] partitionFiles = new File[SPILL_PARTITIONS];
+        final ObjectSink<Weighted<TokenPair>>[] partitionSinks = newSinkArray(SPILL_PARTITIONS);
+        boolean spilled = false;
+        long held = 0;
+
+        try {
+            while (src.hasNext()) {
+                final Weighted<TokenPair> sim = src.read();
+                final int entry = sim.record().id1();
+                TopKHeap heap = heaps.get(entry);
+                if (heap == null) {
+                    heap = new TopKHeap(k);
+                    heaps.put(entry, heap);
+                    held += BYTES_PER_HELD_ENTRY;
+                }
+                if (heap.size() < k)
+                    held += BYTES_PER_HELD_NEIGHBOUR;
+                heap.offer(sim.record().id2(), sim.weight());
+
+                if (held > budget && depth < MAX_SPILL_DEPTH) {
+                    spill(heaps, partitionFiles, partitionSinks, depth);
+                    spilled = true;
+                    heaps.clear();
+                    held = 0;
+                }
+            }
+        } finally {
+            src.close();
+        }
+
+        if (!spilled) {
+            final int[] entries = heaps.keySet().toIntArray();
+            Arrays.sort(entries);
+            for (int entry : entries)
+                write(entry, heaps.get(entry), sink);
+            return;
+        }
+
+        try {
+            spill(heaps, partitionFiles, partitionSinks, depth);
+        } finally {
+            closeAll(partitionSinks);
+        }
+        heaps.clear();
+
+        selectPartitions(partitionFiles, sink, budget, depth + 1);
+    }
+
+    /**
+     * Partition the sims by a hash of the entry id as they are read, passing each through a bounded pipe to the worker
+     * for its partition, so that the partitions are selected in parallel in the same pass. Each worker spills only if
+     * its own heaps exceed their share of the budget. The selected neighbours of each partition are written to a
+     * temporary file, and these, which hold disjoint entries, are then merged into <code>sink</code>.
+     *
+     * @param src    source of sims, which is closed on return
+     * @param sink   destination of the selected neighbours
+     * @param budget approximate number of bytes the heaps of each partition may occupy
+     * @throws Exception if reading, selecting or writing fails
+     */
+    private void selectPartitioned(final ObjectSource<Weighted<TokenPair>> src,
+                                   final ObjectSink<Weighted<TokenPair>> sink,
+                                   final long budget) throws Exception {
+        final int partitions = getPartitions();
+        final List<ObjectPipe<Weighted<TokenPair>>> pipes = new ArrayList<ObjectPipe<Weighted<TokenPair>>>(partitions);
+        final List<File> selectedFiles = new ArrayList<File>(partitions);
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(partitions);
+
+        // Every partition must have a running worker, or the reader would wait forever on a full pipe.
+        final ExecutorService executor = Executors.newFixedThreadPool(partitions);
+        try {
+            for (int p = 0; p < partitions; p++) {
+                final ObjectPipe<Weighted<TokenPair>> pipe = new ObjectPipe<Weighted<TokenPair>>();
+                final File selectedFile = getTempFileFactory().createFile();
+                pipes.add(pipe);
+                selectedFiles.add(selectedFile);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            final WeightedTokenPairSink selectedSink =
+                                    BybloIO.openNeighboursSink(selectedFile, getCharset(), getIndexDelegate());
+                            try {
+                                selectNeighbours(pipe.source(), selectedSink, budget, 1);
+                            } finally {
+                                selectedSink.flush();
+                                selectedSink.close();
+                            }
+                        } finally {
+                            // Fail the reader's writes rather than leave it waiting
+                            pipe.source().close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            IOException readFailure = null;
+            try {
+                try {
+                    while (src.hasNext()) {
+                        final Weighted<TokenPair> sim = src.read();
+                        pipes.get(partition(sim.record().id1(), 0, partitions)).sink().write(sim);
+                    }
+                } finally {
+                    src.close();
+                }
+                for (ObjectPipe<Weighted<TokenPair>> pipe : pipes)
+                    pipe.sink().close();
+            } catch (IOException ex) {
+                readFailure = ex;
+                for (ObjectPipe<Weighted<TokenPair>> pipe : pipes)
+                    pipe.fail(ex);
+            }
+
+            // A worker that failed first is the cause of any read failure, so report it in preference; workers
+            // that only saw the read failure passed down the pipes are skipped.
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    if (readFailure == null || ex.getCause() != readFailure) {
+                        Throwables.propagateIfPossible(ex.getCause(), Exception.class);
+                        throw ex;
+                    }
+                }
+            }
+            if (readFailure != null)
+                throw readFailure;
+        } catch (Exception ex) {
+            for (File selectedFile : selectedFiles)
+                if (selectedFile.exists())
+                    deleteTempFile(selectedFile);
+            throw ex;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        mergeSelected(selectedFiles, sink);
+    }
+
+    /**
+     * Select the neighbours of each partition in turn, then merge the results into <code>sink</code>. Partitions hold
+     * disjoint entries, so the merge only interleaves whole entries.
+     *
+     * @param partitionFiles partitions to process, which are deleted; null elements are skipped
+     * @param sink           destination of the selected neighbours
+     * @param budget         approximate number of bytes the heaps of each partition may occupy
+     * @param depth          recursion depth at which the partitions are processed
+     * @throws Exception if reading or writing fails
+     */
+    private void selectPartitions(final File[] partitionFiles, final ObjectSink<Weighted<TokenPair>> sink,
+                                  final long budget, final int depth)
+            throws Exception {
+        final List<File> selectedFiles = new ArrayList<File>();
+        for (File partitionFile : partitionFiles) {
+            if (partitionFile == null)
+                continue;
+            final File selectedFile = getTempFileFactory().createFile();
+            final SelectTask task = new SelectTask(partitionFile, selectedFile, budget, depth);
+            task.run();
+            if (task.isExceptionTrapped())
+                task.throwTrappedException();
+            selectedFiles.add(selectedFile);
+        }
+        mergeSelected(selectedFiles, sink);
+    }
+
+    /**
+     * Merge neighbours files that hold disjoint entries into <code>sink</code>, deleting them afterwards.
+     */
+    private void mergeSelected(final List<File> selectedFiles, final ObjectSink<Weighted<TokenPair>> sink)
+            throws IOException {
+        final List<ObjectSource<Weighted<TokenPair>>> selected =
+                new ArrayList<ObjectSource<Weighted<TokenPair>>>(selectedFiles.size());
+        try {
+            for (File selectedFile : selectedFiles)
+                selected.add(BybloIO.openNeighboursSource(selectedFile, getCharset(), getIndexDelegate()));
+            ObjectIO.copy(MergingObjectSource.merge(getCombinedComparator(), selected), sink);
+        } finally {
+            for (ObjectSource<Weighted<TokenPair>> source : selected)
+                source.close();
+        }
+        for (File selectedFile : selectedFiles)
+            deleteTempFile(selectedFile);
+    }
+
+    /**
+     * Task that selects the neighbours of a single partition file into a neighbours file.
+     */
+    private final class SelectTask extends AbstractTask {
+
+        private final File partitionFile;
+
+        private final File selectedFile;
+
+        private final long budget;
+
+        private final int depth;
+
+        SelectTask(final File partitionFile, final File selectedFile, final long budget, final int depth) {
+            this.partitionFile = partitionFile;
+            this.selectedFile = selectedFile;
+            this.budget = budget;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void runTask() throws Exception {
+            final WeightedTokenPairSink selectedSink =
+                    BybloIO.openNeighboursSink(selectedFile, getCharset(), getIndexDelegate());
+            try {
+                selectNeighbours(openSource(partitionFile), selectedSink, budget, depth);
+            } finally {
+                selectedSink.flush();
+                selectedSink.close();
+            }
+            deleteTempFile(partitionFile);
+        }
+
+        @Override
+        protected Objects.ToStringHelper toStringHelper() {
+            return super.toStringHelper()
+                    .add("partition", partitionFile)
+                    .add("selected", selectedFile)
+                    .add("depth", depth);
+        }
+    }
+
+    private void spill(final Int2ObjectMap<TopKHeap> heaps, final File[] partitionFiles,
+                       final ObjectSink<Weighted<TokenPair>>[] partitionSinks, final int depth)
+            throws IOException {
+        if (LOG.isDebugEnabled())
+            LOG.debug(MessageFormat.format("Spilling {0} entries at depth {1}.", heaps.size(), depth));
+        for (Int2ObjectMap.Entry<TopKHeap> e : heaps.int2ObjectEntrySet()) {
+            final int p = partition(e.getIntKey(), depth, SPILL_PARTITIONS);
+            if (partitionSinks[p] == null) {
+                partitionFiles[p] = getTempFileFactory().createFile();
+                partitionSinks[p] = BybloIO.openSimsSink(partitionFiles[p], getCharset(), getIndexDelegate());
+            }
+            write(e.getIntKey(), e.getValue(), partitionSinks[p]);
+        }
+    }
+
+    private static void write(final int entry, final TopKHeap heap, final ObjectSink<Weighted<TokenPair>> sink)
+            throws IOException {
+        heap.sort();
+        for (int i = 0; i < heap.size(); i++)
+            sink.write(new Weighted<TokenPair>(new TokenPair(entry, heap.id(i)), heap.weight(i)));
+    }
+
+    private static void closeAll(final ObjectSink<Weighted<TokenPair>>[] sinks) throws IOException {
+        for (ObjectSink<Weighted<TokenPair>> sink : sinks) {
+            if (sink != null) {
+                if (sink instanceof Flushable)
+                    ((Flushable) sink).flush();
+                sink.close();
+            }
+        }
+    }
+
+    /**
+     * Hash an entry id to a partition; each depth uses a different hash so that a partition which is still too large
+     * is divided again.
+     */
+    static int partition(final int entry, final int depth, final int partitions) {
+        int h = entry + depth * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h >>> 1) % partitions;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ObjectSink<Weighted<TokenPair>>[] newSinkArray(final int length) {
+        return (ObjectSink<Weighted<TokenPair>>[]) new ObjectSink<?>[length];
+    }
+
+    private static void deleteTempFile(final File file) {
+        if (!file.delete() && LOG.isWarnEnabled())
+            LOG.warn("Failed to delete temporary file: " + file);
+    }
+
     @Override
     protected void initialiseTask() throws Exception {
         super.initialiseTask();
@@ -133,7 +884,10 @@ public class ExternalKnnSimsCommand extends ExternalSortEventsCommand {
 
     @Override
     protected ToStringHelper toStringHelper() {
-        return super.toStringHelper().add("k", k);
+        return super.toStringHelper().add("k", k).add("streaming", streaming)
+                .add("partitions", partitions)
+                .add("reverseOutput", reverseFile)
+                .add("mutualOutput", mutualFile);
     }
 
     @Override
@@ -144,11 +898,12 @@ public class ExternalKnnSimsCommand extends ExternalSortEventsCommand {
 
     @Override
     protected ObjectSink<Weighted<TokenPair>> openSink(File file) throws IOException {
-        return new KFirstReducingObjectSink<Weighted<TokenPair>>(
-                new WeightSumReducerObjectSink<TokenPair>(
-                        BybloIO.openNeighboursSink(file, getCharset(), getIndexDelegate())),
-                classComparator, k);
+        return reduceNeighbours(BybloIO.openNeighboursSink(file, getCharset(), getIndexDelegate()));
+    }
 
+    private ObjectSink<Weighted<TokenPair>> reduceNeighbours(ObjectSink<Weighted<TokenPair>> inner) {
+        return new KFirstReducingObjectSink<Weighted<TokenPair>>(
+                new WeightSumReducerObjectSink<TokenPair>(inner), classComparator, k);
     }
 
     @Override
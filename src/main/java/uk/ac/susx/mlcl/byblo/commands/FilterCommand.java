@@ -37,6 +37,7 @@ import com.google.common.base.Function;
 import com.google.common.base.Objects.ToStringHelper;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.ints.IntSortedSet;
 import org.apache.commons.logging.Log;
@@ -46,6 +47,7 @@ import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
 import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
 import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
 import uk.ac.susx.mlcl.byblo.io.*;
+import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.MiscUtil;
 import uk.ac.susx.mlcl.lib.Predicates2;
 import uk.ac.susx.mlcl.lib.collect.IntBitSet;
@@ -62,10 +64,18 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Predicates.*;
@@ -164,8 +174,13 @@ public class FilterCommand extends AbstractCommand implements
             description = "Regular expression that accepted features must match.")
     private String filterFeaturePattern;
 
+    @Parameter(names = {"-t", "--threads"},
+            description = "Number of threads to match entry and feature patterns with, when the "
+                    + "entries and features are enumerated.")
+    private int numThreads = 1;
+
     @Parameter(names = {"-T", "--temp-dir"},
-            description = "Temporary directory which will be used during filtering.",
+            description = "Deprecated and ignored: filtering no longer writes temporary files.",
             converter = TempFileFactoryConverter.class)
     private FileFactory tempFiles = new TempFileFactory();
 
@@ -178,31 +193,23 @@ public class FilterCommand extends AbstractCommand implements
 
     private Predicate<Weighted<Token>> acceptFeatures = alwaysTrue();
 
-    private boolean entryFilterRequired = false;
-
-    private boolean eventFilterRequired = false;
-
-    private boolean featureFilterRequired = false;
+    private final List<IdPattern> entryPatterns = new ArrayList<IdPattern>();
 
-    private File activeEventsFile;
+    private final List<IdPattern> featurePatterns = new ArrayList<IdPattern>();
 
-    private File activeEntriesFile;
-
-    private File activeFeaturesFile;
-
-    // Store the entry and feature blacklists globally because we need to add
-    // to it throughout the process.
+    // Store the entry and feature blacklists globally because the accept
+    // predicates refer to them, and they can be added to after construction.
     private final IntSortedSet entryBlacklist;
     private final IntSortedSet featureBlacklist;
 
     public FilterCommand() {
         featureBlacklist = newIntSet(1 << 16);
         entryBlacklist = newIntSet(1 << 16);
-        setAcceptFeatures(Predicates.<Weighted<Token>>and(getAcceptFeatures(), compose(not(in(featureBlacklist)), id())));
-        setAcceptEntries(Predicates.<Weighted<Token>>and(getAcceptEntries(), compose(not(in(entryBlacklist)), id())));
+        setAcceptFeatures(Predicates.<Weighted<Token>>and(getAcceptFeatures(), not(idIn(featureBlacklist))));
+        setAcceptEntries(Predicates.<Weighted<Token>>and(getAcceptEntries(), not(idIn(entryBlacklist))));
         setAcceptEvent(Predicates.<Weighted<TokenPair>>and(getAcceptEvent(),
-                compose(not(in(entryBlacklist)), eventEntryId()),
-                compose(not(in(featureBlacklist)), eventFeatureId())));
+                not(eventEntryIdIn(entryBlacklist)),
+                not(eventFeatureIdIn(featureBlacklist))));
     }
 
     public FilterCommand(File inputEventsFile, File inputEntriesFile,
@@ -262,117 +269,49 @@ public class FilterCommand extends AbstractCommand implements
             }
 
             checkState();
-            activeEventsFile = inputEventsFile;
-            activeEntriesFile = inputEntriesFile;
-            activeFeaturesFile = inputFeaturesFile;
 
             progress.addProgressListener(new ReportLoggingProgressListener(LOG));
 
-            progress.setState(State.RUNNING);
-            progress.setProgressPercent(0);
-
-            // Run the filters forwards then backwards. Each filtering step may
-            // introduce additionally filters for the other files, so continue
-            // looping until there is no work remaining. Depending on filters this
-            // very unlikely to take more than 3 passes
-
-            int passCount = 0;
-            int opCount = 0;
-
-            while (entryFilterRequired || eventFilterRequired
-                    || featureFilterRequired) {
-
-                progress.setMessage("Running filtering pass (#" + (++passCount)
-                        + ").");
-
-                if (entryFilterRequired) {
-                    filterEntries();
-                    ++opCount;
-                    progress.setProgressPercent(100
-                            * opCount
-                            / (opCount + 3 + (entryFilterRequired ? 1 : 0)
-                            + (eventFilterRequired ? 1 : 0) + (featureFilterRequired ? 1
-                            : 0)));
-                }
-
-                if (eventFilterRequired) {
-                    filterEvents();
-                    ++opCount;
-                    progress.setProgressPercent(100
-                            * opCount
-                            / (opCount + 3 + (entryFilterRequired ? 1 : 0)
-                            + (eventFilterRequired ? 1 : 0) + (featureFilterRequired ? 1
-                            : 0)));
-                }
-
-                if (featureFilterRequired) {
-                    filterFeatures();
-                    ++opCount;
-                    progress.setProgressPercent(100
-                            * opCount
-                            / (opCount + 3 + (entryFilterRequired ? 1 : 0)
-                            + (eventFilterRequired ? 1 : 0) + (featureFilterRequired ? 1
-                            : 0)));
-                }
-
-                if (eventFilterRequired) {
-                    filterEvents();
-                    ++opCount;
-                    progress.setProgressPercent(100
-                            * opCount
-                            / (opCount + 3 + (entryFilterRequired ? 1 : 0)
-                            + (eventFilterRequired ? 1 : 0) + (featureFilterRequired ? 1
-                            : 0)));
-                }
-
-                if (entryFilterRequired) {
-                    filterEntries();
-                    ++opCount;
-                    progress.setProgressPercent(100
-                            * opCount
-                            / (opCount + 3 + (entryFilterRequired ? 1 : 0)
-                            + (eventFilterRequired ? 1 : 0) + (featureFilterRequired ? 1
-                            : 0)));
-                }
+            // When the enumerators were loaded from disk they are complete, so
+            // patterns can be decided for every id with one scan of each
+            if (indexDelegate.isEnumeratedEntries()) {
+                for (IdPattern idPattern : entryPatterns)
+                    idPattern.precompile();
+            }
+            if (indexDelegate.isEnumeratedFeatures()) {
+                for (IdPattern idPattern : featurePatterns)
+                    idPattern.precompile();
             }
 
-            // Finished filtering so copy the results files to the outputs.
-
-            progress.setMessage("Copying final entries file.");
-
-            finaliseFile(inputEntriesFile, activeEntriesFile, outputEntriesFile);
-            ++opCount;
+            progress.setState(State.RUNNING);
+            progress.setProgressPercent(0);
 
+            // Entry and feature frequencies are never altered by filtering, so
+            // the entry and feature filters can be decided up front.
+            final IntBitSet rejectedEntries = rejectEntries();
+            progress.setProgressPercent(100 * 1 / 6);
 
-            progress.startAdjusting();
-            progress.setProgressPercent(100
-                    * opCount
-                    / (opCount + 2 + (entryFilterRequired ? 1 : 0)
-                    + (eventFilterRequired ? 1 : 0) + (featureFilterRequired ? 1
-                    : 0)));
-            progress.setMessage("Copying finally events file.");
-            progress.endAdjusting();
+            final IntBitSet rejectedFeatures = rejectFeatures();
+            progress.setProgressPercent(100 * 2 / 6);
 
-            finaliseFile(inputEventsFile, activeEventsFile, outputEventsFile);
-            ++opCount;
+            // An entry or feature survives if it is accepted, and at least one
+            // accepted event between accepted entries and features contains
+            // it. Dropping those with no such event removes no further events,
+            // because they have none, so this is already the fixpoint that
+            // repeated filtering of each file would converge to.
+            final IntBitSet liveEntries = new IntBitSet();
+            final IntBitSet liveFeatures = new IntBitSet();
+            countEvents(rejectedEntries, rejectedFeatures, liveEntries, liveFeatures);
+            progress.setProgressPercent(100 * 3 / 6);
 
-            progress.startAdjusting();
-            progress.setProgressPercent(100
-                    * opCount
-                    / (opCount + 1 + (entryFilterRequired ? 1 : 0)
-                    + (eventFilterRequired ? 1 : 0) + (featureFilterRequired ? 1
-                    : 0)));
-            progress.setMessage("Copying final features file.");
-            progress.endAdjusting();
+            writeEvents(liveEntries, liveFeatures);
+            progress.setProgressPercent(100 * 4 / 6);
 
-            finaliseFile(inputFeaturesFile, activeFeaturesFile, outputFeaturesFile);
+            writeEntries(liveEntries);
+            progress.setProgressPercent(100 * 5 / 6);
 
-            ++opCount;
-            progress.setProgressPercent(100
-                    * opCount
-                    / (opCount + 0 + (entryFilterRequired ? 1 : 0)
-                    + (eventFilterRequired ? 1 : 0) + (featureFilterRequired ? 1
-                    : 0)));
+            writeFeatures(liveFeatures);
+            progress.setProgressPercent(100);
 
             if (indexDelegate.isEnumeratorOpen()) {
                 indexDelegate.saveEnumerator();
@@ -387,218 +326,148 @@ public class FilterCommand extends AbstractCommand implements
         }
     }
 
-    private static void finaliseFile(File inputFile, File activeFile,
-                                     File outputFile) throws IOException {
-        assert inputFile != null : "inputFile is null";
-        assert activeFile != null : "activeFile is null";
-        assert outputFile != null : "outputFile is null";
-        assert inputFile.exists() : "inputFile does not exist";
-        assert activeFile.exists() : "activeFile does not exist";
-
-        // Output file can't just be written over because we are going to try
-        // and rename to it, so delete it first if it exists.
-        if (outputFile.exists() && !outputFile.delete())
-            throw new IOException("Failed to delete output entries file: "
-                    + outputFile);
-
-        assert !outputFile.exists() : "outputFile already exists";
-
-        // Move the active to the output file. First try renaming which is much
-        // faster but only works if both are on the same file system. Otherwise
-        // fall back to a copy then delete.
-        if (activeFile.equals(inputFile)) {
-            com.google.common.io.Files.copy(inputFile, outputFile);
-        } else if (!activeFile.renameTo(outputFile)) {
-            com.google.common.io.Files.copy(activeFile, outputFile);
-            if (!activeFile.equals(inputFile)) {
-                if (activeFile.delete())
-                    throw new IOException("Failed to delete active file: "
-                            + activeFile);
-            }
-        }
-
-        assert inputFile.exists() : "inputFile does not exist";
-        assert outputFile.exists() : "outputFile does not exist";
-    }
-
-    // Read the entries file, passing it thought the filter. accepted entries
-    // are written out to the output file while rejected entries are stored
-    // for filtering the AllPairsTask.
-
-    private void filterEntries() throws IOException {
-
-        WeightedTokenSource entriesSource = BybloIO.openEntriesSource(
-                activeEntriesFile, getCharset(), getIndexDelegate());
-
-        File outputFile = tempFiles.createFile();
-
-        WeightedTokenSink entriesSink = BybloIO.openEntriesSink(outputFile,
-                getCharset(), getIndexDelegate());
-
+    // Read the entries file, returning the ids of entries rejected by the
+    // entry filters. The entries file itself is written later, once it is
+    // known which entries have any events left.
+    private IntBitSet rejectEntries() throws IOException {
         progress.setMessage("Filtering entries.");
 
-        final int filteredEntry = getIndexDelegate().getEntryEnumerator()
-                .indexOf(FILTERED_STRING);
-        double filteredWeight = 0;
-
-        long inCount = 0;
-        long outCount = 0;
-        while (entriesSource.hasNext()) {
-            ++inCount;
-            Weighted<Token> record = entriesSource.read();
-
-            if (record.record().id() == filteredEntry) {
-                filteredWeight += record.weight();
-            } else if (acceptEntries.apply(record)) {
-                entriesSink.write(record);
-                ++outCount;
-            } else {
-                eventFilterRequired = entryBlacklist.add(record.record().id()) || eventFilterRequired;
-                filteredWeight += record.weight();
-            }
+        final int filteredEntry = getIndexDelegate().getEntryEnumerator().indexOf(FILTERED_STRING);
+        final IntBitSet rejected = new IntBitSet();
 
-            if ((inCount % PROGRESS_INTERVAL == 0 || !entriesSource.hasNext())
-                    && LOG.isInfoEnabled()) {
-                progress.setMessage(format("Accepted {0} of {1} entries.",
-                        outCount, inCount));
-                LOG.debug(MiscUtil.memoryInfoString());
+        final WeightedTokenSource entriesSource = BybloIO.openEntriesSource(
+                inputEntriesFile, getCharset(), getIndexDelegate());
+        try {
+            long inCount = 0;
+            while (entriesSource.hasNext()) {
+                final Weighted<Token> record = entriesSource.read();
+                ++inCount;
+                if (record.record().id() != filteredEntry && !acceptEntries.apply(record))
+                    rejected.add(record.record().id());
             }
+            progress.setMessage(format("Rejected {0} of {1} entries.", rejected.size(), inCount));
+        } finally {
+            entriesSource.close();
         }
+        return rejected;
+    }
 
-        if (filteredWeight != 0) {
-            entriesSink.write(new Weighted<Token>(new Token(filteredEntry),
-                    filteredWeight));
-        }
+    // Read the features file, returning the ids of features rejected by the
+    // feature filters.
+    private IntBitSet rejectFeatures() throws IOException {
+        progress.setMessage("Filtering features.");
 
-        entriesSource.close();
-        entriesSink.flush();
-        entriesSink.close();
+        final int filteredFeature = getIndexDelegate().getFeatureEnumerator().indexOf(FILTERED_STRING);
+        final IntBitSet rejected = new IntBitSet();
 
-        if (!activeEntriesFile.equals(inputEntriesFile)) {
-            if (!activeEntriesFile.delete())
-                throw new IOException("Failed to delete active file: " + activeEntriesFile);
+        final WeightedTokenSource featuresSource = BybloIO.openFeaturesSource(
+                inputFeaturesFile, getCharset(), getIndexDelegate());
+        try {
+            long inCount = 0;
+            while (featuresSource.hasNext()) {
+                final Weighted<Token> record = featuresSource.read();
+                ++inCount;
+                if (record.record().id() != filteredFeature && !acceptFeatures.apply(record))
+                    rejected.add(record.record().id());
+            }
+            progress.setMessage(format("Rejected {0} of {1} features.", rejected.size(), inCount));
+        } finally {
+            featuresSource.close();
         }
-
-        entryFilterRequired = false;
-        activeEntriesFile = outputFile;
-
-
+        return rejected;
     }
 
-    // Filter the AllPairsTask file, rejecting all events that contain entries
-    // dropped in the entries file filter pass. Store a list of features that
-    // only appear in filtered entries to filter the features file.
-    private void filterEvents() throws IOException {
-
-        // We wish to know which entries where *always* rejected, but this
-        // information is not available locally because we are streaming the
-        // events. To solve this we keep track of entries that where ever
-        // accepted. At then end, those entries  that where *only* ever
-        // rejected are *always* reject, so should be
-        // removed from the entries file.
-
-        final IntSet everAcceptedFeatures = newIntSet(1 << 8);
-        int minFeatureId = Integer.MAX_VALUE;
-        int maxFeatureId = Integer.MIN_VALUE;
-
-        final IntSet everAcceptedEntries = newIntSet(1 << 8);
-        int minEntryId = Integer.MAX_VALUE;
-        int maxEntryId = Integer.MIN_VALUE;
+    private boolean acceptEvent(final Weighted<TokenPair> record,
+                                final IntBitSet rejectedEntries, final IntBitSet rejectedFeatures) {
+        return !rejectedEntries.contains(record.record().id1())
+                && !rejectedFeatures.contains(record.record().id2())
+                && acceptEvents.apply(record);
+    }
 
+    // Read the events file once, recording every entry and feature that
+    // occurs in at least one accepted event.
+    private void countEvents(final IntBitSet rejectedEntries, final IntBitSet rejectedFeatures,
+                             final IntBitSet liveEntries, final IntBitSet liveFeatures) throws IOException {
+        progress.setMessage("Counting events.");
 
-        final WeightedTokenPairSource efSrc = BybloIO.openEventsSource(activeEventsFile, getCharset(), indexDelegate);
+        final int filteredEntry = getIndexDelegate().getEntryEnumerator().indexOf(FILTERED_STRING);
+        final int filteredFeature = getIndexDelegate().getFeatureEnumerator().indexOf(FILTERED_STRING);
 
-        File outputFile = tempFiles.createFile();
+        final WeightedTokenPairSource efSrc = BybloIO.openEventsSource(inputEventsFile, getCharset(), indexDelegate);
+        try {
+            long readCount = 0;
+            long acceptCount = 0;
+            while (efSrc.hasNext()) {
+                final Weighted<TokenPair> record = efSrc.read();
+                ++readCount;
+                if (record.record().id1() != filteredEntry
+                        && record.record().id2() != filteredFeature
+                        && acceptEvent(record, rejectedEntries, rejectedFeatures)) {
+                    liveEntries.add(record.record().id1());
+                    liveFeatures.add(record.record().id2());
+                    ++acceptCount;
+                }
 
-        WeightedTokenPairSink efSink = BybloIO.openEventsSink(outputFile, getCharset(), indexDelegate);
+                if (readCount % PROGRESS_INTERVAL == 0 && LOG.isInfoEnabled()) {
+                    progress.setMessage("Accepted " + acceptCount + " of " + readCount + " events.");
+                    LOG.debug(MiscUtil.memoryInfoString());
+                }
+            }
+            progress.setMessage("Accepted " + acceptCount + " of " + readCount + " events.");
+        } finally {
+            efSrc.close();
+        }
+    }
 
-        progress.setMessage("Filtering events from.");
+    // Write the accepted events. The weight of rejected events is kept with
+    // a special filtered feature for their entry, or with the special
+    // filtered entry and feature pair if the whole entry has been rejected,
+    // so as to maintain accurate priors.
+    private void writeEvents(final IntBitSet liveEntries, final IntBitSet liveFeatures) throws IOException {
+        progress.setMessage("Writing events.");
 
-        // Store the id of the special filtered feature and entry
-        // TODO This can probably be removed now but need to check
         final int filteredEntry = getIndexDelegate().getEntryEnumerator().indexOf(FILTERED_STRING);
         final int filteredFeature = getIndexDelegate().getFeatureEnumerator().indexOf(FILTERED_STRING);
 
+        final WeightedTokenPairSource efSrc = BybloIO.openEventsSource(inputEventsFile, getCharset(), indexDelegate);
+        final WeightedTokenPairSink efSink = BybloIO.openEventsSink(outputEventsFile, getCharset(), indexDelegate);
+
         int currentEntryId = -1;
-        int currentEventCount = 0;
         double currentEntryFilteredFeatureWeight = 0;
-
         double filteredEntryWeight = 0;
 
-        int readCount = 0;
-        int writeCount = 0;
-
         while (efSrc.hasNext()) {
             final Weighted<TokenPair> record = efSrc.read();
             final int entryId = record.record().id1();
             final int featureId = record.record().id2();
-            ++readCount;
-
-            if (featureId < minFeatureId)
-                minFeatureId = featureId;
-            if (featureId > maxFeatureId)
-                maxFeatureId = featureId;
 
-            if (entryId == filteredEntry) {
+            if (entryId == filteredEntry || !liveEntries.contains(entryId)) {
                 filteredEntryWeight += record.weight();
                 continue;
             }
 
             if (entryId != currentEntryId) {
-                if (entryId < minEntryId)
-                    minEntryId = entryId;
-                if (entryId > maxEntryId)
-                    maxEntryId = entryId;
-
                 if (currentEntryId != -1 && currentEntryFilteredFeatureWeight != 0) {
-                    if (currentEventCount == 0) {
-                        filteredEntryWeight += currentEntryFilteredFeatureWeight;
-                    } else {
-                        efSink.write(new Weighted<TokenPair>(new TokenPair(
-                                currentEntryId, filteredFeature),
-                                currentEntryFilteredFeatureWeight));
-                        ++writeCount;
-                    }
+                    efSink.write(new Weighted<TokenPair>(new TokenPair(
+                            currentEntryId, filteredFeature),
+                            currentEntryFilteredFeatureWeight));
                 }
-
                 currentEntryId = entryId;
                 currentEntryFilteredFeatureWeight = 0;
-                currentEventCount = 0;
             }
 
-            if (featureId == filteredFeature) {
-
-                currentEntryFilteredFeatureWeight += record.weight();
-
-            } else if (acceptEvents.apply(record)) {
-
+            if (featureId != filteredFeature && liveFeatures.contains(featureId)
+                    && acceptEvents.apply(record)) {
                 efSink.write(record);
-                ++writeCount;
-
-                everAcceptedEntries.add(entryId);
-                everAcceptedFeatures.add(featureId);
-                ++currentEventCount;
-
-
             } else {
-
                 currentEntryFilteredFeatureWeight += record.weight();
             }
-
-            if ((readCount % PROGRESS_INTERVAL == 0 || !efSrc.hasNext()) && LOG.isInfoEnabled()) {
-                progress.setMessage("Accepted " + writeCount + " of " + readCount + " events.");
-                LOG.debug(MiscUtil.memoryInfoString());
-            }
         }
 
         if (currentEntryId != -1 && currentEntryFilteredFeatureWeight != 0) {
-            if (currentEventCount == 0) {
-                filteredEntryWeight += currentEntryFilteredFeatureWeight;
-            } else {
-                efSink.write(new Weighted<TokenPair>(new TokenPair(
-                        currentEntryId, filteredFeature),
-                        currentEntryFilteredFeatureWeight));
-            }
+            efSink.write(new Weighted<TokenPair>(new TokenPair(
+                    currentEntryId, filteredFeature),
+                    currentEntryFilteredFeatureWeight));
         }
 
         // If there have been entire entries filtered then write their summed
@@ -610,88 +479,68 @@ public class FilterCommand extends AbstractCommand implements
         efSrc.close();
         efSink.flush();
         efSink.close();
+    }
 
-        if (!activeEventsFile.equals(inputEventsFile)) {
-            if (!activeEventsFile.delete())
-                throw new IOException("Failed to delete active file: " + activeEventsFile);
-        }
+    // Write the entries that have any accepted events, summing the weight of
+    // the rest into the special filtered entry.
+    private void writeEntries(final IntBitSet liveEntries) throws IOException {
+        progress.setMessage("Writing entries.");
+
+        final int filteredEntry = getIndexDelegate().getEntryEnumerator().indexOf(FILTERED_STRING);
 
-        eventFilterRequired = false;
-        activeEventsFile = outputFile;
+        final WeightedTokenSource entriesSource = BybloIO.openEntriesSource(
+                inputEntriesFile, getCharset(), getIndexDelegate());
+        final WeightedTokenSink entriesSink = BybloIO.openEntriesSink(
+                outputEntriesFile, getCharset(), getIndexDelegate());
 
-        {
-            IntBitSet alwaysRejectedEntries = IntBitSet.allOfRange(minEntryId, maxEntryId);
-            alwaysRejectedEntries.removeAll(everAcceptedEntries);
-            entryFilterRequired = entryBlacklist.addAll(alwaysRejectedEntries) | entryFilterRequired;
+        double filteredWeight = 0;
+        while (entriesSource.hasNext()) {
+            final Weighted<Token> record = entriesSource.read();
+            if (record.record().id() != filteredEntry && liveEntries.contains(record.record().id())) {
+                entriesSink.write(record);
+            } else {
+                filteredWeight += record.weight();
+            }
         }
 
-        {
-            IntBitSet alwaysRejectedFeature = IntBitSet.allOfRange(minFeatureId, maxFeatureId);
-            alwaysRejectedFeature.removeAll(everAcceptedFeatures);
-            featureFilterRequired = featureBlacklist.addAll(alwaysRejectedFeature) | featureFilterRequired;
+        if (filteredWeight != 0) {
+            entriesSink.write(new Weighted<Token>(new Token(filteredEntry), filteredWeight));
         }
 
+        entriesSource.close();
+        entriesSink.flush();
+        entriesSink.close();
     }
 
-    // Filter the AllPairsTask file, rejecting all entries that where found to
-    // be only used by filtered entries.
-    private void filterFeatures() throws IOException {
-
-        WeightedTokenSource featureSource = BybloIO.openFeaturesSource(
-                activeFeaturesFile, getCharset(), indexDelegate);
+    // Write the features that have any accepted events, summing the weight of
+    // the rest into the special filtered feature.
+    private void writeFeatures(final IntBitSet liveFeatures) throws IOException {
+        progress.setMessage("Writing features.");
 
-        File outputFile = tempFiles.createFile();
-
-        WeightedTokenSink featureSink = BybloIO.openFeaturesSink(outputFile,
-                getCharset(), indexDelegate);
+        final int filteredFeature = getIndexDelegate().getFeatureEnumerator().indexOf(FILTERED_STRING);
 
-        progress.setMessage("Filtering features.");
+        final WeightedTokenSource featuresSource = BybloIO.openFeaturesSource(
+                inputFeaturesFile, getCharset(), getIndexDelegate());
+        final WeightedTokenSink featuresSink = BybloIO.openFeaturesSink(
+                outputFeaturesFile, getCharset(), getIndexDelegate());
 
-        // Store an filtered weight here and record it so as to maintain
-        // accurate priors for those features that remain
         double filteredWeight = 0;
-        int filteredId = getIndexDelegate().getFeatureEnumerator().indexOf(
-                FILTERED_STRING);
-
-        long inCount = 0;
-        long outCount = 0;
-        while (featureSource.hasNext()) {
-            Weighted<Token> feature = featureSource.read();
-            ++inCount;
-
-            if (feature.record().id() == filteredId) {
-                filteredWeight += feature.weight();
-            } else if (acceptFeatures.apply(feature)) {
-                featureSink.write(feature);
-                ++outCount;
+        while (featuresSource.hasNext()) {
+            final Weighted<Token> record = featuresSource.read();
+            if (record.record().id() != filteredFeature && liveFeatures.contains(record.record().id())) {
+                featuresSink.write(record);
             } else {
-                eventFilterRequired = featureBlacklist.add(feature.record().id()) || eventFilterRequired;
-                filteredWeight += feature.weight();
-            }
-
-            if ((inCount % PROGRESS_INTERVAL == 0 || !featureSource.hasNext())
-                    && LOG.isInfoEnabled()) {
-                progress.setMessage(format("Accepted {0} of {1} features.",
-                        outCount, inCount));
-                LOG.debug(MiscUtil.memoryInfoString());
+                filteredWeight += record.weight();
             }
         }
 
         if (filteredWeight != 0) {
-            featureSink.write(new Weighted<Token>(new Token(filteredId),
-                    filteredWeight));
+            featuresSink.write(new Weighted<Token>(new Token(filteredFeature), filteredWeight));
         }
-        featureSource.close();
-        featureSink.flush();
-        featureSink.close();
 
-        if (!activeFeaturesFile.equals(inputFeaturesFile)) {
-            if (!activeFeaturesFile.delete())
-                throw new IOException("Failed to delete active file: " + activeFeaturesFile);
-        }
-
-        featureFilterRequired = false;
-        activeFeaturesFile = outputFile;
+        featuresSource.close();
+        featuresSink.flush();
+        featuresSink.close();
     }
 
     public final File getInputFeaturesFile() {
@@ -747,10 +596,7 @@ public class FilterCommand extends AbstractCommand implements
     }
 
     private void setAcceptFeatures(Predicate<Weighted<Token>> acceptFeature) {
-        if (!acceptFeature.equals(this.acceptFeatures)) {
-            this.acceptFeatures = acceptFeature;
-            featureFilterRequired = true;
-        }
+        this.acceptFeatures = acceptFeature;
     }
 
     void addFeaturesMinimumFrequency(double threshold) {
@@ -766,13 +612,15 @@ public class FilterCommand extends AbstractCommand implements
     }
 
     void addFeaturesPattern(String pattern) {
-        setAcceptFeatures(Predicates.<Weighted<Token>>and(getAcceptFeatures(), compose(Predicates.containsPattern(pattern), featureString())));
+        final IdPattern idPattern = new IdPattern(pattern, false);
+        featurePatterns.add(idPattern);
+        setAcceptFeatures(Predicates.<Weighted<Token>>and(getAcceptFeatures(), idPattern));
     }
 
     void addFeaturesWhitelist(List<String> strings) throws IOException {
         IntSet featureIdSet = toEnumeratedIntSet(strings, getIndexDelegate()
                 .getFeatureEnumerator());
-        setAcceptFeatures(Predicates.<Weighted<Token>>and(getAcceptFeatures(), compose(in(featureIdSet), id())));
+        setAcceptFeatures(Predicates.<Weighted<Token>>and(getAcceptFeatures(), idIn(featureIdSet)));
     }
 
     public void addFeaturesBlacklist(List<String> strings) throws IOException {
@@ -786,10 +634,7 @@ public class FilterCommand extends AbstractCommand implements
     }
 
     private void setAcceptEvent(Predicate<Weighted<TokenPair>> acceptFeature) {
-        if (!acceptFeature.equals(this.acceptEvents)) {
-            this.acceptEvents = acceptFeature;
-            eventFilterRequired = true;
-        }
+        this.acceptEvents = acceptFeature;
     }
 
     public void addEventMinimumFrequency(double threshold) {
@@ -809,10 +654,7 @@ public class FilterCommand extends AbstractCommand implements
     }
 
     private void setAcceptEntries(Predicate<Weighted<Token>> acceptEntry) {
-        if (!acceptEntry.equals(this.acceptEntries)) {
-            this.acceptEntries = acceptEntry;
-            entryFilterRequired = true;
-        }
+        this.acceptEntries = acceptEntry;
     }
 
     void addEntryMinimumFrequency(double threshold) {
@@ -828,13 +670,15 @@ public class FilterCommand extends AbstractCommand implements
     }
 
     void addEntryPattern(String pattern) {
-        setAcceptEntries(Predicates.<Weighted<Token>>and(getAcceptEntries(), compose(Predicates.containsPattern(pattern), entryString())));
+        final IdPattern idPattern = new IdPattern(pattern, true);
+        entryPatterns.add(idPattern);
+        setAcceptEntries(Predicates.<Weighted<Token>>and(getAcceptEntries(), idPattern));
     }
 
     void addEntryWhitelist(List<String> strings) throws IOException {
         IntSet entryIdSet = toEnumeratedIntSet(strings, getIndexDelegate()
                 .getEntryEnumerator());
-        setAcceptEntries(Predicates.<Weighted<Token>>and(getAcceptEntries(), compose(in(entryIdSet), id())));
+        setAcceptEntries(Predicates.<Weighted<Token>>and(getAcceptEntries(), idIn(entryIdSet)));
 
     }
 
@@ -953,109 +797,190 @@ public class FilterCommand extends AbstractCommand implements
     }
 
     //
-    // ==== FIELD EXTRACTION FUNCTIONS ====
+    // ==== ID PREDICATES ====
     //
-    private <T> Function<Weighted<T>, Double> weight() {
-        return new Function<Weighted<T>, Double>() {
+
+    private static Predicate<Weighted<Token>> idIn(final IntSet ids) {
+        return new Predicate<Weighted<Token>>() {
 
             @Override
-            public Double apply(Weighted<T> input) {
-                return input.weight();
+            public boolean apply(Weighted<Token> input) {
+                return ids.contains(input.record().id());
             }
 
             @Override
             public String toString() {
-                return "Weight";
+                return "IdIn";
             }
 
         };
     }
 
-    private <T> Function<Weighted<Token>, Integer> id() {
-        return new Function<Weighted<Token>, Integer>() {
+    private static Predicate<Weighted<TokenPair>> eventEntryIdIn(final IntSet ids) {
+        return new Predicate<Weighted<TokenPair>>() {
 
             @Override
-            public Integer apply(Weighted<Token> input) {
-                return input.record().id();
+            public boolean apply(Weighted<TokenPair> input) {
+                return ids.contains(input.record().id1());
             }
 
             @Override
             public String toString() {
-                return "ID";
+                return "EventEntryIdIn";
             }
 
         };
     }
 
-    private Function<Weighted<Token>, String> entryString() {
-        return new Function<Weighted<Token>, String>() {
+    private static Predicate<Weighted<TokenPair>> eventFeatureIdIn(final IntSet ids) {
+        return new Predicate<Weighted<TokenPair>>() {
 
             @Override
-            public String apply(Weighted<Token> input) {
-                try {
-                    return getIndexDelegate().getEntryEnumerator().valueOf(
-                            input.record().id());
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
+            public boolean apply(Weighted<TokenPair> input) {
+                return ids.contains(input.record().id2());
             }
 
             @Override
             public String toString() {
-                return "EntriesString";
+                return "EventFeatureIdIn";
             }
 
         };
     }
 
-    private Function<Weighted<Token>, String> featureString() {
-        return new Function<Weighted<Token>, String>() {
+    /**
+     * Predicate accepting tokens whose string contains a match for a regular
+     * expression. The outcome for each id is remembered in bit sets, so the
+     * enumerator is consulted and the expression matched at most once per id.
+     * Calling {@link #precompile()} decides every id up front by scanning the
+     * enumerator's table in order, matching on the command's threads, which avoids
+     * random lookups into a disk-backed enumerator altogether.
+     */
+    private final class IdPattern implements Predicate<Weighted<Token>> {
 
-            @Override
-            public String apply(Weighted<Token> input) {
-                try {
-                    return getIndexDelegate().getFeatureEnumerator().valueOf(
-                            input.record().id());
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
+        private static final int BATCH_SIZE = 8192;
+
+        private final Pattern pattern;
+
+        private final boolean entries;
+
+        private final IntBitSet decided = new IntBitSet();
+
+        private final IntBitSet accepted = new IntBitSet();
+
+        IdPattern(final String pattern, final boolean entries) {
+            this.pattern = Pattern.compile(pattern);
+            this.entries = entries;
+        }
+
+        private Enumerator<String> enumerator() throws IOException {
+            return entries
+                    ? getIndexDelegate().getEntryEnumerator()
+                    : getIndexDelegate().getFeatureEnumerator();
+        }
+
+        @Override
+        public boolean apply(final Weighted<Token> input) {
+            final int id = input.record().id();
+            if (decided.contains(id))
+                return accepted.contains(id);
+            final boolean match;
+            try {
+                match = pattern.matcher(enumerator().valueOf(id)).find();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
             }
+            decided.add(id);
+            if (match)
+                accepted.add(id);
+            return match;
+        }
 
-            @Override
-            public String toString() {
-                return "FeatureString";
+        void precompile() throws Exception {
+            final int nThreads = getNumThreads();
+            final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+            final Queue<Future<int[]>> pending = new ArrayDeque<Future<int[]>>();
+            try {
+                int[] ids = new int[BATCH_SIZE];
+                String[] strings = new String[BATCH_SIZE];
+                int size = 0;
+                for (Map.Entry<Integer, String> e : enumerator()) {
+                    ids[size] = e.getKey();
+                    strings[size] = e.getValue();
+                    decided.add(ids[size]);
+                    if (++size == BATCH_SIZE) {
+                        pending.add(executor.submit(new Matcher(pattern, ids, strings, size)));
+                        ids = new int[BATCH_SIZE];
+                        strings = new String[BATCH_SIZE];
+                        size = 0;
+                        // Bound the batches held in memory
+                        if (pending.size() > 2 * nThreads)
+                            accepted.addAll(pending.poll().get());
+                    }
+                }
+                if (size > 0)
+                    pending.add(executor.submit(new Matcher(pattern, ids, strings, size)));
+                while (!pending.isEmpty())
+                    accepted.addAll(pending.poll().get());
+            } finally {
+                executor.shutdown();
             }
+            if (LOG.isDebugEnabled())
+                LOG.debug(format("Pattern \"{0}\" accepts {1} of {2} {3}.", pattern, accepted.size(),
+                        decided.size(), entries ? "entries" : "features"));
+        }
 
-        };
+        @Override
+        public String toString() {
+            return "Pattern(" + pattern + ")";
+        }
     }
 
-    private Function<Weighted<TokenPair>, Integer> eventEntryId() {
-        return new Function<Weighted<TokenPair>, Integer>() {
+    /**
+     * Match a batch of strings, returning the ids of those that match.
+     */
+    private static final class Matcher implements Callable<int[]> {
 
-            @Override
-            public Integer apply(Weighted<TokenPair> input) {
-                return input.record().id1();
-            }
+        private final Pattern pattern;
 
-            @Override
-            public String toString() {
-                return "FeatureEntryID";
-            }
+        private final int[] ids;
 
-        };
+        private final String[] strings;
+
+        private final int size;
+
+        Matcher(final Pattern pattern, final int[] ids, final String[] strings, final int size) {
+            this.pattern = pattern;
+            this.ids = ids;
+            this.strings = strings;
+            this.size = size;
+        }
+
+        @Override
+        public int[] call() {
+            final IntArrayList matched = new IntArrayList();
+            for (int i = 0; i < size; i++) {
+                if (pattern.matcher(strings[i]).find())
+                    matched.add(ids[i]);
+            }
+            return matched.toIntArray();
+        }
     }
 
-    private Function<Weighted<TokenPair>, Integer> eventFeatureId() {
-        return new Function<Weighted<TokenPair>, Integer>() {
+    //
+    // ==== FIELD EXTRACTION FUNCTIONS ====
+    //
+    private <T> Function<Weighted<T>, Double> weight() {
+        return new Function<Weighted<T>, Double>() {
 
             @Override
-            public Integer apply(Weighted<TokenPair> input) {
-                return input.record().id2();
+            public Double apply(Weighted<T> input) {
+                return input.weight();
             }
 
             @Override
             public String toString() {
-                return "EventID";
+                return "Weight";
             }
 
         };
@@ -1199,14 +1124,31 @@ public class FilterCommand extends AbstractCommand implements
         return fileDelegate.getCharset();
     }
 
+    /**
+     * @deprecated filtering no longer writes temporary files, so the factory is ignored.
+     */
+    @Deprecated
     public FileFactory getTempFiles() {
         return tempFiles;
     }
 
+    /**
+     * @deprecated filtering no longer writes temporary files, so the factory is ignored.
+     */
+    @Deprecated
     public void setTempFiles(FileFactory tempFiles) {
         this.tempFiles = tempFiles;
     }
 
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        Checks.checkRangeIncl("numThreads", numThreads, 1, Integer.MAX_VALUE);
+        this.numThreads = numThreads;
+    }
+
     public void setEnumeratorType(EnumeratorType type) {
         indexDelegate.setEnumeratorType(type);
     }
@@ -1271,7 +1213,7 @@ public class FilterCommand extends AbstractCommand implements
                 .add("featureMinFreq", filterFeatureMinFreq)
                 .add("featureWhitelist", filterFeatureWhitelist)
                 .add("featurePattern", filterFeaturePattern)
-                .add("tmp", tempFiles).add("acceptEntry", acceptEntries)
+                .add("threads", numThreads).add("tmp", tempFiles).add("acceptEntry", acceptEntries)
                 .add("acceptFeature", acceptFeatures)
                 .add("acceptEvent", acceptEvents);
     }
@@ -30,21 +30,29 @@
  */
 package uk.ac.susx.mlcl.byblo.commands;
 
+import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParametersDelegate;
+import com.google.common.base.Throwables;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.enumerators.*;
 import uk.ac.susx.mlcl.byblo.io.BybloIO;
 import uk.ac.susx.mlcl.byblo.io.Token;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
 import uk.ac.susx.mlcl.lib.Checks;
-import uk.ac.susx.mlcl.lib.io.ObjectSink;
-import uk.ac.susx.mlcl.lib.io.ObjectSource;
+import uk.ac.susx.mlcl.lib.collect.IntBitSet;
+import uk.ac.susx.mlcl.lib.io.*;
 
 import javax.annotation.CheckReturnValue;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.io.*;
 import java.nio.charset.Charset;
+import java.text.MessageFormat;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
 
 /**
  * @param <T>
@@ -71,7 +79,7 @@ public abstract class IndexingCommands<T> extends AbstractCopyCommand<T> {
     public boolean runCommand() {
         try {
             checkState();
-            final boolean result = super.runCommand();
+            final boolean result = runCopy();
             indexDelegate.saveEnumerator();
             indexDelegate.closeEnumerator();
             return result;
@@ -87,6 +95,42 @@ public abstract class IndexingCommands<T> extends AbstractCopyCommand<T> {
 
     protected abstract void checkState();
 
+    /**
+     * Copy the source file to the destination file, converting each record between the enumerated and string forms.
+     *
+     * @return true if the copy succeeded
+     * @throws IOException if either file could not be read or written
+     */
+    boolean runCopy() throws IOException {
+        return super.runCommand();
+    }
+
+    /**
+     * Read every record of the given source, collecting the ids referenced in
+     * either column, and then load the entry strings of just those ids with a
+     * single sequential scan of the entry enumerator. This replaces a random
+     * lookup per id when writing, which is very slow for disk based (JDBM)
+     * enumerators.
+     *
+     * @param src source of enumerated pairs, which is closed when read
+     * @param idx delegate supplying the entry enumerator
+     * @return enumerator resolving the referenced ids from memory
+     * @throws IOException if the source could not be read
+     */
+    static Enumerator<String> preloadEntryStrings(
+            final ObjectSource<Weighted<TokenPair>> src,
+            final DoubleEnumerating idx) throws IOException {
+        final IntBitSet ids = new IntBitSet();
+        while (src.hasNext()) {
+            final TokenPair pair = src.read().record();
+            ids.add(pair.id1());
+            ids.add(pair.id2());
+        }
+        if (src instanceof Closeable)
+            ((Closeable) src).close();
+        return PreloadedEnumerator.load(idx.getEntryEnumerator(), ids);
+    }
+
     public DoubleEnumerating getIndexDelegate() {
         return indexDelegate;
     }
@@ -214,6 +258,21 @@ public abstract class IndexingCommands<T> extends AbstractCopyCommand<T> {
 
     public static class IndexInstances extends IndexingCommands<TokenPair> {
 
+        private static final Log LOG = LogFactory.getLog(IndexInstances.class);
+
+        /**
+         * Default approximate size of the slices read by each worker. Large inputs are split into more slices than
+         * there are threads, so that only a few slices need be held in memory at once.
+         */
+        static final long DEFAULT_SLICE_BYTES = 1L << 26;
+
+        @Parameter(names = {"-t", "--threads"},
+                description = "Number of threads to enumerate slices of the input file with. Requires an "
+                        + "enumerator type that can be shared between threads; otherwise one is used.")
+        private int numThreads = 1;
+
+        private long sliceBytes = DEFAULT_SLICE_BYTES;
+
         public IndexInstances(
                 File sourceFile, File destinationFile, Charset charset,
                 DoubleEnumerating indexDelegate) {
@@ -247,6 +306,181 @@ public abstract class IndexingCommands<T> extends AbstractCopyCommand<T> {
             return BybloIO.openInstancesSink(file, getCharset(), getSinkIndexDelegate());
         }
 
+        ObjectSource<TokenPair> openSource(File file, long start, long end)
+                throws IOException {
+            return BybloIO.openInstancesSource(file, getCharset(), start, end, getSourceIndexDelegate());
+        }
+
+        public int getNumThreads() {
+            return numThreads;
+        }
+
+        public void setNumThreads(int numThreads) {
+            Checks.checkRangeIncl("numThreads", numThreads, 1, Integer.MAX_VALUE);
+            this.numThreads = numThreads;
+        }
+
+        /**
+         * When more than one thread is requested, and the enumerators can be shared, the source file is split into
+         * slices at record boundaries, which are read in parallel. Each worker parses its slice once, giving the
+         * strings ids local to the slice, in order of first occurrence. The slices are then written in order by this
+         * thread: the new strings of each slice are added to the shared enumerators, so every new string gets the id a
+         * single thread would have given it, and its records are written straight to the destination with their local
+         * ids replaced. The output is therefore identical to that of a single thread. Only a bounded window of slices
+         * is held in memory at once, and the workers keep parsing later slices while earlier ones are written.
+         */
+        @Override
+        boolean runCopy() throws IOException {
+            if (numThreads == 1)
+                return super.runCopy();
+            if (!getIndexDelegate().getEnumeratorType().isThreadSafe()) {
+                LOG.warn(MessageFormat.format("Enumerators of type {0} can not be shared between threads; "
+                        + "ignoring {1} threads and enumerating with one.",
+                        getIndexDelegate().getEnumeratorType(), numThreads));
+                return super.runCopy();
+            }
+
+            final int parts = (int) Math.max(numThreads,
+                    Math.min(Integer.MAX_VALUE - 1, getSourceFile().length() / sliceBytes));
+            final long[] slices = TSV.split(getSourceFile(), getCharset(), parts);
+            if (slices.length <= 2)
+                return super.runCopy();
+
+            // Open the enumerators on this thread, so the workers share them rather than racing to open them.
+            final Enumerator<String> entries = getIndexDelegate().getEntryEnumerator();
+            final Enumerator<String> features = getIndexDelegate().getFeatureEnumerator();
+            final boolean shared = entries == features;
+
+            if (LOG.isInfoEnabled())
+                LOG.info(MessageFormat.format("Copying {0} slices of {1} with {2} threads.",
+                        slices.length - 1, getSourceFile(), numThreads));
+
+            final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            final ObjectSink<TokenPair> snk = openSink(getDestinationFile());
+            try {
+                final Queue<Future<Slice>> scans = new ArrayDeque<Future<Slice>>();
+                int next = 0;
+                while (next + 1 < slices.length && scans.size() < 2 * numThreads)
+                    scans.add(submitScan(executor, slices[next], slices[++next], shared));
+
+                while (!scans.isEmpty()) {
+                    final Slice slice = await(scans.poll());
+                    if (next + 1 < slices.length)
+                        scans.add(submitScan(executor, slices[next], slices[++next], shared));
+                    slice.writeTo(snk, entries, shared ? entries : features);
+                }
+            } finally {
+                executor.shutdownNow();
+                try {
+                    if (snk instanceof Flushable)
+                        ((Flushable) snk).flush();
+                } finally {
+                    if (snk instanceof Closeable)
+                        ((Closeable) snk).close();
+                }
+            }
+            return true;
+        }
+
+        long getSliceBytes() {
+            return sliceBytes;
+        }
+
+        /**
+         * @param sliceBytes approximate size of the slices the source file is split into when copying with more
+         *                   than one thread
+         */
+        void setSliceBytes(long sliceBytes) {
+            Checks.checkRangeIncl("sliceBytes", sliceBytes, 1, Long.MAX_VALUE);
+            this.sliceBytes = sliceBytes;
+        }
+
+        private Future<Slice> submitScan(ExecutorService executor, final long start, final long end,
+                                         final boolean shared) {
+            return executor.submit(new Callable<Slice>() {
+                @Override
+                public Slice call() throws Exception {
+                    return scanSlice(start, end, shared);
+                }
+            });
+        }
+
+        private static <V> V await(Future<V> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            } catch (ExecutionException ex) {
+                Throwables.propagateIfInstanceOf(ex.getCause(), IOException.class);
+                throw Throwables.propagate(ex.getCause());
+            }
+        }
+
+        private Slice scanSlice(long start, long end, boolean shared) throws IOException {
+            final Enumerator<String> entries = ConcurrentStringEnumerator.newInstance();
+            final Enumerator<String> features = shared ? entries : ConcurrentStringEnumerator.newInstance();
+            final DoubleEnumerating local = EnumeratingDelegates.decorateFeatureEnumerator(
+                    EnumeratingDelegates.decorateEntryEnumerator(getSourceIndexDelegate(), entries), features);
+            final IntArrayList pairs = new IntArrayList();
+            final ObjectSource<TokenPair> src = BybloIO.openInstancesSource(
+                    getSourceFile(), getCharset(), start, end, local);
+            try {
+                while (src.hasNext()) {
+                    final TokenPair pair = src.read();
+                    pairs.add(pair.id1());
+                    pairs.add(pair.id2());
+                }
+            } finally {
+                if (src instanceof Closeable)
+                    ((Closeable) src).close();
+            }
+            return new Slice(entries, features, pairs);
+        }
+
+        /**
+         * The records of one slice, with ids local to the slice, and the strings they were enumerated from.
+         */
+        private static final class Slice {
+
+            private final Enumerator<String> entries;
+
+            private final Enumerator<String> features;
+
+            /**
+             * Entry and feature id of each record, interleaved.
+             */
+            private final IntArrayList pairs;
+
+            Slice(Enumerator<String> entries, Enumerator<String> features, IntArrayList pairs) {
+                this.entries = entries;
+                this.features = features;
+                this.pairs = pairs;
+            }
+
+            /**
+             * Add the strings of this slice to the shared enumerators, in order of first occurrence, and write the
+             * records with the ids they were given.
+             */
+            void writeTo(ObjectSink<TokenPair> snk, Enumerator<String> sharedEntries,
+                         Enumerator<String> sharedFeatures) throws IOException {
+                final int[] entryIds = globalIds(entries, sharedEntries);
+                final int[] featureIds = features == entries ? entryIds : globalIds(features, sharedFeatures);
+                for (int i = 0; i < pairs.size(); i += 2)
+                    snk.write(new TokenPair(entryIds[pairs.getInt(i)], featureIds[pairs.getInt(i + 1)]));
+            }
+
+            private static int[] globalIds(Enumerator<String> local, Enumerator<String> shared) {
+                final IntArrayList ids = new IntArrayList();
+                for (Map.Entry<Integer, String> e : local) {
+                    if (e.getKey() >= ids.size())
+                        ids.size(e.getKey() + 1);
+                    ids.set((int) e.getKey(), shared.indexOf(e.getValue()));
+                }
+                return ids.toIntArray();
+            }
+        }
+
     }
 
     public static class IndexNeighbours extends IndexingCommands<Weighted<TokenPair>> {
@@ -427,6 +661,13 @@ public abstract class IndexingCommands<T> extends AbstractCopyCommand<T> {
 
     public static class UnindexNeighbours extends IndexNeighbours {
 
+        @Parameter(names = {"-p", "--preload-strings"},
+                description = "Collect the ids used in the input, and load their strings "
+                        + "with a single scan of the index, before writing the output.")
+        private boolean preloadStrings = false;
+
+        private Enumerator<String> preloaded = null;
+
         public UnindexNeighbours() {
         }
 
@@ -439,9 +680,32 @@ public abstract class IndexingCommands<T> extends AbstractCopyCommand<T> {
             return "neighbours unenumeration";
         }
 
+        public boolean isPreloadStrings() {
+            return preloadStrings;
+        }
+
+        public void setPreloadStrings(boolean preloadStrings) {
+            this.preloadStrings = preloadStrings;
+        }
+
+        @Override
+        boolean runCopy() throws IOException {
+            if (!preloadStrings)
+                return super.runCopy();
+            preloaded = preloadEntryStrings(openSource(getSourceFile()), getIndexDelegate());
+            try {
+                return super.runCopy();
+            } finally {
+                preloaded = null;
+            }
+        }
+
         @Override
         protected DoubleEnumerating getSinkIndexDelegate() {
-            return super.getSourceIndexDelegate();
+            return preloaded == null
+                    ? super.getSourceIndexDelegate()
+                    : EnumeratingDelegates.decorateEntryEnumerator(
+                    super.getSourceIndexDelegate(), preloaded);
         }
 
         @Override
@@ -453,6 +717,13 @@ public abstract class IndexingCommands<T> extends AbstractCopyCommand<T> {
 
     public static class UnindexSims extends IndexSims {
 
+        @Parameter(names = {"-p", "--preload-strings"},
+                description = "Collect the ids used in the input, and load their strings "
+                        + "with a single scan of the index, before writing the output.")
+        private boolean preloadStrings = false;
+
+        private Enumerator<String> preloaded = null;
+
         public UnindexSims() {
         }
 
@@ -465,9 +736,32 @@ public abstract class IndexingCommands<T> extends AbstractCopyCommand<T> {
             return "sims unenumeration";
         }
 
+        public boolean isPreloadStrings() {
+            return preloadStrings;
+        }
+
+        public void setPreloadStrings(boolean preloadStrings) {
+            this.preloadStrings = preloadStrings;
+        }
+
+        @Override
+        boolean runCopy() throws IOException {
+            if (!preloadStrings)
+                return super.runCopy();
+            preloaded = preloadEntryStrings(openSource(getSourceFile()), getIndexDelegate());
+            try {
+                return super.runCopy();
+            } finally {
+                preloaded = null;
+            }
+        }
+
         @Override
         protected DoubleEnumerating getSinkIndexDelegate() {
-            return super.getSourceIndexDelegate();
+            return preloaded == null
+                    ? super.getSourceIndexDelegate()
+                    : EnumeratingDelegates.decorateEntryEnumerator(
+                    super.getSourceIndexDelegate(), preloaded);
         }
 
         @Override
@@ -0,0 +1,699 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
+import com.google.common.base.Objects.ToStringHelper;
+import com.google.common.io.Files;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
+import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
+import uk.ac.susx.mlcl.byblo.io.*;
+import uk.ac.susx.mlcl.lib.commands.*;
+import uk.ac.susx.mlcl.lib.events.ProgressDelegate;
+import uk.ac.susx.mlcl.lib.events.ProgressListener;
+import uk.ac.susx.mlcl.lib.events.ProgressReporting;
+import uk.ac.susx.mlcl.lib.events.ReportLoggingProgressListener;
+import uk.ac.susx.mlcl.lib.io.FileFactory;
+import uk.ac.susx.mlcl.lib.io.TempFileFactory;
+
+import javax.annotation.CheckReturnValue;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static uk.ac.susx.mlcl.byblo.commands.FilterCommand.FILTERED_STRING;
+
+/**
+ * Reassign entry and feature ids in descending order of frequency, rewriting
+ * the entries, features and events files, and building new enumerators that
+ * map the same strings to the new ids. Frequent items receive the smallest
+ * ids, so they delta and varint encode compactly, and their postings are
+ * gathered together at the start of the feature space.
+ * <p/>
+ * The special filtered token keeps id 0, and ties are broken by the old id so
+ * the result is deterministic. Events are written in ascending order of the
+ * new entry id, and then of the new feature id, so entry ids delta encode
+ * compactly too. Where the rewritten events are not already in that order
+ * they are sorted externally.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@Parameters(commandDescription = "Reassign entry and feature ids in descending order of frequency.")
+public class ReenumerateCommand extends AbstractCommand implements
+        ProgressReporting {
+
+    private static final Log LOG = LogFactory.getLog(ReenumerateCommand.class);
+
+    @ParametersDelegate
+    private DoubleEnumerating indexDelegate = new DoubleEnumeratingDelegate();
+
+    private final ProgressDelegate progress = new ProgressDelegate(this, true);
+
+    @Parameter(names = {"-iv", "--input-events"}, required = true,
+            description = "Input event frequency vectors file.",
+            validateWith = InputFileValidator.class)
+    private File inputEventsFile;
+
+    @Parameter(names = {"-ie", "--input-entries"}, required = true,
+            description = "Input entry frequency vector file.",
+            validateWith = InputFileValidator.class)
+    private File inputEntriesFile;
+
+    @Parameter(names = {"-if", "--input-features"}, required = true,
+            description = "Input features frequency vector file.",
+            validateWith = InputFileValidator.class)
+    private File inputFeaturesFile;
+
+    @Parameter(names = {"-ov", "--output-events"}, required = true,
+            description = "Output event frequency vectors file.",
+            validateWith = OutputFileValidator.class)
+    private File outputEventsFile;
+
+    @Parameter(names = {"-oe", "--output-entries"}, required = true,
+            description = "Output entry frequency vector file.",
+            validateWith = OutputFileValidator.class)
+    private File outputEntriesFile;
+
+    @Parameter(names = {"-of", "--output-features"}, required = true,
+            description = "Output features frequency vector file.",
+            validateWith = OutputFileValidator.class)
+    private File outputFeaturesFile;
+
+    @Parameter(names = {"-oXe", "--output-entries-index-file"}, required = true,
+            description = "Output index file for the reassigned entry ids.",
+            validateWith = OutputFileValidator.class)
+    private File outputEntryEnumeratorFile;
+
+    @Parameter(names = {"-oXf", "--output-features-index-file"}, required = true,
+            description = "Output index file for the reassigned feature ids.",
+            validateWith = OutputFileValidator.class)
+    private File outputFeatureEnumeratorFile;
+
+    @Parameter(names = {"-T", "--temp-dir"},
+            description = "Temporary directory used when sorting the rewritten events.",
+            converter = TempFileFactoryConverter.class)
+    private FileFactory tempFiles = new TempFileFactory();
+
+    @ParametersDelegate
+    private final FileDelegate fileDelegate = new FileDelegate();
+
+    public ReenumerateCommand(
+            File inputEntriesFile, File inputFeaturesFile, File inputEventsFile,
+            File outputEntriesFile, File outputFeaturesFile, File outputEventsFile,
+            File outputEntryEnumeratorFile, File outputFeatureEnumeratorFile,
+            Charset charset, DoubleEnumerating indexDelegate) {
+        setInputEntriesFile(inputEntriesFile);
+        setInputFeaturesFile(inputFeaturesFile);
+        setInputEventsFile(inputEventsFile);
+        setOutputEntriesFile(outputEntriesFile);
+        setOutputFeaturesFile(outputFeaturesFile);
+        setOutputEventsFile(outputEventsFile);
+        setOutputEntryEnumeratorFile(outputEntryEnumeratorFile);
+        setOutputFeatureEnumeratorFile(outputFeatureEnumeratorFile);
+        setCharset(charset);
+        setIndexDelegate(indexDelegate);
+    }
+
+    public ReenumerateCommand() {
+    }
+
+    @Override
+    @CheckReturnValue
+    public boolean runCommand() {
+        if (LOG.isInfoEnabled())
+            LOG.info("Running re-enumeration.");
+        if (LOG.isDebugEnabled())
+            LOG.debug(this);
+
+        try {
+            // Ids can only be reassigned if there are ids to begin with
+            indexDelegate.setEnumeratedEntries(true);
+            indexDelegate.setEnumeratedFeatures(true);
+
+            checkState();
+
+            progress.addProgressListener(new ReportLoggingProgressListener(LOG));
+            progress.setState(State.RUNNING);
+            progress.setProgressPercent(0);
+
+            progress.setMessage("Ordering entries.");
+            final Reassignment entries = reassign(
+                    BybloIO.openEntriesSource(inputEntriesFile, getCharset(), indexDelegate),
+                    indexDelegate.getEntryEnumerator());
+            progress.setProgressPercent(100 * 1 / 6);
+
+            progress.setMessage("Ordering features.");
+            final Reassignment features = reassign(
+                    BybloIO.openFeaturesSource(inputFeaturesFile, getCharset(), indexDelegate),
+                    indexDelegate.getFeatureEnumerator());
+            progress.setProgressPercent(100 * 2 / 6);
+
+            progress.setMessage("Writing entries.");
+            entries.write(BybloIO.openEntriesSink(outputEntriesFile, getCharset(), indexDelegate));
+            progress.setProgressPercent(100 * 3 / 6);
+
+            progress.setMessage("Writing features.");
+            features.write(BybloIO.openFeaturesSink(outputFeaturesFile, getCharset(), indexDelegate));
+            progress.setProgressPercent(100 * 4 / 6);
+
+            writeEvents(entries, features);
+            progress.setProgressPercent(100 * 5 / 6);
+
+            progress.setMessage("Writing enumerators.");
+            entries.writeEnumerator(indexDelegate.getEntryEnumerator(), outputEntryEnumeratorFile);
+            features.writeEnumerator(indexDelegate.getFeatureEnumerator(), outputFeatureEnumeratorFile);
+            progress.setProgressPercent(100);
+
+            if (indexDelegate.isEnumeratorOpen()) {
+                indexDelegate.closeEnumerator();
+            }
+
+            return true;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            progress.setState(State.COMPLETED);
+        }
+    }
+
+    /**
+     * Read every record from the given source, and decide new ids for them in
+     * descending order of weight. Ids known to the enumerator but absent from
+     * the source are placed after all those that were read.
+     */
+    private Reassignment reassign(final WeightedTokenSource source,
+                                  final Enumerator<String> enumerator)
+            throws IOException {
+        final DoubleArrayList weights = new DoubleArrayList();
+        while (source.hasNext()) {
+            final Weighted<Token> record = source.read();
+            final int id = record.record().id();
+            while (weights.size() <= id)
+                weights.add(Double.NaN);
+            final double w = weights.getDouble(id);
+            weights.set(id, Double.isNaN(w) ? record.weight() : w + record.weight());
+        }
+        source.close();
+
+        final IntArrayList ids = new IntArrayList();
+        for (int id = 0; id < weights.size(); id++)
+            if (!Double.isNaN(weights.getDouble(id)))
+                ids.add(id);
+        for (Map.Entry<Integer, String> e : enumerator) {
+            final int id = e.getKey();
+            if (id >= weights.size() || Double.isNaN(weights.getDouble(id)))
+                ids.add(id);
+        }
+
+        final int filteredId = enumerator.indexOf(FILTERED_STRING);
+        final int[] order = ids.toIntArray();
+        IntArrays.mergeSort(order, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                if (a == filteredId || b == filteredId)
+                    return a == filteredId ? (b == filteredId ? 0 : -1) : 1;
+                final double wa = a < weights.size() ? weights.getDouble(a) : Double.NaN;
+                final double wb = b < weights.size() ? weights.getDouble(b) : Double.NaN;
+                if (Double.isNaN(wa) != Double.isNaN(wb))
+                    return Double.isNaN(wa) ? 1 : -1;
+                if (wa != wb && !Double.isNaN(wa))
+                    return wa > wb ? -1 : 1;
+                return a < b ? -1 : a > b ? 1 : 0;
+            }
+        });
+
+        int maxId = weights.size() - 1;
+        for (int id : order)
+            maxId = Math.max(maxId, id);
+        final int[] newIds = new int[maxId + 1];
+        Arrays.fill(newIds, -1);
+        for (int i = 0; i < order.length; i++)
+            newIds[order[i]] = i;
+
+        return new Reassignment(order, newIds, weights);
+    }
+
+    /**
+     * Rewrite the events to a temporary file, and then order them by new
+     * entry id. The input is grouped by old entry id, so the new entry ids
+     * are not usually ascending, and the file is sorted externally; should
+     * they already be ascending the file is moved into place instead.
+     */
+    private void writeEvents(final Reassignment entries,
+                             final Reassignment features) throws IOException {
+        progress.setMessage("Writing events.");
+
+        final File unsorted = tempFiles.createFile();
+        final boolean ascending = rewriteEvents(entries, features, unsorted);
+
+        if (ascending) {
+            Files.move(unsorted, outputEventsFile);
+            return;
+        }
+
+        progress.setMessage("Sorting events.");
+        final ExternalSortEventsCommand sortCmd = new ExternalSortEventsCommand(
+                unsorted, outputEventsFile, getCharset(),
+                new DoubleEnumeratingDelegate(getEnumeratorType(), true, true, null, null));
+        sortCmd.setComparator(Weighted.recordOrder(TokenPair.indexOrder()));
+        sortCmd.setTempFileFactory(tempFiles);
+        if (!sortCmd.runCommand())
+            throw new RuntimeException("Sorting the rewritten events failed.");
+        if (!unsorted.delete())
+            LOG.warn("Unable to delete temporary file " + unsorted);
+    }
+
+    /**
+     * Rewrite the events with their new ids in a single pass. Consecutive
+     * events of the same entry are buffered so their features can be sorted
+     * by the new ids.
+     *
+     * @return true if the new entry ids were written in ascending order
+     */
+    private boolean rewriteEvents(final Reassignment entries,
+                                  final Reassignment features,
+                                  final File file) throws IOException {
+        final WeightedTokenPairSource src = BybloIO.openEventsSource(
+                inputEventsFile, getCharset(), indexDelegate);
+        final WeightedTokenPairSink sink = BybloIO.openEventsSink(
+                file, getCharset(), indexDelegate);
+
+        final IntArrayList featureIds = new IntArrayList();
+        final DoubleArrayList featureWeights = new DoubleArrayList();
+        int entryId = -1;
+        boolean ascending = true;
+
+        try {
+            while (src.hasNext()) {
+                final Weighted<TokenPair> record = src.read();
+                final int newEntryId = entries.newId(record.record().id1());
+                if (newEntryId != entryId) {
+                    writeVector(sink, entryId, featureIds, featureWeights);
+                    ascending &= newEntryId > entryId;
+                    entryId = newEntryId;
+                }
+                featureIds.add(features.newId(record.record().id2()));
+                featureWeights.add(record.weight());
+            }
+            writeVector(sink, entryId, featureIds, featureWeights);
+        } finally {
+            src.close();
+            sink.flush();
+            sink.close();
+        }
+        return ascending;
+    }
+
+    private static void writeVector(final WeightedTokenPairSink sink,
+                                    final int entryId,
+                                    final IntArrayList featureIds,
+                                    final DoubleArrayList featureWeights)
+            throws IOException {
+        if (featureIds.isEmpty())
+            return;
+        final int[] perm = new int[featureIds.size()];
+        for (int i = 0; i < perm.length; i++)
+            perm[i] = i;
+        IntArrays.mergeSort(perm, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                final int fa = featureIds.getInt(a);
+                final int fb = featureIds.getInt(b);
+                return fa < fb ? -1 : fa > fb ? 1 : 0;
+            }
+        });
+        for (int i : perm) {
+            sink.write(new Weighted<TokenPair>(
+                    new TokenPair(entryId, featureIds.getInt(i)),
+                    featureWeights.getDouble(i)));
+        }
+        featureIds.clear();
+        featureWeights.clear();
+    }
+
+    /**
+     * The decided mapping from old to new ids, for either entries or
+     * features, along with the weights that were read.
+     */
+    private final class Reassignment {
+
+        /**
+         * Old ids, indexed by their new id.
+         */
+        private final int[] order;
+
+        /**
+         * New ids, indexed by their old id; -1 where the old id is unknown.
+         */
+        private final int[] newIds;
+
+        /**
+         * Weights indexed by old id; NaN where the id was not read.
+         */
+        private final DoubleArrayList weights;
+
+        Reassignment(int[] order, int[] newIds, DoubleArrayList weights) {
+            this.order = order;
+            this.newIds = newIds;
+            this.weights = weights;
+        }
+
+        int newId(final int oldId) {
+            if (oldId < 0 || oldId >= newIds.length || newIds[oldId] == -1)
+                throw new IllegalStateException("Unknown id: " + oldId);
+            return newIds[oldId];
+        }
+
+        void write(final WeightedTokenSink sink) throws IOException {
+            for (int newId = 0; newId < order.length; newId++) {
+                final int oldId = order[newId];
+                if (oldId < weights.size() && !Double.isNaN(weights.getDouble(oldId)))
+                    sink.write(new Weighted<Token>(new Token(newId), weights.getDouble(oldId)));
+            }
+            sink.flush();
+            sink.close();
+        }
+
+        void writeEnumerator(final Enumerator<String> in, final File file)
+                throws IOException {
+            // A fresh enumerator is required, since stale strings would
+            // otherwise claim the ids being handed out
+            if (file.isFile() && !file.delete())
+                throw new IOException("Unable to delete existing index: " + file);
+
+            final EnumeratorType type = getEnumeratorType();
+            final Enumerator<String> out = type.open(file);
+            for (int newId = 0; newId < order.length; newId++) {
+                final String value = in.valueOf(order[newId]);
+                if (value == null)
+                    throw new IllegalStateException("No string for id " + order[newId]);
+                final int id = out.indexOf(value);
+                if (id != newId)
+                    throw new IllegalStateException(
+                            "Expecting id " + newId + " for \"" + value
+                                    + "\" but found " + id);
+            }
+            type.save(out);
+            type.close(out);
+        }
+    }
+
+    /**
+     * Method that performance a number of sanity checks on the parameterisation
+     * of this class. It is necessary to do this because the the class can be
+     * instantiated via a null constructor when run from the command line.
+     *
+     * @throws NullPointerException
+     * @throws IllegalStateException
+     * @throws FileNotFoundException
+     */
+    private void checkState() throws NullPointerException,
+            IllegalStateException, FileNotFoundException {
+
+        final Map<String, File> inputFiles = new HashMap<String, File>();
+        inputFiles.put("inputEntries", inputEntriesFile);
+        inputFiles.put("inputFeatures", inputFeaturesFile);
+        inputFiles.put("inputEvents", inputEventsFile);
+        inputFiles.put("entryIndex", getEntryEnumeratorFile());
+        inputFiles.put("featureIndex", getFeatureEnumeratorFile());
+
+        final Map<String, File> outputFiles = new HashMap<String, File>();
+        outputFiles.put("outputEntries", outputEntriesFile);
+        outputFiles.put("outputFeatures", outputFeaturesFile);
+        outputFiles.put("outputEvents", outputEventsFile);
+        outputFiles.put("outputEntryIndex", outputEntryEnumeratorFile);
+        outputFiles.put("outputFeatureIndex", outputFeatureEnumeratorFile);
+
+        final Map<String, File> allFiles = new HashMap<String, File>();
+        allFiles.putAll(inputFiles);
+        allFiles.putAll(outputFiles);
+
+        // Check non of the parameters are null
+        for (Map.Entry<String, File> entry : allFiles.entrySet()) {
+            if (entry.getValue() == null) {
+                throw new NullPointerException(entry.getKey() + " is null");
+            }
+        }
+        if (getCharset() == null) {
+            throw new NullPointerException("charset is null");
+        }
+
+        // Check that no two files are the same
+        for (Map.Entry<String, File> a : allFiles.entrySet()) {
+            for (Map.Entry<String, File> b : allFiles.entrySet()) {
+                if (!a.getKey().equals(b.getKey())
+                        && a.getValue().equals(b.getValue())) {
+                    throw new IllegalStateException(a.getKey() + " equal to "
+                            + b.getKey());
+                }
+            }
+        }
+
+        // Check that the input data files exists and is readable. The index
+        // files are left to the enumerator type, since some (e.g JDBM) are
+        // stored under derived names.
+        for (Map.Entry<String, File> entry : inputFiles.entrySet()) {
+            if (entry.getKey().endsWith("Index"))
+                continue;
+            if (!entry.getValue().exists()) {
+                throw new FileNotFoundException(entry.getKey()
+                        + " does not exist: " + entry.getValue());
+            }
+            if (!entry.getValue().isFile()) {
+                throw new IllegalStateException(entry.getKey()
+                        + " is not a normal data file: " + entry.getValue());
+            }
+            if (!entry.getValue().canRead()) {
+                throw new IllegalStateException(entry.getKey()
+                        + " is not readable: " + entry.getValue());
+            }
+        }
+
+        // For each output file, check that either it exists and it writable,
+        // or that it does not exist but is creatable
+        for (Map.Entry<String, File> e : outputFiles.entrySet()) {
+            if (e.getValue().exists()
+                    && (!e.getValue().isFile() || !e.getValue().canWrite())) {
+                throw new IllegalStateException(e.getKey()
+                        + " exists but is not writable: " + e.getValue());
+            }
+            if (!e.getValue().exists()
+                    && !e.getValue().getAbsoluteFile().getParentFile()
+                    .canWrite()) {
+                throw new IllegalStateException(e.getKey()
+                        + " does not exists and can not be created: "
+                        + e.getValue());
+            }
+        }
+    }
+
+    public final DoubleEnumerating getIndexDelegate() {
+        return indexDelegate;
+    }
+
+    public final void setIndexDelegate(DoubleEnumerating indexDelegate) {
+        this.indexDelegate = indexDelegate;
+    }
+
+    public final File getInputEntriesFile() {
+        return inputEntriesFile;
+    }
+
+    public final void setInputEntriesFile(File inputEntriesFile) {
+        this.inputEntriesFile = inputEntriesFile;
+    }
+
+    public final File getInputFeaturesFile() {
+        return inputFeaturesFile;
+    }
+
+    public final void setInputFeaturesFile(File inputFeaturesFile) {
+        this.inputFeaturesFile = inputFeaturesFile;
+    }
+
+    public final File getInputEventsFile() {
+        return inputEventsFile;
+    }
+
+    public final void setInputEventsFile(File inputEventsFile) {
+        this.inputEventsFile = inputEventsFile;
+    }
+
+    public final File getOutputEntriesFile() {
+        return outputEntriesFile;
+    }
+
+    public final void setOutputEntriesFile(File outputEntriesFile) {
+        this.outputEntriesFile = outputEntriesFile;
+    }
+
+    public final File getOutputFeaturesFile() {
+        return outputFeaturesFile;
+    }
+
+    public final void setOutputFeaturesFile(File outputFeaturesFile) {
+        this.outputFeaturesFile = outputFeaturesFile;
+    }
+
+    public final File getOutputEventsFile() {
+        return outputEventsFile;
+    }
+
+    public final void setOutputEventsFile(File outputEventsFile) {
+        this.outputEventsFile = outputEventsFile;
+    }
+
+    public final File getOutputEntryEnumeratorFile() {
+        return outputEntryEnumeratorFile;
+    }
+
+    public final void setOutputEntryEnumeratorFile(File outputEntryEnumeratorFile) {
+        this.outputEntryEnumeratorFile = outputEntryEnumeratorFile;
+    }
+
+    public final File getOutputFeatureEnumeratorFile() {
+        return outputFeatureEnumeratorFile;
+    }
+
+    public final void setOutputFeatureEnumeratorFile(File outputFeatureEnumeratorFile) {
+        this.outputFeatureEnumeratorFile = outputFeatureEnumeratorFile;
+    }
+
+    public void setEntryEnumeratorFile(File entryEnumeratorFile) {
+        indexDelegate.setEntryEnumeratorFile(entryEnumeratorFile);
+    }
+
+    public File getEntryEnumeratorFile() {
+        return indexDelegate.getEntryEnumeratorFile();
+    }
+
+    public void setFeatureEnumeratorFile(File featureEnumeratorFile) {
+        indexDelegate.setFeatureEnumeratorFile(featureEnumeratorFile);
+    }
+
+    public File getFeatureEnumeratorFile() {
+        return indexDelegate.getFeatureEnumeratorFile();
+    }
+
+    public FileFactory getTempFiles() {
+        return tempFiles;
+    }
+
+    public void setTempFiles(FileFactory tempFiles) {
+        this.tempFiles = tempFiles;
+    }
+
+    public void setEnumeratorType(EnumeratorType type) {
+        indexDelegate.setEnumeratorType(type);
+    }
+
+    public EnumeratorType getEnumeratorType() {
+        return indexDelegate.getEnumeratorType();
+    }
+
+    public final void setCharset(Charset charset) {
+        fileDelegate.setCharset(charset);
+    }
+
+    final Charset getCharset() {
+        return fileDelegate.getCharset();
+    }
+
+    @Override
+    public void removeProgressListener(ProgressListener progressListener) {
+        progress.removeProgressListener(progressListener);
+    }
+
+    @Override
+    public boolean isProgressPercentageSupported() {
+        return progress.isProgressPercentageSupported();
+    }
+
+    @Override
+    public State getState() {
+        return progress.getState();
+    }
+
+    @Override
+    public String getProgressReport() {
+        return progress.getProgressReport();
+    }
+
+    @Override
+    public int getProgressPercent() {
+        return progress.getProgressPercent();
+    }
+
+    @Override
+    public ProgressListener[] getProgressListeners() {
+        return progress.getProgressListeners();
+    }
+
+    @Override
+    public String getName() {
+        return "reenumerate";
+    }
+
+    @Override
+    public void addProgressListener(ProgressListener progressListener) {
+        progress.addProgressListener(progressListener);
+    }
+
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().add("eventsIn", inputEventsFile)
+                .add("entriesIn", inputEntriesFile)
+                .add("featuresIn", inputFeaturesFile)
+                .add("eventsOut", outputEventsFile)
+                .add("entriesOut", outputEntriesFile)
+                .add("featuresOut", outputFeaturesFile)
+                .add("entryIndexOut", outputEntryEnumeratorFile)
+                .add("featureIndexOut", outputFeatureEnumeratorFile)
+                .add("tmp", tempFiles)
+                .add("charset", getCharset())
+                .add("index", indexDelegate);
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.enumerators;
+
+import uk.ac.susx.mlcl.lib.Checks;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of recently used mappings in front of another enumerator.
+ * <p/>
+ * Token frequencies are Zipfian, so a small set of tokens accounts for most
+ * calls to {@link #indexOf(Object) } and {@link #valueOf(int) }. Holding those
+ * in memory avoids most of the traffic to a slower (e.g disk based)
+ * enumerator.
+ * <p/>
+ * Each direction has its own table, divided into sets of {@link #WAYS}
+ * slots. Within a set, slots are replaced with the CLOCK policy: a hit marks
+ * the entry as referenced, and a miss evicts the first unreferenced entry,
+ * clearing the marks it passes over. Entries are immutable apart from the
+ * mark, so the tables are read and written without locking; a racing write
+ * may lose an entry, but never produce a wrong mapping. The cache is
+ * therefore as thread safe as the enumerator behind it.
+ * <p/>
+ * Like {@link uk.ac.susx.mlcl.lib.C14nCache}, the number of hits and misses
+ * is counted so the effectiveness of the cache can be reported.
+ *
+ * @param <T> type of object being indexed.
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class CachedEnumerator<T> implements Enumerator<T> {
+
+    /**
+     * Number of slots in each set of a table.
+     */
+    private static final int WAYS = 4;
+
+    private final Enumerator<T> inner;
+
+    private final Entry<T>[] byValue;
+
+    private final Entry<T>[] byIndex;
+
+    private final int setMask;
+
+    private final AtomicLong indexHitCount = new AtomicLong(0);
+
+    private final AtomicLong indexMissCount = new AtomicLong(0);
+
+    private final AtomicLong valueHitCount = new AtomicLong(0);
+
+    private final AtomicLong valueMissCount = new AtomicLong(0);
+
+    /**
+     * @param inner    enumerator to cache lookups of
+     * @param capacity maximum number of mappings held in each direction,
+     *                 which is rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public CachedEnumerator(final Enumerator<T> inner, final int capacity) {
+        Checks.checkNotNull("inner", inner);
+        Checks.checkRangeIncl("capacity", capacity, 1, 1 << 30);
+        this.inner = inner;
+        final int minSets = (capacity + WAYS - 1) / WAYS;
+        final int sets = minSets == 1 ? 1 : Integer.highestOneBit(minSets - 1) << 1;
+        this.setMask = sets - 1;
+        this.byValue = (Entry<T>[]) new Entry<?>[sets * WAYS];
+        this.byIndex = (Entry<T>[]) new Entry<?>[sets * WAYS];
+    }
+
+    public Enumerator<T> getInner() {
+        return inner;
+    }
+
+    /**
+     * @return maximum number of mappings held in each direction
+     */
+    public int getCapacity() {
+        return byValue.length;
+    }
+
+    @Override
+    public int indexOf(final T value) {
+        Checks.checkNotNull("value", value);
+        final int set = (spread(value.hashCode()) & setMask) * WAYS;
+        for (int i = set; i < set + WAYS; i++) {
+            final Entry<T> e = byValue[i];
+            if (e != null && e.value.equals(value)) {
+                e.referenced = true;
+                indexHitCount.incrementAndGet();
+                return e.index;
+            }
+        }
+        indexMissCount.incrementAndGet();
+        final int index = inner.indexOf(value);
+        final Entry<T> e = new Entry<T>(value, index);
+        insert(byValue, set, e);
+        insert(byIndex, (spread(index) & setMask) * WAYS, e);
+        return index;
+    }
+
+    @Override
+    public T valueOf(final int index) {
+        final int set = (spread(index) & setMask) * WAYS;
+        for (int i = set; i < set + WAYS; i++) {
+            final Entry<T> e = byIndex[i];
+            if (e != null && e.index == index) {
+                e.referenced = true;
+                valueHitCount.incrementAndGet();
+                return e.value;
+            }
+        }
+        valueMissCount.incrementAndGet();
+        final T value = inner.valueOf(index);
+        if (value != null)
+            insert(byIndex, set, new Entry<T>(value, index));
+        return value;
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, T>> iterator() {
+        return inner.iterator();
+    }
+
+    /**
+     * Clear the cached mappings, without resetting the counters.
+     */
+    public void clear() {
+        for (int i = 0; i < byValue.length; i++) {
+            byValue[i] = null;
+            byIndex[i] = null;
+        }
+    }
+
+    /**
+     * @return number of calls to {@link #indexOf(Object) } answered from cache
+     */
+    public long getIndexHitCount() {
+        return indexHitCount.get();
+    }
+
+    /**
+     * @return number of calls to {@link #indexOf(Object) } passed to the
+     *         inner enumerator
+     */
+    public long getIndexMissCount() {
+        return indexMissCount.get();
+    }
+
+    /**
+     * @return number of calls to {@link #valueOf(int) } answered from cache
+     */
+    public long getValueHitCount() {
+        return valueHitCount.get();
+    }
+
+    /**
+     * @return number of calls to {@link #valueOf(int) } passed to the inner
+     *         enumerator
+     */
+    public long getValueMissCount() {
+        return valueMissCount.get();
+    }
+
+    /**
+     * @return fraction of all lookups answered from cache, or 0 when there
+     *         have been no lookups
+     */
+    public double getHitRate() {
+        final long hits = getIndexHitCount() + getValueHitCount();
+        final long total = hits + getIndexMissCount() + getValueMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private static <T> void insert(final Entry<T>[] table, final int set,
+                                   final Entry<T> entry) {
+        for (int i = set; i < set + WAYS; i++) {
+            if (table[i] == null) {
+                table[i] = entry;
+                return;
+            }
+        }
+        // Sweep the set at most twice; the first pass may clear every mark
+        for (int sweep = 0; sweep < 2 * WAYS; sweep++) {
+            final int i = set + sweep % WAYS;
+            final Entry<T> e = table[i];
+            if (e == null || !e.referenced) {
+                table[i] = entry;
+                return;
+            }
+            e.referenced = false;
+        }
+        table[set] = entry;
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "CachedEnumerator{inner=" + inner
+                + ", capacity=" + getCapacity()
+                + ", hitRate=" + getHitRate() + '}';
+    }
+
+    private static final class Entry<T> {
+
+        private final T value;
+
+        private final int index;
+
+        /**
+         * Set on every hit and cleared as the clock passes; races are benign.
+         */
+        private boolean referenced = false;
+
+        Entry(T value, int index) {
+            this.value = value;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.enumerators;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Maps;
+import uk.ac.susx.mlcl.byblo.commands.FilterCommand;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.Files;
+import uk.ac.susx.mlcl.lib.io.TSV;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory string enumerator that is safe for concurrent use, so that many indexing workers can share it.
+ * <p/>
+ * Look-ups of strings that have already been enumerated are lock free. When a string is seen for the first time the
+ * look-up is repeated while holding one of a fixed set of locks, selected by the string's hash, so only threads
+ * inserting strings that share a stripe contend. An id is only taken from the counter once the string is known to be
+ * absent, so the assigned ids remain dense. The id to string mapping is held in an append-only array of fixed size
+ * chunks, which never need to be copied as the enumerator grows.
+ * <p/>
+ * The file format is the same as {@link MemoryBasedStringEnumerator}, so files can be read by either.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class ConcurrentStringEnumerator implements Enumerator<String> {
+
+    private static final Logger LOG = Logger.getLogger(ConcurrentStringEnumerator.class.getName());
+
+    /**
+     * Number of locks to distribute inserts over. Must be a power of 2.
+     */
+    private static final int STRIPES = 64;
+
+    private static final int CHUNK_SHIFT = 14;
+
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    @Nullable
+    private final File file;
+
+    private final ConcurrentHashMap<String, Integer> ids;
+
+    private final Object[] locks;
+
+    private final AtomicInteger nextId;
+
+    /**
+     * Chunks of the id to string mapping. The array itself is only replaced while holding {@link #growLock}, and
+     * strings are published to readers by the subsequent put into {@link #ids}.
+     */
+    private volatile String[][] values;
+
+    private final Object growLock = new Object();
+
+    private ConcurrentStringEnumerator(@Nullable File file, int firstId) {
+        this.file = file;
+        ids = new ConcurrentHashMap<String, Integer>(1024, 0.75f, STRIPES);
+        locks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            locks[i] = new Object();
+        nextId = new AtomicInteger(firstId);
+        values = new String[(firstId >>> CHUNK_SHIFT) + 1][];
+        values[firstId >>> CHUNK_SHIFT] = new String[CHUNK_SIZE];
+    }
+
+    public static ConcurrentStringEnumerator newInstance() {
+        return newInstance(null);
+    }
+
+    public static ConcurrentStringEnumerator newInstance(@Nullable File file) {
+        final ConcurrentStringEnumerator instance = new ConcurrentStringEnumerator(file, 0);
+        instance.put(FilterCommand.FILTERED_ID, FilterCommand.FILTERED_STRING);
+        return instance;
+    }
+
+    /**
+     * Create an empty enumerator, with no attached file, that assigns ids starting from the given value. Used to
+     * extend an existing read-only enumeration with new strings.
+     */
+    static ConcurrentStringEnumerator startingAt(int firstId) {
+        Checks.checkRangeIncl("firstId", firstId, 0, Integer.MAX_VALUE);
+        return new ConcurrentStringEnumerator(null, firstId);
+    }
+
+    int getNextId() {
+        return nextId.get();
+    }
+
+    public static ConcurrentStringEnumerator load(File file) throws IOException {
+        final ConcurrentStringEnumerator instance = newInstance(file);
+        final TSV.Source in = new TSV.Source(file, Files.DEFAULT_CHARSET);
+        try {
+            while (in.canRead()) {
+                final int id = in.readInt();
+                final String s = in.readString();
+                in.endOfRecord();
+                instance.put(id, s);
+            }
+        } finally {
+            in.close();
+        }
+        assert instance.indexOf(FilterCommand.FILTERED_STRING)
+                == FilterCommand.FILTERED_ID;
+        return instance;
+    }
+
+    public void save() throws IOException {
+        if (file == null) {
+            LOG.log(Level.WARNING, "Attempt made to save an enumerator with no attached file.");
+            return;
+        }
+
+        final TSV.Sink out = new TSV.Sink(file, Files.DEFAULT_CHARSET);
+        try {
+            for (Map.Entry<Integer, String> e : this) {
+                out.writeInt(e.getKey());
+                out.writeString(e.getValue());
+                out.endOfRecord();
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    @Nullable
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of strings that have been enumerated
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    @Override
+    public int indexOf(final String value) {
+        Checks.checkNotNull("value", value);
+
+        final Integer id = ids.get(value);
+        if (id != null)
+            return id;
+
+        synchronized (locks[stripe(value)]) {
+            final Integer raced = ids.get(value);
+            if (raced != null)
+                return raced;
+            final int newId = nextId.getAndIncrement();
+            store(newId, value);
+            ids.put(value, newId);
+            return newId;
+        }
+    }
+
+    @Override
+    public String valueOf(final int index) {
+        Checks.checkRangeIncl("index", index, 0, Integer.MAX_VALUE);
+
+        final String[][] chunks = values;
+        final int chunk = index >>> CHUNK_SHIFT;
+        final String value = chunk < chunks.length && chunks[chunk] != null
+                ? chunks[chunk][index & CHUNK_MASK] : null;
+        assert value != null : MessageFormat.format("Enumerated value is null;"
+                + " there is no item associated with index {0}.", index);
+        return value;
+    }
+
+    /**
+     * Associate the given string with an explicit id; used when loading.
+     */
+    void put(final int id, final String value) {
+        synchronized (locks[stripe(value)]) {
+            store(id, value);
+            ids.put(value, id);
+            int next;
+            do {
+                next = nextId.get();
+            } while (next <= id && !nextId.compareAndSet(next, id + 1));
+        }
+    }
+
+    private void store(final int id, final String value) {
+        final int chunk = id >>> CHUNK_SHIFT;
+        String[][] chunks = values;
+        if (chunk >= chunks.length || chunks[chunk] == null) {
+            synchronized (growLock) {
+                chunks = values;
+                if (chunk >= chunks.length)
+                    chunks = Arrays.copyOf(chunks, Math.max(chunk + 1, chunks.length * 2));
+                if (chunks[chunk] == null)
+                    chunks[chunk] = new String[CHUNK_SIZE];
+                values = chunks;
+            }
+        }
+        chunks[chunk][id & CHUNK_MASK] = value;
+    }
+
+    private static int stripe(final String value) {
+        int h = value.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (STRIPES - 1);
+    }
+
+    /**
+     * Iterate over the enumerated strings in id order.
+     */
+    @Override
+    public Iterator<Map.Entry<Integer, String>> iterator() {
+        final int end = nextId.get();
+        return new AbstractIterator<Map.Entry<Integer, String>>() {
+            private int id = 0;
+
+            @Override
+            protected Map.Entry<Integer, String> computeNext() {
+                final String[][] chunks = values;
+                while (id < end) {
+                    final int i = id++;
+                    if ((i >>> CHUNK_SHIFT) >= chunks.length)
+                        break;
+                    final String[] chunk = chunks[i >>> CHUNK_SHIFT];
+                    if (chunk != null && chunk[i & CHUNK_MASK] != null)
+                        return Maps.immutableEntry(i, chunk[i & CHUNK_MASK]);
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentStringEnumerator{" + "file=" + file + ", size=" + size() + ", nextId=" + nextId + '}';
+    }
+}
@@ -36,6 +36,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.FullBuild;
 import uk.ac.susx.mlcl.byblo.commands.FilterCommand;
+import uk.ac.susx.mlcl.lib.Checks;
 
 import javax.annotation.WillClose;
 import java.io.File;
@@ -55,6 +56,11 @@ public abstract class EnumeratingDelegate
     @Parameter(names = {"-et", "--enumerator-type"})
     private EnumeratorType type = DEFAULT_TYPE;
 
+    @Parameter(names = {"-ecs", "--enumerator-cache-size"},
+            description = "Number of lookups to cache in front of each enumerator, "
+                    + "or 0 to disable caching. The default depends on the enumerator type.")
+    private Integer cacheSize = null;
+
     EnumeratingDelegate(EnumeratorType type) {
 
         this.type = type;
@@ -74,8 +80,19 @@ public abstract class EnumeratingDelegate
         this.type = type;
     }
 
+    public int getEnumeratorCacheSize() {
+        return cacheSize != null ? cacheSize : type.getDefaultCacheSize();
+    }
+
+    public void setEnumeratorCacheSize(int cacheSize) {
+        Checks.checkRangeIncl("cacheSize", cacheSize, 0, Integer.MAX_VALUE);
+        this.cacheSize = cacheSize;
+    }
+
     Enumerator<String> open(File file) throws IOException {
         Enumerator<String> out = type.open(file);
+        if (getEnumeratorCacheSize() > 0)
+            out = new CachedEnumerator<String>(out, getEnumeratorCacheSize());
         if (out.indexOf(FilterCommand.FILTERED_STRING) != FilterCommand.FILTERED_ID)
             throw new AssertionError();
         return out;
@@ -86,7 +103,7 @@ public abstract class EnumeratingDelegate
             LOG.warn("Attempt made to save an enumerator that was not open.");
             return;
         }
-        type.save(enumerator);
+        type.save(uncached(enumerator));
         if (enumerator.indexOf(FilterCommand.FILTERED_STRING) != FilterCommand.FILTERED_ID)
             throw new AssertionError();
     }
@@ -99,11 +116,19 @@ public abstract class EnumeratingDelegate
         }
         if (enumerator.indexOf(FilterCommand.FILTERED_STRING) != FilterCommand.FILTERED_ID)
             throw new AssertionError();
-        type.close(enumerator);
+        if (enumerator instanceof CachedEnumerator && LOG.isDebugEnabled())
+            LOG.debug("Closing " + enumerator);
+        type.close(uncached(enumerator));
+    }
+
+    private static Enumerator<String> uncached(Enumerator<String> enumerator) {
+        return enumerator instanceof CachedEnumerator
+                ? ((CachedEnumerator<String>) enumerator).getInner()
+                : enumerator;
     }
 
     Objects.ToStringHelper toStringHelper() {
-        return Objects.toStringHelper(this);
+        return Objects.toStringHelper(this).add("cacheSize", getEnumeratorCacheSize());
     }
 
     @Override
@@ -75,6 +75,32 @@ public final class EnumeratingDelegates {
         };
     }
 
+    public static DoubleEnumerating decorateEntryEnumerator(
+            final DoubleEnumerating inner,
+            final Enumerator<String> entryEnumerator) {
+        return new EnumeratingDelegates.DoubleToDoubleAdapter(inner) {
+
+            @Override
+            public Enumerator<String> getEntryEnumerator() {
+                return entryEnumerator;
+            }
+
+        };
+    }
+
+    public static DoubleEnumerating decorateFeatureEnumerator(
+            final DoubleEnumerating inner,
+            final Enumerator<String> featureEnumerator) {
+        return new EnumeratingDelegates.DoubleToDoubleAdapter(inner) {
+
+            @Override
+            public Enumerator<String> getFeatureEnumerator() {
+                return featureEnumerator;
+            }
+
+        };
+    }
+
     public static SingleEnumerating decorateEnumerated(
             final SingleEnumerating inner, final boolean enumerated) {
         return new EnumeratingDelegates.SingleToSingleAdapter(inner) {
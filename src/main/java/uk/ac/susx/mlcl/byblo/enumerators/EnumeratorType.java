@@ -43,20 +43,25 @@ public enum EnumeratorType {
         @Override
         public Enumerator<String> open(@Nullable File file) throws IOException {
             if (file != null && file.exists())
-                return MemoryBasedStringEnumerator.load(file);
+                return ConcurrentStringEnumerator.load(file);
             else
-                return MemoryBasedStringEnumerator.newInstance(file);
+                return ConcurrentStringEnumerator.newInstance(file);
         }
 
         @Override
         public void save(Enumerator<String> enumerator) throws IOException {
-            assert enumerator instanceof MemoryBasedStringEnumerator;
-            ((MemoryBasedStringEnumerator) enumerator).save();
+            assert enumerator instanceof ConcurrentStringEnumerator;
+            ((ConcurrentStringEnumerator) enumerator).save();
         }
 
         @Override
         public void close(Enumerator<String> enumerator) {
-            assert enumerator instanceof MemoryBasedStringEnumerator;
+            assert enumerator instanceof ConcurrentStringEnumerator;
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return true;
         }
     },
     JDBM {
@@ -82,11 +87,67 @@ public enum EnumeratorType {
             assert enumerator instanceof JDBMStringEnumerator;
             ((JDBMStringEnumerator) enumerator).close();
         }
+
+        @Override
+        public int getDefaultCacheSize() {
+            return DEFAULT_CACHE_SIZE;
+        }
+    },
+    /**
+     * Read-only memory mapped dictionary, which is rewritten in bulk when saved.
+     */
+    MMAP {
+        @Override
+        public Enumerator<String> open(@Nullable File file) throws IOException {
+            if (file != null && file.exists())
+                return MappedStringEnumerator.load(file);
+            else
+                return MappedStringEnumerator.newInstance(file);
+        }
+
+        @Override
+        public void save(Enumerator<String> enumerator) throws IOException {
+            assert enumerator instanceof MappedStringEnumerator;
+            ((MappedStringEnumerator) enumerator).save();
+        }
+
+        @Override
+        public void close(Enumerator<String> enumerator) {
+            assert enumerator instanceof MappedStringEnumerator;
+            ((MappedStringEnumerator) enumerator).close();
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return true;
+        }
+
+        @Override
+        public int getDefaultCacheSize() {
+            return DEFAULT_CACHE_SIZE;
+        }
     };
 
+    private static final int DEFAULT_CACHE_SIZE = 1 << 16;
+
     public abstract Enumerator<String> open(File file) throws IOException;
 
     public abstract void save(Enumerator<String> enumerator) throws IOException;
 
     public abstract void close(Enumerator<String> enumerator) ;
+
+    /**
+     * @return true if enumerators of this type can be shared by concurrent indexing threads
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * @return number of lookups cached in front of enumerators of this type,
+     *         unless configured otherwise; 0 when lookups are already cheap
+     */
+    public int getDefaultCacheSize() {
+        return 0;
+    }
 }
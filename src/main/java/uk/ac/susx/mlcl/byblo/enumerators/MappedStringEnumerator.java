@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.enumerators;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Maps;
+import uk.ac.susx.mlcl.byblo.commands.FilterCommand;
+import uk.ac.susx.mlcl.lib.Checks;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A string enumerator backed by a compact dictionary file that is memory mapped read-only.
+ * <p/>
+ * The file holds a header, an offset table, an open-addressing hash table, and an arena of UTF-8 encoded strings:
+ * <pre>
+ *      int     magic number
+ *      int     format version
+ *      int     number of ids, n
+ *      int     hash table size, m (a power of 2)
+ *      long    arena size in bytes
+ *      long[n + 1] arena offset of each id's string, and the end of the arena
+ *      int[m]  hash table slots, holding id + 1 or 0 when empty
+ *      byte[]  arena
+ * </pre>
+ * Looking up an id is an offset read and a copy from the arena; looking up a string is a hash and, usually, a single
+ * byte comparison against the arena. No part of the file is read onto the heap when it is opened.
+ * <p/>
+ * Strings that are not in the dictionary are enumerated into an in-memory {@link ConcurrentStringEnumerator}, with ids
+ * following on from the dictionary. On {@link #save()} the dictionary and the new strings are written in bulk to a new
+ * file, which replaces the old one. Like {@link ConcurrentStringEnumerator}, instances are safe for concurrent use.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class MappedStringEnumerator implements Enumerator<String>, Closeable {
+
+    private static final Logger LOG = Logger.getLogger(MappedStringEnumerator.class.getName());
+
+    private static final int MAGIC = 0x42594458;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8;
+
+    /**
+     * Arena bytes per mapped segment. A string may straddle two segments.
+     */
+    private static final int SEGMENT_SHIFT = 30;
+
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    @Nullable
+    private final File file;
+
+    /**
+     * Number of ids held in the dictionary file, or 0 when there is no file.
+     */
+    private final int size;
+
+    @Nullable
+    private final LongBuffer offsets;
+
+    @Nullable
+    private final IntBuffer table;
+
+    private final ByteBuffer[] arena;
+
+    private final ConcurrentStringEnumerator added;
+
+    private MappedStringEnumerator(
+            @Nullable File file, int size, @Nullable LongBuffer offsets, @Nullable IntBuffer table,
+            ByteBuffer[] arena) {
+        this.file = file;
+        this.size = size;
+        this.offsets = offsets;
+        this.table = table;
+        this.arena = arena;
+        this.added = ConcurrentStringEnumerator.startingAt(size);
+    }
+
+    public static MappedStringEnumerator newInstance(@Nullable File file) {
+        final MappedStringEnumerator instance = new MappedStringEnumerator(
+                file, 0, null, null, new ByteBuffer[0]);
+        instance.added.put(FilterCommand.FILTERED_ID, FilterCommand.FILTERED_STRING);
+        return instance;
+    }
+
+    public static MappedStringEnumerator load(File file) throws IOException {
+        Checks.checkNotNull("file", file);
+
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining())
+                if (channel.read(header) == -1)
+                    throw new EOFException("Truncated enumerator header in " + file);
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new IOException("Not an enumerator dictionary file: " + file);
+            final int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException(MessageFormat.format(
+                        "Unsupported enumerator dictionary version {0} in {1}", version, file));
+            final int size = header.getInt();
+            final int tableSize = header.getInt();
+            final long arenaBytes = header.getLong();
+
+            long position = HEADER_BYTES;
+            final LongBuffer offsets = map(channel, position, 8L * (size + 1)).asLongBuffer();
+            position += 8L * (size + 1);
+            final IntBuffer table = map(channel, position, 4L * tableSize).asIntBuffer();
+            position += 4L * tableSize;
+
+            final ByteBuffer[] arena = new ByteBuffer[(int) ((arenaBytes + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < arena.length; i++) {
+                final long start = (long) i << SEGMENT_SHIFT;
+                arena[i] = map(channel, position + start, Math.min(arenaBytes - start, SEGMENT_MASK + 1));
+            }
+
+            final MappedStringEnumerator instance = new MappedStringEnumerator(file, size, offsets, table, arena);
+            assert instance.indexOf(FilterCommand.FILTERED_STRING) == FilterCommand.FILTERED_ID;
+            return instance;
+        } finally {
+            // Mappings remain valid after the channel is closed
+            in.close();
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Enumerator dictionary section is too large to map: " + length + " bytes");
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+
+    @Nullable
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public int indexOf(final String value) {
+        Checks.checkNotNull("value", value);
+        if (size > 0) {
+            final int id = lookup(value.getBytes(Charsets.UTF_8));
+            if (id != NULL_INDEX)
+                return id;
+        }
+        return added.indexOf(value);
+    }
+
+    @Override
+    public String valueOf(final int index) {
+        Checks.checkRangeIncl("index", index, 0, Integer.MAX_VALUE);
+        if (index >= size)
+            return added.valueOf(index);
+
+        return new String(bytes(offsets.get(index), offsets.get(index + 1)), Charsets.UTF_8);
+    }
+
+    private int lookup(final byte[] key) {
+        final int mask = table.capacity() - 1;
+        int slot = hash(key, 0, key.length) & mask;
+        int entry;
+        while ((entry = table.get(slot)) != 0) {
+            final int id = entry - 1;
+            final long start = offsets.get(id);
+            final long end = offsets.get(id + 1);
+            if (end - start == key.length && arenaEquals(start, key))
+                return id;
+            slot = (slot + 1) & mask;
+        }
+        return NULL_INDEX;
+    }
+
+    private byte arenaGet(final long position) {
+        return arena[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+    }
+
+    private boolean arenaEquals(final long start, final byte[] key) {
+        for (int i = 0; i < key.length; i++)
+            if (arenaGet(start + i) != key[i])
+                return false;
+        return true;
+    }
+
+    private byte[] bytes(final long start, final long end) {
+        final byte[] bytes = new byte[(int) (end - start)];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = arenaGet(start + i);
+        return bytes;
+    }
+
+    /**
+     * FNV-1a hash of the given bytes, with a final avalanche so the low bits can be used as a table index.
+     */
+    private static int hash(final byte[] bytes, final int from, final int to) {
+        int h = 0x811c9dc5;
+        for (int i = from; i < to; i++) {
+            h ^= bytes[i] & 0xff;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    /**
+     * Write the dictionary, including any strings enumerated since it was opened, to a new file that replaces the
+     * attached file. The dictionary held by this instance is not changed.
+     *
+     * @throws IOException if the file could not be written
+     */
+    public void save() throws IOException {
+        if (file == null) {
+            LOG.log(Level.WARNING, "Attempt made to save an enumerator with no attached file.");
+            return;
+        }
+        if (size > 0 && added.size() == 0 && file.exists()) {
+            // Nothing has been added, so the file is already up to date
+            return;
+        }
+
+        final int n = added.getNextId();
+        final int tableSize = Integer.highestOneBit(Math.max(n, 1)) << 2;
+        if (tableSize < 0)
+            throw new IOException("Too many strings to enumerate: " + n);
+
+        final long[] newOffsets = new long[n + 1];
+        final int[] newTable = new int[tableSize];
+        final int mask = tableSize - 1;
+
+        final File tmp = File.createTempFile(file.getName() + "-", ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        final RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            final long arenaStart = HEADER_BYTES + 8L * (n + 1) + 4L * tableSize;
+            raf.seek(arenaStart);
+            final OutputStream out = new BufferedOutputStream(
+                    Channels.newOutputStream(raf.getChannel()), 1 << 16);
+
+            long position = 0;
+            for (int id = 0; id < n; id++) {
+                final byte[] bytes = id < size
+                        ? bytes(offsets.get(id), offsets.get(id + 1))
+                        : added.valueOf(id).getBytes(Charsets.UTF_8);
+                newOffsets[id] = position;
+                out.write(bytes);
+                position += bytes.length;
+
+                int slot = hash(bytes, 0, bytes.length) & mask;
+                while (newTable[slot] != 0)
+                    slot = (slot + 1) & mask;
+                newTable[slot] = id + 1;
+            }
+            newOffsets[n] = position;
+            out.flush();
+
+            raf.seek(0);
+            final DataOutputStream head = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(raf.getChannel()), 1 << 16));
+            head.writeInt(MAGIC);
+            head.writeInt(VERSION);
+            head.writeInt(n);
+            head.writeInt(tableSize);
+            head.writeLong(position);
+            for (long offset : newOffsets)
+                head.writeLong(offset);
+            for (int slot : newTable)
+                head.writeInt(slot);
+            head.flush();
+        } finally {
+            raf.close();
+        }
+
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+            throw new IOException(MessageFormat.format("Unable to replace {0} with {1}", file, tmp));
+    }
+
+    /**
+     * Does nothing: the file channel is closed as soon as the dictionary is mapped, and the mapping itself can only
+     * be released when the buffers are garbage collected.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Iterate over the enumerated strings in id order.
+     */
+    @Override
+    public Iterator<Map.Entry<Integer, String>> iterator() {
+        final int end = added.getNextId();
+        return new AbstractIterator<Map.Entry<Integer, String>>() {
+            private int id = 0;
+
+            @Override
+            protected Map.Entry<Integer, String> computeNext() {
+                if (id < end) {
+                    final int i = id++;
+                    return Maps.immutableEntry(i, valueOf(i));
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "MappedStringEnumerator{" + "file=" + file + ", size=" + size
+                + ", added=" + added.size() + '}';
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.enumerators;
+
+import com.google.common.collect.AbstractIterator;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.IntBitSet;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Read-only enumerator holding the values of a chosen set of ids in an array,
+ * so they can be resolved without consulting the backing enumerator.
+ * <p/>
+ * The values are bulk-loaded by a single scan of the backing enumerator, which
+ * for disk based enumerators (such as JDBM) is a sequential read, rather than
+ * a random lookup per call to {@link #valueOf(int) }. Ids that were not
+ * preloaded fall back to the backing enumerator.
+ *
+ * @param <T> type of object being indexed.
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class PreloadedEnumerator<T> implements Enumerator<T> {
+
+    private final Enumerator<T> inner;
+
+    private final Object[] values;
+
+    private PreloadedEnumerator(Enumerator<T> inner, Object[] values) {
+        this.inner = inner;
+        this.values = values;
+    }
+
+    /**
+     * Scan the given enumerator once, retaining the values of every id in
+     * <tt>ids</tt>. The scan stops as soon as all the ids have been found.
+     *
+     * @param inner enumerator to load values from
+     * @param ids   ids whose values should be preloaded
+     * @param <T>   type of object being indexed.
+     * @return enumerator resolving the given ids from memory
+     */
+    public static <T> PreloadedEnumerator<T> load(
+            final Enumerator<T> inner, final IntBitSet ids) {
+        Checks.checkNotNull("inner", inner);
+        Checks.checkNotNull("ids", ids);
+
+        final Object[] values = new Object[ids.isEmpty() ? 0 : ids.lastInt() + 1];
+        int remaining = ids.size();
+        final Iterator<Map.Entry<Integer, T>> it = inner.iterator();
+        while (remaining > 0 && it.hasNext()) {
+            final Map.Entry<Integer, T> entry = it.next();
+            final int id = entry.getKey();
+            if (id < values.length && ids.contains(id) && values[id] == null) {
+                values[id] = entry.getValue();
+                --remaining;
+            }
+        }
+        return new PreloadedEnumerator<T>(inner, values);
+    }
+
+    @Override
+    public int indexOf(final T value) {
+        throw new UnsupportedOperationException(
+                "Preloaded enumerator can not be used for enumerating.");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T valueOf(final int index) {
+        Checks.checkRangeIncl("index", index, 0, Integer.MAX_VALUE);
+        if (index < values.length && values[index] != null)
+            return (T) values[index];
+        return inner.valueOf(index);
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, T>> iterator() {
+        return new AbstractIterator<Map.Entry<Integer, T>>() {
+            private int next = 0;
+
+            @Override
+            @SuppressWarnings("unchecked")
+            protected Map.Entry<Integer, T> computeNext() {
+                while (next < values.length && values[next] == null)
+                    ++next;
+                if (next >= values.length)
+                    return endOfData();
+                final int id = next++;
+                return new AbstractMap.SimpleImmutableEntry<Integer, T>(
+                        id, (T) values[id]);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "PreloadedEnumerator{inner=" + inner + '}';
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.enumerators;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import uk.ac.susx.mlcl.lib.Checks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table from the ids of an enumerator to the lexicographic rank of their
+ * strings. Comparing ranks orders ids exactly as comparing the strings would,
+ * so a string ordered sort becomes an integer sort, without any enumerator
+ * lookups or string comparisons.
+ * <p/>
+ * The table is built on first use, with one scan of the enumerator, and is
+ * rebuilt should an id be encountered that was added to the enumerator since,
+ * or should the enumerator have been re-opened.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class RankTable {
+
+    private final SingleEnumerating idx;
+
+    private volatile Snapshot snapshot = null;
+
+    public RankTable(final SingleEnumerating idx) {
+        Checks.checkNotNull("idx", idx);
+        this.idx = idx;
+    }
+
+    /**
+     * Get the position of the string with the given id, among all the strings
+     * of the enumerator in lexicographic order. Ranks may shift when the
+     * table is rebuilt, so ranks should only be compared using
+     * {@link #compare(int, int) }.
+     *
+     * @param id id of string
+     * @return rank of the string
+     * @throws IllegalArgumentException if the enumerator has no string for id
+     */
+    public int rankOf(final int id) {
+        return table(id, id)[id];
+    }
+
+    /**
+     * Compare the strings of two ids lexicographically. Both ranks are read
+     * from the same table, and the relative order of existing strings never
+     * changes when the table is rebuilt, so the result is always that of
+     * comparing the strings themselves.
+     *
+     * @param a id of first string
+     * @param b id of second string
+     * @return negative, zero, or positive as the first string is less than,
+     *         equal to, or greater than the second
+     * @throws IllegalArgumentException if the enumerator has no string for
+     *                                  either id
+     */
+    public int compare(final int a, final int b) {
+        final int[] r = table(a, b);
+        return r[a] < r[b] ? -1 : r[a] > r[b] ? 1 : 0;
+    }
+
+    private int[] table(final int a, final int b) {
+        final Enumerator<String> enumerator = enumerator();
+        final Snapshot s = snapshot;
+        return s != null && s.enumerator == enumerator
+                && covers(s.ranks, a) && covers(s.ranks, b)
+                ? s.ranks : rebuild(enumerator, a, b);
+    }
+
+    private Enumerator<String> enumerator() {
+        try {
+            return idx.getEnumerator();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static boolean covers(final int[] r, final int id) {
+        return id >= 0 && id < r.length && r[id] >= 0;
+    }
+
+    private synchronized int[] rebuild(final Enumerator<String> enumerator,
+                                       final int a, final int b) {
+        final Snapshot s = snapshot;
+        if (s != null && s.enumerator == enumerator
+                && covers(s.ranks, a) && covers(s.ranks, b))
+            return s.ranks;
+        final int[] r = build(enumerator);
+        for (int id : new int[]{a, b})
+            if (!covers(r, id))
+                throw new IllegalArgumentException("No string for id " + id);
+        snapshot = new Snapshot(enumerator, r);
+        return r;
+    }
+
+    /**
+     * Ranks, along with the enumerator they were built from; should the
+     * enumerator be closed and re-opened the ids may have changed meaning.
+     */
+    private static final class Snapshot {
+
+        private final Enumerator<String> enumerator;
+
+        private final int[] ranks;
+
+        Snapshot(Enumerator<String> enumerator, int[] ranks) {
+            this.enumerator = enumerator;
+            this.ranks = ranks;
+        }
+    }
+
+    /**
+     * Scan the given enumerator once, and produce an array of the
+     * lexicographic rank of every id's string. Ids without a string are given
+     * the rank -1.
+     *
+     * @param enumerator enumerator to rank
+     * @return ranks indexed by id
+     */
+    public static int[] build(final Enumerator<String> enumerator) {
+        Checks.checkNotNull("enumerator", enumerator);
+        final IntArrayList ids = new IntArrayList();
+        final List<String> values = new ArrayList<String>();
+        int maxId = -1;
+        for (Map.Entry<Integer, String> entry : enumerator) {
+            if (entry.getValue() == null)
+                continue;
+            ids.add(entry.getKey());
+            values.add(entry.getValue());
+            maxId = Math.max(maxId, entry.getKey());
+        }
+
+        final int[] order = new int[ids.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        IntArrays.mergeSort(order, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return values.get(a).compareTo(values.get(b));
+            }
+        });
+
+        final int[] ranks = new int[maxId + 1];
+        Arrays.fill(ranks, -1);
+        for (int rank = 0; rank < order.length; rank++)
+            ranks[ids.getInt(order[rank])] = rank;
+        return ranks;
+    }
+}
@@ -60,6 +60,14 @@ public final class BybloIO {
                 BybloSettings.getInstance().isInstancesSkipIndexColumn2Enabled());
     }
 
+    public static TokenPairSource openInstancesSource(File file, Charset charset, long start, long end,
+                                                      DoubleEnumerating idx)
+            throws IOException {
+        return TokenPairSource.open(file, charset, start, end, idx,
+                BybloSettings.getInstance().isInstancesSkipIndexColumn1Enabled(),
+                BybloSettings.getInstance().isInstancesSkipIndexColumn2Enabled());
+    }
+
     public static TokenPairSink openInstancesSink(File file, Charset charset, DoubleEnumerating idx)
             throws IOException {
         return TokenPairSink.open(file, charset, idx,
@@ -204,6 +212,31 @@ public final class BybloIO {
                 BybloSettings.getInstance().isEventsCompactEnabled());
     }
 
+    public static WeightedTokenSource openEntriesCountsSource(
+            File file, Charset charset, DoubleEnumerating idx)
+            throws IOException {
+        return WeightedTokenSource.openCounts(
+                file, charset, EnumeratingDelegates.toSingleEntries(idx),
+                BybloSettings.getInstance().isEntriesSkipIndexColumn1Enabled());
+    }
+
+    public static WeightedTokenSource openFeaturesCountsSource(
+            File file, Charset charset, DoubleEnumerating idx)
+            throws IOException {
+        return WeightedTokenSource.openCounts(
+                file, charset, EnumeratingDelegates.toSingleFeatures(idx),
+                BybloSettings.getInstance().isFeaturesSkipIndexColumn1Enabled());
+    }
+
+    public static WeightedTokenPairSource openEventsCountsSource(
+            File file, Charset charset, DoubleEnumerating idx)
+            throws IOException {
+        return WeightedTokenPairSource.openCounts(
+                file, charset, idx,
+                BybloSettings.getInstance().isEventsSkipIndexColumn1Enabled(),
+                BybloSettings.getInstance().isEventsSkipIndexColumn2Enabled());
+    }
+
     private static WeightedTokenPairSource openSimsSource(
             File file, Charset charset, SingleEnumerating idx)
             throws IOException {
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import com.google.common.base.Objects;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A {@link Weighted} record whose weight is an exact frequency count. The
+ * count is held as a primitive <code>long</code>, so that frequencies too
+ * large to be represented exactly by a double, or by an int, survive counting
+ * and merging; {@link #weight()} is provided for compatibility only.
+ * <p/>
+ * Equality is inherited from {@link Weighted}, and depends only on the record,
+ * so a <tt>Counted</tt> and a <tt>Weighted</tt> of the same record are equal
+ * and share a hash code.
+ *
+ * @param <T> record type
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@Immutable
+public final class Counted<T> extends Weighted<T> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long count;
+
+    public Counted(final T record, final long count) {
+        super(record, count);
+        this.count = count;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Add two counts, failing rather than silently wrapping around when the
+     * result can not be represented.
+     *
+     * @param a first count
+     * @param b second count
+     * @return the sum <code>a + b</code>
+     * @throws ArithmeticException if the sum overflows a long
+     */
+    public static long sum(final long a, final long b)
+            throws ArithmeticException {
+        final long sum = a + b;
+        if (((a ^ sum) & (b ^ sum)) < 0)
+            throw new ArithmeticException(
+                    "count overflow: " + a + " + " + b);
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                addValue(record()).add("count", count).toString();
+    }
+}
@@ -30,7 +30,6 @@
  */
 package uk.ac.susx.mlcl.byblo.io;
 
-import com.google.common.base.Predicate;
 import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
 import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
@@ -62,6 +61,10 @@ public class FastWeightedTokenPairVectorSource extends ForwardingChannel<Seekabl
 
     private double next_weight;
 
+    /**
+     * Restart position of the next vector, or null if it has been marked in the inner source but not yet
+     * materialised.
+     */
     private Tell tell;
 
     private FastWeightedTokenPairVectorSource(SeekableDataSource inner) throws IOException {
@@ -90,8 +93,8 @@ public class FastWeightedTokenPairVectorSource extends ForwardingChannel<Seekabl
         do {
             features.put(next_id2, next_weight);
             cardinality = Math.max(cardinality, next_id2 + 1);
-            // XXX position() should not need to be called every iteration
-            tell = getInner().position();
+            getInner().markPosition();
+            tell = null;
             readNext();
         } while (next_id1 != -1 && next_id1 == id1);
 
@@ -109,6 +112,8 @@ public class FastWeightedTokenPairVectorSource extends ForwardingChannel<Seekabl
 
     @Override
     public Tell position() throws IOException {
+        if (tell == null)
+            tell = getInner().markedPosition();
         return tell;
     }
 
@@ -165,56 +170,8 @@ public class FastWeightedTokenPairVectorSource extends ForwardingChannel<Seekabl
     public static FastWeightedTokenPairVectorSource open(
             File file, Charset charset, DoubleEnumerating idx, boolean skip1, boolean skip2)
             throws IOException {
-        SeekableDataSource tsv = new TSV.Source(file, charset);
-
-
-        if (skip1) {
-            tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
-
-                @Override
-                public boolean apply(Integer column) {
-                    return column != null && column == 0;
-                }
-
-            });
-        }
-        if (skip2) {
-            tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
-
-                @Override
-                public boolean apply(Integer column) {
-                    return column != null && (column + 1) % 2 == 0;
-                }
-
-            });
-        }
-        if (!idx.isEnumeratedEntries()) {
-            tsv = Enumerated.enumerated(tsv, idx.getEntryEnumerator(),
-                    new Predicate<Integer>() {
-
-                        @Override
-                        public boolean apply(Integer column) {
-                            return column != null && column == 0;
-                        }
-
-                    });
-        }
-
-        if (!idx.isEnumeratedFeatures()) {
-            tsv = Enumerated.enumerated(tsv, idx.getFeatureEnumerator(),
-                    new Predicate<Integer>() {
-
-                        @Override
-                        public boolean apply(Integer column) {
-                            return column != null && (column + 1) % 2 == 0;
-                        }
-
-                    });
-        }
-
-        tsv = Compact.compact(tsv, 3);
-
-        return new FastWeightedTokenPairVectorSource(tsv);
+        return new FastWeightedTokenPairVectorSource(
+                Layouts.openWeightedTokenPairsSource(file, charset, idx, skip1, skip2));
     }
 
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.IntBitSet;
+import uk.ac.susx.mlcl.lib.io.ForwardingObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+import javax.annotation.WillClose;
+import java.io.IOException;
+
+/**
+ * Sink that applies frequency filters to a stream of aggregated events, as
+ * they are written, with the same results as
+ * {@link uk.ac.susx.mlcl.byblo.commands.FilterCommand}.
+ * <p/>
+ * Events must arrive grouped by entry, with each event written only once, so
+ * the sink is normally placed after a {@link WeightSumReducerObjectSink}. An
+ * event is accepted if neither its entry nor its feature has been rejected,
+ * and its own weight meets the minimum. The weight of the other events of an
+ * accepted entry is kept with the filtered feature for that entry. Where an
+ * entry has no accepted events at all, its weight is kept with the filtered
+ * entry and feature pair, which is written when the sink is closed.
+ * <p/>
+ * The entries and features that occur in accepted events are recorded, so the
+ * entries and features files can be reduced to match afterwards.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class FilteringEventsSink
+        extends ForwardingObjectSink<ObjectSink<Weighted<TokenPair>>, Weighted<TokenPair>> {
+
+    private final IntBitSet rejectedEntries;
+
+    private final IntBitSet rejectedFeatures;
+
+    private final double minEventFreq;
+
+    private final int filteredEntry;
+
+    private final int filteredFeature;
+
+    private final IntBitSet liveEntries = new IntBitSet();
+
+    private final IntBitSet liveFeatures = new IntBitSet();
+
+    private int currentEntryId = -1;
+
+    private boolean currentEntryLive = false;
+
+    private double currentEntryFilteredWeight = 0;
+
+    private double filteredEntryWeight = 0;
+
+    private long readCount = 0;
+
+    private long acceptCount = 0;
+
+    public FilteringEventsSink(ObjectSink<Weighted<TokenPair>> inner,
+                               IntBitSet rejectedEntries, IntBitSet rejectedFeatures,
+                               double minEventFreq, int filteredEntry, int filteredFeature) {
+        super(inner);
+        Checks.checkNotNull("rejectedEntries", rejectedEntries);
+        Checks.checkNotNull("rejectedFeatures", rejectedFeatures);
+        this.rejectedEntries = rejectedEntries;
+        this.rejectedFeatures = rejectedFeatures;
+        this.minEventFreq = minEventFreq;
+        this.filteredEntry = filteredEntry;
+        this.filteredFeature = filteredFeature;
+    }
+
+    @Override
+    public void write(Weighted<TokenPair> record) throws IOException {
+        final int entryId = record.record().id1();
+        final int featureId = record.record().id2();
+        ++readCount;
+
+        if (entryId == filteredEntry || rejectedEntries.contains(entryId)) {
+            filteredEntryWeight += record.weight();
+            return;
+        }
+
+        if (entryId != currentEntryId) {
+            endEntry();
+            currentEntryId = entryId;
+        }
+
+        if (featureId != filteredFeature
+                && !rejectedFeatures.contains(featureId)
+                && record.weight() >= minEventFreq) {
+            super.write(record);
+            currentEntryLive = true;
+            liveFeatures.add(featureId);
+            ++acceptCount;
+        } else {
+            currentEntryFilteredWeight += record.weight();
+        }
+    }
+
+    // Write the residual weight of the current entry, or pass it on to the
+    // filtered entry if none of the entry's events were accepted.
+    private void endEntry() throws IOException {
+        if (currentEntryId != -1) {
+            if (currentEntryLive) {
+                liveEntries.add(currentEntryId);
+                if (currentEntryFilteredWeight != 0) {
+                    super.write(new Weighted<TokenPair>(
+                            new TokenPair(currentEntryId, filteredFeature),
+                            currentEntryFilteredWeight));
+                }
+            } else {
+                filteredEntryWeight += currentEntryFilteredWeight;
+            }
+        }
+        currentEntryId = -1;
+        currentEntryLive = false;
+        currentEntryFilteredWeight = 0;
+    }
+
+    /**
+     * @return ids of the entries that occur in at least one accepted event
+     */
+    public IntBitSet getLiveEntries() {
+        return liveEntries;
+    }
+
+    /**
+     * @return ids of the features that occur in at least one accepted event
+     */
+    public IntBitSet getLiveFeatures() {
+        return liveFeatures;
+    }
+
+    public long getReadCount() {
+        return readCount;
+    }
+
+    public long getAcceptCount() {
+        return acceptCount;
+    }
+
+    @Override
+    @WillClose
+    public void close() throws IOException {
+        endEntry();
+        if (filteredEntryWeight != 0) {
+            super.write(new Weighted<TokenPair>(
+                    new TokenPair(filteredEntry, filteredFeature),
+                    filteredEntryWeight));
+            filteredEntryWeight = 0;
+        }
+        super.flush();
+        super.close();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
+import uk.ac.susx.mlcl.byblo.enumerators.SingleEnumerating;
+import uk.ac.susx.mlcl.lib.io.DataSink;
+import uk.ac.susx.mlcl.lib.io.Fused;
+import uk.ac.susx.mlcl.lib.io.SeekableDataSource;
+import uk.ac.susx.mlcl.lib.io.TSV;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Static utility class that opens the underlying data channels for each of the Byblo file layouts. Every layout is
+ * decoded (or encoded) by a single {@link Fused} codec rather than a stack of decorators.
+ * <p/>
+ * There are three layouts:
+ * <dl>
+ * <dt>tokens</dt><dd>entries and features files: a token id followed by a weight.</dd>
+ * <dt>token pairs</dt><dd>instances files: an entry id followed by a feature id.</dd>
+ * <dt>weighted token pairs</dt><dd>events, sims, and neighbours files: two ids followed by a weight.</dd>
+ * </dl>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class Layouts {
+
+    private Layouts() {
+    }
+
+    static SeekableDataSource openTokensSource(
+            File file, Charset charset, SingleEnumerating idx, boolean skip1)
+            throws IOException {
+        return Fused.fused(new TSV.Source(file, charset), 2,
+                new boolean[]{skip1, false}, tokenEnumerators(idx));
+    }
+
+    static DataSink openTokensSink(
+            File file, Charset charset, SingleEnumerating idx, boolean skip1)
+            throws IOException {
+        return Fused.fused(new TSV.Sink(file, charset), 2,
+                new boolean[]{skip1, false}, tokenEnumerators(idx), false);
+    }
+
+    static SeekableDataSource openTokenPairsSource(
+            File file, Charset charset, DoubleEnumerating idx, boolean skip1, boolean skip2)
+            throws IOException {
+        return Fused.fused(new TSV.Source(file, charset), 2,
+                new boolean[]{skip1, skip2}, pairEnumerators(idx, 2));
+    }
+
+    static SeekableDataSource openTokenPairsSource(
+            File file, Charset charset, long start, long end, DoubleEnumerating idx, boolean skip1, boolean skip2)
+            throws IOException {
+        return Fused.fused(new TSV.Source(file, charset, start, end), 2,
+                new boolean[]{skip1, skip2}, pairEnumerators(idx, 2));
+    }
+
+    static DataSink openTokenPairsSink(
+            File file, Charset charset, DoubleEnumerating idx, boolean skip1, boolean skip2, boolean compact)
+            throws IOException {
+        return Fused.fused(new TSV.Sink(file, charset), 2,
+                new boolean[]{skip1, skip2}, pairEnumerators(idx, 2), compact);
+    }
+
+    static SeekableDataSource openWeightedTokenPairsSource(
+            File file, Charset charset, DoubleEnumerating idx, boolean skip1, boolean skip2)
+            throws IOException {
+        return Fused.fused(new TSV.Source(file, charset), 3,
+                new boolean[]{skip1, skip2, false}, pairEnumerators(idx, 3));
+    }
+
+    static DataSink openWeightedTokenPairsSink(
+            File file, Charset charset, DoubleEnumerating idx, boolean skip1, boolean skip2, boolean compact)
+            throws IOException {
+        return Fused.fused(new TSV.Sink(file, charset), 3,
+                new boolean[]{skip1, skip2, false}, pairEnumerators(idx, 3), compact);
+    }
+
+    private static Enumerator<String>[] tokenEnumerators(SingleEnumerating idx) throws IOException {
+        final Enumerator<String>[] enumerators = newEnumeratorArray(2);
+        if (!idx.isEnumerationEnabled())
+            enumerators[0] = idx.getEnumerator();
+        return enumerators;
+    }
+
+    private static Enumerator<String>[] pairEnumerators(DoubleEnumerating idx, int numColumns) throws IOException {
+        final Enumerator<String>[] enumerators = newEnumeratorArray(numColumns);
+        if (!idx.isEnumeratedEntries())
+            enumerators[0] = idx.getEntryEnumerator();
+        if (!idx.isEnumeratedFeatures())
+            enumerators[1] = idx.getFeatureEnumerator();
+        return enumerators;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Enumerator<String>[] newEnumeratorArray(int length) {
+        return (Enumerator<String>[]) new Enumerator<?>[length];
+    }
+}
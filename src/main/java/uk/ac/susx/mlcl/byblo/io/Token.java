@@ -32,7 +32,10 @@ package uk.ac.susx.mlcl.byblo.io;
 
 import com.google.common.base.Objects;
 import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
+import uk.ac.susx.mlcl.byblo.enumerators.RankTable;
 import uk.ac.susx.mlcl.byblo.enumerators.SingleEnumerating;
+import uk.ac.susx.mlcl.lib.collect.RadixComparator;
+import uk.ac.susx.mlcl.lib.collect.RadixSort;
 
 import java.io.*;
 import java.util.Comparator;
@@ -49,7 +52,23 @@ public final class Token implements Serializable, Comparable<Token>, Cloneable {
 
     private static final long serialVersionUID = 2L;
 
-    private static final Comparator<Token> NATURAL_ORDER = indexOrder();
+    private static final RadixComparator<Token> NATURAL_ORDER =
+            new RadixComparator<Token>() {
+                @Override
+                public int compare(final Token a, final Token b) {
+                    return a.id() < b.id() ? -1 : a.id() > b.id() ? 1 : 0;
+                }
+
+                @Override
+                public int getKeyWordCount() {
+                    return 1;
+                }
+
+                @Override
+                public long getKeyWord(final Token item, final int word) {
+                    return RadixSort.unsignedKey(item.id());
+                }
+            };
 
     private final int id;
 
@@ -154,29 +173,16 @@ public final class Token implements Serializable, Comparable<Token>, Cloneable {
     }
 
     public static Comparator<Token> indexOrder() {
-        return new Comparator<Token>() {
-            @Override
-            public int compare(final Token a, final Token b) {
-                return a.id() - b.id();
-            }
-        };
+        return NATURAL_ORDER;
     }
 
     public static Comparator<Token> stringOrder(
             final SingleEnumerating idx) {
+        final RankTable ranks = new RankTable(idx);
         return new Comparator<Token>() {
             @Override
             public int compare(final Token a, final Token b) {
-                try {
-                    String s1 = idx.getEnumerator().valueOf(a.id());
-                    String s2 = idx.getEnumerator().valueOf(b.id());
-
-                    assert s1 != null : "s1 ia null";
-                    assert s2 != null : "s2 ia null";
-                    return s1.compareTo(s2);
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
+                return ranks.compare(a.id(), b.id());
             }
         };
     }
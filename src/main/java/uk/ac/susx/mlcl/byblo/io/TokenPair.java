@@ -33,9 +33,13 @@ package uk.ac.susx.mlcl.byblo.io;
 import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.EnumeratingDelegates;
 import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
+import uk.ac.susx.mlcl.byblo.enumerators.RankTable;
 import uk.ac.susx.mlcl.byblo.enumerators.SingleEnumerating;
 import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.RadixComparator;
+import uk.ac.susx.mlcl.lib.collect.RadixSort;
 
 import java.io.*;
 import java.util.Comparator;
@@ -53,7 +57,61 @@ public final class TokenPair implements
 
     private static final long serialVersionUID = 3L;
 
-    private static final Comparator<TokenPair> NATURAL_ORDER = indexOrder();
+    private static final RadixComparator<TokenPair> NATURAL_ORDER =
+            new RadixComparator<TokenPair>() {
+                @Override
+                public int compare(TokenPair a, TokenPair b) {
+                    int c = compareIds(a.id1(), b.id1());
+                    return c != 0 ? c : compareIds(a.id2(), b.id2());
+                }
+
+                @Override
+                public int getKeyWordCount() {
+                    return 1;
+                }
+
+                @Override
+                public long getKeyWord(final TokenPair item, final int word) {
+                    return (RadixSort.unsignedKey(item.id1()) << Integer.SIZE)
+                            | RadixSort.unsignedKey(item.id2());
+                }
+            };
+
+    private static final RadixComparator<TokenPair> FIRST_INDEX_ORDER =
+            new RadixComparator<TokenPair>() {
+                @Override
+                public int compare(TokenPair a, TokenPair b) {
+                    return compareIds(a.id1(), b.id1());
+                }
+
+                @Override
+                public int getKeyWordCount() {
+                    return 1;
+                }
+
+                @Override
+                public long getKeyWord(final TokenPair item, final int word) {
+                    return RadixSort.unsignedKey(item.id1());
+                }
+            };
+
+    private static final RadixComparator<TokenPair> SECOND_INDEX_ORDER =
+            new RadixComparator<TokenPair>() {
+                @Override
+                public int compare(TokenPair a, TokenPair b) {
+                    return compareIds(a.id2(), b.id2());
+                }
+
+                @Override
+                public int getKeyWordCount() {
+                    return 1;
+                }
+
+                @Override
+                public long getKeyWord(final TokenPair item, final int word) {
+                    return RadixSort.unsignedKey(item.id2());
+                }
+            };
 
     /**
      * Indexed identifier of the first entry.
@@ -213,78 +271,52 @@ public final class TokenPair implements
     }
 
     public static Comparator<TokenPair> indexOrder() {
-        return new Comparator<TokenPair>() {
-            @Override
-            public int compare(TokenPair a, TokenPair b) {
-                int c = a.id1() - b.id1();
-                return c != 0 ? c : a.id2() - b.id2();
-            }
-        };
+        return NATURAL_ORDER;
     }
 
     public static Comparator<TokenPair> firstIndexOrder() {
-        return new Comparator<TokenPair>() {
-            @Override
-            public int compare(TokenPair a, TokenPair b) {
-                return a.id1() - b.id1();
-            }
-        };
+        return FIRST_INDEX_ORDER;
     }
 
     public static Comparator<TokenPair> secondIndexOrder() {
-        return new Comparator<TokenPair>() {
-            @Override
-            public int compare(TokenPair a, TokenPair b) {
-                return a.id2() - b.id2();
-            }
-        };
+        return SECOND_INDEX_ORDER;
+    }
+
+    private static int compareIds(final int a, final int b) {
+        return a < b ? -1 : a > b ? 1 : 0;
     }
 
     public static Comparator<TokenPair> stringOrder(
             final DoubleEnumerating idx) {
+        final RankTable ranks1 = new RankTable(EnumeratingDelegates.toSingleEntries(idx));
+        final RankTable ranks2 = new RankTable(EnumeratingDelegates.toSingleFeatures(idx));
         return new Comparator<TokenPair>() {
             @Override
             public int compare(final TokenPair a, final TokenPair b) {
-                try {
-                    final Enumerator<String> en1 = idx.getEntryEnumerator();
-                    int c = en1.valueOf(a.id1()).compareTo(en1.valueOf(b.id1()));
-                    final Enumerator<String> en2 = idx.getFeatureEnumerator();
-                    return c != 0 ? c
-                            : en2.valueOf(a.id2()).compareTo(en2.
-                            valueOf(b.id2()));
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
+                final int c = ranks1.compare(a.id1(), b.id1());
+                return c != 0 ? c : ranks2.compare(a.id2(), b.id2());
             }
         };
     }
 
     public static Comparator<TokenPair> firstStringOrder(
             final SingleEnumerating idx) {
+        final RankTable ranks = new RankTable(idx);
         return new Comparator<TokenPair>() {
             @Override
             public int compare(final TokenPair a, final TokenPair b) {
-                try {
-                    final Enumerator<String> en = idx.getEnumerator();
-                    return en.valueOf(a.id1()).compareTo(en.valueOf(b.id1()));
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
+                return ranks.compare(a.id1(), b.id1());
             }
         };
     }
 
     public static Comparator<TokenPair> secondStringOrder(
             final SingleEnumerating idx) {
+        final RankTable ranks = new RankTable(idx);
         return new Comparator<TokenPair>() {
             @Override
             public int compare(final TokenPair a, final TokenPair b) {
-                try {
-                    final Enumerator<String> en = idx.getEnumerator();
-                    return en.valueOf(a.id2()).compareTo(en.valueOf(b.id2()));
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
+                return ranks.compare(a.id2(), b.id2());
             }
         };
     }
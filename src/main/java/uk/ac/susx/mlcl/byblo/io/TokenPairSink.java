@@ -30,9 +30,7 @@
  */
 package uk.ac.susx.mlcl.byblo.io;
 
-import com.google.common.base.Predicate;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
-import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
 import uk.ac.susx.mlcl.lib.io.*;
 
 import java.io.File;
@@ -84,37 +82,7 @@ public class TokenPairSink extends ForwardingChannel<DataSink> implements Object
             File file, Charset charset, DoubleEnumerating idx, boolean skip1,
             boolean skip2, boolean compact)
             throws IOException {
-        DataSink tsv = new TSV.Sink(file, charset);
-        if (skip1) {
-            tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
-                @Override
-                public boolean apply(Integer column) {
-                    return column != null && column == 0;
-                }
-            });
-        }
-        if (skip2) {
-            tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
-                @Override
-                public boolean apply(Integer column) {
-                    return column != null && column > 0;
-                }
-            });
-        }
-
-        if (compact)
-            tsv = Compact.compact(tsv, 2);
-
-        if (!idx.isEnumeratedEntries() || !idx.isEnumeratedFeatures()) {
-            @SuppressWarnings("unchecked")
-            Enumerator<String>[] enumerators =
-                    (Enumerator<String>[]) new Enumerator[2];
-            if (!idx.isEnumeratedEntries())
-                enumerators[0] = idx.getEntryEnumerator();
-            if (!idx.isEnumeratedFeatures())
-                enumerators[1] = idx.getFeatureEnumerator();
-            tsv = Enumerated.enumerated(tsv, enumerators);
-        }
-        return new TokenPairSink(tsv);
+        return new TokenPairSink(
+                Layouts.openTokenPairsSink(file, charset, idx, skip1, skip2, compact));
     }
 }
@@ -30,11 +30,9 @@
  */
 package uk.ac.susx.mlcl.byblo.io;
 
-import com.google.common.base.Predicate;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
-import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
 import uk.ac.susx.mlcl.lib.io.*;
 
 import java.io.File;
@@ -95,37 +93,21 @@ public class TokenPairSource extends ForwardingChannel<SeekableDataSource> imple
             File file, Charset charset, DoubleEnumerating idx, boolean skip1,
             boolean skip2)
             throws IOException {
-        SeekableDataSource tsv = new TSV.Source(file, charset);
-
-        if (skip1) {
-            tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
-                @Override
-                public boolean apply(Integer column) {
-                    return column != null && column == 0;
-                }
-            });
-        }
-        if (skip2) {
-            tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
-                @Override
-                public boolean apply(Integer column) {
-                    return column != null && column > 0;
-                }
-            });
-        }
-
-        tsv = Compact.compact(tsv, 2);
+        return new TokenPairSource(
+                Layouts.openTokenPairsSource(file, charset, idx, skip1, skip2));
+    }
 
-        if (!idx.isEnumeratedEntries() || !idx.isEnumeratedFeatures()) {
-            @SuppressWarnings("unchecked")
-            Enumerator<String>[] enumerators =
-                    (Enumerator<String>[]) new Enumerator[2];
-            if (!idx.isEnumeratedEntries())
-                enumerators[0] = idx.getEntryEnumerator();
-            if (!idx.isEnumeratedFeatures())
-                enumerators[1] = idx.getFeatureEnumerator();
-            tsv = Enumerated.enumerated(tsv, enumerators);
-        }
-        return new TokenPairSource(tsv);
+    /**
+     * Open a source that reads only the records between the byte offsets {@code start} and {@code end}, which must
+     * lie on record boundaries.
+     *
+     * @see uk.ac.susx.mlcl.lib.io.TSV#split(File, Charset, int)
+     */
+    public static TokenPairSource open(
+            File file, Charset charset, long start, long end, DoubleEnumerating idx, boolean skip1,
+            boolean skip2)
+            throws IOException {
+        return new TokenPairSource(
+                Layouts.openTokenPairsSource(file, charset, start, end, idx, skip1, skip2));
     }
 }
@@ -37,6 +37,14 @@ import javax.annotation.WillClose;
 import java.io.IOException;
 
 /**
+ * Sink that sums the weights of adjacent records that are equal, writing a
+ * single aggregate record to the inner sink for each run.
+ * <p/>
+ * While every record in a run is {@link Counted} the counts are summed exactly
+ * as longs, and the aggregate is written as a {@link Counted}. If a count would
+ * overflow an {@link ArithmeticException} is thrown. Otherwise weights are
+ * summed as doubles.
+ *
  * @param <T>
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
@@ -46,6 +54,10 @@ public class WeightSumReducerObjectSink<T> extends ForwardingObjectSink<ObjectSi
 
     private double weightSum = 0;
 
+    private long countSum = 0;
+
+    private boolean counted = false;
+
     public WeightSumReducerObjectSink(ObjectSink<Weighted<T>> inner) {
         super(inner);
     }
@@ -53,23 +65,49 @@ public class WeightSumReducerObjectSink<T> extends ForwardingObjectSink<ObjectSi
     @Override
     public void write(Weighted<T> o) throws IOException {
         if (currentRecord == null) {
-            currentRecord = o.record();
-            weightSum = o.weight();
+            start(o);
         } else if (currentRecord.equals(o.record())) {
-            weightSum += o.weight();
+            if (counted && o instanceof Counted) {
+                countSum = Counted.sum(countSum, ((Counted<T>) o).count());
+            } else {
+                if (counted) {
+                    counted = false;
+                    weightSum = countSum;
+                }
+                weightSum += o.weight();
+            }
         } else {
-            super.write(new Weighted<T>(currentRecord, weightSum));
-            currentRecord = o.record();
+            writeCurrent();
+            start(o);
+        }
+    }
+
+    private void start(Weighted<T> o) {
+        currentRecord = o.record();
+        if (o instanceof Counted) {
+            counted = true;
+            countSum = ((Counted<T>) o).count();
+        } else {
+            counted = false;
             weightSum = o.weight();
         }
     }
 
+    private void writeCurrent() throws IOException {
+        if (counted)
+            super.write(new Counted<T>(currentRecord, countSum));
+        else
+            super.write(new Weighted<T>(currentRecord, weightSum));
+    }
+
     @Override
     public void flush() throws IOException {
         if (currentRecord != null) {
-            super.write(new Weighted<T>(currentRecord, weightSum));
+            writeCurrent();
             currentRecord = null;
             weightSum = 0;
+            countSum = 0;
+            counted = false;
         }
         super.flush();
     }
@@ -33,6 +33,8 @@ package uk.ac.susx.mlcl.byblo.io;
 import com.google.common.base.Function;
 import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
+import uk.ac.susx.mlcl.lib.collect.RadixComparator;
+import uk.ac.susx.mlcl.lib.collect.RadixSort;
 
 import javax.annotation.concurrent.Immutable;
 import java.io.Serializable;
@@ -78,17 +80,20 @@ public class Weighted<T> implements Serializable, Comparable<Weighted<T>> {
     /**
      * Indicates whether some other object is "equal to" this one.
      * <p/>
-     * <p>Note that only the <tt>entryId</tt> field is used for equality. I.e
-     * two objects with the same <tt>entryId</tt>, but differing weights
-     * <em>will</em> be consider equal.</p>
+     * <p>Note that only the <tt>record</tt> field is used for equality. I.e
+     * two objects with the same <tt>record</tt>, but differing weights
+     * <em>will</em> be consider equal. Subclasses such as {@link Counted}
+     * only change how the weight is held, so a <tt>Counted</tt> is equal to a
+     * <tt>Weighted</tt> of the same record; subclasses must not override
+     * {@link #equals(Object)} or {@link #hashCode()}.</p>
      *
      * @param obj the reference object with which to compare.
      * @return <code>true</code> if this object is the same as the obj argument;
      *         <code>false</code> otherwise.
      */
     @Override
-    public boolean equals(Object obj) {
-        return obj == this || !(obj == null || getClass() != obj.getClass()) && equals((Weighted<?>) obj);
+    public final boolean equals(Object obj) {
+        return obj == this || obj instanceof Weighted<?> && equals((Weighted<?>) obj);
     }
 
     boolean equals(Weighted<?> other) {
@@ -96,7 +101,7 @@ public class Weighted<T> implements Serializable, Comparable<Weighted<T>> {
     }
 
     @Override
-    public int hashCode() {
+    public final int hashCode() {
         return record.hashCode();
     }
 
@@ -203,22 +208,99 @@ public class Weighted<T> implements Serializable, Comparable<Weighted<T>> {
         };
     }
 
+    private static final RadixComparator<Weighted<?>> WEIGHT_ORDER = new RadixComparator<Weighted<?>>() {
+        @Override
+        public int compare(Weighted<?> t, Weighted<?> t1) {
+            return Double.compare(t.weight(), t1.weight());
+        }
+
+        @Override
+        public int getKeyWordCount() {
+            return 1;
+        }
+
+        @Override
+        public long getKeyWord(Weighted<?> item, int word) {
+            return RadixSort.unsignedKey(item.weight());
+        }
+    };
+
+    @SuppressWarnings("unchecked")
     public static <S> Comparator<Weighted<S>> weightOrder() {
-        return new Comparator<Weighted<S>>() {
-            @Override
-            public int compare(Weighted<S> t, Weighted<S> t1) {
-                return Double.compare(t.weight(), t1.weight());
-            }
-        };
+        return (Comparator<Weighted<S>>) (Comparator<?>) WEIGHT_ORDER;
     }
 
+    /**
+     * Comparator that orders weighted objects by their records using
+     * <code>inner</code>. Two record orders are equal when their inner
+     * comparators are equal, which allows consumers to recognise orderings
+     * they can reproduce more cheaply.
+     *
+     * @param inner comparator over records
+     * @param <S>   record type
+     * @return comparator over weighted records
+     */
     public static <S> Comparator<Weighted<S>> recordOrder(
             final Comparator<S> inner) {
-        return new Comparator<Weighted<S>>() {
-            @Override
-            public int compare(Weighted<S> t, Weighted<S> t1) {
-                return inner.compare(t.record(), t1.record());
-            }
-        };
+        return inner instanceof RadixComparator
+                ? new RadixRecordOrder<S>((RadixComparator<S>) inner)
+                : new RecordOrder<S>(inner);
+    }
+
+    private static class RecordOrder<S>
+            implements Comparator<Weighted<S>> {
+
+        private final Comparator<S> inner;
+
+        RecordOrder(Comparator<S> inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public int compare(Weighted<S> t, Weighted<S> t1) {
+            return inner.compare(t.record(), t1.record());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj == this || (obj != null
+                    && obj.getClass() == getClass()
+                    && inner.equals(((RecordOrder<?>) obj).inner));
+        }
+
+        @Override
+        public int hashCode() {
+            return inner.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "RecordOrder{" + inner + "}";
+        }
+    }
+
+    /**
+     * Record order over a {@link RadixComparator}, which exposes the inner
+     * key words so weighted records can be radix sorted.
+     */
+    private static final class RadixRecordOrder<S>
+            extends RecordOrder<S> implements RadixComparator<Weighted<S>> {
+
+        private final RadixComparator<S> inner;
+
+        RadixRecordOrder(RadixComparator<S> inner) {
+            super(inner);
+            this.inner = inner;
+        }
+
+        @Override
+        public int getKeyWordCount() {
+            return inner.getKeyWordCount();
+        }
+
+        @Override
+        public long getKeyWord(Weighted<S> item, int word) {
+            return inner.getKeyWord(item.record(), word);
+        }
     }
 }
@@ -30,7 +30,6 @@
  */
 package uk.ac.susx.mlcl.byblo.io;
 
-import com.google.common.base.Predicate;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
 import uk.ac.susx.mlcl.lib.io.*;
 
@@ -77,66 +76,18 @@ public class WeightedTokenPairSink extends ForwardingChannel<DataSink> implement
     public void write(Weighted<TokenPair> record) throws IOException {
         getInner().writeInt(record.record().id1());
         getInner().writeInt(record.record().id2());
-        getInner().writeDouble(record.weight());
+        if (record instanceof Counted<?>)
+            getInner().writeLong(((Counted<?>) record).count());
+        else
+            getInner().writeDouble(record.weight());
         getInner().endOfRecord();
     }
 
     public static WeightedTokenPairSink open(
             File file, Charset charset, DoubleEnumerating idx, boolean skip1, boolean skip2, boolean compact)
             throws IOException {
-        DataSink tsv = new TSV.Sink(file, charset);
-
-
-        if (skip1) {
-            tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
-
-                @Override
-                public boolean apply(Integer column) {
-                    return column != null && column == 0;
-                }
-
-            });
-        }
-
-        if (skip2) {
-            tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
-
-                @Override
-                public boolean apply(Integer column) {
-                    return column != null && (column + 1) % 2 == 0;
-                }
-
-            });
-        }
-
-        if (!idx.isEnumeratedEntries()) {
-            tsv = Enumerated.enumerated(tsv, idx.getEntryEnumerator(),
-                    new Predicate<Integer>() {
-
-                        @Override
-                        public boolean apply(Integer column) {
-                            return column != null && column == 0;
-                        }
-
-                    });
-        }
-
-        if (!idx.isEnumeratedFeatures()) {
-            tsv = Enumerated.enumerated(tsv, idx.getFeatureEnumerator(),
-                    new Predicate<Integer>() {
-
-                        @Override
-                        public boolean apply(Integer column) {
-                            return column != null && (column + 1) % 2 == 0;
-                        }
-
-                    });
-        }
-
-        if (compact)
-            tsv = Compact.compact(tsv, 3);
-
-        return new WeightedTokenPairSink(tsv);
+        return new WeightedTokenPairSink(
+                Layouts.openWeightedTokenPairsSink(file, charset, idx, skip1, skip2, compact));
     }
 
 }
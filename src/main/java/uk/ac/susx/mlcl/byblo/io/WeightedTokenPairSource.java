@@ -30,7 +30,6 @@
  */
 package uk.ac.susx.mlcl.byblo.io;
 
-import com.google.common.base.Predicate;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
 import uk.ac.susx.mlcl.lib.io.*;
 
@@ -51,15 +50,25 @@ public class WeightedTokenPairSource implements SeekableObjectSource<Weighted<To
 
     private final SeekableDataSource inner;
 
-    private WeightedTokenPairSource(SeekableDataSource inner) {
+    /**
+     * Whether weights are read as exact {@link Counted} frequencies.
+     */
+    private final boolean counts;
 
+    private WeightedTokenPairSource(SeekableDataSource inner, boolean counts) {
         this.inner = inner;
+        this.counts = counts;
     }
 
     @Override
     public Weighted<TokenPair> read() throws IOException {
         final int id1 = inner.readInt();
         final int id2 = inner.readInt();
+        if (counts) {
+            final long count = inner.readLong();
+            inner.endOfRecord();
+            return new Counted<TokenPair>(new TokenPair(id1, id2), count);
+        }
         final double weight = inner.readDouble();
         inner.endOfRecord();
         return new Weighted<TokenPair>(new TokenPair(id1, id2), weight);
@@ -80,6 +89,25 @@ public class WeightedTokenPairSource implements SeekableObjectSource<Weighted<To
         return inner.position();
     }
 
+    /**
+     * Record the current position without instantiating a {@link Tell}.
+     *
+     * @throws IOException something has gone wrong with the underlying store
+     * @see SeekableDataSource#markPosition()
+     */
+    public void markPosition() throws IOException {
+        inner.markPosition();
+    }
+
+    /**
+     * @return the position recorded by the last call to {@link #markPosition()}
+     * @throws IOException something has gone wrong with the underlying store
+     * @see SeekableDataSource#markedPosition()
+     */
+    public Tell markedPosition() throws IOException {
+        return inner.markedPosition();
+    }
+
     @Override
     public boolean isOpen() {
         return inner.isOpen();
@@ -94,56 +122,19 @@ public class WeightedTokenPairSource implements SeekableObjectSource<Weighted<To
     public static WeightedTokenPairSource open(
             File file, Charset charset, DoubleEnumerating idx, boolean skip1, boolean skip2)
             throws IOException {
-        SeekableDataSource tsv = new TSV.Source(file, charset);
-
-
-        if (skip1) {
-            tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
-
-                @Override
-                public boolean apply(Integer column) {
-                    return column != null && column == 0;
-                }
-
-            });
-        }
-        if (skip2) {
-            tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
-
-                @Override
-                public boolean apply(Integer column) {
-                    return column != null && (column + 1) % 2 == 0;
-                }
-
-            });
-        }
-        if (!idx.isEnumeratedEntries()) {
-            tsv = Enumerated.enumerated(tsv, idx.getEntryEnumerator(),
-                    new Predicate<Integer>() {
-
-                        @Override
-                        public boolean apply(Integer column) {
-                            return column != null && column == 0;
-                        }
-
-                    });
-        }
-
-        if (!idx.isEnumeratedFeatures()) {
-            tsv = Enumerated.enumerated(tsv, idx.getFeatureEnumerator(),
-                    new Predicate<Integer>() {
-
-                        @Override
-                        public boolean apply(Integer column) {
-                            return column != null && (column + 1) % 2 == 0;
-                        }
-
-                    });
-        }
-
-        tsv = Compact.compact(tsv, 3);
+        return new WeightedTokenPairSource(
+                Layouts.openWeightedTokenPairsSource(file, charset, idx, skip1, skip2), false);
+    }
 
-        return new WeightedTokenPairSource(tsv);
+    /**
+     * Open a file of integral frequencies, such as those produced by counting,
+     * so that each record is read as an exact {@link Counted}.
+     */
+    public static WeightedTokenPairSource openCounts(
+            File file, Charset charset, DoubleEnumerating idx, boolean skip1, boolean skip2)
+            throws IOException {
+        return new WeightedTokenPairSource(
+                Layouts.openWeightedTokenPairsSource(file, charset, idx, skip1, skip2), true);
     }
 
 }
@@ -56,6 +56,10 @@ public class WeightedTokenPairVectorSource extends ForwardingChannel<WeightedTok
 
     private Weighted<TokenPair> next;
 
+    /**
+     * Restart position of the next vector, or null if it has been marked in the inner source but not yet
+     * materialised.
+     */
     private Tell tell;
 
     public WeightedTokenPairVectorSource(WeightedTokenPairSource inner) throws IOException {
@@ -80,8 +84,8 @@ public class WeightedTokenPairVectorSource extends ForwardingChannel<WeightedTok
         do {
             features.put(next.record().id2(), next.weight());
             cardinality = Math.max(cardinality, next.record().id2() + 1);
-            // XXX position() should not need to be called every iteration
-            tell = getInner().position();
+            getInner().markPosition();
+            tell = null;
             readNext();
         } while (next != null && next.record().id1() == start.record().id1());
 
@@ -99,6 +103,8 @@ public class WeightedTokenPairVectorSource extends ForwardingChannel<WeightedTok
 
     @Override
     public Tell position() throws IOException {
+        if (tell == null)
+            tell = getInner().markedPosition();
         return tell;
     }
 
@@ -30,7 +30,6 @@
  */
 package uk.ac.susx.mlcl.byblo.io;
 
-import com.google.common.base.Predicate;
 import uk.ac.susx.mlcl.byblo.enumerators.SingleEnumerating;
 import uk.ac.susx.mlcl.lib.io.*;
 
@@ -82,24 +81,15 @@ public class WeightedTokenSink extends ForwardingChannel<DataSink> implements Ob
     @Override
     public void write(final Weighted<Token> record) throws IOException {
         getInner().writeInt(record.record().id());
-        getInner().writeDouble(record.weight());
+        if (record instanceof Counted<?>)
+            getInner().writeLong(((Counted<?>) record).count());
+        else
+            getInner().writeDouble(record.weight());
         getInner().endOfRecord();
     }
 
     public static WeightedTokenSink open(File f, Charset charset, SingleEnumerating idx, boolean skip1) throws IOException {
-        DataSink tsv = new TSV.Sink(f, charset);
-
-        if (skip1) {
-            tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
-                @Override
-                public boolean apply(Integer column) {
-                    return column != null && column == 0;
-                }
-            });
-        }
-
-        if (!idx.isEnumerationEnabled())
-            tsv = Enumerated.enumerated(tsv, idx.getEnumerator());
-        return new WeightedTokenSink(tsv);
+        return new WeightedTokenSink(
+                Layouts.openTokensSink(f, charset, idx, skip1));
     }
 }
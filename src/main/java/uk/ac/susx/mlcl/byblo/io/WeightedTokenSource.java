@@ -30,7 +30,6 @@
  */
 package uk.ac.susx.mlcl.byblo.io;
 
-import com.google.common.base.Predicate;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.enumerators.SingleEnumerating;
@@ -55,8 +54,14 @@ public class WeightedTokenSource implements SeekableObjectSource<Weighted<Token>
 
     private final SeekableDataSource inner;
 
-    private WeightedTokenSource(SeekableDataSource inner) {
+    /**
+     * Whether weights are read as exact {@link Counted} frequencies.
+     */
+    private final boolean counts;
+
+    private WeightedTokenSource(SeekableDataSource inner, boolean counts) {
         this.inner = inner;
+        this.counts = counts;
     }
 
     @Override
@@ -72,6 +77,11 @@ public class WeightedTokenSource implements SeekableObjectSource<Weighted<Token>
     @Override
     public Weighted<Token> read() throws IOException {
         final int tokenId = inner.readInt();
+        if (counts) {
+            final long count = inner.readLong();
+            inner.endOfRecord();
+            return new Counted<Token>(new Token(tokenId), count);
+        }
         final double weight = inner.readDouble();
         inner.endOfRecord();
 
@@ -81,22 +91,19 @@ public class WeightedTokenSource implements SeekableObjectSource<Weighted<Token>
     public static WeightedTokenSource open(
             File file, Charset charset, SingleEnumerating idx, boolean skip1)
             throws IOException {
-        SeekableDataSource tsv = new TSV.Source(file, charset);
-
-        if (skip1) {
-            tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
-                @Override
-                public boolean apply(Integer column) {
-                    return column != null && column == 0;
-                }
-            });
-        }
-
-        tsv = Compact.compact(tsv, 2);
+        return new WeightedTokenSource(
+                Layouts.openTokensSource(file, charset, idx, skip1), false);
+    }
 
-        if (!idx.isEnumerationEnabled())
-            tsv = Enumerated.enumerated(tsv, idx.getEnumerator());
-        return new WeightedTokenSource(tsv);
+    /**
+     * Open a file of integral frequencies, such as those produced by counting,
+     * so that each record is read as an exact {@link Counted}.
+     */
+    public static WeightedTokenSource openCounts(
+            File file, Charset charset, SingleEnumerating idx, boolean skip1)
+            throws IOException {
+        return new WeightedTokenSource(
+                Layouts.openTokensSource(file, charset, idx, skip1), true);
     }
 
     @Override
@@ -31,15 +31,13 @@
 package uk.ac.susx.mlcl.byblo.tasks;
 
 import com.google.common.base.Objects;
-import it.unimi.dsi.fastutil.Hash;
-import it.unimi.dsi.fastutil.ints.Int2IntMap;
-import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
-import it.unimi.dsi.fastutil.objects.Object2IntMap;
-import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import uk.ac.susx.mlcl.byblo.io.Counted;
 import uk.ac.susx.mlcl.byblo.io.Token;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
 import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.LongKeyCounter;
 import uk.ac.susx.mlcl.lib.events.ProgressDelegate;
 import uk.ac.susx.mlcl.lib.events.ProgressListener;
 import uk.ac.susx.mlcl.lib.events.ProgressReporting;
@@ -49,6 +47,7 @@ import uk.ac.susx.mlcl.lib.io.ObjectSource;
 import uk.ac.susx.mlcl.lib.tasks.AbstractTask;
 
 import java.io.Flushable;
+import java.io.IOException;
 import java.io.Serializable;
 import java.text.MessageFormat;
 import java.util.ArrayList;
@@ -61,6 +60,14 @@ import java.util.List;
  * Read in a raw feature instances, to produce three frequency counts: entries,
  * features, and event pairs.
  * </p>
+ * <p>
+ * Ids are packed into primitive <code>long</code> keys and counted in open
+ * addressing hash tables. When the output comparators are the index orders the
+ * packed keys are radix sorted and written directly, otherwise they are boxed
+ * and sorted using the comparators. Frequencies are written as exact
+ * {@link Counted} records. If the memory budget is reached the counts
+ * so far are written out as a sorted run, and counting continues from empty.
+ * </p>
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
@@ -72,10 +79,39 @@ public final class CountTask extends AbstractTask implements Serializable,
     private final ProgressDelegate progress = new ProgressDelegate(this, true);
 
     /**
-     * A very rough guess at the amount of memory required of each event read
-     * from the source.
+     * A very rough guess at the amount of memory required to buffer each
+     * instance before it is counted. The memory required by the counts
+     * themselves is bounded separately by {@link #setMaxBytes(long)}.
+     */
+    public static final long BYTES_REQUIRED_PER_INSTANCE = 64L;
+
+    /**
+     * Additional memory required for each distinct event when it must be
+     * boxed and sorted with a comparator, rather than written out directly in
+     * index order.
+     */
+    private static final long BYTES_PER_BOXED_EVENT = 64L;
+
+    /**
+     * Upper bound on the memory used for counting before the current counts
+     * are written out as a sorted run.
+     */
+    private long maxBytes = Long.MAX_VALUE;
+
+    /**
+     * Number of sorted runs written to each sink.
      */
-    public static final long BYTES_REQUIRED_PER_EVENT = 268L;
+    private int runCount = 0;
+
+    /**
+     * Number of records written to each sink in each run, so the caller can
+     * find the runs again to merge them.
+     */
+    private final LongArrayList entryRunLengths = new LongArrayList();
+
+    private final LongArrayList featureRunLengths = new LongArrayList();
+
+    private final LongArrayList eventRunLengths = new LongArrayList();
 
     private ObjectSource<TokenPair> source;
 
@@ -173,6 +209,56 @@ public final class CountTask extends AbstractTask implements Serializable,
         this.featureComparator = featureComparator;
     }
 
+    public final long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Set the memory budget for counting. When the budget would be exceeded
+     * the counts held so far are written out, so each sink will contain
+     * multiple sorted runs (see {@link #getRunCount()}) which must be merged
+     * by the caller.
+     *
+     * @param maxBytes maximum number of bytes to use for counting
+     */
+    public final void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes <= 0");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the number of sorted runs written to each sink; greater than one
+     *         only if the memory budget was exceeded.
+     */
+    public final int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * @return the number of records in each sorted run written to the entry
+     *         sink, in the order they were written
+     */
+    public final long[] getEntryRunLengths() {
+        return entryRunLengths.toLongArray();
+    }
+
+    /**
+     * @return the number of records in each sorted run written to the feature
+     *         sink, in the order they were written
+     */
+    public final long[] getFeatureRunLengths() {
+        return featureRunLengths.toLongArray();
+    }
+
+    /**
+     * @return the number of records in each sorted run written to the event
+     *         sink, in the order they were written
+     */
+    public final long[] getEventRunLengths() {
+        return eventRunLengths.toLongArray();
+    }
+
     void checkState() {
         Checks.checkNotNull("source", source);
         Checks.checkNotNull("featureSink", featureSink);
@@ -193,36 +279,35 @@ public final class CountTask extends AbstractTask implements Serializable,
 
         progress.setState(State.RUNNING);
 
-        float loadFactor = Hash.FAST_LOAD_FACTOR;
-        int initSize = Hash.DEFAULT_INITIAL_SIZE;// * 100;
+        final boolean indexOrderedEvents = getEventComparator().equals(
+                Weighted.recordOrder(TokenPair.indexOrder()));
+        final boolean indexOrderedEntries = getEntryComparator().equals(
+                Weighted.recordOrder(Token.indexOrder()));
+        final boolean indexOrderedFeatures = getFeatureComparator().equals(
+                Weighted.recordOrder(Token.indexOrder()));
 
-        // Int2ObjectOpenHashMap<Int2IntOpenHashMap> eventFreq =
-        // new Int2ObjectOpenHashMap<Int2IntOpenHashMap>(initSize, loadFactor);
-
-        Object2IntOpenHashMap<TokenPair> eventFreq = new Object2IntOpenHashMap<TokenPair>(
-                initSize, loadFactor);
-        eventFreq.defaultReturnValue(0);
-
-        Int2IntOpenHashMap featureFreq = new Int2IntOpenHashMap(initSize,
-                loadFactor);
-        featureFreq.defaultReturnValue(0);
-
-        Int2IntOpenHashMap entryFreq = new Int2IntOpenHashMap(initSize,
-                loadFactor);
-        entryFreq.defaultReturnValue(0);
+        final LongKeyCounter eventFreq = new LongKeyCounter();
+        final LongKeyCounter entryFreq = new LongKeyCounter();
+        final LongKeyCounter featureFreq = new LongKeyCounter();
 
         long instanceCount = 0;
         while (getSource().hasNext()) {
             final TokenPair instance = getSource().read();
 
-            entryFreq.add(instance.id1(), 1);
-            featureFreq.add(instance.id2(), 1);
-
-            // if(!eventFreq.containsKey(instance.id1()))
-            // eventFreq.put(instance.id1(), new Int2IntOpenHashMap());
-            // eventFreq.get(instance.id1()).add(instance.id2(), 1);
+            if (eventFreq.isFull() && projectedBytesUsed(eventFreq, entryFreq,
+                    featureFreq, indexOrderedEvents) > getMaxBytes()) {
+                progress.setMessage(MessageFormat.format(
+                        "Memory budget reached after {0} instances; spilling "
+                                + "{1} events.", instanceCount,
+                        eventFreq.size()));
+                writeCounts(eventFreq, entryFreq, featureFreq,
+                        indexOrderedEvents, indexOrderedEntries,
+                        indexOrderedFeatures);
+            }
 
-            eventFreq.add(instance, 1);
+            entryFreq.add(packToken(instance.id1()), 1);
+            featureFreq.add(packToken(instance.id2()), 1);
+            eventFreq.add(packTokenPair(instance.id1(), instance.id2()), 1);
 
             ++instanceCount;
             if (instanceCount % 1000000 == 0 || !getSource().hasNext()) {
@@ -231,95 +316,149 @@ public final class CountTask extends AbstractTask implements Serializable,
             }
         }
 
-        entryFreq.trim();
-        featureFreq.trim();
-        eventFreq.trim();
+        writeCounts(eventFreq, entryFreq, featureFreq, indexOrderedEvents,
+                indexOrderedEntries, indexOrderedFeatures);
 
-        final int nFeatures = featureFreq.size();
-        final int nEntries = entryFreq.size();
-        final int nEvents = eventFreq.size();
-
-        System.out.printf("nEntries=%d, nFeatures=%d, nEvents=%d%n", nEntries,
-                nFeatures, nEvents);
         progress.startAdjusting();
-        progress.setProgressPercent((int) (100 * instanceCount / (instanceCount
-                + nEntries + nFeatures + nEvents)));
-        progress.setMessage("Writing entries.");
-        progress.endAdjusting();
-
-        {
-            List<Weighted<Token>> entries = int2IntMapToWeightedTokens(entryFreq);
-            entryFreq = null;
-            Collections.sort(entries, getEntryComparator());
-            ObjectIO.copy(entries, getEntrySink());
-            entries = null;
-        }
-        if (getEntrySink() instanceof Flushable)
-            ((Flushable) getEntrySink()).flush();
-        // if (getEntrySink() instanceof Closeable)
-        // ((Closeable) getEntrySink()).close();
-
-        progress.startAdjusting();
-        progress.setProgressPercent((int) (100 * (instanceCount + nEntries) / (instanceCount
-                + nEntries + nFeatures + nEvents)));
-        progress.setMessage("Writing features.");
+        progress.setProgressPercent(100);
+        progress.setState(State.COMPLETED);
         progress.endAdjusting();
 
-        {
-            List<Weighted<Token>> features = int2IntMapToWeightedTokens(featureFreq);
-            featureFreq = null;
-            Collections.sort(features, getFeatureComparator());
-            ObjectIO.copy(features, getFeatureSink());
-            features = null;
-        }
-        if (getFeatureSink() instanceof Flushable)
-            ((Flushable) getFeatureSink()).flush();
-        // if (getFeatureSink() instanceof Closeable)
-        // ((Closeable) getFeatureSink()).close();
+    }
 
-        progress.startAdjusting();
-        progress.setProgressPercent((int) (100 * (instanceCount + nEntries + nFeatures) / (instanceCount
-                + nEntries + nFeatures + nEvents)));
-        progress.setMessage("Writing events.");
-        progress.endAdjusting();
+    /**
+     * Write the current contents of the counters to their respective sinks,
+     * then clear the counters ready for reuse. When the task spills this is
+     * called more than once, producing a sequence of sorted runs in each
+     * sink.
+     */
+    private void writeCounts(LongKeyCounter eventFreq,
+                             LongKeyCounter entryFreq,
+                             LongKeyCounter featureFreq,
+                             boolean indexOrderedEvents,
+                             boolean indexOrderedEntries,
+                             boolean indexOrderedFeatures)
+            throws IOException {
+        ++runCount;
 
-        {
-            List<Weighted<TokenPair>> events = Obj2IntMapToWeightedObjList(eventFreq);
-            eventFreq = null;
+        final int nFeatures = featureFreq.size();
+        final int nEntries = entryFreq.size();
+        final int nEvents = eventFreq.size();
+        final long total = nEntries + nFeatures + nEvents;
+
+        // Keys are distinct within a run, and the sinks are flushed after
+        // each run, so each count is written as exactly one record.
+        entryRunLengths.add(nEntries);
+        featureRunLengths.add(nFeatures);
+        eventRunLengths.add(nEvents);
+
+        progress.setMessage(MessageFormat.format(
+                "Writing run {0}: {1} entries, {2} features, {3} events.",
+                runCount, nEntries, nFeatures, nEvents));
+
+        writeTokens(entryFreq, getEntrySink(), getEntryComparator(),
+                indexOrderedEntries);
+        progress.setProgressPercent((int) (100 * nEntries / Math.max(total, 1)));
+
+        writeTokens(featureFreq, getFeatureSink(), getFeatureComparator(),
+                indexOrderedFeatures);
+        progress.setProgressPercent(
+                (int) (100 * (nEntries + nFeatures) / Math.max(total, 1)));
+
+        eventFreq.sortUnsigned();
+        if (indexOrderedEvents) {
+            for (int i = 0; i < nEvents; i++) {
+                final long key = eventFreq.keyAt(i);
+                getEventSink().write(new Counted<TokenPair>(
+                        new TokenPair(unpackId1(key), unpackId2(key)),
+                        eventFreq.countAt(i)));
+            }
+        } else {
+            final List<Weighted<TokenPair>> events =
+                    new ArrayList<Weighted<TokenPair>>(nEvents);
+            for (int i = 0; i < nEvents; i++) {
+                final long key = eventFreq.keyAt(i);
+                events.add(new Counted<TokenPair>(
+                        new TokenPair(unpackId1(key), unpackId2(key)),
+                        eventFreq.countAt(i)));
+            }
             Collections.sort(events, getEventComparator());
             ObjectIO.copy(events, getEventSink());
-            events = null;
         }
+        eventFreq.clear();
         if (getEventSink() instanceof Flushable)
             ((Flushable) getEventSink()).flush();
-        // if (getEventSink() instanceof Closeable)
-        // ((Closeable) getEventSink()).close();
+    }
 
-        progress.startAdjusting();
-        progress.setProgressPercent(100);
-        progress.setState(State.COMPLETED);
-        progress.endAdjusting();
+    private static void writeTokens(LongKeyCounter freq,
+                                    ObjectSink<Weighted<Token>> sink,
+                                    Comparator<Weighted<Token>> comparator,
+                                    boolean indexOrdered)
+            throws IOException {
+        freq.sortUnsigned();
+        if (indexOrdered) {
+            for (int i = 0; i < freq.size(); i++) {
+                sink.write(new Counted<Token>(
+                        new Token(unpackToken(freq.keyAt(i))),
+                        freq.countAt(i)));
+            }
+        } else {
+            final List<Weighted<Token>> tokens =
+                    new ArrayList<Weighted<Token>>(freq.size());
+            for (int i = 0; i < freq.size(); i++) {
+                tokens.add(new Counted<Token>(
+                        new Token(unpackToken(freq.keyAt(i))),
+                        freq.countAt(i)));
+            }
+            Collections.sort(tokens, comparator);
+            ObjectIO.copy(tokens, sink);
+        }
+        freq.clear();
+        if (sink instanceof Flushable)
+            ((Flushable) sink).flush();
+    }
 
+    /**
+     * Estimate the peak memory required if the events table grows by one more
+     * step, or is written out using the comparator fallback.
+     */
+    private static long projectedBytesUsed(LongKeyCounter eventFreq,
+                                           LongKeyCounter entryFreq,
+                                           LongKeyCounter featureFreq,
+                                           boolean indexOrderedEvents) {
+        // Rehashing briefly holds the old table and one twice its size
+        long bytes = 3 * eventFreq.bytesUsed()
+                + entryFreq.bytesUsed() + featureFreq.bytesUsed();
+        if (!indexOrderedEvents)
+            bytes += (long) eventFreq.size() * BYTES_PER_BOXED_EVENT;
+        return bytes;
     }
 
-    private static List<Weighted<Token>> int2IntMapToWeightedTokens(
-            final Int2IntMap map) {
-        final List<Weighted<Token>> out = new ArrayList<Weighted<Token>>(
-                map.size());
-        for (Int2IntMap.Entry e : map.int2IntEntrySet()) {
-            out.add(new Weighted<Token>(new Token(e.getIntKey()), e
-                    .getIntValue()));
-        }
-        return out;
+    /*
+     * Ids are packed with their sign bit flipped, so that the unsigned order
+     * of packed keys is the same as the signed order of the ids, which is
+     * what Token.indexOrder() and TokenPair.indexOrder() produce.
+     */
+
+    static long packToken(int id) {
+        return (id ^ Integer.MIN_VALUE) & 0xffffffffL;
     }
 
-    private static <T> List<Weighted<T>> Obj2IntMapToWeightedObjList(
-            final Object2IntMap<T> map) {
-        final List<Weighted<T>> out = new ArrayList<Weighted<T>>(map.size());
-        for (Object2IntMap.Entry<T> e : map.object2IntEntrySet()) {
-            out.add(new Weighted<T>(e.getKey(), e.getIntValue()));
-        }
-        return out;
+    static int unpackToken(long key) {
+        return (int) key ^ Integer.MIN_VALUE;
+    }
+
+    static long packTokenPair(int id1, int id2) {
+        return ((long) (id1 ^ Integer.MIN_VALUE) << 32)
+                | ((id2 ^ Integer.MIN_VALUE) & 0xffffffffL);
+    }
+
+    static int unpackId1(long key) {
+        return (int) (key >>> 32) ^ Integer.MIN_VALUE;
+    }
+
+    static int unpackId2(long key) {
+        return (int) key ^ Integer.MIN_VALUE;
     }
 
     @Override
@@ -370,7 +509,8 @@ public final class CountTask extends AbstractTask implements Serializable,
                 .add("eventsSink", getEventSink())
                 .add("entriesComparator", getEntryComparator())
                 .add("featuresComparator", getFeatureComparator())
-                .add("eventsComparator", getEventComparator());
+                .add("eventsComparator", getEventComparator())
+                .add("maxBytes", getMaxBytes());
     }
 
 }
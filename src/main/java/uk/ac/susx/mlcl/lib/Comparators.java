@@ -30,6 +30,8 @@
  */
 package uk.ac.susx.mlcl.lib;
 
+import uk.ac.susx.mlcl.lib.collect.RadixComparator;
+
 import java.io.Serializable;
 import java.util.Comparator;
 import java.util.List;
@@ -58,8 +60,12 @@ public final class Comparators {
      */
     public static <T> Comparator<T> reverse(final Comparator<T> comp) {
         Checks.checkNotNull(comp);
-        return (comp.getClass().equals(ReverseComparator.class))
-               ? ((ReverseComparator<T>) comp).getInner()
+        if (comp.getClass().equals(ReverseComparator.class))
+            return ((ReverseComparator<T>) comp).getInner();
+        if (comp.getClass().equals(ReverseRadixComparator.class))
+            return ((ReverseRadixComparator<T>) comp).getInner();
+        return (comp instanceof RadixComparator)
+               ? new ReverseRadixComparator<T>((RadixComparator<T>) comp)
                : new ReverseComparator<T>(comp);
     }
 
@@ -107,6 +113,61 @@ public final class Comparators {
 
     }
 
+    /**
+     * Reversed {@link RadixComparator}, which inverts every key word so the
+     * reversed order can still be radix sorted.
+     *
+     * @param <T>
+     */
+    private static final class ReverseRadixComparator<T>
+            implements RadixComparator<T>, Serializable {
+
+        public static final long serialVersionUID = 1L;
+
+        private final RadixComparator<T> inner;
+
+        private ReverseRadixComparator(final RadixComparator<T> inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public int compare(final T o1, final T o2) {
+            return inner.compare(o2, o1);
+        }
+
+        @Override
+        public int getKeyWordCount() {
+            return inner.getKeyWordCount();
+        }
+
+        @Override
+        public long getKeyWord(final T item, final int word) {
+            return ~inner.getKeyWord(item, word);
+        }
+
+        public RadixComparator<T> getInner() {
+            return inner;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj == this || (obj != null
+                    && obj.getClass() == getClass()
+                    && inner.equals(((ReverseRadixComparator<?>) obj).inner));
+        }
+
+        @Override
+        public int hashCode() {
+            return ~inner.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "ReverseRadixComparator{inner=" + inner + '}';
+        }
+
+    }
+
     /**
      * Produces a composite comparator that returns the comparison according to
      * the first argument if non-zero, otherwise fallback to the result of the
@@ -119,6 +180,9 @@ public final class Comparators {
      */
     public static <T> Comparator<T> fallback(
             final Comparator<T> a, final Comparator<T> b) {
+        if (a instanceof RadixComparator && b instanceof RadixComparator)
+            return new FallbackRadixComparator<T>(
+                    (RadixComparator<T>) a, (RadixComparator<T>) b);
         return new Comparator<T>() {
 
             @Override
@@ -229,6 +293,44 @@ public final class Comparators {
 
     }
 
+    /**
+     * Fallback composition of two {@link RadixComparator}s, whose key is the
+     * key words of the first followed by those of the second.
+     *
+     * @param <T>
+     */
+    private static final class FallbackRadixComparator<T>
+            extends FallbackComparator<T> implements RadixComparator<T> {
+
+        public static final long serialVersionUID = 1L;
+
+        private final RadixComparator<T> first;
+
+        private final RadixComparator<T> second;
+
+        private final int firstWords;
+
+        FallbackRadixComparator(final RadixComparator<T> first,
+                                final RadixComparator<T> second) {
+            super(first, second);
+            this.first = first;
+            this.second = second;
+            this.firstWords = first.getKeyWordCount();
+        }
+
+        @Override
+        public int getKeyWordCount() {
+            return firstWords + second.getKeyWordCount();
+        }
+
+        @Override
+        public long getKeyWord(final T item, final int word) {
+            return word < firstWords
+                   ? first.getKeyWord(item, word)
+                   : second.getKeyWord(item, word - firstWords);
+        }
+    }
+
     /**
      * Return a comparator that uses the natural ordering of the Comparable
      * objects.
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.collect;
+
+import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.HashCommon;
+import uk.ac.susx.mlcl.lib.Checks;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+/**
+ * Frequency counter keyed by primitive <code>long</code> values, implemented
+ * as an open addressing hash table with linear probing over parallel key and
+ * count arrays.
+ * <p/>
+ * The table is designed for the aggregation phase of counting: keys are only
+ * ever added to, never removed, and once counting is complete the contents
+ * are compacted and sorted in place by {@link #sortUnsigned()}, after which
+ * they can be read out by position. Calling {@link #clear()} then allows the
+ * arrays to be reused for another round of counting.
+ * <p/>
+ * Each distinct key costs 16 bytes divided by the load factor, compared with
+ * upward of 60 bytes for boxed keys in an object map. Counts are held as
+ * <code>long</code> values so they can not overflow in practice.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@NotThreadSafe
+public final class LongKeyCounter {
+
+    /**
+     * The number of bytes used for each slot in the table.
+     */
+    public static final int BYTES_PER_SLOT = 16;
+
+    /**
+     * Key used to mark free slots. The key itself is counted separately.
+     */
+    private static final long FREE = 0L;
+
+    private final float loadFactor;
+
+    private long[] keys;
+
+    private long[] counts;
+
+    private int mask;
+
+    private int maxFill;
+
+    private int size;
+
+    private boolean containsFreeKey;
+
+    private long freeKeyCount;
+
+    /**
+     * Whether the table has been compacted and sorted since the last
+     * modification.
+     */
+    private boolean sorted;
+
+    public LongKeyCounter(final int expectedSize, final float loadFactor) {
+        Checks.checkRangeExcl("loadFactor", loadFactor, 0, 1);
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("expectedSize < 0");
+        this.loadFactor = loadFactor;
+        allocate(HashCommon.arraySize(Math.max(expectedSize, 2), loadFactor));
+    }
+
+    public LongKeyCounter() {
+        this(Hash.DEFAULT_INITIAL_SIZE, Hash.FAST_LOAD_FACTOR);
+    }
+
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        counts = new long[capacity];
+        mask = capacity - 1;
+        maxFill = HashCommon.maxFill(capacity, loadFactor);
+    }
+
+    /**
+     * Add <code>delta</code> to the count associated with <code>key</code>.
+     *
+     * @param key   key to increment
+     * @param delta amount to add to the count
+     */
+    public void add(final long key, final long delta) {
+        checkNotSorted();
+        if (key == FREE) {
+            if (!containsFreeKey) {
+                containsFreeKey = true;
+                ++size;
+            }
+            freeKeyCount += delta;
+            return;
+        }
+        int pos = (int) HashCommon.murmurHash3(key) & mask;
+        while (keys[pos] != FREE) {
+            if (keys[pos] == key) {
+                counts[pos] += delta;
+                return;
+            }
+            pos = (pos + 1) & mask;
+        }
+        keys[pos] = key;
+        counts[pos] = delta;
+        if (++size >= maxFill)
+            rehash(keys.length * 2);
+    }
+
+    /**
+     * @param key key to look up
+     * @return the count associated with <code>key</code>, or 0 if absent
+     */
+    public long get(final long key) {
+        checkNotSorted();
+        if (key == FREE)
+            return freeKeyCount;
+        int pos = (int) HashCommon.murmurHash3(key) & mask;
+        while (keys[pos] != FREE) {
+            if (keys[pos] == key)
+                return counts[pos];
+            pos = (pos + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * @return number of distinct keys in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return approximate number of bytes currently held by the table
+     */
+    public long bytesUsed() {
+        return (long) keys.length * BYTES_PER_SLOT;
+    }
+
+    /**
+     * Whether inserting one more distinct key will cause the table to grow,
+     * temporarily requiring three times {@link #bytesUsed()} while the
+     * contents are rehashed.
+     *
+     * @return true if the table is at capacity
+     */
+    public boolean isFull() {
+        return size + 1 >= maxFill;
+    }
+
+    private void rehash(final int newCapacity) {
+        final long[] oldKeys = keys;
+        final long[] oldCounts = counts;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == FREE)
+                continue;
+            int pos = (int) HashCommon.murmurHash3(oldKeys[i]) & mask;
+            while (keys[pos] != FREE)
+                pos = (pos + 1) & mask;
+            keys[pos] = oldKeys[i];
+            counts[pos] = oldCounts[i];
+        }
+    }
+
+    /**
+     * Compact all entries to the start of the table and sort them by key in
+     * ascending unsigned order. Once sorted entries are accessed using
+     * {@link #keyAt(int)} and {@link #countAt(int)}; the table can not be
+     * modified again until it is {@link #clear() cleared}.
+     */
+    public void sortUnsigned() {
+        if (sorted)
+            return;
+        int n = 0;
+        if (containsFreeKey) {
+            // FREE is the smallest unsigned key, so it goes first. Make room
+            // for it by moving whatever is in slot 0 to the first free slot.
+            if (keys[0] != FREE) {
+                int pos = 1;
+                while (keys[pos] != FREE)
+                    ++pos;
+                keys[pos] = keys[0];
+                counts[pos] = counts[0];
+            }
+            keys[0] = FREE;
+            counts[0] = freeKeyCount;
+            n = 1;
+        }
+        for (int i = n; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                keys[n] = keys[i];
+                counts[n] = counts[i];
+                ++n;
+            }
+        }
+        assert n == size;
+        RadixSort.sortUnsigned(keys, counts, containsFreeKey ? 1 : 0, n);
+        sorted = true;
+    }
+
+    /**
+     * @param index position in the sorted table
+     * @return the key at the given position
+     */
+    public long keyAt(final int index) {
+        checkSorted(index);
+        return keys[index];
+    }
+
+    /**
+     * @param index position in the sorted table
+     * @return the count at the given position
+     */
+    public long countAt(final int index) {
+        checkSorted(index);
+        return counts[index];
+    }
+
+    /**
+     * Remove all entries from the table, retaining the allocated capacity.
+     */
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+        containsFreeKey = false;
+        freeKeyCount = 0;
+        sorted = false;
+    }
+
+    private void checkSorted(final int index) {
+        if (!sorted)
+            throw new IllegalStateException("table has not been sorted");
+        Checks.checkArrayIndex(index, size);
+    }
+
+    private void checkNotSorted() {
+        if (sorted)
+            throw new IllegalStateException(
+                    "table has been sorted and must be cleared before reuse");
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + "[size=" + size
+                + ", capacity=" + keys.length + ']';
+    }
+}
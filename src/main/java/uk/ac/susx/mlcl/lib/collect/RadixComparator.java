@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.collect;
+
+import java.util.Comparator;
+
+/**
+ * A <code>Comparator</code> whose ordering can also be expressed as a
+ * fixed-length sequence of unsigned 64-bit key words, allowing objects to be
+ * sorted by {@link RadixSort#sort(java.util.List, RadixComparator)} without
+ * calling {@link #compare(Object, Object)} at all.
+ * <p/>
+ * Implementations must guarantee that <code>compare(a, b)</code> has the same
+ * sign as the lexicographic comparison of the key words of <code>a</code> and
+ * <code>b</code>, where each word is compared as an unsigned value and word 0
+ * is the most significant.
+ *
+ * @param <T> the type of object being compared
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public interface RadixComparator<T> extends Comparator<T> {
+
+    /**
+     * Get the number of key words produced for every object.
+     *
+     * @return number of key words, at least 1
+     */
+    int getKeyWordCount();
+
+    /**
+     * Get the key word at position <code>word</code> for the given object.
+     *
+     * @param item object to produce the key of
+     * @param word index of the key word, from 0 (most significant) to
+     *             {@link #getKeyWordCount()} (exclusive)
+     * @return key word, interpreted as unsigned
+     */
+    long getKeyWord(T item, int word);
+
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.collect;
+
+import uk.ac.susx.mlcl.lib.Checks;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * In-place most-significant-digit radix sort (American flag sort) over
+ * primitive <code>long</code> keys, treated as unsigned, with a parallel array
+ * of values permuted alongside the keys.
+ * <p/>
+ * Keys are consumed a byte at a time starting from the most significant, so
+ * any digit that is constant across a bucket is skipped without moving data.
+ * This makes the sort very cheap for packed keys whose high bits are
+ * clustered, such as pairs of small non-negative ids. No auxiliary arrays
+ * proportional to the input are allocated.
+ * <p/>
+ * Lists of objects can be sorted the same way when their order is given by a
+ * {@link RadixComparator}: each object's key is extracted once, and the keys
+ * are sorted along with the original positions of the objects.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@ThreadSafe
+public final class RadixSort {
+
+    /**
+     * Buckets no larger than this are finished with an insertion sort.
+     */
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+
+    private static final int DIGIT_BITS = 8;
+
+    private static final int RADIX = 1 << DIGIT_BITS;
+
+    private static final int DIGIT_MASK = RADIX - 1;
+
+    private static final int LEVELS = Long.SIZE / DIGIT_BITS;
+
+    private RadixSort() {
+    }
+
+    /**
+     * Sort the range <code>[from, to)</code> of <code>keys</code> into
+     * ascending unsigned order, applying the same permutation to
+     * <code>values</code>.
+     *
+     * @param keys   the keys to sort
+     * @param values values associated with each key
+     * @param from   index of the first element (inclusive)
+     * @param to     index of the last element (exclusive)
+     */
+    public static void sortUnsigned(final long[] keys, final long[] values,
+                                    final int from, final int to) {
+        Checks.checkNotNull("keys", keys);
+        Checks.checkNotNull("values", values);
+        checkRange(keys.length, values.length, from, to);
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            insertionSort(keys, values, from, to);
+        } else {
+            sort(keys, values, from, to, 0,
+                    new int[LEVELS][RADIX], new int[LEVELS][RADIX]);
+        }
+    }
+
+    /**
+     * Sort the given list into the order defined by <code>order</code>,
+     * without calling its <code>compare</code> method. The sort is stable:
+     * objects with equal keys retain their relative order.
+     *
+     * @param list  the list to sort
+     * @param order radix comparator defining the order
+     * @param <T>   type of object being sorted
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> void sort(final List<T> list,
+                                final RadixComparator<? super T> order) {
+        Checks.checkNotNull("list", list);
+        Checks.checkNotNull("order", order);
+
+        final int n = list.size();
+        if (n < 2)
+            return;
+
+        final Object[] items = list.toArray();
+        final long[] keys = new long[n];
+        final long[] positions = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = ((RadixComparator<Object>) order).getKeyWord(items[i], 0);
+            positions[i] = i;
+        }
+
+        final int[][] ends = new int[LEVELS][RADIX];
+        final int[][] offsets = new int[LEVELS][RADIX];
+        sortRange(keys, positions, 0, n, ends, offsets);
+        refine((RadixComparator<Object>) order, items, keys, positions,
+                0, n, 1, ends, offsets);
+
+        final ListIterator<T> it = list.listIterator();
+        for (int i = 0; i < n; i++) {
+            it.next();
+            it.set((T) items[(int) positions[i]]);
+        }
+    }
+
+    /**
+     * Sort every run of equal keys within <code>[from, to)</code> by the next
+     * key word, or by original position once all the words are used up.
+     */
+    private static void refine(final RadixComparator<Object> order,
+                               final Object[] items, final long[] keys,
+                               final long[] positions, final int from,
+                               final int to, final int word,
+                               final int[][] ends, final int[][] offsets) {
+        int start = from;
+        while (start < to) {
+            int end = start + 1;
+            while (end < to && keys[end] == keys[start])
+                ++end;
+
+            if (end - start > 1) {
+                if (word < order.getKeyWordCount()) {
+                    for (int i = start; i < end; i++)
+                        keys[i] = order.getKeyWord(items[(int) positions[i]], word);
+                    sortRange(keys, positions, start, end, ends, offsets);
+                    refine(order, items, keys, positions, start, end,
+                            word + 1, ends, offsets);
+                } else {
+                    Arrays.sort(positions, start, end);
+                }
+            }
+            start = end;
+        }
+    }
+
+    private static void sortRange(final long[] keys, final long[] values,
+                                  final int from, final int to,
+                                  final int[][] ends, final int[][] offsets) {
+        if (to - from <= INSERTION_SORT_THRESHOLD)
+            insertionSort(keys, values, from, to);
+        else
+            sort(keys, values, from, to, 0, ends, offsets);
+    }
+
+    /**
+     * Map a <code>double</code> to a key whose unsigned order is the same as
+     * the order of {@link Double#compare(double, double)}.
+     *
+     * @param value the value to map
+     * @return unsigned sort key
+     */
+    public static long unsignedKey(final double value) {
+        final long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> (Long.SIZE - 1)) | Long.MIN_VALUE);
+    }
+
+    /**
+     * Map an <code>int</code> to a key whose unsigned order is the same as the
+     * signed order of the value.
+     *
+     * @param value the value to map
+     * @return unsigned sort key
+     */
+    public static long unsignedKey(final int value) {
+        return (value ^ Integer.MIN_VALUE) & 0xffffffffL;
+    }
+
+    private static void sort(final long[] keys, final long[] values,
+                             final int from, final int to, final int level,
+                             final int[][] ends, final int[][] offsets) {
+        final int shift = Long.SIZE - DIGIT_BITS * (level + 1);
+        final int[] end = ends[level];
+        final int[] offset = offsets[level];
+
+        Arrays.fill(end, 0);
+        for (int i = from; i < to; i++)
+            ++end[digit(keys[i], shift)];
+
+        if (end[digit(keys[from], shift)] == to - from) {
+            // Every key shares this digit so there is nothing to permute.
+            if (level + 1 < LEVELS)
+                sort(keys, values, from, to, level + 1, ends, offsets);
+            return;
+        }
+
+        int pos = from;
+        for (int b = 0; b < RADIX; b++) {
+            offset[b] = pos;
+            pos += end[b];
+            end[b] = pos;
+        }
+
+        for (int b = 0; b < RADIX; b++) {
+            while (offset[b] < end[b]) {
+                long key = keys[offset[b]];
+                long value = values[offset[b]];
+                int d = digit(key, shift);
+                while (d != b) {
+                    final int p = offset[d]++;
+                    final long tk = keys[p];
+                    final long tv = values[p];
+                    keys[p] = key;
+                    values[p] = value;
+                    key = tk;
+                    value = tv;
+                    d = digit(key, shift);
+                }
+                keys[offset[b]] = key;
+                values[offset[b]] = value;
+                ++offset[b];
+            }
+        }
+
+        if (level + 1 == LEVELS)
+            return;
+
+        int start = from;
+        for (int b = 0; b < RADIX; b++) {
+            final int stop = end[b];
+            if (stop - start > INSERTION_SORT_THRESHOLD)
+                sort(keys, values, start, stop, level + 1, ends, offsets);
+            else if (stop - start > 1)
+                insertionSort(keys, values, start, stop);
+            start = stop;
+        }
+    }
+
+    private static void insertionSort(final long[] keys, final long[] values,
+                                      final int from, final int to) {
+        for (int i = from + 1; i < to; i++) {
+            final long key = keys[i];
+            final long value = values[i];
+            int j = i - 1;
+            while (j >= from && lessThanUnsigned(key, keys[j])) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                --j;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+
+    private static int digit(final long key, final int shift) {
+        return (int) (key >>> shift) & DIGIT_MASK;
+    }
+
+    private static boolean lessThanUnsigned(final long a, final long b) {
+        return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+    }
+
+    private static void checkRange(final int keysLength, final int valuesLength,
+                                   final int from, final int to) {
+        if (from < 0 || from > to || to > keysLength || to > valuesLength)
+            throw new ArrayIndexOutOfBoundsException(
+                    "from=" + from + ", to=" + to + ", keys.length="
+                            + keysLength + ", values.length=" + valuesLength);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.collect;
+
+import uk.ac.susx.mlcl.lib.Checks;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+/**
+ * TopKHeap retains the <code>k</code> heaviest (id, weight) pairs offered to it, using primitive arrays rather than
+ * boxed objects so that very many heaps can be held at once.
+ * <p/>
+ * The heap is ordered so that its root is the weakest retained pair: the lowest weight and, among equal weights, the
+ * most recently offered. A new pair therefore only displaces the root when it is strictly heavier, and ties are always
+ * resolved in favour of the earlier pair, matching a stable sort by descending weight followed by truncation to
+ * <code>k</code>.
+ * <p/>
+ * Arrays are grown on demand, so a heap that only ever sees a few pairs stays small.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@NotThreadSafe
+public final class TopKHeap {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private static final int[] EMPTY_INTS = new int[0];
+
+    private static final double[] EMPTY_DOUBLES = new double[0];
+
+    private final int k;
+
+    private int[] ids = EMPTY_INTS;
+
+    private double[] weights = EMPTY_DOUBLES;
+
+    private int[] sequence = EMPTY_INTS;
+
+    private int size = 0;
+
+    private int nextSequence = 0;
+
+    private boolean sorted = false;
+
+    public TopKHeap(final int k) {
+        Checks.checkRangeIncl("k", k, 1, Integer.MAX_VALUE);
+        this.k = k;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Offer a pair to the heap, which is retained if it is among the <code>k</code> heaviest seen so far.
+     *
+     * @param id     identifier of the pair
+     * @param weight weight of the pair
+     * @return true if the pair was retained, false if it was rejected
+     * @throws IllegalStateException if the heap has been sorted
+     */
+    public boolean offer(final int id, final double weight) {
+        if (sorted)
+            throw new IllegalStateException("heap has been sorted");
+        final int seq = nextSequence++;
+        if (size < k) {
+            if (size == ids.length)
+                grow();
+            ids[size] = id;
+            weights[size] = weight;
+            sequence[size] = seq;
+            siftUp(size++);
+            return true;
+        } else if (Double.compare(weight, weights[0]) > 0) {
+            ids[0] = id;
+            weights[0] = weight;
+            sequence[0] = seq;
+            siftDown(0, size);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Reorder the retained pairs heaviest first, with ties in the order they were offered. After sorting
+     * {@link #id(int)} and {@link #weight(int)} return the pairs in that order, and no more pairs can be offered until
+     * the heap is cleared.
+     */
+    public void sort() {
+        if (sorted)
+            return;
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        sorted = true;
+    }
+
+    public int id(final int i) {
+        checkIndex(i);
+        return ids[i];
+    }
+
+    public double weight(final int i) {
+        checkIndex(i);
+        return weights[i];
+    }
+
+    /**
+     * Remove all pairs, keeping the allocated arrays for reuse.
+     */
+    public void clear() {
+        size = 0;
+        nextSequence = 0;
+        sorted = false;
+    }
+
+    private void checkIndex(final int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("index " + i + " not in range [0:" + size + ")");
+    }
+
+    /**
+     * @return true if the pair at index i should be retained in preference to the pair at index j
+     */
+    private boolean stronger(final int i, final int j) {
+        final int c = Double.compare(weights[i], weights[j]);
+        return c > 0 || (c == 0 && sequence[i] < sequence[j]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (!stronger(parent, i))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, final int end) {
+        while (true) {
+            final int left = 2 * i + 1;
+            if (left >= end)
+                break;
+            int weakest = left;
+            if (left + 1 < end && stronger(left, left + 1))
+                weakest = left + 1;
+            if (!stronger(i, weakest))
+                break;
+            swap(i, weakest);
+            i = weakest;
+        }
+    }
+
+    private void swap(final int i, final int j) {
+        final int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        final double weight = weights[i];
+        weights[i] = weights[j];
+        weights[j] = weight;
+        final int seq = sequence[i];
+        sequence[i] = sequence[j];
+        sequence[j] = seq;
+    }
+
+    private void grow() {
+        final int capacity = (int) Math.min(k, Math.max(INITIAL_CAPACITY, 2L * ids.length));
+        ids = Arrays.copyOf(ids, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+        sequence = Arrays.copyOf(sequence, capacity);
+    }
+
+    @Override
+    public String toString() {
+        return "TopKHeap{k=" + k + ", size=" + size + '}';
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import uk.ac.susx.mlcl.lib.Checks;
+
+import javax.annotation.WillClose;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A Writer that encodes characters as single bytes directly into a buffer, which is drained to a byte channel. It
+ * bypasses the general purpose charset encoder, so is only suitable for ASCII output; as with the US-ASCII encoder,
+ * any code point outside the ASCII range is replaced with <code>'?'</code>. A supplementary character, written as a
+ * surrogate pair, is replaced by a single <code>'?'</code>, even when the pair is split between calls.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class AsciiChannelWriter extends Writer {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte REPLACEMENT = '?';
+
+    private final WritableByteChannel channel;
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Whether the last character written was a high surrogate, whose replacement has already been written.
+     */
+    private boolean afterHighSurrogate = false;
+
+    AsciiChannelWriter(WritableByteChannel channel) {
+        Checks.checkNotNull("channel", channel);
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private void put(char c) throws IOException {
+        final boolean lowSurrogate = afterHighSurrogate && Character.isLowSurrogate(c);
+        afterHighSurrogate = Character.isHighSurrogate(c);
+        if (lowSurrogate)
+            return;
+        if (!buffer.hasRemaining())
+            drain();
+        buffer.put(c < 0x80 ? (byte) c : REPLACEMENT);
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        put((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++)
+            put(cbuf[i]);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++)
+            put(str.charAt(i));
+    }
+
+    @Override
+    public Writer append(char c) throws IOException {
+        put(c);
+        return this;
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        for (int i = 0; i < csq.length(); i++)
+            put(csq.charAt(i));
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    @WillClose
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            drain();
+            channel.close();
+        }
+    }
+}
@@ -291,6 +291,24 @@ public class CharFileChannel implements CharChannel, Seekable<Long> {
         return (fileSize == -1) ? (fileSize = fileChannel.size()) : fileSize;
     }
 
+    /**
+     * Restrict reading to the bytes before the given file offset, so the channel appears to end there. This allows a
+     * single slice of a file to be read, when the file has been split at record boundaries.
+     *
+     * @param limit file byte offset at which reading will stop
+     * @throws IllegalArgumentException if limit &lt; 0
+     * @throws java.io.IOException      If some other I/O error occurs
+     */
+    public void limit(long limit) throws IOException {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit < 0");
+        final long pos = position();
+        fileSize = Math.min(limit, fileChannel.size());
+        // The current mapping may extend beyond the limit, so drop it
+        bufferOffset = pos;
+        setBufferAbsent();
+    }
+
     /**
      * Return the offset of the next byte to be read form the {@link java.nio.channels.FileChannel}.</p>
      *
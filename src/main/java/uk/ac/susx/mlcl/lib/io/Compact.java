@@ -348,6 +348,10 @@ public final class Compact {
             extends DSource<S>
             implements SeekableDataSource {
 
+        private Object markHead;
+
+        private int markColumn;
+
         private SeekableDSource(S inner, int numColumns) {
             super(inner, numColumns);
         }
@@ -367,5 +371,19 @@ public final class Compact {
                     push(Object.class, currentHead).
                     push(Integer.class, column);
         }
+
+        @Override
+        public void markPosition() throws IOException {
+            markHead = currentHead;
+            markColumn = column;
+            inner.markPosition();
+        }
+
+        @Override
+        public Tell markedPosition() throws IOException {
+            return inner.markedPosition().
+                    push(Object.class, markHead).
+                    push(Integer.class, markColumn);
+        }
     }
 }
@@ -30,64 +30,170 @@
  */
 package uk.ac.susx.mlcl.lib.io;
 
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
 import java.io.*;
 import java.net.URI;
+import java.net.URISyntaxException;
 
 /**
+ * Implementation of a <code>DataStore</code> that retains its content as a byte array on the heap.
+ * <p/>
+ * Records are serialized in the same compact binary form as they would be on disk, so a run of small records costs
+ * little more than its encoded size, rather than the object overhead of holding every record live. Opening a sink
+ * replaces the current content; the newly written bytes become visible to sources once the sink is flushed or closed.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
+@NotThreadSafe
 public class DataMemoryStore implements DataStore {
 
+    private static final String SCHEME = DataMemoryStore.class.getSimpleName();
+
+    private static final String DEFAULT_NAME = "unnamed";
 
     private static final byte END_OF_RECORD_MARKER = 0;
 
+    /**
+     * An descriptor for the store.
+     */
+    private final URI name;
+
+    /**
+     * Backing storage, or null if the store does not exist. Only the first <code>length</code> bytes are valid.
+     */
+    @Nullable
+    private byte[] bytes;
+
+    private int length;
+
+    /**
+     * Construct a new <code>DataMemoryStore</code> with the given <code>name</code>. No storage is allocated until the
+     * store is touched or written.
+     *
+     * @param name arbitrary string description of the store
+     */
+    public DataMemoryStore(final String name) {
+        Preconditions.checkNotNull(name, "name");
+        try {
+            this.name = new URI(SCHEME, name, "");
+        } catch (URISyntaxException e) {
+            throw new AssertionError(e);
+        }
+        bytes = null;
+        length = 0;
+    }
+
+    /**
+     * Default constructor creates a new unnamed instance.
+     */
+    public DataMemoryStore() {
+        this(DEFAULT_NAME);
+    }
+
+    /**
+     * Get the number of bytes currently held by this store.
+     *
+     * @return size of the content in bytes
+     */
+    public long getSizeBytes() {
+        return length;
+    }
+
     @Override
-    public DataSource openDataSource() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+    public DataSource openDataSource() throws IOException {
+        if (!exists())
+            throw new IOException("Store does not exist.");
+        return new DataMemorySource(new ByteArrayInputStream(bytes, 0, length));
     }
 
     @Override
-    public DataSink openDataSink() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+    public DataSink openDataSink() throws IOException {
+        touch();
+        final Buffer buffer = new Buffer();
+        return new DataMemorySink(buffer) {
+            @Override
+            public void flush() throws IOException {
+                super.flush();
+                buffer.commit();
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                buffer.commit();
+            }
+        };
     }
 
     @Override
-    public SeekableDataSource openSeekableDataSource() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+    public SeekableDataSource openSeekableDataSource() throws IOException {
+        throw new IOException("Store does not support random access.");
     }
 
     @Override
     public boolean isSeekable() {
-        return false;  //To change body of implemented methods use File | Settings | File Templates.
+        return false;
     }
 
     @Override
     public URI getURI() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return name;
     }
 
     @Override
-    public boolean touch() throws IOException {
-        return false;  //To change body of implemented methods use File | Settings | File Templates.
+    public boolean touch() {
+        if (bytes == null) {
+            bytes = new byte[0];
+            length = 0;
+            return true;
+        } else {
+            return false;
+        }
     }
 
     @Override
-    public boolean free() throws IOException {
-        return false;  //To change body of implemented methods use File | Settings | File Templates.
+    public boolean free() {
+        if (bytes != null) {
+            bytes = null;
+            length = 0;
+            return true;
+        } else {
+            return false;
+        }
     }
 
     @Override
     public boolean exists() {
-        return false;  //To change body of implemented methods use File | Settings | File Templates.
+        return bytes != null;
     }
 
     @Override
     public boolean isReadable() {
-        return false;  //To change body of implemented methods use File | Settings | File Templates.
+        return true;
     }
 
     @Override
     public boolean isWritable() {
-        return false;  //To change body of implemented methods use File | Settings | File Templates.
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" + "name='" + name + '\'' + ", bytes=" + length + '}';
+    }
+
+    /**
+     * Output buffer that hands its internal array to the store directly, rather than copying it.
+     */
+    private final class Buffer extends ByteArrayOutputStream {
+
+        void commit() {
+            bytes = buf;
+            length = count;
+        }
     }
 
     public static class DataMemorySink implements DataSink, Closeable, Flushable {
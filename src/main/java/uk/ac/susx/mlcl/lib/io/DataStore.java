@@ -30,16 +30,18 @@
  */
 package uk.ac.susx.mlcl.lib.io;
 
+import java.io.IOException;
+
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
 public interface DataStore extends Store {
 
-    DataSource openDataSource();
+    DataSource openDataSource() throws IOException;
 
-    DataSink openDataSink();
+    DataSink openDataSink() throws IOException;
 
-    SeekableDataSource openSeekableDataSource();
+    SeekableDataSource openSeekableDataSource() throws IOException;
 
     /**
      * Get whether or not underlying resource supports limited random access capabilities.
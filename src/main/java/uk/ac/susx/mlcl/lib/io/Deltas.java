@@ -259,6 +259,10 @@ public final class Deltas {
             extends DeltaIntSource<T>
             implements SeekableDataSource {
 
+        private int markPrevious;
+
+        private int markColumn;
+
         SeekableDeltaIntSource(T inner,
                                Predicate<Integer> deltaCol) {
             super(inner, deltaCol);
@@ -279,5 +283,19 @@ public final class Deltas {
                     push(Integer.class, column).
                     push(Integer.class, previous);
         }
+
+        @Override
+        public void markPosition() throws IOException {
+            markPrevious = previous;
+            markColumn = column;
+            inner.markPosition();
+        }
+
+        @Override
+        public Tell markedPosition() throws IOException {
+            return inner.markedPosition().
+                    push(Integer.class, markColumn).
+                    push(Integer.class, markPrevious);
+        }
     }
 }
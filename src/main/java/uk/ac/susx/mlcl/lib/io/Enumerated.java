@@ -262,6 +262,8 @@ public final class Enumerated {
             extends ComplexDSource<S>
             implements SeekableDataSource {
 
+        private int markColumn;
+
         private ComplexSDSource(
                 S inner, Enumerator<String>[] enumerators) {
             super(inner, enumerators);
@@ -277,6 +279,17 @@ public final class Enumerated {
         public Tell position() throws IOException {
             return getInner().position().push(Integer.class, column);
         }
+
+        @Override
+        public void markPosition() throws IOException {
+            markColumn = column;
+            getInner().markPosition();
+        }
+
+        @Override
+        public Tell markedPosition() throws IOException {
+            return getInner().markedPosition().push(Integer.class, markColumn);
+        }
     }
 
     static class ComplexDSink<S extends DataSink>
@@ -433,6 +446,8 @@ public final class Enumerated {
             extends ComplexDSource2<S>
             implements SeekableDataSource {
 
+        private int markColumn;
+
         private ComplexSDSource2(
                 S inner, Enumerator<String> enumerator,
                 Predicate<Integer> enumColumn) {
@@ -449,6 +464,17 @@ public final class Enumerated {
         public Tell position() throws IOException {
             return getInner().position().push(Integer.class, column);
         }
+
+        @Override
+        public void markPosition() throws IOException {
+            markColumn = column;
+            getInner().markPosition();
+        }
+
+        @Override
+        public Tell markedPosition() throws IOException {
+            return getInner().markedPosition().push(Integer.class, markColumn);
+        }
     }
 
     static class ComplexDSink2<S extends DataSink>
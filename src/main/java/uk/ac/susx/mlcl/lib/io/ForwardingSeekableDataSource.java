@@ -56,4 +56,14 @@ public abstract class ForwardingSeekableDataSource<S extends SeekableDataSource>
         getInner().position(offset);
     }
 
+    @Override
+    public void markPosition() throws IOException {
+        getInner().markPosition();
+    }
+
+    @Override
+    public Tell markedPosition() throws IOException {
+        return getInner().markedPosition();
+    }
+
 }
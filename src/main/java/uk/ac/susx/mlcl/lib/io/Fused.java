@@ -0,0 +1,532 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
+import uk.ac.susx.mlcl.lib.Checks;
+
+import javax.annotation.Nullable;
+import javax.annotation.WillClose;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.channels.Channel;
+import java.util.Arrays;
+
+/**
+ * Single pass equivalent of stacking the {@link Deltas}, {@link Enumerated} and {@link Compact} decorators.
+ * <p/>
+ * Each layout is described by the number of logical columns in a record, a flag for every column denoting whether it
+ * is delta encoded, and an optional enumerator for every column. Because the compact format repeats the tail columns
+ * of a record after a shared head, the logical column counter is all that is required to select the encoding of the
+ * next field; no predicates are evaluated and no column indices are boxed.
+ * <p/>
+ * The file format produced and consumed is identical to that of the equivalent decorator stack, where enumeration is
+ * applied above delta encoding (so enumerated columns are never delta encoded), and delta state persists across
+ * records.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class Fused {
+
+    private Fused() {
+    }
+
+    public static SeekableDataSource fused(
+            SeekableDataSource inner, int numColumns, boolean[] deltaColumns,
+            Enumerator<String>[] enumerators) {
+        return new SeekableFusedSource(inner, numColumns, deltaColumns, enumerators);
+    }
+
+    public static DataSink fused(
+            DataSink inner, int numColumns, boolean[] deltaColumns,
+            Enumerator<String>[] enumerators, boolean compact) {
+        return new FusedSink(inner, numColumns, deltaColumns, enumerators, compact);
+    }
+
+    private static abstract class AbstractFused<I extends Channel> implements Channel {
+
+        final I inner;
+
+        final int numColumns;
+
+        final boolean[] deltaColumns;
+
+        final Enumerator<String>[] enumerators;
+
+        /**
+         * The last value read or written for each delta encoded column.
+         */
+        final int[] previous;
+
+        /**
+         * Logical column index within the current record.
+         */
+        int column;
+
+        /**
+         * Whether a head value is currently held; when false the next head must be read from, or written to, the
+         * inner channel.
+         */
+        boolean hasHead;
+
+        /**
+         * Integer head value; only valid when hasHead is true and headObject is null.
+         */
+        int headInt;
+
+        /**
+         * Head value for any column 0 type other than int.
+         */
+        @Nullable
+        Object headObject;
+
+        AbstractFused(I inner, int numColumns, boolean[] deltaColumns,
+                      Enumerator<String>[] enumerators) {
+            Checks.checkNotNull("inner", inner);
+            Checks.checkNotNull("deltaColumns", deltaColumns);
+            Checks.checkNotNull("enumerators", enumerators);
+            Checks.checkRangeIncl("numColumns", numColumns, 1, Integer.MAX_VALUE);
+            if (deltaColumns.length != numColumns || enumerators.length != numColumns)
+                throw new IllegalArgumentException(
+                        "Expecting the deltaColumns and enumerators lengths to equal numColumns " + numColumns);
+            this.inner = inner;
+            this.numColumns = numColumns;
+            this.deltaColumns = deltaColumns.clone();
+            this.enumerators = enumerators.clone();
+            previous = new int[numColumns];
+            column = 0;
+            clearHead();
+        }
+
+        final void clearHead() {
+            hasHead = false;
+            headInt = 0;
+            headObject = null;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return inner.isOpen();
+        }
+
+        @Override
+        @WillClose
+        public void close() throws IOException {
+            inner.close();
+        }
+    }
+
+    private static class FusedSource<S extends DataSource>
+            extends AbstractFused<S>
+            implements DataSource {
+
+        FusedSource(S inner, int numColumns, boolean[] deltaColumns,
+                    Enumerator<String>[] enumerators) {
+            super(inner, numColumns, deltaColumns, enumerators);
+        }
+
+        private int decodeInt(int col) throws IOException {
+            if (enumerators[col] != null) {
+                return enumerators[col].indexOf(inner.readString());
+            } else if (deltaColumns[col]) {
+                previous[col] += inner.readInt();
+                return previous[col];
+            } else {
+                return inner.readInt();
+            }
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            if (column == 0) {
+                if (!hasHead) {
+                    headInt = decodeInt(0);
+                    hasHead = true;
+                }
+                column = 1;
+                return headInt;
+            } else {
+                return decodeInt(column++);
+            }
+        }
+
+        @Override
+        public boolean canRead() throws IOException {
+            return inner.canRead();
+        }
+
+        @Override
+        public boolean isEndOfRecordNext() throws IOException {
+            return column == numColumns;
+        }
+
+        @Override
+        public void endOfRecord() throws IOException {
+            assert isEndOfRecordNext();
+            column = 0;
+            if (inner.isEndOfRecordNext()) {
+                clearHead();
+                inner.endOfRecord();
+            }
+        }
+
+        @Override
+        public void skipRecord() throws IOException {
+            inner.skipRecord();
+            column = 0;
+            clearHead();
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            if (column++ == 0) {
+                if (!hasHead) {
+                    headObject = inner.readByte();
+                    hasHead = true;
+                }
+                return (Byte) headObject;
+            }
+            return inner.readByte();
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            if (column++ == 0) {
+                if (!hasHead) {
+                    headObject = inner.readChar();
+                    hasHead = true;
+                }
+                return (Character) headObject;
+            }
+            return inner.readChar();
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            if (column++ == 0) {
+                if (!hasHead) {
+                    headObject = inner.readShort();
+                    hasHead = true;
+                }
+                return (Short) headObject;
+            }
+            return inner.readShort();
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            if (column++ == 0) {
+                if (!hasHead) {
+                    headObject = inner.readLong();
+                    hasHead = true;
+                }
+                return (Long) headObject;
+            }
+            return inner.readLong();
+        }
+
+        @Override
+        public float readFloat() throws IOException {
+            if (column++ == 0) {
+                if (!hasHead) {
+                    headObject = inner.readFloat();
+                    hasHead = true;
+                }
+                return (Float) headObject;
+            }
+            return inner.readFloat();
+        }
+
+        @Override
+        public double readDouble() throws IOException {
+            if (column++ == 0) {
+                if (!hasHead) {
+                    headObject = inner.readDouble();
+                    hasHead = true;
+                }
+                return (Double) headObject;
+            }
+            return inner.readDouble();
+        }
+
+        @Override
+        public String readString() throws IOException {
+            if (column++ == 0) {
+                if (!hasHead) {
+                    headObject = inner.readString();
+                    hasHead = true;
+                }
+                return (String) headObject;
+            }
+            return inner.readString();
+        }
+    }
+
+    private static final class SeekableFusedSource
+            extends FusedSource<SeekableDataSource>
+            implements SeekableDataSource {
+
+        private final int[] markPrevious;
+
+        private int markColumn;
+
+        private boolean markHasHead;
+
+        private int markHeadInt;
+
+        @Nullable
+        private Object markHeadObject;
+
+        SeekableFusedSource(SeekableDataSource inner, int numColumns, boolean[] deltaColumns,
+                            Enumerator<String>[] enumerators) {
+            super(inner, numColumns, deltaColumns, enumerators);
+            markPrevious = new int[numColumns];
+        }
+
+        @Override
+        public void position(Tell offset) throws IOException {
+            final State state = offset.value(State.class);
+            column = state.column;
+            hasHead = state.hasHead;
+            headInt = state.headInt;
+            headObject = state.headObject;
+            System.arraycopy(state.previous, 0, previous, 0, numColumns);
+            inner.position(offset.next());
+        }
+
+        @Override
+        public Tell position() throws IOException {
+            return inner.position().push(State.class,
+                    new State(column, hasHead, headInt, headObject, previous.clone()));
+        }
+
+        @Override
+        public void markPosition() throws IOException {
+            markColumn = column;
+            markHasHead = hasHead;
+            markHeadInt = headInt;
+            markHeadObject = headObject;
+            System.arraycopy(previous, 0, markPrevious, 0, numColumns);
+            inner.markPosition();
+        }
+
+        @Override
+        public Tell markedPosition() throws IOException {
+            return inner.markedPosition().push(State.class,
+                    new State(markColumn, markHasHead, markHeadInt, markHeadObject, markPrevious.clone()));
+        }
+    }
+
+    private static final class FusedSink
+            extends AbstractFused<DataSink>
+            implements DataSink, Flushable {
+
+        private final boolean compact;
+
+        FusedSink(DataSink inner, int numColumns, boolean[] deltaColumns,
+                  Enumerator<String>[] enumerators, boolean compact) {
+            super(inner, numColumns, deltaColumns, enumerators);
+            this.compact = compact;
+        }
+
+        private void encodeInt(int col, int val) throws IOException {
+            if (enumerators[col] != null) {
+                inner.writeString(enumerators[col].valueOf(val));
+            } else if (deltaColumns[col]) {
+                inner.writeInt(val - previous[col]);
+                previous[col] = val;
+            } else {
+                inner.writeInt(val);
+            }
+        }
+
+        /**
+         * Terminate the current physical record, if there is one, ready for a new head to be written.
+         */
+        private void newHead() throws IOException {
+            if (hasHead)
+                inner.endOfRecord();
+            clearHead();
+        }
+
+        @Override
+        public void writeInt(int val) throws IOException {
+            if (column == 0 && compact) {
+                if (!hasHead || headObject != null || headInt != val) {
+                    newHead();
+                    encodeInt(0, val);
+                    headInt = val;
+                    hasHead = true;
+                }
+                column = 1;
+            } else {
+                encodeInt(column++, val);
+            }
+        }
+
+        /**
+         * Return true if a head value of any type other than int must be written.
+         */
+        private boolean isNewHead(Object head) throws IOException {
+            if (column++ > 0 || !compact)
+                return true;
+            if (hasHead && head.equals(headObject))
+                return false;
+            newHead();
+            headObject = head;
+            hasHead = true;
+            return true;
+        }
+
+        @Override
+        public void writeByte(byte val) throws IOException {
+            if (isNewHead(val))
+                inner.writeByte(val);
+        }
+
+        @Override
+        public void writeChar(char val) throws IOException {
+            if (isNewHead(val))
+                inner.writeChar(val);
+        }
+
+        @Override
+        public void writeShort(short val) throws IOException {
+            if (isNewHead(val))
+                inner.writeShort(val);
+        }
+
+        @Override
+        public void writeLong(long val) throws IOException {
+            if (isNewHead(val))
+                inner.writeLong(val);
+        }
+
+        @Override
+        public void writeFloat(float val) throws IOException {
+            if (isNewHead(val))
+                inner.writeFloat(val);
+        }
+
+        @Override
+        public void writeDouble(double val) throws IOException {
+            if (isNewHead(val))
+                inner.writeDouble(val);
+        }
+
+        @Override
+        public void writeString(String val) throws IOException {
+            if (isNewHead(val))
+                inner.writeString(val);
+        }
+
+        @Override
+        public void endOfRecord() throws IOException {
+            column = 0;
+            if (!compact)
+                inner.endOfRecord();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (inner instanceof Flushable)
+                ((Flushable) inner).flush();
+        }
+
+        @Override
+        @WillClose
+        public void close() throws IOException {
+            if (compact && hasHead) {
+                inner.endOfRecord();
+                clearHead();
+                flush();
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Snapshot of the decoder state, stored in a {@link Tell} so seeking can restore it.
+     */
+    private static final class State implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final int column;
+
+        final boolean hasHead;
+
+        final int headInt;
+
+        @Nullable
+        final Object headObject;
+
+        final int[] previous;
+
+        State(int column, boolean hasHead, int headInt, @Nullable Object headObject, int[] previous) {
+            this.column = column;
+            this.hasHead = hasHead;
+            this.headInt = headInt;
+            this.headObject = headObject;
+            this.previous = previous;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            final State other = (State) obj;
+            return column == other.column
+                    && hasHead == other.hasHead
+                    && headInt == other.headInt
+                    && (headObject == null ? other.headObject == null : headObject.equals(other.headObject))
+                    && Arrays.equals(previous, other.previous);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 31 * hash + column;
+            hash = 31 * hash + (hasHead ? 1 : 0);
+            hash = 31 * hash + headInt;
+            hash = 31 * hash + (headObject != null ? headObject.hashCode() : 0);
+            hash = 31 * hash + Arrays.hashCode(previous);
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "State{column=" + column + ", hasHead=" + hasHead + ", headInt=" + headInt
+                    + ", headObject=" + headObject + ", previous=" + Arrays.toString(previous) + '}';
+        }
+    }
+}
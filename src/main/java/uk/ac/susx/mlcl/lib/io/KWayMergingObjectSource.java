@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <code>KWayMergingObjectSource</code> merges the output of any number of child <code>ObjectSource</code> objects in a
+ * single node; such that if the child sources where sorted, the result will also be sorted.
+ * <p/>
+ * The merge is implemented as a tournament tree of losers. Each internal node of the tree records the index of the
+ * source that lost the comparison at that node, and the overall winner is held separately. Reading an object replaces
+ * the winner's head, and replays the matches along the path from that source to the root: exactly
+ * ceil(log<sub>2</sub>(k)) comparisons, against a contiguous array of indices, with no virtual calls between levels.
+ * This compares favourably to a tree of binary {@link MergingObjectSource} nodes, which requires the same number of
+ * comparisons, but must pass every object through a chain of nested read() calls.
+ * <p/>
+ * Ties are broken by source index, so the merge is stable with respect to the order of the inputs.
+ *
+ * @param <T> type of object contained in the sources
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@NotThreadSafe
+@CheckReturnValue
+public final class KWayMergingObjectSource<T> implements ObjectSource<T> {
+
+    private final Comparator<T> comparator;
+
+    private final ObjectSource<T>[] sources;
+
+    /**
+     * Current head of each source, or null if the source is exhausted.
+     */
+    private final Object[] heads;
+
+    /**
+     * Index of the losing source at each internal node. Node 1 is the root, and the leaf for source i is node k + i.
+     */
+    private final int[] losers;
+
+    private int winner;
+
+    private boolean initialised = false;
+
+    /**
+     * Construct a new <code>KWayMergingObjectSource</code> instance, that merges all of the given <code>sources</code>,
+     * using the given <code>comparator</code>.
+     *
+     * @param comparator method of comparison between objects in the sources
+     * @param sources    sources to merge
+     * @throws NullPointerException     if any parameter is null
+     * @throws IllegalArgumentException if sources is empty
+     */
+    public KWayMergingObjectSource(final Comparator<T> comparator, final ObjectSource<T>... sources) {
+        Preconditions.checkNotNull(comparator, "comparator");
+        Preconditions.checkNotNull(sources, "sources");
+        Preconditions.checkArgument(sources.length > 0, "sources is empty");
+        for (ObjectSource<T> source : sources)
+            Preconditions.checkNotNull(source, "source");
+        this.comparator = comparator;
+        this.sources = Arrays.copyOf(sources, sources.length);
+        this.heads = new Object[sources.length];
+        this.losers = new int[sources.length];
+    }
+
+    public Comparator<T> getComparator() {
+        return comparator;
+    }
+
+    /**
+     * @return the number of sources being merged
+     */
+    public int getSourceCount() {
+        return sources.length;
+    }
+
+    @Override
+    public T read() throws IOException {
+        if (!initialised) initialise();
+
+        int w = winner;
+        @SuppressWarnings("unchecked")
+        final T result = (T) heads[w];
+        if (result == null)
+            throw new IOException("Source is empty.");
+        heads[w] = sources[w].hasNext() ? sources[w].read() : null;
+
+        // Replay the matches from the winner's leaf up to the root
+        for (int node = (w + sources.length) >>> 1; node > 0; node >>>= 1) {
+            final int opponent = losers[node];
+            if (beats(opponent, w)) {
+                losers[node] = w;
+                w = opponent;
+            }
+        }
+        winner = w;
+        return result;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        if (!initialised) initialise();
+        return heads[winner] != null;
+    }
+
+    /**
+     * Whether the head of source <code>a</code> should be output before the head of source <code>b</code>. Exhausted
+     * sources lose to everything.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean beats(final int a, final int b) {
+        if (heads[b] == null)
+            return true;
+        if (heads[a] == null)
+            return false;
+        final int c = comparator.compare((T) heads[a], (T) heads[b]);
+        return c < 0 || (c == 0 && a < b);
+    }
+
+    private void initialise() throws IOException {
+        for (int i = 0; i < sources.length; i++)
+            heads[i] = sources[i].hasNext() ? sources[i].read() : null;
+        winner = sources.length == 1 ? 0 : play(1);
+        initialised = true;
+    }
+
+    /**
+     * Recursively play the matches for the subtree rooted at <code>node</code>, recording the loser of each match.
+     *
+     * @return index of the source that won the subtree
+     */
+    private int play(final int node) {
+        if (node >= sources.length)
+            return node - sources.length;
+        final int a = play(2 * node);
+        final int b = play(2 * node + 1);
+        if (beats(a, b)) {
+            losers[node] = b;
+            return a;
+        } else {
+            losers[node] = a;
+            return b;
+        }
+    }
+
+    /**
+     * Close and free up resources associated with this source. Also closes all child sources.
+     *
+     * @throws IOException thrown by <code>close()</code> on child sources
+     */
+    @Override
+    public void close() throws IOException {
+        IOException first = null;
+        for (ObjectSource<T> source : sources) {
+            try {
+                source.close();
+            } catch (IOException ex) {
+                if (first == null)
+                    first = ex;
+            }
+        }
+        Arrays.fill(heads, null);
+        if (first != null)
+            throw first;
+    }
+
+    /**
+     * Get whether this source is open; which is true if any of the child sources are open.
+     *
+     * @return true if this source is open, false otherwise
+     */
+    @Override
+    public boolean isOpen() {
+        for (ObjectSource<T> source : sources)
+            if (source.isOpen())
+                return true;
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "KWayMergingObjectSource[" +
+                "comparator=" + comparator +
+                ", sources=" + Arrays.toString(sources) +
+                ']';
+    }
+}
@@ -151,6 +151,11 @@ public final class Lexer implements Seekable<Tell>, Channel {
      */
     private Position pos = new Position();
 
+    /**
+     * Copy of <code>pos</code> taken at the last call to {@link #markPosition()}.
+     */
+    private final Position mark = new Position();
+
     /**
      * Store decoded characters
      */
@@ -204,6 +209,25 @@ public final class Lexer implements Seekable<Tell>, Channel {
         this(new CharFileChannel(new FileInputStream(file).getChannel(), charset));
     }
 
+    /**
+     * <p>Construct a new {@link Lexer} that reads only the region of the file between the byte offsets
+     * <code>start</code> (inclusive) and <code>end</code> (exclusive). Both offsets must lie on lexical boundaries, and
+     * the character set must be able to decode from <code>start</code>.</p>
+     *
+     * @param file    file to read from
+     * @param charset character set to decode with
+     * @param start   file byte offset of the first lexeme
+     * @param end     file byte offset at which reading will stop
+     * @throws NullPointerException if file or charset are null
+     * @throws IOException          if the file could not be opened
+     */
+    public Lexer(File file, Charset charset, long start, long end) throws NullPointerException, IOException {
+        this(file, charset);
+        channel.limit(end);
+        channel.position(start);
+        channelRestartOffset = start;
+    }
+
     public void setDelimiterMatcher(CharMatcher delimiterMatcher) {
         this.delimiterMatcher = delimiterMatcher;
     }
@@ -489,6 +513,24 @@ public final class Lexer implements Seekable<Tell>, Channel {
         return new Tell(Position.class, new Position(pos));
     }
 
+    /**
+     * Store the position of the currently advanced lexeme, without instantiating a {@link Tell}. It can be retrieved
+     * later by calling {@link #markedPosition()}.
+     */
+    public void markPosition() {
+        mark.channelOffset = pos.channelOffset;
+        mark.bufferOffset = pos.bufferOffset;
+    }
+
+    /**
+     * Return the position stored by the last call to {@link #markPosition()}.
+     *
+     * @return byte offset of the marked lexeme.
+     */
+    public Tell markedPosition() {
+        return new Tell(Position.class, new Position(mark));
+    }
+
     /**
      * <p>Resets the lexer to start iterating from the given byte <code>offset</code>. If the <code>offset</code> is not
      * at a valid lexical boundary, behavior will be undefined. Correct behavior is only guaranteed when the given
@@ -47,8 +47,10 @@ import java.util.Comparator;
  * such that if the child sources where sorted, the result will also be sorted.
  * <p/>
  * Instances of <code>MergingObjectSource</code> can be stacked hierarchically to produce a binary-tree of merging sources
- * known as a multi-way or k-way merge. The factory method {@link #merge(java.util.Comparator, ObjectSource[])} has been
- * provided to automatically build a balanced k-way merge tree from the given array of sources.
+ * known as a multi-way or k-way merge; the factory method {@link #mergeTree(java.util.Comparator, ObjectSource[])}
+ * builds such a balanced tree. For more than two sources the factory method
+ * {@link #merge(java.util.Comparator, ObjectSource[])} should be preferred, which produces a single
+ * {@link KWayMergingObjectSource}.
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
@@ -107,17 +109,17 @@ public final class MergingObjectSource<T> implements ObjectSource<T> {
 
     /**
      * Factory method producing an <code>ObjectSource</code> that k-way-merges all the input sources simultaneously.
-     * This is achieved by building a tree of binary mergers using <code>MergingObjectSource</code> instances.
+     * This is achieved using a single {@link KWayMergingObjectSource}, which holds a tournament tree over all the
+     * inputs.
      * <p/>
      * The alternative is to perform a two-way merge on each pair of sources, writing the resource out somewhere, then
      * repeat until all parts have been merged. The asymptotic complexity of number of comparisons is identical between
      * these two methods O(nk log k) for k partitions, of average length n. They differ in that a multi-way merge
-     * performs the entire operation at once, substantially reducing the I/O overhead if writing is expensive. The trade
-     * of is that multi-merge has a slightly higher constant overhead per comparison, which results in it
-     * under-performing when merging small lists.
+     * performs the entire operation at once, substantially reducing the I/O overhead if writing is expensive.
      * <p/>
      * If <code>inputs</code> is empty then an empty source is returned. If inputs contains exactly one source, then
-     * only that source is returned.
+     * only that source is returned. If inputs contains exactly two sources then a <code>MergingObjectSource</code> is
+     * returned.
      *
      * @param comparator method of comparison between objects in the two sources
      * @param inputs     any number of <code>ObjectSource</code> objects to be merged
@@ -126,6 +128,30 @@ public final class MergingObjectSource<T> implements ObjectSource<T> {
      * @throws NullPointerException if comparator is null
      */
     public static <T> ObjectSource<T> merge(final Comparator<T> comparator, final ObjectSource<T>... inputs) {
+        switch (inputs.length) {
+            case 0:
+                return ObjectIO.<T>nullSource();
+            case 1:
+                return inputs[0];
+            case 2:
+                return new MergingObjectSource<T>(inputs[0], inputs[1], comparator);
+            default:
+                return new KWayMergingObjectSource<T>(comparator, inputs);
+        }
+    }
+
+    /**
+     * Factory method producing an <code>ObjectSource</code> that k-way-merges all the input sources by building a
+     * balanced binary tree of <code>MergingObjectSource</code> instances. Generally {@link #merge(java.util.Comparator,
+     * ObjectSource[])} should be preferred.
+     *
+     * @param comparator method of comparison between objects in the two sources
+     * @param inputs     any number of <code>ObjectSource</code> objects to be merged
+     * @param <T>        type of object contained in the sources
+     * @return An object source that will merge all the inputs as it is read.
+     * @throws NullPointerException if comparator is null
+     */
+    public static <T> ObjectSource<T> mergeTree(final Comparator<T> comparator, final ObjectSource<T>... inputs) {
         if (inputs.length == 0) {
             return ObjectIO.<T>nullSource();
         }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import java.text.DecimalFormat;
+
+/**
+ * Formats numbers into a reusable character buffer, so that writing numeric values does not instantiate any objects.
+ * <p/>
+ * Doubles are formatted identically to <code>new DecimalFormat("###0.0#####")</code> (i.e. rounded half-even to at
+ * most 6 fraction digits, with trailing zeros removed), except that integral values are formatted as integers. The
+ * common case is handled by fixed-point arithmetic; values that are very large, round to zero, or lie too close to a
+ * rounding tie to be decided reliably, are delegated to a <code>DecimalFormat</code>.
+ * <p/>
+ * Instances are not thread safe.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class NumberFormatter {
+
+    private static final int FRACTION_DIGITS = 6;
+
+    private static final long FRACTION_SCALE = 1000000L;
+
+    /**
+     * Doubles with a magnitude less than this limit are formatted using the fast path. At the limit the scaled value
+     * is 1e12, so the error introduced by scaling is at most ulp(1e12) = 1.2e-4.
+     */
+    private static final double FAST_PATH_LIMIT = 1e6;
+
+    /**
+     * Scaled values with a remainder within this distance of one half may round differently to the exact binary
+     * value, so they are formatted using the slow path.
+     */
+    private static final double TIE_TOLERANCE = 1e-3;
+
+    /**
+     * Integral doubles with a magnitude less than this limit can be cast to a long without loss.
+     */
+    private static final double LONG_LIMIT = 9.2e18;
+
+    private static final char[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).toCharArray();
+
+    private char[] buffer = new char[32];
+
+    private DecimalFormat slowFormat = null;
+
+    /**
+     * @return the buffer containing the most recently formatted value, starting at offset 0
+     */
+    char[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Format the given integer into the buffer.
+     *
+     * @param val value to format
+     * @return the number of characters written to the buffer
+     */
+    int format(long val) {
+        if (val == Long.MIN_VALUE) {
+            System.arraycopy(LONG_MIN_VALUE, 0, buffer, 0, LONG_MIN_VALUE.length);
+            return LONG_MIN_VALUE.length;
+        }
+        int length = 0;
+        if (val < 0) {
+            buffer[length++] = '-';
+            val = -val;
+        }
+        return appendDigits(val, length);
+    }
+
+    /**
+     * Format the given double into the buffer.
+     *
+     * @param val value to format
+     * @return the number of characters written to the buffer
+     */
+    int format(double val) {
+        if (Double.isNaN(val) || Double.isInfinite(val))
+            return copy(Double.toString(val));
+
+        final double abs = Math.abs(val);
+        if (abs < LONG_LIMIT && Math.floor(val) == val)
+            return format((long) val);
+
+        if (abs < FAST_PATH_LIMIT) {
+            final double scaled = abs * FRACTION_SCALE;
+            final double floor = Math.floor(scaled);
+            final double remainder = scaled - floor;
+            if (Math.abs(remainder - 0.5) > TIE_TOLERANCE) {
+                final long rounded = (long) floor + (remainder > 0.5 ? 1 : 0);
+                if (rounded != 0)
+                    return formatFixed(val < 0, rounded);
+            }
+        }
+
+        if (slowFormat == null)
+            slowFormat = new DecimalFormat("###0.0#####;-###0.0#####");
+        return copy(slowFormat.format(val));
+    }
+
+    private int formatFixed(boolean negative, long scaled) {
+        int length = 0;
+        if (negative)
+            buffer[length++] = '-';
+        length = appendDigits(scaled / FRACTION_SCALE, length);
+        buffer[length++] = '.';
+
+        long fraction = scaled % FRACTION_SCALE;
+        int digits = FRACTION_DIGITS;
+        while (digits > 1 && fraction % 10 == 0) {
+            fraction /= 10;
+            --digits;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        return length + digits;
+    }
+
+    /**
+     * Write the decimal digits of the non-negative value at the given offset.
+     *
+     * @return the offset after the last digit
+     */
+    private int appendDigits(long val, int offset) {
+        int digits = 1;
+        for (long x = val / 10; x != 0; x /= 10)
+            ++digits;
+        final int end = offset + digits;
+        for (int i = end - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + val % 10);
+            val /= 10;
+        }
+        return end;
+    }
+
+    private int copy(String str) {
+        if (str.length() > buffer.length)
+            buffer = new char[Math.max(str.length(), buffer.length * 2)];
+        str.getChars(0, str.length(), buffer, 0);
+        return str.length();
+    }
+}
@@ -66,6 +66,56 @@ public final class ObjectIO {
         };
     }
 
+    /**
+     * Create a sink that writes every record to both <code>a</code> and <code>b</code>, in that order. Flushing and
+     * closing are likewise passed on to both.
+     */
+    public static <T> ObjectSink<T> tee(final ObjectSink<T> a, final ObjectSink<T> b) {
+        Checks.checkNotNull("a", a);
+        Checks.checkNotNull("b", b);
+        return new TeeObjectSink<T>(a, b);
+    }
+
+    private static final class TeeObjectSink<T> implements ObjectSink<T>, Flushable {
+
+        private final ObjectSink<T> a;
+
+        private final ObjectSink<T> b;
+
+        TeeObjectSink(final ObjectSink<T> a, final ObjectSink<T> b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public void write(T record) throws IOException {
+            a.write(record);
+            b.write(record);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (a instanceof Flushable)
+                ((Flushable) a).flush();
+            if (b instanceof Flushable)
+                ((Flushable) b).flush();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return a.isOpen() && b.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                a.close();
+            } finally {
+                b.close();
+            }
+        }
+    }
+
     public static <T> ObjectSource<T> nullSource() {
         return new ObjectSource<T>() {
 
@@ -91,6 +141,47 @@ public final class ObjectIO {
         };
     }
 
+    /**
+     * Produce a source that reads at most <code>limit</code> records from <code>inner</code>, after which it reports
+     * being exhausted. Closing the returned source closes <code>inner</code>.
+     *
+     * @param inner source to read from
+     * @param limit maximum number of records to read
+     * @param <T>   type of record
+     * @return the limited source
+     */
+    public static <T> ObjectSource<T> limit(final ObjectSource<T> inner, final long limit) {
+        Checks.checkNotNull("inner", inner);
+        Checks.checkRangeIncl("limit", limit, 0, Long.MAX_VALUE);
+        return new ObjectSource<T>() {
+
+            private long remaining = limit;
+
+            @Override
+            public T read() throws IOException {
+                if (remaining <= 0)
+                    throw new NoSuchElementException("Limit of " + limit + " records reached.");
+                --remaining;
+                return inner.read();
+            }
+
+            @Override
+            public boolean hasNext() throws IOException {
+                return remaining > 0 && inner.hasNext();
+            }
+
+            @Override
+            public boolean isOpen() {
+                return inner.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                inner.close();
+            }
+        };
+    }
+
     public static <T> SeekableObjectSource<T, Void> nullSeekableSource() {
         return new SeekableObjectSource<T, Void>() {
 
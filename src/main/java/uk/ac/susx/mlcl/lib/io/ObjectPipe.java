@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>ObjectPipe</code> is a bounded in-memory channel between a producer, writing to the {@link #sink()}, and a
+ * consumer, reading from the {@link #source()}, on another thread. It lets one processing stage feed the next
+ * directly, rather than through a file.
+ * <p/>
+ * Objects are passed in blocks, so that the threads synchronise once per block rather than once per object. At most
+ * <code>capacity</code> blocks are held; once they are full the producer waits for the consumer, so a fast producer
+ * is held back to the pace of the consumer rather than filling the heap.
+ * <p/>
+ * Closing the sink marks the end of the stream. If the producer fails it should call {@link #fail(Throwable)}, which
+ * ends the stream with an error that is rethrown to the consumer. If the consumer closes the source before the end of
+ * the stream, further writes to the sink fail, so neither thread is left waiting for the other.
+ *
+ * @param <T> type of object passed through the pipe
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@ThreadSafe
+public final class ObjectPipe<T> {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Interval at which a blocked producer checks whether the consumer has gone away.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private final int blockSize;
+
+    private final BlockingQueue<Block<T>> queue;
+
+    private final PipeSink sink = new PipeSink();
+
+    private final PipeSource source = new PipeSource();
+
+    private volatile boolean sourceClosed = false;
+
+    public ObjectPipe(final int blockSize, final int capacity) {
+        Preconditions.checkArgument(blockSize > 0, "blockSize <= 0");
+        Preconditions.checkArgument(capacity > 0, "capacity <= 0");
+        this.blockSize = blockSize;
+        this.queue = new ArrayBlockingQueue<Block<T>>(capacity);
+    }
+
+    public ObjectPipe() {
+        this(DEFAULT_BLOCK_SIZE, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @return the producer end of the pipe, which must only be written by one thread at a time
+     */
+    public ObjectSink<T> sink() {
+        return sink;
+    }
+
+    /**
+     * @return the consumer end of the pipe, which must only be read by one thread
+     */
+    public ObjectSource<T> source() {
+        return source;
+    }
+
+    /**
+     * End the stream with an error, discarding anything not yet passed to the consumer. The consumer will receive
+     * the error, wrapped in an <code>IOException</code> if necessary, once it has read what was already queued.
+     *
+     * @param error the cause of the failure
+     */
+    public void fail(final Throwable error) {
+        Preconditions.checkNotNull(error, "error");
+        synchronized (sink) {
+            if (!sink.closed) {
+                sink.closed = true;
+                sink.items = null;
+                try {
+                    put(new Block<T>(Collections.<T>emptyList(), error, true));
+                } catch (IOException ignored) {
+                    // The consumer has gone already
+                }
+            }
+        }
+    }
+
+    private void put(final Block<T> block) throws IOException {
+        try {
+            while (!queue.offer(block, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (sourceClosed)
+                    throw new IOException("Pipe has been closed by the consumer.");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + "[blockSize=" + blockSize
+                + ", capacity=" + (queue.size() + queue.remainingCapacity()) + ']';
+    }
+
+    private final class PipeSink implements ObjectSink<T>, Flushable {
+
+        private List<T> items = new ArrayList<T>(blockSize);
+
+        private boolean closed = false;
+
+        @Override
+        public synchronized void write(final T record) throws IOException {
+            if (closed)
+                throw new IOException("Pipe sink has been closed.");
+            if (sourceClosed)
+                throw new IOException("Pipe has been closed by the consumer.");
+            items.add(record);
+            if (items.size() >= blockSize) {
+                put(new Block<T>(items, null, false));
+                items = new ArrayList<T>(blockSize);
+            }
+        }
+
+        /**
+         * Pass on any partially filled block, so the consumer need not wait for it to fill.
+         */
+        @Override
+        public synchronized void flush() throws IOException {
+            if (!closed && !items.isEmpty()) {
+                put(new Block<T>(items, null, false));
+                items = new ArrayList<T>(blockSize);
+            }
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                final List<T> last = items;
+                items = null;
+                put(new Block<T>(last, null, true));
+            }
+        }
+    }
+
+    private final class PipeSource implements ObjectSource<T> {
+
+        private Block<T> current = null;
+
+        private int index = 0;
+
+        @Override
+        public T read() throws IOException {
+            if (!fill())
+                throw new IOException("Source is empty.");
+            return current.items.get(index++);
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            return fill();
+        }
+
+        /**
+         * Ensure the current block has at least one unread item, taking the next block from the queue if necessary.
+         *
+         * @return true if there is an item to read, false if the stream has ended
+         */
+        private boolean fill() throws IOException {
+            while (current == null || index >= current.items.size()) {
+                if (current != null && current.last)
+                    return false;
+                if (sourceClosed)
+                    throw new IOException("Pipe source has been closed.");
+                try {
+                    current = queue.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                index = 0;
+                if (current.error != null) {
+                    if (current.error instanceof IOException)
+                        throw (IOException) current.error;
+                    throw new IOException(current.error);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !sourceClosed;
+        }
+
+        @Override
+        public void close() {
+            sourceClosed = true;
+            // Make room for a producer that is waiting on a full queue
+            queue.clear();
+            current = null;
+        }
+    }
+
+    private static final class Block<T> {
+
+        final List<T> items;
+
+        final Throwable error;
+
+        final boolean last;
+
+        Block(List<T> items, Throwable error, boolean last) {
+            this.items = items;
+            this.error = error;
+            this.last = last;
+        }
+    }
+}
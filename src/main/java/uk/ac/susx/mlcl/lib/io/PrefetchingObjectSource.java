@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <code>PrefetchingObjectSource</code> is an <code>ObjectSource</code> adapter that reads ahead of the consumer on a
+ * background thread. Objects are read from the inner source in blocks, and up to two blocks are held ready, so that
+ * decoding the inner source overlaps with whatever the consumer is doing.
+ * <p/>
+ * This is most useful when many sources are consumed by a single thread, such as in a k-way merge, where otherwise the
+ * merge would stall on the I/O and parsing of each input in turn.
+ * <p/>
+ * Once the background thread has been started, the inner source must not be accessed other than through this
+ * adapter. The thread is started lazily on first access, and terminates when the inner source is exhausted, or when
+ * {@link #stop()} or {@link #close()} are called.
+ *
+ * @param <T> type of object contained in the source
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@NotThreadSafe
+public final class PrefetchingObjectSource<T> implements ObjectSource<T> {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private static final int QUEUED_BLOCKS = 2;
+
+    private final ObjectSource<T> inner;
+
+    private final int blockSize;
+
+    private final BlockingQueue<Block<T>> queue =
+            new ArrayBlockingQueue<Block<T>>(QUEUED_BLOCKS);
+
+    private Thread worker = null;
+
+    private volatile boolean stopped = false;
+
+    private Block<T> current = null;
+
+    private int index = 0;
+
+    public PrefetchingObjectSource(final ObjectSource<T> inner, final int blockSize) {
+        Preconditions.checkNotNull(inner, "inner");
+        Preconditions.checkArgument(blockSize > 0, "blockSize <= 0");
+        this.inner = inner;
+        this.blockSize = blockSize;
+    }
+
+    public PrefetchingObjectSource(final ObjectSource<T> inner) {
+        this(inner, DEFAULT_BLOCK_SIZE);
+    }
+
+    public ObjectSource<T> getInner() {
+        return inner;
+    }
+
+    @Override
+    public T read() throws IOException {
+        if (!fill())
+            throw new IOException("Source is empty.");
+        return current.items.get(index++);
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return fill();
+    }
+
+    /**
+     * Ensure the current block has at least one unread item, taking the next block from the queue if necessary.
+     *
+     * @return true if there is an item to read, false if the inner source is exhausted
+     */
+    private boolean fill() throws IOException {
+        while (current == null || index >= current.items.size()) {
+            if (current != null && current.last)
+                return false;
+            if (stopped)
+                throw new IOException("Source has been stopped.");
+            if (worker == null)
+                start();
+            try {
+                current = queue.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            index = 0;
+            if (current.error != null) {
+                if (current.error instanceof IOException)
+                    throw (IOException) current.error;
+                throw new IOException(current.error);
+            }
+        }
+        return true;
+    }
+
+    private void start() {
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prefetch();
+            }
+        }, "prefetch-" + inner);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void prefetch() {
+        try {
+            boolean last = false;
+            while (!last && !stopped) {
+                final List<T> items = new ArrayList<T>(blockSize);
+                while (items.size() < blockSize && inner.hasNext())
+                    items.add(inner.read());
+                last = !inner.hasNext();
+                queue.put(new Block<T>(items, null, last));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            // Hand the failure over to the consumer.
+            queue.clear();
+            queue.offer(new Block<T>(Collections.<T>emptyList(), t, true));
+        }
+    }
+
+    /**
+     * Stop the background thread and wait for it to terminate, without closing the inner source. After this method has
+     * been called the inner source may be accessed directly again, but this adapter can no longer be read.
+     *
+     * @throws InterruptedIOException if interrupted while waiting for the thread to terminate
+     */
+    public void stop() throws InterruptedIOException {
+        stopped = true;
+        if (worker != null) {
+            // Rather than interrupting the worker, which would close an interruptible inner channel, keep making room
+            // in the queue until it notices it has been stopped.
+            try {
+                while (worker.isAlive()) {
+                    queue.clear();
+                    worker.join(100);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            worker = null;
+        }
+        queue.clear();
+        current = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stop();
+        inner.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !stopped && inner.isOpen();
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + "[blockSize=" + blockSize + ", inner=" + inner + ']';
+    }
+
+    private static final class Block<T> {
+
+        final List<T> items;
+
+        final Throwable error;
+
+        final boolean last;
+
+        Block(List<T> items, Throwable error, boolean last) {
+            this.items = items;
+            this.error = error;
+            this.last = last;
+        }
+    }
+}
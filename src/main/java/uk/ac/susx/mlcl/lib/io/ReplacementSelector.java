@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import uk.ac.susx.mlcl.lib.Checks;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * ReplacementSelector generates sorted runs from an ObjectSource using replacement selection, for use as the first
+ * phase of an external sort.
+ * <p/>
+ * Up to <code>capacity</code> objects are held in a heap keyed on (run, object). The smallest object of the current run
+ * is written out and replaced with the next object from the source; if the new object sorts before the one just
+ * written it is held back for the following run. On random input runs are about twice the capacity long, and already
+ * sorted input produces a single run however large it is.
+ * <p/>
+ * Ties are broken by the order objects were read, so concatenating runs with a merge that prefers earlier runs on ties
+ * reproduces a stable sort.
+ *
+ * @param <T> The atomic data type
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@NotThreadSafe
+public final class ReplacementSelector<T> {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ObjectSource<T> source;
+
+    private final Comparator<? super T> comparator;
+
+    private final int capacity;
+
+    private Object[] items;
+
+    private int[] runs;
+
+    private long[] sequence;
+
+    private int size;
+
+    private long nextSequence;
+
+    private int currentRun;
+
+    public ReplacementSelector(final ObjectSource<T> source, final Comparator<? super T> comparator,
+                               final int capacity) {
+        Checks.checkNotNull("source", source);
+        Checks.checkNotNull("comparator", comparator);
+        Checks.checkRangeIncl("capacity", capacity, 1, Integer.MAX_VALUE);
+        this.source = source;
+        this.comparator = comparator;
+        this.capacity = capacity;
+
+        final int initial = Math.min(capacity, INITIAL_CAPACITY);
+        items = new Object[initial];
+        runs = new int[initial];
+        sequence = new long[initial];
+        size = 0;
+        nextSequence = 0;
+        currentRun = 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of runs started so far.
+     *
+     * @return number of runs
+     */
+    public int getRunCount() {
+        return currentRun;
+    }
+
+    /**
+     * Whether there is another run to be written.
+     *
+     * @return true if at least one object remains, false otherwise
+     * @throws IOException if the source fails to read
+     */
+    public boolean hasNextRun() throws IOException {
+        fill();
+        return size > 0;
+    }
+
+    /**
+     * Write the next run, in ascending order, to the given sink. The sink is not flushed or closed.
+     *
+     * @param sink destination of the run
+     * @return number of objects written
+     * @throws IOException if the source or sink fail
+     */
+    @SuppressWarnings("unchecked")
+    public long writeRun(final ObjectSink<? super T> sink) throws IOException {
+        Checks.checkNotNull("sink", sink);
+        fill();
+        if (size == 0)
+            return 0;
+
+        final int run = runs[0];
+        currentRun = run + 1;
+        long count = 0;
+        while (size > 0 && runs[0] == run) {
+            final T last = (T) items[0];
+            sink.write(last);
+            ++count;
+
+            if (source.hasNext()) {
+                final T next = source.read();
+                items[0] = next;
+                runs[0] = comparator.compare(next, last) < 0 ? run + 1 : run;
+                sequence[0] = nextSequence++;
+            } else {
+                --size;
+                items[0] = items[size];
+                runs[0] = runs[size];
+                sequence[0] = sequence[size];
+                items[size] = null;
+            }
+            siftDown(0);
+        }
+        return count;
+    }
+
+    /**
+     * Read from the source until the heap is at capacity. All objects read at this point belong to the next run.
+     */
+    private void fill() throws IOException {
+        while (size < capacity && source.hasNext()) {
+            if (size == items.length)
+                grow();
+            items[size] = source.read();
+            runs[size] = currentRun;
+            sequence[size] = nextSequence++;
+            siftUp(size);
+            ++size;
+        }
+    }
+
+    private void grow() {
+        final int newLength = (int) Math.min(capacity, 2L * items.length);
+        items = Arrays.copyOf(items, newLength);
+        runs = Arrays.copyOf(runs, newLength);
+        sequence = Arrays.copyOf(sequence, newLength);
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean less(final int i, final int j) {
+        if (runs[i] != runs[j])
+            return runs[i] < runs[j];
+        final int c = comparator.compare((T) items[i], (T) items[j]);
+        return c != 0 ? c < 0 : sequence[i] < sequence[j];
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (!less(i, parent))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            final int left = 2 * i + 1;
+            if (left >= size)
+                break;
+            final int right = left + 1;
+            final int child = (right < size && less(right, left)) ? right : left;
+            if (!less(child, i))
+                break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(final int i, final int j) {
+        final Object item = items[i];
+        items[i] = items[j];
+        items[j] = item;
+        final int run = runs[i];
+        runs[i] = runs[j];
+        runs[j] = run;
+        final long seq = sequence[i];
+        sequence[i] = sequence[j];
+        sequence[j] = seq;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{capacity=" + capacity + ", size=" + size
+                + ", runs=" + currentRun + ", source=" + source + '}';
+    }
+}
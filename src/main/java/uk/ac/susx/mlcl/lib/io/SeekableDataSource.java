@@ -30,10 +30,33 @@
  */
 package uk.ac.susx.mlcl.lib.io;
 
+import java.io.IOException;
+
 /**
  * A DataSource that also supports random access through the position() methods.
+ * <p/>
+ * Building a {@link Tell} requires every decorator in the stack to allocate, so sequential readers that only
+ * occasionally need a restart point should instead call {@link #markPosition()} on every record, and only materialise
+ * the {@link Tell} (using {@link #markedPosition()}) when it is actually requested.
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
 public interface SeekableDataSource extends DataSource, Seekable<Tell> {
+
+    /**
+     * Record the current position internally, such that it can later be retrieved by {@link #markedPosition()}.
+     * Implementations must only copy primitive state (or existing references), so this method does not allocate.
+     *
+     * @throws IOException something has gone wrong with the underlying store
+     */
+    void markPosition() throws IOException;
+
+    /**
+     * Return the position recorded by the most recent call to {@link #markPosition()}. The result is equivalent to the
+     * value that {@link #position()} would have returned at the time of marking.
+     *
+     * @return position at the time of the last mark
+     * @throws IOException something has gone wrong with the underlying store
+     */
+    Tell markedPosition() throws IOException;
 }
@@ -39,8 +39,8 @@ import uk.ac.susx.mlcl.lib.MiscUtil;
 import javax.annotation.WillClose;
 import java.io.*;
 import java.nio.charset.Charset;
-import java.text.DecimalFormat;
 import java.text.MessageFormat;
+import java.util.Arrays;
 
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
@@ -78,7 +78,74 @@ public abstract class TSV {
     }
 
     /**
-     * Class that holds functionality to read a Tab Separated Values file.
+     * Find the byte offsets that split the given file into (at most) the requested number of slices of roughly equal
+     * size, such that each slice starts at the beginning of a record. The returned array holds the start offset of
+     * each slice followed by the file size, so slice <code>i</code> is the region from <code>offsets[i]</code> to
+     * <code>offsets[i+1]</code>.
+     * <p/>
+     * Splitting is only possible when the record delimiter is encoded as a single byte that can never occur inside a
+     * multi-byte character; for any other charset the whole file is returned as a single slice.
+     *
+     * @param file    file to split
+     * @param charset character set the file is encoded with
+     * @param parts   maximum number of slices
+     * @return slice start offsets, followed by the file size
+     * @throws IOException if the file could not be read
+     */
+    public static long[] split(File file, Charset charset, int parts) throws IOException {
+        Checks.checkNotNull("file", file);
+        Checks.checkNotNull("charset", charset);
+        Checks.checkRangeIncl("parts", parts, 1, Integer.MAX_VALUE);
+
+        final long size = file.length();
+        if (parts == 1 || !isSplittable(charset))
+            return new long[]{0, size};
+
+        final long[] offsets = new long[parts + 1];
+        int n = 1;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] buf = new byte[8192];
+            for (int i = 1; i < parts; i++) {
+                long offset = Math.max(size * i / parts, offsets[n - 1] + 1) - 1;
+                raf.seek(offset);
+                // Scan forward to the byte following the next record delimiter
+                scan:
+                while (offset < size) {
+                    final int len = raf.read(buf);
+                    if (len == -1)
+                        break;
+                    for (int j = 0; j < len; j++) {
+                        if (buf[j] == RECORD_DELIMITER) {
+                            offset += j + 1;
+                            break scan;
+                        }
+                    }
+                    offset += len;
+                }
+                if (offset >= size)
+                    break;
+                offsets[n++] = offset;
+            }
+        } finally {
+            raf.close();
+        }
+        offsets[n++] = size;
+        return n == offsets.length ? offsets : Arrays.copyOf(offsets, n);
+    }
+
+    private static boolean isSplittable(Charset charset) {
+        return charset.equals(Charset.forName("UTF-8"))
+                || (charset.newEncoder().maxBytesPerChar() == 1
+                && Arrays.equals(String.valueOf(RECORD_DELIMITER).getBytes(charset), new byte[]{RECORD_DELIMITER}));
+    }
+
+    /**
+     * Class that holds functionality to write a Tab Separated Values file.
+     * <p/>
+     * Numeric values are formatted into a reusable buffer without instantiating any objects. When the charset is
+     * US-ASCII the characters are encoded directly into a byte buffer which is written to the file channel, bypassing
+     * the charset encoder entirely.
      *
      * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
      */
@@ -86,7 +153,11 @@ public abstract class TSV {
 
         private static final Log LOG = LogFactory.getLog(Sink.class);
 
-        private final BufferedWriter out;
+        private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+        private final Writer out;
+
+        private final NumberFormatter formatter = new NumberFormatter();
 
         private boolean open;
 
@@ -96,7 +167,10 @@ public abstract class TSV {
             super(file, charset);
             if (LOG.isDebugEnabled())
                 LOG.debug("Opening file \"" + file + "\" for writing.");
-            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), charset));
+            if (US_ASCII.equals(charset))
+                out = new AsciiChannelWriter(new FileOutputStream(file).getChannel());
+            else
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), charset));
             open = true;
         }
 
@@ -122,24 +196,28 @@ public abstract class TSV {
             assert str.indexOf(RECORD_DELIMITER) == -1;
             if (column > 0)
                 writeValueDelimiter();
-            out.append(str);
+            out.write(str);
+            ++column;
+        }
+
+        /**
+         * Write the first <code>length</code> characters of the formatter buffer as a value.
+         */
+        private void writeFormatted(int length) throws IOException {
+            if (column > 0)
+                writeValueDelimiter();
+            out.write(formatter.buffer(), 0, length);
             ++column;
         }
 
         @Override
         public void writeInt(int val) throws IOException {
-            writeString(Integer.toString(val));
+            writeFormatted(formatter.format(val));
         }
 
-        private final DecimalFormat DOUBLE_FORMAT = new DecimalFormat("###0.0#####;-###0.0#####");
-
         @Override
         public void writeDouble(double val) throws IOException {
-            if (Double.compare(Math.floor(val), val) == 0) {
-                writeInt((int) val);
-            } else {
-                writeString(DOUBLE_FORMAT.format(val));
-            }
+            writeFormatted(formatter.format(val));
         }
 
         @Override
@@ -159,7 +237,7 @@ public abstract class TSV {
 
         @Override
         public void writeLong(long val) throws IOException {
-            writeString(Long.toString(val));
+            writeFormatted(formatter.format(val));
         }
 
         @Override
@@ -194,8 +272,25 @@ public abstract class TSV {
 
         private final Lexer lexer;
 
+        private long markColumn;
+
         public Source(File file, Charset charset) throws IOException {
+            this(file, charset, 0, Long.MAX_VALUE);
+        }
+
+        /**
+         * Construct a source that reads only the records between the byte offsets <code>start</code> (inclusive) and
+         * <code>end</code> (exclusive), as returned by {@link TSV#split(File, Charset, int)}.
+         *
+         * @param file    file to read from
+         * @param charset character set to decode with
+         * @param start   file byte offset of the first record
+         * @param end     file byte offset at which reading will stop
+         * @throws IOException if the file could not be opened
+         */
+        public Source(File file, Charset charset, long start, long end) throws IOException {
             super(file, charset);
+            Checks.checkRangeIncl("start", start, 0, end);
 
             if (!file.exists())
                 throw new FileNotFoundException("Path does not exist: " + file);
@@ -204,7 +299,7 @@ public abstract class TSV {
             if (!file.canRead())
                 throw new IllegalArgumentException("File is not readable: " + file);
 
-            lexer = new Lexer(file, charset);
+            lexer = new Lexer(file, charset, start, end);
             lexer.setDelimiterMatcher(CharMatcher.anyOf("\n\t"));
             lexer.setWhitespaceMatcher(CharMatcher.NONE);
             if (lexer.hasNext())
@@ -230,6 +325,17 @@ public abstract class TSV {
             return lexer.position().push(Long.class, column);
         }
 
+        @Override
+        public void markPosition() {
+            markColumn = column;
+            lexer.markPosition();
+        }
+
+        @Override
+        public Tell markedPosition() {
+            return lexer.markedPosition().push(Long.class, markColumn);
+        }
+
         @Override
         public boolean canRead() throws IOException {
             return lexer.hasNext();
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.tasks;
+
+import com.google.common.base.Objects;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.Comparators;
+import uk.ac.susx.mlcl.lib.events.ProgressDelegate;
+import uk.ac.susx.mlcl.lib.events.ProgressListener;
+import uk.ac.susx.mlcl.lib.events.ProgressReporting;
+import uk.ac.susx.mlcl.lib.io.MergingObjectSource;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+import uk.ac.susx.mlcl.lib.io.PrefetchingObjectSource;
+
+import java.io.Flushable;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Task that merges any number of sorted sources into a single sorted sink in
+ * one pass. Compared to repeatedly applying {@link ObjectMergeTask} to pairs
+ * of sources, each record is read and written once rather than
+ * log<sub>2</sub>(k) times.
+ * <p/>
+ * Optionally each source can be read ahead on a background thread (see
+ * {@link #setPrefetchBlockSize(int)}), so that decoding the inputs overlaps
+ * with merging.
+ *
+ * @param <T>
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class ObjectKWayMergeTask<T> extends AbstractTask implements ProgressReporting {
+
+    private final ProgressDelegate progress = new ProgressDelegate(this, false);
+
+    private List<ObjectSource<T>> sources;
+
+    private ObjectSink<T> sink;
+
+    private Comparator<T> comparator;
+
+    /**
+     * Number of objects prefetched from each source at a time, or 0 if
+     * prefetching is disabled.
+     */
+    private int prefetchBlockSize = 0;
+
+    public ObjectKWayMergeTask(List<ObjectSource<T>> sources,
+                               ObjectSink<T> sink,
+                               Comparator<T> comparator) {
+        setSources(sources);
+        setSink(sink);
+        setComparator(comparator);
+    }
+
+    public ObjectKWayMergeTask(List<ObjectSource<T>> sources,
+                               ObjectSink<T> sink) {
+        this(sources, sink, Comparators.<T>naturalOrderIfPossible());
+    }
+
+    final Comparator<T> getComparator() {
+        return comparator;
+    }
+
+    public final void setComparator(Comparator<T> comparator) {
+        Checks.checkNotNull(comparator);
+        this.comparator = comparator;
+    }
+
+    public final ObjectSink<T> getSink() {
+        return sink;
+    }
+
+    public final void setSink(ObjectSink<T> sink) {
+        Checks.checkNotNull(sink);
+        this.sink = sink;
+    }
+
+    public final List<ObjectSource<T>> getSources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    public final void setSources(List<ObjectSource<T>> sources) {
+        Checks.checkNotNull(sources);
+        for (ObjectSource<T> source : sources)
+            Checks.checkNotNull(source);
+        this.sources = new ArrayList<ObjectSource<T>>(sources);
+    }
+
+    public final int getPrefetchBlockSize() {
+        return prefetchBlockSize;
+    }
+
+    /**
+     * @param prefetchBlockSize number of objects read ahead from each source
+     *                          at a time on a background thread, or 0 to
+     *                          read the sources in the merging thread
+     */
+    public final void setPrefetchBlockSize(int prefetchBlockSize) {
+        Checks.checkRangeIncl("prefetchBlockSize", prefetchBlockSize, 0,
+                Integer.MAX_VALUE);
+        this.prefetchBlockSize = prefetchBlockSize;
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        Checks.checkNotNull(getSources());
+        Checks.checkNotNull(getSink());
+        Checks.checkNotNull(getComparator());
+        if (getSources().isEmpty())
+            throw new IllegalStateException("No sources to merge.");
+    }
+
+    @Override
+    protected void runTask() throws Exception {
+
+        progress.setState(State.RUNNING);
+        progress.setMessage(MessageFormat.format("Merging {0} sources.",
+                sources.size()));
+
+        final List<ObjectSource<T>> inputs;
+        if (prefetchBlockSize > 0) {
+            inputs = new ArrayList<ObjectSource<T>>(sources.size());
+            for (ObjectSource<T> source : sources)
+                inputs.add(new PrefetchingObjectSource<T>(source,
+                        prefetchBlockSize));
+        } else {
+            inputs = sources;
+        }
+
+        long mergeCount = 0;
+        try {
+            final ObjectSource<T> merged = MergingObjectSource.merge(
+                    comparator, inputs);
+            while (merged.hasNext()) {
+                sink.write(merged.read());
+                ++mergeCount;
+
+                if (mergeCount % 1000000 == 0) {
+                    progress.setMessage(MessageFormat.format(
+                            "Merged {0} items from {1} sources.", mergeCount,
+                            sources.size()));
+                }
+            }
+        } finally {
+            // Hand the sources back to the caller, who is responsible for
+            // closing them.
+            if (inputs != sources)
+                for (ObjectSource<T> input : inputs)
+                    ((PrefetchingObjectSource<T>) input).stop();
+        }
+
+        progress.startAdjusting();
+        progress.setMessage(MessageFormat.format(
+                "Merged {0} items from {1} sources.", mergeCount,
+                sources.size()));
+        progress.setState(State.COMPLETED);
+        progress.endAdjusting();
+
+        if (sink instanceof Flushable)
+            ((Flushable) sink).flush();
+    }
+
+    @Override
+    public String getName() {
+        return "k-way merge";
+    }
+
+    @Override
+    public void removeProgressListener(ProgressListener progressListener) {
+        progress.removeProgressListener(progressListener);
+    }
+
+    @Override
+    public boolean isProgressPercentageSupported() {
+        return progress.isProgressPercentageSupported();
+    }
+
+    @Override
+    public State getState() {
+        return progress.getState();
+    }
+
+    @Override
+    public String getProgressReport() {
+        return progress.getProgressReport();
+    }
+
+    @Override
+    public int getProgressPercent() {
+        return progress.getProgressPercent();
+    }
+
+    @Override
+    public ProgressListener[] getProgressListeners() {
+        return progress.getProgressListeners();
+    }
+
+    @Override
+    public void addProgressListener(ProgressListener progressListener) {
+        progress.addProgressListener(progressListener);
+    }
+
+    @Override
+    protected Objects.ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("sources", getSources()).
+                add("sink", getSink()).
+                add("comparator", getComparator()).
+                add("prefetchBlockSize", getPrefetchBlockSize());
+    }
+}
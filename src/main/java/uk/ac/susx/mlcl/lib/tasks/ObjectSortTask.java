@@ -33,6 +33,8 @@ package uk.ac.susx.mlcl.lib.tasks;
 import com.google.common.base.Objects.ToStringHelper;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.Comparators;
+import uk.ac.susx.mlcl.lib.collect.RadixComparator;
+import uk.ac.susx.mlcl.lib.collect.RadixSort;
 import uk.ac.susx.mlcl.lib.io.ObjectIO;
 import uk.ac.susx.mlcl.lib.io.ObjectSink;
 import uk.ac.susx.mlcl.lib.io.ObjectSource;
@@ -115,7 +117,10 @@ public final class ObjectSortTask<T> extends ObjectPipeTask<T> {
         if (getSource() instanceof Closeable)
             ((Closeable) getSource()).close();
 
-        Collections.sort(items, getComparator());
+        if (getComparator() instanceof RadixComparator)
+            RadixSort.sort(items, (RadixComparator<T>) getComparator());
+        else
+            Collections.sort(items, getComparator());
 
         long i = ObjectIO.copy(items, getSink());
         assert i == items.size();
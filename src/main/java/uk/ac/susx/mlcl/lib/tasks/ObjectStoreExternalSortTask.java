@@ -30,10 +30,12 @@
  */
 package uk.ac.susx.mlcl.lib.tasks;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.lib.Comparators;
+import uk.ac.susx.mlcl.lib.MemoryUsage;
 import uk.ac.susx.mlcl.lib.MiscUtil;
 import uk.ac.susx.mlcl.lib.events.ProgressAggregate;
 import uk.ac.susx.mlcl.lib.events.ProgressListener;
@@ -44,14 +46,20 @@ import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
 import java.text.MessageFormat;
-import java.util.Comparator;
+import java.util.*;
+import java.util.concurrent.Future;
 
 /**
- * An <code>ObjectStoreSortTask</code> takes reads all the data from an <code>ObjectStore</code>, sorts it, then writes
- * the results out to a second <code>ObjectStore</code>. Ordering is defined either by setting a comparator, or
- * alternatively the natural ordering of the object will be used if possible. The <code>from</code> and <code>to</code>
- * stores may safely reference the same store, using it supported both reading and writing.
+ * An <code>ObjectStoreExternalSortTask</code> sorts the content of an <code>ObjectStore</code> that may be too large
+ * to hold in memory, writing the result to a second <code>ObjectStore</code>.
+ * <p/>
+ * The input is read in chunks, sized from a byte budget, which are sorted in parallel to produce runs. Runs are kept
+ * in memory while the resident runs fit within half of the budget, and are otherwise spilled to stores created by the
+ * temporary store factory. Whenever <code>maxFanIn</code> runs are waiting they are merged into a single run, so the
+ * merge proceeds in as many passes as are required while never holding more than <code>maxFanIn</code> sources open
+ * per merge. The final pass writes directly to the output store.
  *
  * @param <T> Object type to be sorted
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
@@ -63,6 +71,19 @@ public final class ObjectStoreExternalSortTask<T> extends AbstractParallelTask i
 
     private static final Log LOG = LogFactory.getLog(ObjectStoreExternalSortTask.class);
 
+    public static final int DEFAULT_MAX_FAN_IN = 64;
+
+    /**
+     * Upper bound on the number of objects per chunk. On systems with a very large amount of available memory the
+     * chunk should still be small enough for the input to be split between all the workers.
+     */
+    private static final int MAX_CHUNK_SIZE = 5000000;
+
+    /**
+     * Bytes used by the list slot referencing each object, in addition to the object itself.
+     */
+    private static final long BYTES_PER_REFERENCE = 8;
+
     private final ProgressAggregate progress = new ProgressAggregate(this);
 
     @Nullable
@@ -77,7 +98,25 @@ public final class ObjectStoreExternalSortTask<T> extends AbstractParallelTask i
     @Nullable
     private StoreFactory<ObjectStore<T, ?>> tempFactory;
 
-    private final ObjectStore<T, ?>[] nextStoreToMerge = new ObjectStore[64];
+    private int maxFanIn = DEFAULT_MAX_FAN_IN;
+
+    /**
+     * Memory budget in bytes, or 0 to estimate it from the free heap when the task is run.
+     */
+    private long maxBytes = 0;
+
+    /**
+     * Estimated heap cost of a single object, or 0 to measure the first object read.
+     */
+    private long bytesPerObject = 0;
+
+    private Queue<ObjectStore<T, ?>> runs;
+
+    private Map<ObjectStore<T, ?>, Long> residentRuns;
+
+    private long residentBytes;
+
+    private long maxResidentBytes;
 
     public ObjectStoreExternalSortTask(ObjectStore<T, ?> input, ObjectStore<T, ?> output, Comparator<T> comparator,
                                        StoreFactory<ObjectStore<T, ?>> tempFactory) {
@@ -140,208 +179,219 @@ public final class ObjectStoreExternalSortTask<T> extends AbstractParallelTask i
         this.tempFactory = tempFactory;
     }
 
+    public final int getMaxFanIn() {
+        return maxFanIn;
+    }
+
+    public final void setMaxFanIn(final int maxFanIn) {
+        Preconditions.checkArgument(maxFanIn >= 2, "maxFanIn < 2");
+        this.maxFanIn = maxFanIn;
+    }
+
+    public final long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Set the amount of memory, in bytes, the sort may use for holding chunks and resident runs. When set to 0 (the
+     * default) the budget is taken from the free heap when the task is run.
+     *
+     * @param maxBytes memory budget in bytes, or 0 to estimate
+     */
+    public final void setMaxBytes(final long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0, "maxBytes < 0");
+        this.maxBytes = maxBytes;
+    }
+
+    public final long getBytesPerObject() {
+        return bytesPerObject;
+    }
+
+    /**
+     * Set the estimated heap cost of a single object. When set to 0 (the default) the first object read from the input
+     * is measured instead.
+     *
+     * @param bytesPerObject estimated bytes per object, or 0 to measure
+     */
+    public final void setBytesPerObject(final long bytesPerObject) {
+        Preconditions.checkArgument(bytesPerObject >= 0, "bytesPerObject < 0");
+        this.bytesPerObject = bytesPerObject;
+    }
 
     @Override
     protected void runTask() throws Exception {
         checkState();
 
-        progress.startAdjusting();
-        progress.setState(State.RUNNING);
-        progress.endAdjusting();
+        updateProgress(State.RUNNING, "Generating runs.");
 
-        final int maxChunkSize = estimateMaxChunkSize();
-        LOG.info(MessageFormat.format("Estimated maximum chunk size: {0}", maxChunkSize));
+        runs = new ArrayDeque<ObjectStore<T, ?>>();
+        residentRuns = new IdentityHashMap<ObjectStore<T, ?>, Long>();
+        residentBytes = 0;
 
-        ObjectSource<T> source = null;
+        PeekableObjectSourceAdapter<T> source = null;
         try {
-            source = getInput().openObjectSource();
-            final ObjectSource<Chunk<T>> chunks = Chunker.newInstance(source, maxChunkSize);
+            source = new PeekableObjectSourceAdapter<T>(getInput().openObjectSource());
+
+            if (source.hasNext()) {
+                final long objectBytes = getBytesPerObject() > 0 ? getBytesPerObject()
+                        : new MemoryUsage().add(source.peek()).getInstanceSizeBytes();
+                final long budget = getMaxBytes() > 0 ? getMaxBytes() : estimateMaxBytes();
+                final int maxChunkSize = estimateMaxChunkSize(budget / 2, objectBytes);
+                maxResidentBytes = budget - budget / 2;
+                LOG.info(MessageFormat.format("Estimated maximum chunk size: {0}", maxChunkSize));
+
+                final ObjectSource<Chunk<T>> chunks = Chunker.newInstance(source, maxChunkSize);
+                while (chunks.hasNext()) {
+                    clearCompleted(false);
+                    submitTask(createSortTask(chunks.read(), objectBytes));
+                }
+            }
+        } finally {
+            if (source != null && source.isOpen())
+                source.close();
+        }
+
+        // Wait for every run, and any merges triggered by them, to complete
+        clearCompleted(true);
+
+        updateProgress(State.RUNNING, MessageFormat.format("Merging {0} runs.", runs.size()));
+
+        if (runs.isEmpty()) {
+            getOutput().touch();
+        } else if (runs.size() == 1) {
+            final ObjectStore<T, ?> run = runs.poll();
+            copy(run, getOutput());
+            freeRun(run);
+        } else {
+            final List<ObjectStore<T, ?>> inputs = pollRuns();
+            final ObjectStoreKWayMergeTask<T> mergeTask = createMergeTask(inputs, getOutput());
+            mergeTask.run();
+            if (mergeTask.isExceptionTrapped())
+                mergeTask.throwTrappedException();
+            for (ObjectStore<T, ?> run : inputs)
+                freeRun(run);
+        }
+
+        updateProgress(State.COMPLETED, "All done.");
+    }
+
+    void clearCompleted(boolean block) throws Exception {
+        if (block) {
+            while (!getFutureQueue().isEmpty()) {
+                Task task = getFutureQueue().poll().get();
+                handleCompletedTask(task);
+            }
+        } else {
+            List<Future<? extends Task>> completed = null;
+            for (Future<? extends Task> future : getFutureQueue()) {
+                if (future.isDone()) {
+                    if (completed == null)
+                        completed = new ArrayList<Future<? extends Task>>();
+                    completed.add(future);
+                }
+            }
+
+            if (completed != null && !completed.isEmpty()) {
+                getFutureQueue().removeAll(completed);
+                for (Future<? extends Task> future : completed) {
+                    handleCompletedTask(future.get());
+                }
+            }
+        }
+    }
+
+    void handleCompletedTask(Task task) throws Exception {
+        Preconditions.checkNotNull(task, "task");
+
+        if (task.isExceptionTrapped())
+            task.throwTrappedException();
+
+        if (task instanceof ObjectStoreSortTask) {
 
+            @SuppressWarnings("unchecked")
+            final ObjectStoreSortTask<T> sortTask = (ObjectStoreSortTask<T>) task;
+            queueRun(sortTask.getTo());
+
+        } else if (task instanceof ObjectStoreKWayMergeTask) {
+
+            @SuppressWarnings("unchecked")
+            final ObjectStoreKWayMergeTask<T> mergeTask = (ObjectStoreKWayMergeTask<T>) task;
+            for (ObjectStore<T, ?> run : mergeTask.getInputs())
+                freeRun(run);
+            queueRun(mergeTask.getOutput());
+
+        } else {
+            throw new AssertionError(
+                    "Task type " + task.getClass()
+                            + " should not have been queued.");
+        }
+    }
 
+    private void queueRun(final ObjectStore<T, ?> run) throws Exception {
+        runs.add(run);
+        if (runs.size() >= getMaxFanIn())
+            submitTask(createMergeTask(pollRuns(), getTempFactory().newStore()));
+    }
 
+    private List<ObjectStore<T, ?>> pollRuns() {
+        final int n = Math.min(runs.size(), getMaxFanIn());
+        final List<ObjectStore<T, ?>> polled = new ArrayList<ObjectStore<T, ?>>(n);
+        for (int i = 0; i < n; i++)
+            polled.add(runs.poll());
+        return polled;
+    }
 
+    private void freeRun(final ObjectStore<T, ?> run) throws IOException {
+        final Long bytes = residentRuns.remove(run);
+        if (bytes != null)
+            residentBytes -= bytes;
+        run.free();
+    }
 
+    ObjectStoreSortTask<T> createSortTask(final Chunk<T> chunk, final long objectBytes) throws IOException {
+        final ObjectStore<T, ?> from = new ObjectMemoryStore<T>(chunk);
+
+        // Keep the run on the heap if it fits within the remaining budget, otherwise spill it
+        final long runBytes = chunk.size() * (objectBytes + BYTES_PER_REFERENCE);
+        final ObjectStore<T, ?> to;
+        if (residentBytes + runBytes <= maxResidentBytes) {
+            to = new ObjectMemoryStore<T>(new ArrayList<T>(chunk.size()));
+            residentRuns.put(to, runBytes);
+            residentBytes += runBytes;
+        } else {
+            to = getTempFactory().newStore();
+        }
 
+        final ObjectStoreSortTask<T> task = new ObjectStoreSortTask<T>(from, to, getComparator());
+        progress.addChildProgressReporter(task);
+        return task;
+    }
 
+    ObjectStoreKWayMergeTask<T> createMergeTask(final List<ObjectStore<T, ?>> inputs, final ObjectStore<T, ?> to) {
+        final ObjectStoreKWayMergeTask<T> task = new ObjectStoreKWayMergeTask<T>(inputs, to, getComparator());
+        progress.addChildProgressReporter(task);
+        return task;
+    }
 
+    private static <T> void copy(final ObjectStore<T, ?> from, final ObjectStore<T, ?> to) throws IOException {
+        final ObjectSource<T> source = from.openObjectSource();
+        try {
+            final ObjectSink<T> sink = to.openObjectSink();
+            try {
+                ObjectIO.copy(source, sink);
+            } finally {
+                sink.close();
+            }
         } finally {
-            if (source != null && source.isOpen())
-                source.close();
+            source.close();
         }
-//
-//        FileMoveTask finalMoveTask = new FileMoveTask();
-//        finalMoveTask.setDstFile(getFileDelegate().getDestinationFile());
-//
-//        progress.addChildProgressReporter(finalMoveTask);
-//        progress.endAdjusting();
-//
-//        progress.startAdjusting();
-//        while (chunks.hasNext()) {
-//            clearCompleted();
-//
-//            Chunk<T> chunk = chunks.read();
-//            submitTask(createSortTask(chunk));
-//            progress.endAdjusting();
-//            progress.startAdjusting();
-//        }
-//
-//        clearCompletedNow();
-//        progress.endAdjusting();
-//        progress.startAdjusting();
-
-
-    }
-//
-//    void clearCompleted(boolean block) throws Exception {
-//        while (!getFutureQueue().isEmpty()) {
-//            Task task = getFutureQueue().poll().get();
-//            handleCompletedTask(task);
-//        }
-//    }
-//
-//    void clearCompletedNow() throws Exception {
-//
-//        List<Future<? extends Task>> completed = null;
-//        for (Future<? extends Task> future : getFutureQueue()) {
-//            if (future.isDone()) {
-//                if (completed == null)
-//                    completed = new ArrayList<Future<? extends Task>>();
-//                completed.add(future);
-//            }
-//        }
-//
-//        if (completed != null && !completed.isEmpty()) {
-//            getFutureQueue().removeAll(completed);
-//            for (Future<? extends Task> future : completed) {
-//                handleCompletedTask(future.get());
-//            }
-//        }
-//
-//    }
-//
-//
-//    void handleCompletedTask(Task task) throws Exception {
-//        Checks.checkNotNull("task", task);
-//
-//        if (task.isExceptionTrapped())
-//            task.throwTrappedException();
-//
-//        if (task instanceof ObjectSortTask) {
-//
-//            ObjectSortTask<?> sortTask = (ObjectSortTask) task;
-//            if (sortTask.getSink() instanceof Flushable)
-//                ((Flushable) sortTask.getSink()).flush();
-//            if (sortTask.getSink() instanceof Closeable)
-//                ((Closeable) sortTask.getSink()).close();
-//            if (sortTask.getSource() instanceof Closeable)
-//                ((Closeable) sortTask.getSource()).close();
-//            queueMergeTask(new File(task.getProperty(KEY_DST_FILE)), 0);
-//
-//        } else if (task instanceof ObjectMergeTask) {
-//
-//            ObjectMergeTask<?> mergeTask = (ObjectMergeTask) task;
-//            if (mergeTask.getSink() instanceof Flushable)
-//                ((Flushable) mergeTask.getSink()).flush();
-//            if (mergeTask.getSink() instanceof Closeable)
-//                ((Closeable) mergeTask.getSink()).close();
-//            if (mergeTask.getSourceA() instanceof Closeable)
-//                ((Closeable) mergeTask.getSourceA()).close();
-//            if (mergeTask.getSourceB() instanceof Closeable)
-//                ((Closeable) mergeTask.getSourceB()).close();
-//
-//            int depth = Integer.parseInt(mergeTask.getProperty("depth"));
-//            queueMergeTask(new File(task.getProperty(KEY_DST_FILE)), depth + 1);
-//
-//
-//            if (!DEBUG) {
-//                submitTask(createDeleteTask(new File(task.getProperty(
-//                        KEY_SRC_FILE_A))));
-//                submitTask(createDeleteTask(new File(task.getProperty(
-//                        KEY_SRC_FILE_B))));
-//            }
-//
-//        } else if (task instanceof FileDeleteTask) {
-//            // not a sausage
-//        } else {
-//            throw new AssertionError(
-//                    "Task type " + task.getClass()
-//                            + " should not have been queued.");
-//        }
-//    }
-//
-//    @Override
-//    protected <T extends Task> Future<T> submitTask(final T task) throws InterruptedException {
-//        return super.submitTask(task);
-//    }
-//
-//    void queueMergeTask(File file, int depth) throws Exception {
-//        Checks.checkNotNull("file", file);
-//
-//        if (nextStoreToMerge[depth] == null) {
-//
-//            nextStoreToMerge[depth] = file;
-//
-//        } else {
-//
-//            File srcA = nextStoreToMerge[depth];
-//            nextStoreToMerge[depth] = null;
-//            File dst = getTempFileFactory().createFile();
-//            ObjectMergeTask<T> mergeTask = createMergeTask(srcA, file, dst);
-//            mergeTask.setProperty("depth", Integer.toString(depth));
-//            submitTask(mergeTask);
-//
-//
-//        }
-//    }
-//
-//    FileDeleteTask createDeleteTask(File file) {
-//        FileDeleteTask task = new FileDeleteTask(file);
-//        progress.addChildProgressReporter(task);
-//        return task;
-//    }
-//
-//    private final String KEY_DESTINATION_STORE = "destinationStore";
-//
-//    ObjectStoreSortTask<T> createSortTask(Chunk<T> chunk) throws IOException {
-//
-//        ObjectStore<T,?> from = new ObjectMemoryStore<T>(chunk);
-//        ObjectStore<T,?> to = getTempFactory().newStore();
-//
-//        ObjectStoreSortTask<T> task = new ObjectStoreSortTask<T>();
-//        task.setFrom(from);
-//        task.setTo(to);
-//        task.setComparator(getComparator());
-//
-//        progress.addChildProgressReporter(task);
-//
-//        return task;
-//    }
-//
-//    ObjectMergeTask<T> createMergeTask(File srcA, File srcB, File dst) throws IOException {
-//        ObjectSource<T> source1 = openSource(srcA);
-//        ObjectSource<T> source2 = openSource(srcB);
-//        ObjectSink<T> sink = openSink(dst);
-//
-//        ObjectMergeTask<T> mergeTask =
-//                new ObjectMergeTask<T>(source1, source2, sink);
-//        mergeTask.setComparator(this.getComparator());
-//
-//        mergeTask.setProperty(KEY_SRC_FILE_A, srcA.toString());
-//        mergeTask.setProperty(KEY_SRC_FILE_B, srcB.toString());
-//        mergeTask.setProperty(KEY_DST_FILE, dst.toString());
-//
-//        progress.addChildProgressReporter(mergeTask);
-//
-//        return mergeTask;
-//
-//    }
+    }
 
     @Override
     public String getName() {
         return "external-sort";
     }
 
-
     protected void checkState() {
         Preconditions.checkNotNull(getComparator(), "comparator");
         Preconditions.checkNotNull(getInput(), "from");
@@ -352,10 +402,9 @@ public final class ObjectStoreExternalSortTask<T> extends AbstractParallelTask i
         Preconditions.checkNotNull(getTempFactory(), "tempFactory");
     }
 
-    protected void updateProgress(final ProgressReporting.State state, final String message, final int percentComplete) {
+    protected void updateProgress(final ProgressReporting.State state, final String message) {
         progress.startAdjusting();
         progress.setState(state);
-        progress.setProgressPercent(percentComplete);
         progress.setMessage(message);
         progress.endAdjusting();
     }
@@ -395,32 +444,34 @@ public final class ObjectStoreExternalSortTask<T> extends AbstractParallelTask i
         return progress.getState();
     }
 
+    @Override
+    protected Objects.ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("input", getInput()).
+                add("output", getOutput()).
+                add("comparator", getComparator()).
+                add("temp", getTempFactory()).
+                add("maxFanIn", getMaxFanIn()).
+                add("maxBytes", getMaxBytes());
+    }
 
-    protected long getBytesPerObject() {
-        return 1; // TODO: XXX
+    private static long estimateMaxBytes() {
+        // Start by at least trying to GC whatever junk is lying around
+        System.gc();
+        return MiscUtil.freeMaxMemory();
     }
 
     /**
-     * Calculate a conservative guess at the maximum chunk size we can get away with given the available memory, and
-     * number of simultaneous threads.
-     * <p/>
-     * History: In previous version the end user was expected to set this value, which obviously was a total disaster.
-     * Most wouldn't both (because they didn't know what it was) and result was usually either code running too slowly,
-     * or java running our of heap space.
+     * Calculate the maximum chunk size such that every chunk in flight, and the copy made by its sort task, fit
+     * within the given budget.
      *
-     * @return maximum number of events that should be loaded per worker
+     * @param bytesAvailable memory available for run generation
+     * @param objectBytes    estimated heap cost of a single object
+     * @return maximum number of objects that should be loaded per worker
      */
-    private int estimateMaxChunkSize() {
-        // Start by at least trying to GC whatever junk is lying around
-        System.gc();
-        final long bytesAvailable = MiscUtil.freeMaxMemory();
-        final int numTasks = (getNumThreads() + PRELOAD_SIZE);
-        int chunkSize = (int) (bytesAvailable / (getBytesPerObject() * numTasks));
-
-        int maxChunkSize = 5000000;
-        // In some system we might expect a very large amount of available
-        // memory. In this case we shouldn't set chunk size too large or it
-        // will never parallelise.
-        return Math.min(chunkSize, maxChunkSize);
+    private int estimateMaxChunkSize(final long bytesAvailable, final long objectBytes) {
+        final long numTasks = getNumThreads() + PRELOAD_SIZE;
+        final long chunkSize = bytesAvailable / (2 * (objectBytes + BYTES_PER_REFERENCE) * numTasks);
+        return (int) Math.max(1, Math.min(chunkSize, MAX_CHUNK_SIZE));
     }
 }
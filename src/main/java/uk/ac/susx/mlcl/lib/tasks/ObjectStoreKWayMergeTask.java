@@ -59,7 +59,7 @@ import java.util.List;
 @Nonnull
 @CheckReturnValue
 @NotThreadSafe
-public abstract class ObjectStoreKWayMergeTask<T> extends AbstractTask implements ProgressReporting {
+public class ObjectStoreKWayMergeTask<T> extends AbstractTask implements ProgressReporting {
 
     private static final Log LOG = LogFactory.getLog(ObjectStoreKWayMergeTask.class);
 
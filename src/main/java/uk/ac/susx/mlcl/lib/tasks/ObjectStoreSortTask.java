@@ -32,6 +32,8 @@ package uk.ac.susx.mlcl.lib.tasks;
 
 import com.google.common.base.Preconditions;
 import uk.ac.susx.mlcl.lib.Comparators;
+import uk.ac.susx.mlcl.lib.collect.RadixComparator;
+import uk.ac.susx.mlcl.lib.collect.RadixSort;
 import uk.ac.susx.mlcl.lib.events.ProgressDelegate;
 import uk.ac.susx.mlcl.lib.events.ProgressListener;
 import uk.ac.susx.mlcl.lib.events.ProgressReporting;
@@ -44,7 +46,6 @@ import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
-import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
 import java.util.Collections;
@@ -139,12 +140,16 @@ public class ObjectStoreSortTask<T> extends AbstractTask implements ProgressRepo
             final double logN = Math.log(items.size()) / Math.log(2);
             updateProgress(State.RUNNING, "Sorting data.", (int) (1. / (2. + logN)));
 
-            Collections.sort(items, getComparator());
+            if (getComparator() instanceof RadixComparator)
+                RadixSort.sort(items, (RadixComparator<T>) getComparator());
+            else
+                Collections.sort(items, getComparator());
 
             updateProgress(State.RUNNING, "Writing to sink.", (int) ((1 + logN) / (2. + logN)));
 
         } finally {
-            ((Closeable) source).close();
+            if (source != null)
+                source.close();
         }
 
         ObjectSink<T> sink = null;
@@ -153,8 +158,11 @@ public class ObjectStoreSortTask<T> extends AbstractTask implements ProgressRepo
             long i = ObjectIO.copy(items, sink);
             assert i == items.size();
         } finally {
-            ((Flushable) sink).flush();
-            ((Closeable) sink).close();
+            if (sink != null) {
+                if (sink instanceof Flushable)
+                    ((Flushable) sink).flush();
+                sink.close();
+            }
         }
 
         updateProgress(State.COMPLETED, "All done.", 100);
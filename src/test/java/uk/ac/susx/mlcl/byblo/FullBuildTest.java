@@ -30,13 +30,20 @@
  */
 package uk.ac.susx.mlcl.byblo;
 
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
 import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static uk.ac.susx.mlcl.TestConstants.*;
 
@@ -63,6 +70,121 @@ public class FullBuildTest {
         assertTrue(instance.runCommand());
     }
 
+    @Test
+    public void testRunCommand_Fruit_fusedEnumerateCount() throws Exception {
+        System.out.println("Test on fruit with fused enumerate and count stages");
+
+        final File staged = runFruit("fruit-staged", false, false, false);
+        final File fused = runFruit("fruit-fused", true, false, false);
+
+        final String name = TEST_FRUIT_INPUT.getName();
+        assertFalse(new File(fused, name + ".enumerated").exists());
+        assertEquals(
+                readNormalised(new File(staged, name + ".sims.neighbours.strings")),
+                readNormalised(new File(fused, name + ".sims.neighbours.strings")));
+    }
+
+    @Test
+    public void testRunCommand_Fruit_fusedCountFilter() throws Exception {
+        System.out.println("Test on fruit with fused count and filter stages");
+
+        final File staged = runFruit("fruit-staged", false, false, false);
+        final File fused = runFruit("fruit-fused-filter", false, true, false);
+
+        final String name = TEST_FRUIT_INPUT.getName();
+        assertFalse(new File(fused, name + ".events").exists());
+        assertEquals(
+                readNormalised(new File(staged, name + ".sims.neighbours.strings")),
+                readNormalised(new File(fused, name + ".sims.neighbours.strings")));
+    }
+
+    @Test
+    public void testRunCommand_Fruit_streamingPipeline() throws Exception {
+        System.out.println("Test on fruit with the streaming pipeline");
+
+        final File staged = runFruit("fruit-staged", false, false, false);
+        final File streamed = runFruit("fruit-streamed", false, false, true);
+
+        final String name = TEST_FRUIT_INPUT.getName();
+        assertFalse(new File(streamed, name + ".sims").exists());
+        assertFalse(new File(streamed, name + ".sims.neighbours").exists());
+        assertEquals(
+                readNormalised(new File(staged, name + ".sims.neighbours.strings")),
+                readNormalised(new File(streamed, name + ".sims.neighbours.strings")));
+    }
+
+    @Test
+    public void testRunCommand_Fruit_reenumerate() throws Exception {
+        System.out.println("Test on fruit with the reenumerate stage");
+
+        final String name = TEST_FRUIT_INPUT.getName();
+        final File staged = runFruit("fruit-staged", false, false, false);
+        assertFalse(new File(staged, name + ".events.reordered").exists());
+
+        final File reordered = createEmptyDir("fruit-reordered");
+        assertTrue(new FullBuild().runCommand(new String[]{
+                "--charset", DEFAULT_CHARSET.name(),
+                "--input", TEST_FRUIT_INPUT.toString(),
+                "--output", reordered.toString(),
+                "--filter-entry-freq", "2",
+                "--filter-feature-freq", "2",
+                "--filter-event-freq", "2",
+                "--stages", "enumerate,count,reenumerate,filter,allpairs,knn,unenumerate"}));
+
+        assertTrue(new File(reordered, name + ".events.reordered").exists());
+        assertEquals(
+                readNormalised(new File(staged, name + ".sims.neighbours.strings")),
+                readNormalised(new File(reordered, name + ".sims.neighbours.strings")));
+    }
+
+    // Create the named output dir, removing any files left by an earlier run.
+    private static File createEmptyDir(String name) throws IOException {
+        final File out = new File(TEST_OUTPUT_DIR, name);
+        if (!out.exists() && !out.mkdir())
+            throw new IOException("Failed to create output dir: " + out);
+        for (File file : out.listFiles())
+            if (file.isFile() && !file.delete())
+                throw new IOException("Failed to delete file: " + file);
+        return out;
+    }
+
+    private static File runFruit(String name, boolean fusedEnumerateCount,
+                                 boolean fusedCountFilter, boolean streamingPipeline)
+            throws Exception {
+        final File out = createEmptyDir(name);
+
+        FullBuild instance = new FullBuild();
+        instance.setCharset(DEFAULT_CHARSET);
+        instance.setInstancesFile(TEST_FRUIT_INPUT);
+        instance.setOutputDir(out);
+        instance.setTempBaseDir(out);
+        instance.setFilterEntryMinFreq(2);
+        instance.setFilterFeatureMinFreq(2);
+        instance.setFilterEventMinFreq(2);
+        instance.setFusedEnumerateCount(fusedEnumerateCount);
+        instance.setFusedCountFilter(fusedCountFilter);
+        instance.setStreamingPipeline(streamingPipeline);
+
+        assertTrue(instance.runCommand());
+        return out;
+    }
+
+    // Neighbours with equal similarity may be listed in either order, so sort
+    // the (neighbour, similarity) pairs of every line, and then the lines.
+    private static List<String> readNormalised(File file) throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        for (String line : Files.readLines(file, DEFAULT_CHARSET)) {
+            final String[] parts = line.split("\t");
+            final List<String> pairs = new ArrayList<String>();
+            for (int i = 1; i + 1 < parts.length; i += 2)
+                pairs.add(parts[i] + "\t" + parts[i + 1]);
+            Collections.sort(pairs);
+            lines.add(parts[0] + "\t" + Joiner.on("\t").join(pairs));
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
     @Test
     @Ignore
     public void testRunCommand_Medtest100k() throws Exception {
@@ -234,6 +234,36 @@ public class FullBuildTest2 {
 
     }
 
+    @Test
+    public void BuildTest_mmap() throws Exception {
+        final String affix = "13-";
+        boolean serial = true;
+        boolean preindexedEntries = false;
+        boolean preindexedFeatures = false;
+        boolean skipIndex1 = false;
+        boolean skipIndex2 = false;
+        EnumeratorType type = EnumeratorType.MMAP;
+
+        parallelBuildTest(affix, serial, type, preindexedEntries,
+                preindexedFeatures, skipIndex1, skipIndex2);
+
+    }
+
+    @Test
+    public void BuildTest_parallel_preindex_mmap() throws Exception {
+        final String affix = "14-";
+        boolean serial = false;
+        boolean preindexedEntries = true;
+        boolean preindexedFeatures = true;
+        boolean skipIndex1 = false;
+        boolean skipIndex2 = false;
+        EnumeratorType type = EnumeratorType.MMAP;
+
+        parallelBuildTest(affix, serial, type, preindexedEntries,
+                preindexedFeatures, skipIndex1, skipIndex2);
+
+    }
+
     @Test
     @Category(SlowTestCategory.class)
     @Ignore
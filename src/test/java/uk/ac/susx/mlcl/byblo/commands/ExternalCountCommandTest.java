@@ -30,6 +30,7 @@
  */
 package uk.ac.susx.mlcl.byblo.commands;
 
+import com.google.common.io.Files;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -37,8 +38,15 @@ import org.junit.Test;
 import uk.ac.susx.mlcl.TestConstants;
 import uk.ac.susx.mlcl.TestConstants.InfoProgressListener;
 import uk.ac.susx.mlcl.byblo.Tools;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
 import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.Token;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenSource;
 import uk.ac.susx.mlcl.lib.commands.AbstractCommandTest;
 import uk.ac.susx.mlcl.lib.io.TempFileFactory;
 import uk.ac.susx.mlcl.lib.test.ExitTrapper;
@@ -48,8 +56,10 @@ import java.io.File;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static uk.ac.susx.mlcl.lib.test.ExitTrapper.disableExitTrapping;
@@ -228,6 +238,127 @@ public class ExternalCountCommandTest extends
 
     }
 
+    @Test
+    public void testFilteringMatchesFilterCommand() throws Exception {
+        System.out.println("Testing " + subject + " filtering on "
+                + TestConstants.TEST_FRUIT_INPUT_INDEXED);
+
+        final String fruitPrefix = TestConstants.TEST_FRUIT_INPUT_INDEXED.getName();
+        final File e = new File(TestConstants.TEST_OUTPUT_DIR, fruitPrefix + ".entries");
+        final File f = new File(TestConstants.TEST_OUTPUT_DIR, fruitPrefix + ".features");
+        final File ef = new File(TestConstants.TEST_OUTPUT_DIR, fruitPrefix + ".events");
+        final File eExpected = suffixed(e, ".filtered");
+        final File fExpected = suffixed(f, ".filtered");
+        final File efExpected = suffixed(ef, ".filtered");
+        final File eActual = suffixed(e, ".countfiltered");
+        final File fActual = suffixed(f, ".countfiltered");
+        final File efActual = suffixed(ef, ".countfiltered");
+        TestConstants.deleteIfExist(e, f, ef, eExpected, fExpected, efExpected,
+                eActual, fActual, efActual);
+
+        runWithAPI(TestConstants.TEST_FRUIT_INPUT_INDEXED, e, f, ef,
+                TestConstants.DEFAULT_CHARSET, true, true);
+
+        final FilterCommand filter = new FilterCommand(ef, e, f, efExpected, eExpected, fExpected,
+                TestConstants.DEFAULT_CHARSET);
+        filter.setEnumeratedEntries(true);
+        filter.setEnumeratedFeatures(true);
+        filter.setFilterEntryMinFreq(5);
+        filter.setFilterFeatureMinFreq(5);
+        filter.setFilterEventMinFreq(2);
+        assertTrue(filter.runCommand());
+
+        final ExternalCountCommand countCmd = new ExternalCountCommand();
+        countCmd.setInstancesFile(TestConstants.TEST_FRUIT_INPUT_INDEXED);
+        countCmd.setEntriesFile(eActual);
+        countCmd.setFeaturesFile(fActual);
+        countCmd.setEventsFile(efActual);
+        countCmd.getFileDelegate().setCharset(TestConstants.DEFAULT_CHARSET);
+        countCmd.setIndexDelegate(new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, true, true, null, null));
+        countCmd.setTempFileFactory(new TempFileFactory(TestConstants.TEST_TMP_DIR));
+        countCmd.setFilterEntryMinFreq(5);
+        countCmd.setFilterFeatureMinFreq(5);
+        countCmd.setFilterEventMinFreq(2);
+        assertTrue(countCmd.runCommand());
+
+        final DoubleEnumerating idx = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, true, true, null, null);
+        assertEquals(readTokens(eExpected, idx, true), readTokens(eActual, idx, true));
+        assertEquals(readTokens(fExpected, idx, false), readTokens(fActual, idx, false));
+        assertEquals(readEvents(efExpected, idx), readEvents(efActual, idx));
+    }
+
+    @Test
+    public void testSpilledCountsMatchUnspilled() throws Exception {
+        System.out.println("Testing " + subject + " spilling on "
+                + TestConstants.TEST_FRUIT_INPUT_INDEXED);
+
+        final String fruitPrefix = TestConstants.TEST_FRUIT_INPUT_INDEXED.getName();
+        final File e = new File(TestConstants.TEST_OUTPUT_DIR, fruitPrefix + ".entries");
+        final File f = new File(TestConstants.TEST_OUTPUT_DIR, fruitPrefix + ".features");
+        final File ef = new File(TestConstants.TEST_OUTPUT_DIR, fruitPrefix + ".events");
+        final File eSpilled = suffixed(e, ".spilled");
+        final File fSpilled = suffixed(f, ".spilled");
+        final File efSpilled = suffixed(ef, ".spilled");
+        TestConstants.deleteIfExist(e, f, ef, eSpilled, fSpilled, efSpilled);
+
+        runWithAPI(TestConstants.TEST_FRUIT_INPUT_INDEXED, e, f, ef,
+                TestConstants.DEFAULT_CHARSET, true, true);
+
+        // A tiny budget spills a run every time a count table fills, and a
+        // small fan-in makes the runs of each spilled file take several merges.
+        final ExternalCountCommand countCmd = new ExternalCountCommand();
+        countCmd.setInstancesFile(TestConstants.TEST_FRUIT_INPUT_INDEXED);
+        countCmd.setEntriesFile(eSpilled);
+        countCmd.setFeaturesFile(fSpilled);
+        countCmd.setEventsFile(efSpilled);
+        countCmd.getFileDelegate().setCharset(TestConstants.DEFAULT_CHARSET);
+        countCmd.setIndexDelegate(new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, true, true, null, null));
+        countCmd.setTempFileFactory(new TempFileFactory(TestConstants.TEST_TMP_DIR));
+        countCmd.setCountBytesLimit(1);
+        countCmd.setMergeFanIn(3);
+        assertTrue(countCmd.runCommand());
+
+        assertTrue(Files.equal(e, eSpilled));
+        assertTrue(Files.equal(f, fSpilled));
+        assertTrue(Files.equal(ef, efSpilled));
+    }
+
+    // Weights are compared as doubles, because the counts may be written as
+    // integers by one command and as doubles by the other.
+    private static List<String> readTokens(File file, DoubleEnumerating idx, boolean entries)
+            throws Exception {
+        final WeightedTokenSource src = entries
+                ? BybloIO.openEntriesSource(file, TestConstants.DEFAULT_CHARSET, idx)
+                : BybloIO.openFeaturesSource(file, TestConstants.DEFAULT_CHARSET, idx);
+        final List<String> records = new ArrayList<String>();
+        while (src.hasNext()) {
+            final Weighted<Token> record = src.read();
+            records.add(record.record().id() + " " + record.weight());
+        }
+        src.close();
+        Collections.sort(records);
+        return records;
+    }
+
+    private static List<String> readEvents(File file, DoubleEnumerating idx) throws Exception {
+        final WeightedTokenPairSource src = BybloIO.openEventsSource(file, TestConstants.DEFAULT_CHARSET, idx);
+        final List<String> records = new ArrayList<String>();
+        while (src.hasNext()) {
+            final Weighted<TokenPair> record = src.read();
+            records.add(record.record().id1() + " " + record.record().id2() + " " + record.weight());
+        }
+        src.close();
+        Collections.sort(records);
+        return records;
+    }
+
+    private static File suffixed(File file, String suffix) {
+        return new File(file.getParentFile(), file.getName() + suffix);
+    }
+
     @Test
     public void testRunOnFruitCLI() throws Exception {
 
@@ -30,6 +30,7 @@
  */
 package uk.ac.susx.mlcl.byblo.commands;
 
+import com.google.common.io.Files;
 import junit.framework.Assert;
 import org.junit.After;
 import org.junit.Before;
@@ -53,8 +54,13 @@ import uk.ac.susx.mlcl.testing.SlowTestCategory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static uk.ac.susx.mlcl.TestConstants.*;
 
@@ -106,6 +112,132 @@ public class ExternalSimsKnnCommandTest extends
         assertTrue("Empty output file found.", out.length() > 0);
     }
 
+    @Test
+    public void testStreamingMatchesSort() throws Exception {
+        System.out.println("Testing " + subject + " streaming on " + TEST_FRUIT_SIMS);
+
+        final int k = 5;
+        final File sorted = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs-sorted");
+        final File streamed = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs-streamed");
+        final File spilled = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs-spilled");
+
+        final File partitioned = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs-partitioned");
+        final File partitionedSpilled = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs-partitioned-spilled");
+
+        runKnn(sorted, k, false, 1, 0);
+        runKnn(streamed, k, true, 1, 0);
+        // Small enough that the heaps are spilled, and some partitions divided again
+        runKnn(spilled, k, true, 1, 1000);
+        // Partition workers run on their own threads, whatever the number of threads
+        runKnn(partitioned, k, true, 4, 0);
+        runKnn(partitionedSpilled, k, true, 4, 1000);
+
+        assertTrue("Streamed neighbours differ from sorted",
+                Files.equal(sorted, streamed));
+        assertTrue("Spilled neighbours differ from sorted",
+                Files.equal(sorted, spilled));
+        assertTrue("Partitioned neighbours differ from sorted",
+                Files.equal(sorted, partitioned));
+        assertTrue("Partitioned and spilled neighbours differ from sorted",
+                Files.equal(sorted, partitionedSpilled));
+    }
+
+    /**
+     * Create a command that selects the k nearest neighbours of each entry in
+     * the fruit sims, writing them to <code>out</code>.
+     */
+    private static ExternalKnnSimsCommand newKnnCommand(File out, int k) {
+        final ExternalKnnSimsCommand knnCmd = new ExternalKnnSimsCommand();
+        knnCmd.getFileDelegate().setSourceFile(TEST_FRUIT_SIMS);
+        knnCmd.getFileDelegate().setDestinationFile(out);
+        knnCmd.getFileDelegate().setCharset(DEFAULT_CHARSET);
+        knnCmd.setIndexDelegate(new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null));
+        knnCmd.setK(k);
+        knnCmd.setTempFileFactory(new TempFileFactory(TEST_TMP_DIR));
+        return knnCmd;
+    }
+
+    private static void runKnn(File out, int k, boolean streaming, int partitions, long maxHeldBytes)
+            throws Exception {
+        final ExternalKnnSimsCommand knnCmd = newKnnCommand(out, k);
+        knnCmd.setStreaming(streaming);
+        knnCmd.setPartitions(partitions);
+        knnCmd.setMaxHeldBytes(maxHeldBytes);
+        assertTrue(knnCmd.runCommand());
+        assertTrue("Empty output file found.", out.length() > 0);
+    }
+
+    @Test
+    public void testReverseAndMutual() throws Exception {
+        System.out.println("Testing " + subject + " reverse and mutual neighbours on " + TEST_FRUIT_SIMS);
+
+        final File out = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs-k5");
+        final File reverse = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs-k5-reverse");
+        final File mutual = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs-k5-mutual");
+
+        final ExternalKnnSimsCommand knnCmd = newKnnCommand(out, 5);
+        knnCmd.setReverseFile(reverse);
+        knnCmd.setMutualFile(mutual);
+        assertTrue(knnCmd.runCommand());
+
+        final List<String> forwardPairs = readPairs(out);
+        final Set<String> forward = new HashSet<String>(forwardPairs);
+
+        final List<String> expectedReverse = new ArrayList<String>();
+        final List<String> expectedMutual = new ArrayList<String>();
+        for (String pair : forwardPairs) {
+            final String[] parts = pair.split("\t");
+            final String swapped = parts[1] + "\t" + parts[0] + "\t" + parts[2];
+            expectedReverse.add(swapped);
+            if (forward.contains(swapped))
+                expectedMutual.add(pair);
+        }
+
+        final List<String> actualReverse = readPairs(reverse);
+        assertEquals(new HashSet<String>(expectedReverse), new HashSet<String>(actualReverse));
+        assertEquals(expectedReverse.size(), actualReverse.size());
+        assertEquals(expectedMutual, readPairs(mutual));
+        assertTrue("No mutual neighbours found.", expectedMutual.size() > 0);
+    }
+
+    @Test
+    public void testReverseAndMutualOnDisk() throws Exception {
+        System.out.println("Testing " + subject + " reverse and mutual neighbours on disk on " + TEST_FRUIT_SIMS);
+
+        final File[] inMemory = runReverseAndMutual("-memory", 0);
+        final File[] onDisk = runReverseAndMutual("-disk", 1);
+
+        assertEquals(readPairs(inMemory[0]), readPairs(onDisk[0]));
+        assertEquals(readPairs(inMemory[1]), readPairs(onDisk[1]));
+    }
+
+    private static File[] runReverseAndMutual(String suffix, long maxHeldBytes) throws Exception {
+        final File out = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs-k5" + suffix);
+        final File reverse = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs-k5-reverse" + suffix);
+        final File mutual = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs-k5-mutual" + suffix);
+
+        final ExternalKnnSimsCommand knnCmd = newKnnCommand(out, 5);
+        knnCmd.setReverseFile(reverse);
+        knnCmd.setMutualFile(mutual);
+        knnCmd.setMaxHeldBytes(maxHeldBytes);
+        assertTrue(knnCmd.runCommand());
+        return new File[]{reverse, mutual};
+    }
+
+    /**
+     * Read a neighbours file as "entry\tneighbour\tweight" strings, in file order.
+     */
+    private static List<String> readPairs(File file) throws IOException {
+        final List<String> pairs = new ArrayList<String>();
+        for (String line : Files.readLines(file, DEFAULT_CHARSET)) {
+            final String[] fields = line.split("\t");
+            for (int i = 1; i + 1 < fields.length; i += 2)
+                pairs.add(fields[0] + "\t" + fields[i] + "\t" + fields[i + 1]);
+        }
+        return pairs;
+    }
+
     @Test
     public void testExitStatus() throws Exception {
         try {
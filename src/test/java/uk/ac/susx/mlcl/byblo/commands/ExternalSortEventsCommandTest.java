@@ -30,6 +30,7 @@
  */
 package uk.ac.susx.mlcl.byblo.commands;
 
+import com.google.common.io.Files;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -51,6 +52,7 @@ import java.io.IOException;
 import java.util.*;
 
 import static java.text.MessageFormat.format;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static uk.ac.susx.mlcl.TestConstants.*;
 
@@ -128,6 +130,97 @@ public class ExternalSortEventsCommandTest extends
 
     }
 
+    @Test
+    public void testSortPresorted() throws Exception {
+        System.out.println("Testing SortWeightedTokenPairCommand (presorted)");
+
+        final DoubleEnumerating idx = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+
+        Comparator<Weighted<TokenPair>> comparator = Comparators.fallback(
+                Weighted.recordOrder(TokenPair.firstStringOrder(idx
+                        .getEntriesEnumeratorCarrier())), Comparators
+                .reverse(Weighted.<TokenPair>weightOrder()));
+
+        WeightedTokenPairSource inputSource = openSource(TEST_FRUIT_SIMS, idx,
+                false, false);
+        List<Weighted<TokenPair>> inputList = ObjectIO.readAll(inputSource);
+        inputSource.close();
+        shuffle(inputList);
+
+        List<Weighted<TokenPair>> expected = new ArrayList<Weighted<TokenPair>>(
+                inputList);
+        Collections.sort(expected, comparator);
+
+        // Four independently sorted quarters, concatenated
+        final int quarter = inputList.size() / 4;
+        List<Weighted<TokenPair>> runs = new ArrayList<Weighted<TokenPair>>();
+        for (int i = 0; i < 4; i++) {
+            List<Weighted<TokenPair>> run = new ArrayList<Weighted<TokenPair>>(
+                    inputList.subList(i * quarter,
+                            i == 3 ? inputList.size() : (i + 1) * quarter));
+            Collections.sort(run, comparator);
+            runs.addAll(run);
+        }
+        assertTrue("Expecting several natural runs",
+                countNaturalRuns(runs, comparator) > 2);
+
+        // Write every input before running the command, which closes the index
+        List<File> inputFiles = new ArrayList<File>();
+        List<Integer> inputRunCounts = new ArrayList<Integer>();
+        for (List<Weighted<TokenPair>> input : Arrays.asList(expected, runs)) {
+            File inputFile = File.createTempFile(FRUIT_NAME + ".presorted.",
+                    ".in", TEST_OUTPUT_DIR);
+            WeightedTokenPairSink sink = openSink(inputFile, idx, false, false,
+                    false);
+            ObjectIO.copy(input, sink);
+            sink.flush();
+            sink.close();
+            inputFiles.add(inputFile);
+            inputRunCounts.add(countNaturalRuns(input, comparator));
+        }
+
+        // With a fan-in of 2 the quarters can not be merged directly, so they
+        // must be sorted instead.
+        for (int fanIn : new int[]{ExternalCountCommand.DEFAULT_MERGE_FAN_IN, 2}) {
+            for (int i = 0; i < inputFiles.size(); i++) {
+                final File inputFile = inputFiles.get(i);
+                final int runCount = inputRunCounts.get(i);
+                File detectedFile = new File(inputFile.getPath() + ".detected");
+                File sortedFile = new File(inputFile.getPath() + ".sorted");
+
+                // The output must be identical whether or not the sort is skipped
+                for (boolean detection : new boolean[]{true, false}) {
+                    ExternalSortEventsCommand cmd = new ExternalSortEventsCommand();
+                    cmd.setSourceFile(inputFile);
+                    cmd.setDestinationFile(detection ? detectedFile : sortedFile);
+                    cmd.setCharset(DEFAULT_CHARSET);
+                    cmd.setTempFileFactory(new TempFileFactory(TEST_TMP_DIR));
+                    cmd.setIndexDelegate(idx);
+                    cmd.setComparator(comparator);
+                    cmd.setMergeFanIn(fanIn);
+                    cmd.setPresortedDetection(detection);
+                    assertTrue(cmd.runCommand());
+
+                    final int expectedRunCount = detection && runCount <= fanIn ? runCount : 0;
+                    assertEquals("Natural runs merged directly",
+                            expectedRunCount, cmd.getNaturalRunCount());
+                }
+
+                assertTrue("Output differs when presorted input is detected",
+                        Files.equal(sortedFile, detectedFile));
+            }
+        }
+    }
+
+    private static <T> int countNaturalRuns(List<T> list, Comparator<T> comparator) {
+        int count = list.isEmpty() ? 0 : 1;
+        for (int i = 1; i < list.size(); i++)
+            if (comparator.compare(list.get(i - 1), list.get(i)) > 0)
+                ++count;
+        return count;
+    }
+
     private void testSortWeightedTokenPairCommand(File inputFile,
                                                   File randomisedFile, File sortedFile, DoubleEnumerating idx,
                                                   Comparator<Weighted<TokenPair>> comparator) throws
@@ -41,6 +41,8 @@ import uk.ac.susx.mlcl.TestConstants;
 import uk.ac.susx.mlcl.byblo.Tools;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
 import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
+import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
 import uk.ac.susx.mlcl.byblo.io.*;
 import uk.ac.susx.mlcl.lib.PoissonDistribution;
 import uk.ac.susx.mlcl.lib.ZipfianIntGenerator;
@@ -51,7 +53,14 @@ import uk.ac.susx.mlcl.testing.SlowTestCategory;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
-
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static uk.ac.susx.mlcl.TestConstants.*;
 import static uk.ac.susx.mlcl.lib.test.ExitTrapper.disableExitTrapping;
@@ -121,6 +130,7 @@ public class FilterCommandTest extends AbstractCommandTest<FilterCommand> {
                 + ": on fruit, from main method, filter by Entry frequency.");
 
         runWithCLI(new String[]{"--filter-entry-freq", "50"});
+        assertFilteredAsFixpoint(50, 0, 0, null, null, null, null);
     }
 
     @Test
@@ -129,6 +139,7 @@ public class FilterCommandTest extends AbstractCommandTest<FilterCommand> {
                 + " on fruit from main method, filter by context frequency.");
 
         runWithCLI(new String[]{"--filter-feature-freq", "50"});
+        assertFilteredAsFixpoint(0, 50, 0, null, null, null, null);
     }
 
     @Test
@@ -137,6 +148,7 @@ public class FilterCommandTest extends AbstractCommandTest<FilterCommand> {
                 .println("Testing FilterTask on fruit from main method, filter by feature frequency.");
 
         runWithCLI(new String[]{"--filter-event-freq", "5"});
+        assertFilteredAsFixpoint(0, 0, 5, null, null, null, null);
     }
 
     @Test
@@ -152,6 +164,8 @@ public class FilterCommandTest extends AbstractCommandTest<FilterCommand> {
 
         runWithCLI(new String[]{"--filter-entry-whitelist",
                 entryWorldList.toString()});
+        assertFilteredAsFixpoint(0, 0, 0, null, null,
+                readWhitelist(entryWorldList), null);
     }
 
     @Test
@@ -168,6 +182,8 @@ public class FilterCommandTest extends AbstractCommandTest<FilterCommand> {
 
         runWithCLI(new String[]{"--filter-feature-whitelist",
                 contextWorldList.toString()});
+        assertFilteredAsFixpoint(0, 0, 0, null, null,
+                null, readWhitelist(contextWorldList));
     }
 
     @Test
@@ -176,6 +192,7 @@ public class FilterCommandTest extends AbstractCommandTest<FilterCommand> {
                 .println("Testing FilterTask: on fruit, from main method, filter by entry pattern.");
 
         runWithCLI(new String[]{"--filter-entry-pattern", "^.{0,5}$"});
+        assertFilteredAsFixpoint(0, 0, 0, "^.{0,5}$", null, null, null);
     }
 
     @Test
@@ -184,6 +201,7 @@ public class FilterCommandTest extends AbstractCommandTest<FilterCommand> {
                 .println("Testing FilterTask: on fruit, from main method, filter by context pattern.");
 
         runWithCLI(new String[]{"--filter-feature-pattern", "det:.*"});
+        assertFilteredAsFixpoint(0, 0, 0, null, "det:.*", null, null);
     }
 
     @Test
@@ -212,6 +230,305 @@ public class FilterCommandTest extends AbstractCommandTest<FilterCommand> {
                 "--filter-event-freq", "2", "--filter-feature-pattern", ":",
                 "--filter-feature-whitelist", contextWorldList.toString(),
                 "--filter-entry-pattern", "a"});
+        assertFilteredAsFixpoint(10, 5, 2, "a", ":",
+                readWhitelist(entryWorldList), readWhitelist(contextWorldList));
+    }
+
+    /**
+     * The entry and feature with the largest ids must be removed like any
+     * other when they have no events left. On fruit, filtering events below
+     * 5 leaves none for "watermelon", the last entry, nor "ta:best", the last
+     * feature.
+     */
+    @Test
+    public void testMainMethodRun_fruit_largestIdsRemoved() throws Exception {
+        System.out.println("Testing " + SUBJECT
+                + ": on fruit, from main method, largest ids removed.");
+
+        runWithCLI(new String[]{"--filter-event-freq", "5"});
+
+        final Map<String, Double> entries = readTokens(OUTPUT_ENTRIES);
+        final Map<String, Double> features = readTokens(OUTPUT_FEATURES);
+        assertFalse(entries.containsKey("watermelon"));
+        assertFalse(features.containsKey("ta:best"));
+        assertEquals(270, entries.get(FilterCommand.FILTERED_STRING), 0);
+        for (String event : readEvents(OUTPUT_ENTRY_FEATURES).keySet()) {
+            assertFalse(event.startsWith("watermelon\t"));
+            assertFalse(event.endsWith("\tta:best"));
+        }
+    }
+
+    @Test
+    public void testRun_largestIdsRemoved() throws Exception {
+        System.out.println("Testing " + SUBJECT + ": largest ids removed.");
+
+        final File inEntries = new File(TEST_OUTPUT_DIR, "largest-ids.entries");
+        final File inFeatures = new File(TEST_OUTPUT_DIR, "largest-ids.features");
+        final File inEvents = new File(TEST_OUTPUT_DIR, "largest-ids.events");
+        final Charset charset = Charset.forName("UTF-8");
+        Files.write("a\t3\nb\t1\n", inEntries, charset);
+        Files.write("x\t3\ny\t1\n", inFeatures, charset);
+        Files.write("a\tx\t3\nb\ty\t1\n", inEvents, charset);
+
+        final FilterCommand filter = new FilterCommand(inEvents, inEntries,
+                inFeatures, OUTPUT_ENTRY_FEATURES, OUTPUT_ENTRIES,
+                OUTPUT_FEATURES, charset);
+        filter.setFilterEventMinFreq(2);
+        assertTrue(filter.runCommand());
+
+        final Map<String, Double> entries = readTokens(OUTPUT_ENTRIES);
+        assertEquals(2, entries.size());
+        assertEquals(3, entries.get("a"), 0);
+        assertEquals(1, entries.get(FilterCommand.FILTERED_STRING), 0);
+
+        final Map<String, Double> features = readTokens(OUTPUT_FEATURES);
+        assertEquals(2, features.size());
+        assertEquals(3, features.get("x"), 0);
+        assertEquals(1, features.get(FilterCommand.FILTERED_STRING), 0);
+
+        final Map<String, Double> events = readEvents(OUTPUT_ENTRY_FEATURES);
+        assertEquals(2, events.size());
+        assertEquals(3, events.get("a\tx"), 0);
+        assertEquals(1, events.get(FilterCommand.FILTERED_STRING + "\t"
+                + FilterCommand.FILTERED_STRING), 0);
+    }
+
+    /**
+     * With enumerated entries and features the patterns are decided for every
+     * id up front, on the command's threads, by scanning the enumerators.
+     */
+    @Test
+    public void testRun_enumerated_patternAndWhitelist() throws Exception {
+        System.out.println("Testing " + SUBJECT
+                + ": enumerated, filter by entry pattern and feature whitelist.");
+
+        final File inEntries = new File(TEST_OUTPUT_DIR, "enumerated-filter.entries");
+        final File inFeatures = new File(TEST_OUTPUT_DIR, "enumerated-filter.features");
+        final File inEvents = new File(TEST_OUTPUT_DIR, "enumerated-filter.events");
+        final File entryIndex = new File(TEST_OUTPUT_DIR, "enumerated-filter.entry-index");
+        final File featureIndex = new File(TEST_OUTPUT_DIR, "enumerated-filter.feature-index");
+        final File featureWhitelist = new File(TEST_OUTPUT_DIR, "enumerated-filter.feature-whitelist");
+        deleteIfExist(entryIndex, featureIndex);
+
+        final String[] entryStrings = {"apple", "banana", "cherry", "date"};
+        final String[] featureStrings = {"det:a", "det:the", "ncmod:red", "ta:and"};
+
+        final DoubleEnumeratingDelegate writer = new DoubleEnumeratingDelegate(
+                EnumeratorType.Memory, true, true, entryIndex, featureIndex);
+        final WeightedTokenSink entriesSink = BybloIO.openEntriesSink(inEntries, DEFAULT_CHARSET, writer);
+        final WeightedTokenSink featuresSink = BybloIO.openFeaturesSink(inFeatures, DEFAULT_CHARSET, writer);
+        final WeightedTokenPairSink eventsSink = BybloIO.openEventsSink(inEvents, DEFAULT_CHARSET, writer);
+        for (String entry : entryStrings) {
+            final int entryId = writer.getEntryEnumerator().indexOf(entry);
+            entriesSink.write(new Weighted<Token>(new Token(entryId), featureStrings.length));
+            for (String feature : featureStrings) {
+                final int featureId = writer.getFeatureEnumerator().indexOf(feature);
+                eventsSink.write(new Weighted<TokenPair>(new TokenPair(entryId, featureId), 1));
+            }
+        }
+        for (String feature : featureStrings) {
+            featuresSink.write(new Weighted<Token>(new Token(
+                    writer.getFeatureEnumerator().indexOf(feature)), entryStrings.length));
+        }
+        entriesSink.flush();
+        entriesSink.close();
+        featuresSink.flush();
+        featuresSink.close();
+        eventsSink.flush();
+        eventsSink.close();
+        writer.saveEnumerator();
+        writer.closeEnumerator();
+
+        Files.write("det:a\nncmod:red", featureWhitelist, DEFAULT_CHARSET);
+
+        final FilterCommand filter = new FilterCommand(inEvents, inEntries,
+                inFeatures, OUTPUT_ENTRY_FEATURES, OUTPUT_ENTRIES,
+                OUTPUT_FEATURES, DEFAULT_CHARSET);
+        filter.setIndexDelegate(new DoubleEnumeratingDelegate(
+                EnumeratorType.Memory, true, true, entryIndex, featureIndex));
+        filter.setNumThreads(2);
+        filter.setFilterEntryPattern("^[ab]");
+        filter.setFilterFeatureWhitelist(featureWhitelist);
+        assertTrue(filter.runCommand());
+
+        final DoubleEnumeratingDelegate reader = new DoubleEnumeratingDelegate(
+                EnumeratorType.Memory, true, true, entryIndex, featureIndex);
+        final Enumerator<String> entries = reader.getEntryEnumerator();
+        final Enumerator<String> features = reader.getFeatureEnumerator();
+        final int filteredEntry = entries.indexOf(FilterCommand.FILTERED_STRING);
+        final int filteredFeature = features.indexOf(FilterCommand.FILTERED_STRING);
+
+        final Map<Integer, Double> outEntries = new HashMap<Integer, Double>();
+        final WeightedTokenSource entriesSource = BybloIO.openEntriesSource(OUTPUT_ENTRIES, DEFAULT_CHARSET, reader);
+        while (entriesSource.hasNext()) {
+            final Weighted<Token> record = entriesSource.read();
+            outEntries.put(record.record().id(), record.weight());
+        }
+        entriesSource.close();
+
+        final Map<Integer, Double> outFeatures = new HashMap<Integer, Double>();
+        final WeightedTokenSource featuresSource = BybloIO.openFeaturesSource(OUTPUT_FEATURES, DEFAULT_CHARSET, reader);
+        while (featuresSource.hasNext()) {
+            final Weighted<Token> record = featuresSource.read();
+            outFeatures.put(record.record().id(), record.weight());
+        }
+        featuresSource.close();
+
+        final Map<TokenPair, Double> outEvents = new HashMap<TokenPair, Double>();
+        final WeightedTokenPairSource eventsSource = BybloIO.openEventsSource(OUTPUT_ENTRY_FEATURES, DEFAULT_CHARSET, reader);
+        while (eventsSource.hasNext()) {
+            final Weighted<TokenPair> record = eventsSource.read();
+            outEvents.put(record.record(), record.weight());
+        }
+        eventsSource.close();
+
+        final int apple = entries.indexOf("apple");
+        final int banana = entries.indexOf("banana");
+        final int detA = features.indexOf("det:a");
+        final int ncmodRed = features.indexOf("ncmod:red");
+
+        final Map<Integer, Double> expectedEntries = new HashMap<Integer, Double>();
+        expectedEntries.put(apple, 4.0);
+        expectedEntries.put(banana, 4.0);
+        expectedEntries.put(filteredEntry, 8.0);
+        assertEquals(expectedEntries, outEntries);
+
+        final Map<Integer, Double> expectedFeatures = new HashMap<Integer, Double>();
+        expectedFeatures.put(detA, 4.0);
+        expectedFeatures.put(ncmodRed, 4.0);
+        expectedFeatures.put(filteredFeature, 8.0);
+        assertEquals(expectedFeatures, outFeatures);
+
+        final Map<TokenPair, Double> expectedEvents = new HashMap<TokenPair, Double>();
+        for (int entry : new int[]{apple, banana}) {
+            expectedEvents.put(new TokenPair(entry, detA), 1.0);
+            expectedEvents.put(new TokenPair(entry, ncmodRed), 1.0);
+            expectedEvents.put(new TokenPair(entry, filteredFeature), 2.0);
+        }
+        expectedEvents.put(new TokenPair(filteredEntry, filteredFeature), 8.0);
+        assertEquals(expectedEvents, outEvents);
+    }
+
+    /**
+     * Check the outputs against the fixpoint of the original filtering loop,
+     * which removed entries, features and events in turn until nothing
+     * changed, keeping the weight of everything removed with the special
+     * filtered entry and feature.
+     */
+    private static void assertFilteredAsFixpoint(
+            double entryMinFreq, double featureMinFreq, double eventMinFreq,
+            String entryPattern, String featurePattern,
+            Set<String> entryWhitelist, Set<String> featureWhitelist)
+            throws IOException {
+        final Map<String, Double> inEntries = readTokens(TEST_FRUIT_ENTRIES);
+        final Map<String, Double> inFeatures = readTokens(TEST_FRUIT_FEATURES);
+        final Map<String, Double> inEvents = readEvents(TEST_FRUIT_EVENTS);
+
+        final Set<String> liveEntries = accepted(inEntries, entryMinFreq,
+                entryPattern, entryWhitelist);
+        final Set<String> liveFeatures = accepted(inFeatures, featureMinFreq,
+                featurePattern, featureWhitelist);
+        boolean changed = true;
+        while (changed) {
+            final Set<String> eventEntries = new HashSet<String>();
+            final Set<String> eventFeatures = new HashSet<String>();
+            for (Map.Entry<String, Double> e : inEvents.entrySet()) {
+                final String[] pair = e.getKey().split("\t");
+                if (liveEntries.contains(pair[0])
+                        && liveFeatures.contains(pair[1])
+                        && e.getValue() >= eventMinFreq) {
+                    eventEntries.add(pair[0]);
+                    eventFeatures.add(pair[1]);
+                }
+            }
+            changed = liveEntries.retainAll(eventEntries);
+            changed |= liveFeatures.retainAll(eventFeatures);
+        }
+
+        final String filtered = FilterCommand.FILTERED_STRING;
+        final Map<String, Double> expectedEvents = new HashMap<String, Double>();
+        for (Map.Entry<String, Double> e : inEvents.entrySet()) {
+            final String[] pair = e.getKey().split("\t");
+            if (!liveEntries.contains(pair[0]))
+                add(expectedEvents, filtered + "\t" + filtered, e.getValue());
+            else if (liveFeatures.contains(pair[1]) && e.getValue() >= eventMinFreq)
+                add(expectedEvents, e.getKey(), e.getValue());
+            else
+                add(expectedEvents, pair[0] + "\t" + filtered, e.getValue());
+        }
+
+        assertWeightsEqual(retained(inEntries, liveEntries), readTokens(OUTPUT_ENTRIES));
+        assertWeightsEqual(retained(inFeatures, liveFeatures), readTokens(OUTPUT_FEATURES));
+        assertWeightsEqual(expectedEvents, readEvents(OUTPUT_ENTRY_FEATURES));
+    }
+
+    private static Set<String> accepted(Map<String, Double> tokens,
+                                        double minFreq, String pattern,
+                                        Set<String> whitelist) {
+        final Set<String> accepted = new HashSet<String>();
+        for (Map.Entry<String, Double> e : tokens.entrySet()) {
+            if (e.getValue() >= minFreq
+                    && (pattern == null || Pattern.compile(pattern).matcher(e.getKey()).find())
+                    && (whitelist == null || whitelist.contains(e.getKey())))
+                accepted.add(e.getKey());
+        }
+        return accepted;
+    }
+
+    private static Map<String, Double> retained(Map<String, Double> tokens,
+                                                Set<String> live) {
+        final Map<String, Double> retained = new HashMap<String, Double>();
+        for (Map.Entry<String, Double> e : tokens.entrySet()) {
+            if (live.contains(e.getKey()))
+                retained.put(e.getKey(), e.getValue());
+            else
+                add(retained, FilterCommand.FILTERED_STRING, e.getValue());
+        }
+        return retained;
+    }
+
+    private static void add(Map<String, Double> weights, String key, double weight) {
+        final Double w = weights.get(key);
+        weights.put(key, w == null ? weight : w + weight);
+    }
+
+    private static void assertWeightsEqual(Map<String, Double> expected,
+                                           Map<String, Double> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, Double> e : expected.entrySet())
+            assertEquals(e.getKey(), e.getValue(), actual.get(e.getKey()), 1e-6);
+    }
+
+    private static Set<String> readWhitelist(File file) throws IOException {
+        return new HashSet<String>(Files.readLines(file, Charset.forName("UTF-8")));
+    }
+
+    // Read a plain-text entries or features file into a map from string to
+    // weight.
+    private static Map<String, Double> readTokens(File file) throws IOException {
+        final Map<String, Double> tokens = new HashMap<String, Double>();
+        for (String line : Files.readLines(file, Charset.forName("UTF-8"))) {
+            if (line.isEmpty())
+                continue;
+            final String[] parts = line.split("\t");
+            add(tokens, parts[0], Double.parseDouble(parts[1]));
+        }
+        return tokens;
+    }
+
+    // Read a plain-text events file, in which each line holds an entry
+    // followed by feature and weight pairs, into a map from the tab
+    // separated entry and feature to weight.
+    private static Map<String, Double> readEvents(File file) throws IOException {
+        final Map<String, Double> events = new HashMap<String, Double>();
+        for (String line : Files.readLines(file, Charset.forName("UTF-8"))) {
+            if (line.isEmpty())
+                continue;
+            final String[] parts = line.split("\t");
+            for (int i = 1; i + 1 < parts.length; i += 2)
+                add(events, parts[0] + "\t" + parts[i], Double.parseDouble(parts[i + 1]));
+        }
+        return events;
     }
 
     @Test
@@ -30,6 +30,7 @@
  */
 package uk.ac.susx.mlcl.byblo.commands;
 
+import com.google.common.io.Files;
 import org.junit.Ignore;
 import org.junit.Test;
 import uk.ac.susx.mlcl.TestConstants;
@@ -177,6 +178,35 @@ public class IndexSimsCommandTest extends
         unindexSims(out, out2, idx, type, skip1, skip2, compact);
     }
 
+    @Test
+    public void testUnindexPreloadedMatchesLookup() throws Exception {
+        System.out.println("Testing " + IndexSimsCommandTest.class.getName()
+                + " preloaded unindexing on " + TEST_FRUIT_SIMS_100NN);
+
+        final String name = "preload-" + TEST_FRUIT_SIMS_100NN.getName();
+        final File indexed = new File(TEST_OUTPUT_DIR, name + ".indexed");
+        final File lookup = suffix(indexed, ".lookup");
+        final File preloaded = suffix(indexed, ".preloaded");
+        final File idx = new File(TEST_OUTPUT_DIR, name + ".entry-index");
+        deleteIfExist(indexed, lookup, preloaded, idx);
+
+        indexSims(TEST_FRUIT_SIMS_100NN, indexed, idx, EnumeratorType.MMAP,
+                false, false, true);
+
+        for (File out : new File[]{lookup, preloaded}) {
+            IndexingCommands.UnindexSims unindex = new IndexingCommands.UnindexSims();
+            unindex.getFilesDelegate().setCharset(DEFAULT_CHARSET);
+            unindex.getFilesDelegate().setSourceFile(indexed);
+            unindex.getFilesDelegate().setDestinationFile(out);
+            unindex.setIndexDelegate(EnumeratingDelegates.toPair(
+                    new SingleEnumeratingDelegate(EnumeratorType.MMAP, true, idx)));
+            unindex.setPreloadStrings(out == preloaded);
+            assertTrue(unindex.runCommand());
+        }
+
+        assertTrue(Files.equal(lookup, preloaded));
+    }
+
     @Test
     @Ignore
     public void testCompareSkipVsnoSkip() throws Exception {
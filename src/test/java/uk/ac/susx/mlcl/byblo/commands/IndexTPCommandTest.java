@@ -30,13 +30,22 @@
  */
 package uk.ac.susx.mlcl.byblo.commands;
 
+import com.google.common.io.Files;
 import junit.framework.Assert;
 import org.junit.*;
 import uk.ac.susx.mlcl.TestConstants;
+import uk.ac.susx.mlcl.byblo.enumerators.ConcurrentStringEnumerator;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
 import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.TokenPairSource;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import static uk.ac.susx.mlcl.TestConstants.*;
 
@@ -155,6 +164,72 @@ public class IndexTPCommandTest {
                 true, false);
     }
 
+    @Test
+    public void testParallelMatchesSerial() throws Exception {
+        System.out.println("Testing " + IndexTPCommandTest.class.getName()
+                + " in parallel on " + TEST_FRUIT_INPUT);
+
+        final String name = TEST_FRUIT_INPUT.getName();
+        final File[] indexed = new File[2];
+        final File[][] indices = new File[2][];
+        final File[] unindexed = new File[2];
+        final int[] sizes = new int[2];
+        for (int i = 0; i < 2; i++) {
+            final int threads = i == 0 ? 1 : 4;
+            final File out = new File(TEST_OUTPUT_DIR, "parallel-" + threads + "-" + name + ".indexed");
+            final File idx1 = new File(TEST_OUTPUT_DIR, "parallel-" + threads + "-" + name + ".entry-index");
+            final File idx2 = new File(TEST_OUTPUT_DIR, "parallel-" + threads + "-" + name + ".feature-index");
+            indexed[i] = out;
+            indices[i] = new File[]{idx1, idx2};
+            unindexed[i] = suffix(out, ".unindexed");
+            deleteIfExist(out, idx1, idx2, unindexed[i]);
+
+            IndexingCommands.IndexInstances index = new IndexingCommands.IndexInstances(
+                    TEST_FRUIT_INPUT, out, DEFAULT_CHARSET,
+                    new DoubleEnumeratingDelegate(EnumeratorType.Memory, true, true, idx1, idx2));
+            index.setNumThreads(threads);
+            // Many more slices than threads, so slices are scanned while earlier ones are written
+            index.setSliceBytes(Math.max(1, TEST_FRUIT_INPUT.length() / 50));
+            Assert.assertTrue(index.runCommand());
+
+            IndexingCommands.UnindexInstances unindex = new IndexingCommands.UnindexInstances(
+                    out, unindexed[i], DEFAULT_CHARSET,
+                    new DoubleEnumeratingDelegate(EnumeratorType.Memory, true, true, idx1, idx2));
+            Assert.assertTrue(unindex.runCommand());
+
+            // Ids must be dense regardless of how the workers interleaved
+            int expectedId = 0;
+            for (Map.Entry<Integer, String> e : ConcurrentStringEnumerator.load(idx2)) {
+                Assert.assertEquals(expectedId++, (int) e.getKey());
+            }
+            sizes[i] = expectedId;
+        }
+
+        Assert.assertEquals(sizes[0], sizes[1]);
+
+        // New strings are given ids in slice order, so the ids match those of a single thread
+        final DoubleEnumeratingDelegate enumerated = new DoubleEnumeratingDelegate(
+                EnumeratorType.Memory, true, true, null, null);
+        Assert.assertEquals(readAll(indexed[0], enumerated), readAll(indexed[1], enumerated));
+        Assert.assertTrue(Files.equal(indexed[0], indexed[1]));
+        Assert.assertTrue(Files.equal(indices[0][0], indices[1][0]));
+        Assert.assertTrue(Files.equal(indices[0][1], indices[1][1]));
+
+        // Both files are read through the same enumerator, so equal strings get equal ids
+        final DoubleEnumeratingDelegate idx = new DoubleEnumeratingDelegate(
+                EnumeratorType.Memory, false, false, null, null);
+        Assert.assertEquals(readAll(unindexed[0], idx), readAll(unindexed[1], idx));
+    }
+
+    private static List<TokenPair> readAll(File file, DoubleEnumeratingDelegate idx) throws IOException {
+        final List<TokenPair> pairs = new ArrayList<TokenPair>();
+        final TokenPairSource src = BybloIO.openInstancesSource(file, DEFAULT_CHARSET, idx);
+        while (src.hasNext())
+            pairs.add(src.read());
+        src.close();
+        return pairs;
+    }
+
     void testRunOnFruitAPI(
             String prefix, EnumeratorType type, boolean skip1, boolean skip2,
             boolean compact) throws Exception {
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.Token;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenSource;
+import uk.ac.susx.mlcl.lib.commands.AbstractCommandTest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ReenumerateCommandTest extends AbstractCommandTest<ReenumerateCommand> {
+
+    @Override
+    public Class<? extends ReenumerateCommand> getImplementation() {
+        return ReenumerateCommand.class;
+    }
+
+    @Test
+    public void testRunOnFruit() throws Exception {
+        System.out.println("Testing " + ReenumerateCommand.class.getName()
+                + " on fruit.");
+
+        final String name = "reenumerate-fruit";
+        final EnumeratorType type = EnumeratorType.Memory;
+        final File entryIndex = new File(TEST_OUTPUT_DIR, name + ".entry-index");
+        final File featureIndex = new File(TEST_OUTPUT_DIR, name + ".feature-index");
+        final File entries = new File(TEST_OUTPUT_DIR, name + ".entries");
+        final File features = new File(TEST_OUTPUT_DIR, name + ".features");
+        final File events = new File(TEST_OUTPUT_DIR, name + ".events");
+        deleteIfExist(entryIndex, featureIndex, entries, features, events);
+
+        final DoubleEnumeratingDelegate idx = new DoubleEnumeratingDelegate(
+                type, true, true, entryIndex, featureIndex);
+        copy(new IndexingCommands.IndexEntries(), TEST_FRUIT_ENTRIES, entries, idx);
+        copy(new IndexingCommands.IndexFeatures(), TEST_FRUIT_FEATURES, features, idx);
+        copy(new IndexingCommands.IndexEvents(), TEST_FRUIT_EVENTS, events, idx);
+
+        final File entryIndex2 = suffixed(entryIndex, ".reordered");
+        final File featureIndex2 = suffixed(featureIndex, ".reordered");
+        final File entries2 = suffixed(entries, ".reordered");
+        final File features2 = suffixed(features, ".reordered");
+        final File events2 = suffixed(events, ".reordered");
+        deleteIfExist(entryIndex2, featureIndex2, entries2, features2, events2);
+
+        final ReenumerateCommand cmd = new ReenumerateCommand(
+                entries, features, events, entries2, features2, events2,
+                entryIndex2, featureIndex2, DEFAULT_CHARSET,
+                new DoubleEnumeratingDelegate(type, true, true, entryIndex, featureIndex));
+        assertTrue(cmd.runCommand());
+
+        final DoubleEnumeratingDelegate idx2 = new DoubleEnumeratingDelegate(
+                type, true, true, entryIndex2, featureIndex2);
+        assertDescendingById(BybloIO.openEntriesSource(entries2, DEFAULT_CHARSET, idx2));
+        assertDescendingById(BybloIO.openFeaturesSource(features2, DEFAULT_CHARSET, idx2));
+        assertAscendingByIds(BybloIO.openEventsSource(events2, DEFAULT_CHARSET, idx2));
+
+        // The strings, and their weights, must be unchanged by reassignment
+        final DoubleEnumeratingDelegate idx3 = new DoubleEnumeratingDelegate(
+                type, true, true, entryIndex, featureIndex);
+        assertSameLines(
+                unindex(new IndexingCommands.UnindexEntries(), entries, idx3),
+                unindex(new IndexingCommands.UnindexEntries(), entries2, idx2));
+        assertSameLines(
+                unindex(new IndexingCommands.UnindexFeatures(), features, idx3),
+                unindex(new IndexingCommands.UnindexFeatures(), features2, idx2));
+        assertSameLines(
+                unindex(new IndexingCommands.UnindexEvents(), events, idx3),
+                unindex(new IndexingCommands.UnindexEvents(), events2, idx2));
+    }
+
+    private static void assertDescendingById(WeightedTokenSource src)
+            throws Exception {
+        int previousId = -1;
+        double previousWeight = Double.POSITIVE_INFINITY;
+        while (src.hasNext()) {
+            final Weighted<Token> record = src.read();
+            final int id = record.record().id();
+            assertTrue(id > previousId);
+            if (id != FilterCommand.FILTERED_ID) {
+                assertTrue(record.weight() <= previousWeight);
+                previousWeight = record.weight();
+            }
+            previousId = id;
+        }
+        src.close();
+    }
+
+    // Events must be ordered by the new entry id, and then the new feature id
+    private static void assertAscendingByIds(WeightedTokenPairSource src)
+            throws Exception {
+        TokenPair previous = null;
+        while (src.hasNext()) {
+            final TokenPair pair = src.read().record();
+            if (previous != null) {
+                assertTrue(pair.id1() > previous.id1()
+                        || (pair.id1() == previous.id1() && pair.id2() > previous.id2()));
+            }
+            previous = pair;
+        }
+        src.close();
+    }
+
+    private static void copy(IndexingCommands<?> cmd, File from, File to,
+                             DoubleEnumeratingDelegate idx) throws Exception {
+        cmd.getFilesDelegate().setCharset(DEFAULT_CHARSET);
+        cmd.getFilesDelegate().setSourceFile(from);
+        cmd.getFilesDelegate().setDestinationFile(to);
+        cmd.setIndexDelegate(idx);
+        assertTrue(cmd.runCommand());
+    }
+
+    private static File unindex(IndexingCommands<?> cmd, File from,
+                                DoubleEnumeratingDelegate idx) throws Exception {
+        final File to = suffixed(from, ".strings");
+        deleteIfExist(to);
+        copy(cmd, from, to, idx);
+        return to;
+    }
+
+    private static void assertSameLines(File expected, File actual)
+            throws Exception {
+        assertEquals(readNormalised(expected), readNormalised(actual));
+    }
+
+    // Features within each line may be reordered, so sort the (feature,
+    // weight) pairs of every line, and then the lines themselves.
+    private static List<String> readNormalised(File file) throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        for (String line : Files.readLines(file, DEFAULT_CHARSET)) {
+            final String[] parts = line.split("\t");
+            final List<String> pairs = new ArrayList<String>();
+            for (int i = 1; i + 1 < parts.length; i += 2)
+                pairs.add(parts[i] + "\t" + parts[i + 1]);
+            Collections.sort(pairs);
+            lines.add(parts[0] + "\t" + Joiner.on("\t").join(pairs));
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private static File suffixed(File file, String suffix) {
+        return new File(file.getParentFile(), file.getName() + suffix);
+    }
+}
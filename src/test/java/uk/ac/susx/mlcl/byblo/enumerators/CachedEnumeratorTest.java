@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.enumerators;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.ZipfianIntGenerator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class CachedEnumeratorTest {
+
+    @Test
+    public void testZipfianLookups() throws Exception {
+        final int nStrings = 100000;
+        final ConcurrentStringEnumerator inner = ConcurrentStringEnumerator.newInstance();
+        for (int i = 0; i < nStrings; i++)
+            inner.indexOf("s" + i);
+
+        final CachedEnumerator<String> instance = new CachedEnumerator<String>(inner, 1000);
+        assertEquals(1024, instance.getCapacity());
+
+        final ZipfianIntGenerator zipf = new ZipfianIntGenerator();
+        final int nLookups = 200000;
+        for (int i = 0; i < nLookups; i++) {
+            final String s = "s" + zipf.nextInt() % nStrings;
+            final int id = instance.indexOf(s);
+            assertEquals(inner.indexOf(s), id);
+            assertEquals(s, instance.valueOf(id));
+        }
+
+        assertEquals(nLookups, instance.getIndexHitCount() + instance.getIndexMissCount());
+        assertEquals(nLookups, instance.getValueHitCount() + instance.getValueMissCount());
+        // Frequent strings dominate, so most lookups should be served from cache
+        assertTrue("hit rate " + instance.getHitRate(), instance.getHitRate() > 0.5);
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final int nThreads = 8;
+        final int nStrings = 20000;
+        final CachedEnumerator<String> instance = new CachedEnumerator<String>(
+                ConcurrentStringEnumerator.newInstance(), 256);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        final List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+        for (int t = 0; t < nThreads; t++) {
+            final int offset = t * nStrings / nThreads;
+            futures.add(executor.submit(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    final int[] ids = new int[nStrings];
+                    for (int i = 0; i < nStrings; i++) {
+                        final int s = (i + offset) % nStrings;
+                        ids[s] = instance.indexOf("s" + (s % 500));
+                        assertEquals("s" + (s % 500), instance.valueOf(ids[s]));
+                    }
+                    return ids;
+                }
+            }));
+        }
+        final List<int[]> results = new ArrayList<int[]>();
+        for (Future<int[]> future : futures)
+            results.add(future.get());
+        executor.shutdown();
+
+        for (int[] ids : results)
+            assertArrayEquals(results.get(0), ids);
+    }
+}
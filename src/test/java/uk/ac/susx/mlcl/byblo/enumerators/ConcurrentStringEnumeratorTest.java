@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.enumerators;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.commands.FilterCommand;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.TEST_OUTPUT_DIR;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ConcurrentStringEnumeratorTest {
+
+    @Test
+    public void testConcurrentIndexOf() throws Exception {
+        final int nThreads = 8;
+        final int nStrings = 50000;
+        final ConcurrentStringEnumerator instance = ConcurrentStringEnumerator.newInstance();
+
+        // Every thread enumerates the same strings, each starting at a different offset
+        final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        final List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+        for (int t = 0; t < nThreads; t++) {
+            final int offset = t * nStrings / nThreads;
+            futures.add(executor.submit(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    final int[] ids = new int[nStrings];
+                    for (int i = 0; i < nStrings; i++) {
+                        final int s = (i + offset) % nStrings;
+                        ids[s] = instance.indexOf("s" + s);
+                    }
+                    return ids;
+                }
+            }));
+        }
+        final List<int[]> results = new ArrayList<int[]>();
+        for (Future<int[]> future : futures)
+            results.add(future.get());
+        executor.shutdown();
+
+        // All threads saw the same id for each string
+        for (int[] ids : results)
+            for (int s = 0; s < nStrings; s++)
+                assertEquals(results.get(0)[s], ids[s]);
+
+        // Ids are dense, and each maps back to its string
+        assertEquals(nStrings + 1, instance.size());
+        final boolean[] seen = new boolean[nStrings + 1];
+        seen[FilterCommand.FILTERED_ID] = true;
+        for (int s = 0; s < nStrings; s++) {
+            final int id = results.get(0)[s];
+            assertFalse(seen[id]);
+            seen[id] = true;
+            assertEquals("s" + s, instance.valueOf(id));
+        }
+    }
+
+    @Test
+    public void testSaveLoad() throws Exception {
+        final File file = new File(TEST_OUTPUT_DIR, "concurrent-enumerator-test");
+        if (file.exists())
+            assertTrue(file.delete());
+
+        final ConcurrentStringEnumerator instance = ConcurrentStringEnumerator.newInstance(file);
+        for (int i = 0; i < 40000; i++)
+            instance.indexOf("s" + (i * 7919 % 40000));
+        instance.save();
+
+        final ConcurrentStringEnumerator loaded = ConcurrentStringEnumerator.load(file);
+        assertEquals(instance.size(), loaded.size());
+        int expectedId = 0;
+        for (Map.Entry<Integer, String> e : loaded) {
+            assertEquals(expectedId++, (int) e.getKey());
+            assertEquals(instance.valueOf(e.getKey()), e.getValue());
+            assertEquals((int) e.getKey(), instance.indexOf(e.getValue()));
+        }
+        assertEquals(instance.size(), expectedId);
+        assertEquals(FilterCommand.FILTERED_ID, loaded.indexOf(FilterCommand.FILTERED_STRING));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.enumerators;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.commands.FilterCommand;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.TEST_OUTPUT_DIR;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class MappedStringEnumeratorTest {
+
+    @Test
+    public void testSaveLoadExtend() throws Exception {
+        final File file = new File(TEST_OUTPUT_DIR, "mapped-enumerator-test");
+        if (file.exists())
+            assertTrue(file.delete());
+
+        final int n = 20000;
+        final MappedStringEnumerator created = MappedStringEnumerator.newInstance(file);
+        assertEquals(FilterCommand.FILTERED_ID, created.indexOf(FilterCommand.FILTERED_STRING));
+        for (int i = 0; i < n; i++)
+            assertEquals(i + 1, created.indexOf(string(i)));
+        created.save();
+        created.close();
+
+        // Everything is read back from the mapped dictionary
+        final MappedStringEnumerator loaded = MappedStringEnumerator.load(file);
+        assertEquals(FilterCommand.FILTERED_ID, loaded.indexOf(FilterCommand.FILTERED_STRING));
+        for (int i = 0; i < n; i++) {
+            assertEquals(i + 1, loaded.indexOf(string(i)));
+            assertEquals(string(i), loaded.valueOf(i + 1));
+        }
+
+        // New strings follow on from the dictionary, and survive a second save
+        assertEquals(n + 1, loaded.indexOf("new string"));
+        assertEquals(n + 2, loaded.indexOf("été"));
+        assertEquals(n + 1, loaded.indexOf("new string"));
+        loaded.save();
+        loaded.close();
+
+        final MappedStringEnumerator reloaded = MappedStringEnumerator.load(file);
+        assertEquals(n + 1, reloaded.indexOf("new string"));
+        assertEquals("été", reloaded.valueOf(n + 2));
+        int expectedId = 0;
+        for (Map.Entry<Integer, String> e : reloaded) {
+            assertEquals(expectedId++, (int) e.getKey());
+            assertEquals((int) e.getKey(), reloaded.indexOf(e.getValue()));
+        }
+        assertEquals(n + 3, expectedId);
+        reloaded.close();
+    }
+
+    private static String string(int i) {
+        return "string-" + Integer.toString(i * 7919, 36);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.enumerators;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class RankTableTest {
+
+    @Test
+    public void testCompareMatchesStrings() throws Exception {
+        final SingleEnumeratingDelegate idx = new SingleEnumeratingDelegate(
+                EnumeratorType.Memory, false, null);
+        final Enumerator<String> enumerator = idx.getEnumerator();
+        final RankTable ranks = new RankTable(idx);
+
+        final Random rand = new Random(0);
+        final int nStrings = 2000;
+        for (int i = 0; i < nStrings; i++) {
+            enumerator.indexOf(Integer.toString(rand.nextInt(), 36));
+
+            // Strings added after first use must be ranked too, without
+            // disturbing the order of those ranked before
+            if (i % 500 == 0)
+                checkOrder(enumerator, ranks, rand);
+        }
+        checkOrder(enumerator, ranks, rand);
+    }
+
+    private static void checkOrder(Enumerator<String> enumerator,
+                                   RankTable ranks, Random rand) {
+        final int n = enumerator.indexOf(Integer.toString(rand.nextInt(), 36)) + 1;
+        for (int i = 0; i < 10000; i++) {
+            final int a = rand.nextInt(n);
+            final int b = rand.nextInt(n);
+            assertEquals(Integer.signum(enumerator.valueOf(a).compareTo(enumerator.valueOf(b))),
+                    ranks.compare(a, b));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class WeightSumReducerObjectSinkTest {
+
+    @Test
+    public void testCountsSummedExactly() throws IOException {
+        final List<Weighted<Token>> out = new ArrayList<Weighted<Token>>();
+        final WeightSumReducerObjectSink<Token> sink =
+                new WeightSumReducerObjectSink<Token>(ObjectIO.asSink(out));
+
+        // 2^53 + 1 can not be represented as a double
+        final long big = (1L << 53);
+        sink.write(new Counted<Token>(new Token(1), big));
+        sink.write(new Counted<Token>(new Token(1), 1));
+        sink.write(new Counted<Token>(new Token(2), Integer.MAX_VALUE));
+        sink.write(new Counted<Token>(new Token(2), Integer.MAX_VALUE));
+        sink.write(new Counted<Token>(new Token(3), 1));
+        sink.write(new Weighted<Token>(new Token(3), 0.5));
+        sink.flush();
+
+        assertEquals(3, out.size());
+        assertTrue(out.get(0) instanceof Counted);
+        assertEquals(big + 1, ((Counted<Token>) out.get(0)).count());
+        assertEquals(2L * Integer.MAX_VALUE,
+                ((Counted<Token>) out.get(1)).count());
+        assertEquals(1.5, out.get(2).weight(), 0);
+    }
+
+    @Test
+    public void testCountedEqualsWeighted() {
+        final Weighted<Token> weighted = new Weighted<Token>(new Token(1), 2);
+        final Weighted<Token> counted = new Counted<Token>(new Token(1), 2);
+        assertEquals(weighted, counted);
+        assertEquals(counted, weighted);
+        assertEquals(weighted.hashCode(), counted.hashCode());
+        assertFalse(counted.equals(new Counted<Token>(new Token(2), 2)));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testCountOverflow() throws IOException {
+        final WeightSumReducerObjectSink<Token> sink =
+                new WeightSumReducerObjectSink<Token>(
+                        ObjectIO.<Weighted<Token>>nullSink());
+        sink.write(new Counted<Token>(new Token(1), Long.MAX_VALUE));
+        sink.write(new Counted<Token>(new Token(1), 1));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.collect;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.Test;
+import uk.ac.susx.mlcl.testing.AbstractTest;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class LongKeyCounterTest extends AbstractTest {
+
+    @Test
+    public void testCountAndSort() {
+        final Random rand = newRandom();
+        final LongKeyCounter counter = new LongKeyCounter();
+        final Long2IntOpenHashMap expected = new Long2IntOpenHashMap();
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 100000; i++) {
+                // Mix of clustered packed pairs, extreme values, and zero
+                final long key;
+                switch (rand.nextInt(4)) {
+                    case 0:
+                        key = ((long) rand.nextInt(100) << 32) | rand.nextInt(1000);
+                        break;
+                    case 1:
+                        key = rand.nextLong();
+                        break;
+                    case 2:
+                        key = rand.nextBoolean() ? Long.MIN_VALUE : -1L;
+                        break;
+                    default:
+                        key = rand.nextInt(3) == 0 ? 0L : rand.nextInt(50);
+                }
+                counter.add(key, 1);
+                expected.add(key, 1);
+            }
+            assertEquals(expected.size(), counter.size());
+            for (long key : expected.keySet())
+                assertEquals(expected.get(key), counter.get(key));
+
+            counter.sortUnsigned();
+            final LongArrayList keys = new LongArrayList();
+            for (int i = 0; i < counter.size(); i++) {
+                keys.add(counter.keyAt(i));
+                assertEquals(expected.get(counter.keyAt(i)),
+                        counter.countAt(i));
+                if (i > 0)
+                    assertTrue(unsignedLess(counter.keyAt(i - 1),
+                            counter.keyAt(i)));
+            }
+            assertEquals(expected.size(), keys.size());
+
+            counter.clear();
+            expected.clear();
+            assertTrue(counter.isEmpty());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddAfterSort() {
+        final LongKeyCounter counter = new LongKeyCounter();
+        counter.add(1, 1);
+        counter.sortUnsigned();
+        counter.add(2, 1);
+    }
+
+    @Test
+    public void testRadixSortSmallAndEmpty() {
+        final long[] keys = {5, -1, 3, 0, Long.MIN_VALUE, 3};
+        final long[] values = {0, 1, 2, 3, 4, 5};
+        RadixSort.sortUnsigned(keys, values, 1, 1);
+        RadixSort.sortUnsigned(keys, values, 0, keys.length);
+        assertEquals(0L, keys[0]);
+        assertEquals(3L, keys[1]);
+        assertEquals(3L, keys[2]);
+        assertEquals(5L, keys[3]);
+        assertEquals(Long.MIN_VALUE, keys[4]);
+        assertEquals(-1L, keys[5]);
+        assertEquals(3, values[0]);
+        assertEquals(0, values[3]);
+        assertEquals(1, values[5]);
+    }
+
+    private static boolean unsignedLess(long a, long b) {
+        return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+    }
+}
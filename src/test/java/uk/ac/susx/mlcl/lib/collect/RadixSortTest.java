@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.collect;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.Comparators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class RadixSortTest {
+
+    /**
+     * Orders int[] records by a single element, with a key that radix sorts.
+     */
+    private static RadixComparator<int[]> elementOrder(final int element) {
+        return new RadixComparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a[element] < b[element] ? -1 : a[element] > b[element] ? 1 : 0;
+            }
+
+            @Override
+            public int getKeyWordCount() {
+                return 1;
+            }
+
+            @Override
+            public long getKeyWord(int[] item, int word) {
+                return RadixSort.unsignedKey(item[element]);
+            }
+        };
+    }
+
+    @Test
+    public void testSortUnsigned() {
+        final Random rand = new Random(0);
+        final int n = 10000;
+        final long[] keys = new long[n];
+        final long[] values = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = rand.nextLong();
+            values[i] = ~keys[i];
+        }
+
+        RadixSort.sortUnsigned(keys, values, 0, n);
+
+        for (int i = 0; i < n; i++) {
+            assertEquals(~keys[i], values[i]);
+            if (i > 0)
+                assertEquals(true, (keys[i - 1] ^ Long.MIN_VALUE) <= (keys[i] ^ Long.MIN_VALUE));
+        }
+    }
+
+    @Test
+    public void testUnsignedKeyDouble() {
+        final double[] values = {Double.NEGATIVE_INFINITY, -1e10, -1, -Double.MIN_VALUE, -0.0,
+                0.0, Double.MIN_VALUE, 1, 1e10, Double.POSITIVE_INFINITY, Double.NaN};
+        for (int i = 1; i < values.length; i++) {
+            assertEquals(true, Double.compare(values[i - 1], values[i]) < 0);
+            assertEquals(true, (RadixSort.unsignedKey(values[i - 1]) ^ Long.MIN_VALUE)
+                    < (RadixSort.unsignedKey(values[i]) ^ Long.MIN_VALUE));
+        }
+    }
+
+    @Test
+    public void testSortMatchesComparator() {
+        final Random rand = new Random(1);
+        final List<int[]> items = new ArrayList<int[]>();
+        for (int i = 0; i < 20000; i++)
+            items.add(new int[]{rand.nextInt(50) - 25, rand.nextInt(), rand.nextInt(10), i});
+
+        // Descending by element 2 within ascending element 0; element 1 is ignored so ties must stay in input order
+        final RadixComparator<int[]> order = (RadixComparator<int[]>) Comparators.fallback(
+                elementOrder(0), Comparators.reverse(elementOrder(2)));
+        assertEquals(2, order.getKeyWordCount());
+
+        final List<int[]> expected = new ArrayList<int[]>(items);
+        Collections.sort(expected, order);
+
+        RadixSort.sort(items, order);
+
+        assertEquals(expected.size(), items.size());
+        for (int i = 0; i < items.size(); i++)
+            assertSame(expected.get(i), items.get(i));
+    }
+
+    @Test
+    public void testReverseOfReverse() {
+        final RadixComparator<int[]> order = elementOrder(0);
+        assertSame(order, Comparators.reverse(Comparators.reverse(order)));
+    }
+
+    @Test
+    public void testSortSmall() {
+        final List<int[]> items = new ArrayList<int[]>();
+        items.add(new int[]{3});
+        items.add(new int[]{-1});
+        items.add(new int[]{2});
+        RadixSort.sort(items, elementOrder(0));
+        assertArrayEquals(new int[]{-1}, items.get(0));
+        assertArrayEquals(new int[]{2}, items.get(1));
+        assertArrayEquals(new int[]{3}, items.get(2));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.collect;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class TopKHeapTest {
+
+    /**
+     * Compare the heap against a stable sort by descending weight truncated to k, using few distinct weights so that
+     * there are plenty of ties.
+     */
+    @Test
+    public void testMatchesStableSort() {
+        final Random rand = new Random(0);
+        for (int k : new int[]{1, 3, 10, 100}) {
+            final TopKHeap heap = new TopKHeap(k);
+            final List<double[]> pairs = new ArrayList<double[]>();
+            for (int id = 0; id < 500; id++) {
+                final double weight = rand.nextInt(20);
+                pairs.add(new double[]{id, weight});
+                heap.offer(id, weight);
+            }
+
+            Collections.sort(pairs, new Comparator<double[]>() {
+                @Override
+                public int compare(double[] a, double[] b) {
+                    return Double.compare(b[1], a[1]);
+                }
+            });
+
+            heap.sort();
+            assertEquals(k, heap.size());
+            for (int i = 0; i < k; i++) {
+                assertEquals((int) pairs.get(i)[0], heap.id(i));
+                assertEquals(pairs.get(i)[1], heap.weight(i), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testUnderfull() {
+        final TopKHeap heap = new TopKHeap(10);
+        assertTrue(heap.isEmpty());
+        assertTrue(heap.offer(1, 0.5));
+        assertTrue(heap.offer(2, 0.75));
+        assertTrue(heap.offer(3, 0.5));
+        heap.sort();
+        assertEquals(3, heap.size());
+        assertEquals(2, heap.id(0));
+        assertEquals(1, heap.id(1));
+        assertEquals(3, heap.id(2));
+    }
+
+    @Test
+    public void testRejectsTies() {
+        final TopKHeap heap = new TopKHeap(1);
+        assertTrue(heap.offer(1, 0.5));
+        assertFalse(heap.offer(2, 0.5));
+        assertTrue(heap.offer(3, 0.6));
+        heap.sort();
+        assertEquals(3, heap.id(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOfferAfterSort() {
+        final TopKHeap heap = new TopKHeap(2);
+        heap.offer(1, 1);
+        heap.sort();
+        heap.offer(2, 2);
+    }
+
+    @Test
+    public void testClear() {
+        final TopKHeap heap = new TopKHeap(2);
+        heap.offer(1, 1);
+        heap.sort();
+        heap.clear();
+        assertTrue(heap.isEmpty());
+        assertTrue(heap.offer(2, 2));
+        assertEquals(2, heap.id(0));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class AsciiChannelWriterTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // Supplementary character U+1D11E, written as a surrogate pair
+    private static final String CLEF = "\uD834\uDD1E";
+
+    private static byte[] write(String... parts) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final AsciiChannelWriter writer = new AsciiChannelWriter(Channels.newChannel(out));
+        for (String part : parts)
+            writer.write(part);
+        writer.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testMatchesAsciiEncoder() throws IOException {
+        final String text = "a\u00E9b" + CLEF + "c\t" + CLEF + CLEF + "\n";
+        assertArrayEquals(text.getBytes(ASCII), write(text));
+    }
+
+    @Test
+    public void testSurrogatePairSplitBetweenWrites() throws IOException {
+        final String text = "a" + CLEF + "b";
+        assertArrayEquals(text.getBytes(ASCII), write("a\uD834", "\uDD1Eb"));
+    }
+
+    @Test
+    public void testUnpairedSurrogates() throws IOException {
+        assertArrayEquals("?a?".getBytes(ASCII), write("\uD834a\uDD1E"));
+        assertArrayEquals("??".getBytes(ASCII), write("\uDD1E\uD834"));
+    }
+}
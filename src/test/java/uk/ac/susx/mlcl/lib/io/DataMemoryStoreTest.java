@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class DataMemoryStoreTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final DataMemoryStore store = new DataMemoryStore("test");
+        assertFalse(store.exists());
+
+        final DataSink sink = store.openDataSink();
+        assertTrue(store.exists());
+        for (int i = 0; i < 1000; i++) {
+            sink.writeInt(i);
+            sink.writeLong(-i * 31L);
+            sink.writeDouble(i / 7.0);
+            sink.writeString("s" + i);
+            sink.endOfRecord();
+        }
+        sink.close();
+        assertTrue(store.getSizeBytes() > 0);
+
+        final DataSource source = store.openDataSource();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(source.canRead());
+            assertEquals(i, source.readInt());
+            assertEquals(-i * 31L, source.readLong());
+            assertEquals(i / 7.0, source.readDouble(), 0);
+            assertEquals("s" + i, source.readString());
+            assertTrue(source.isEndOfRecordNext());
+            source.endOfRecord();
+        }
+        assertFalse(source.canRead());
+        source.close();
+
+        assertTrue(store.free());
+        assertFalse(store.exists());
+        assertEquals(0, store.getSizeBytes());
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenSourceBeforeWrite() throws IOException {
+        new DataMemoryStore().openDataSource();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import com.google.common.base.Predicate;
+import org.junit.Test;
+import uk.ac.susx.mlcl.TestConstants;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that the {@link Fused} codec produces and consumes exactly the same format as the equivalent stack of {@link
+ * Deltas} and {@link Compact} decorators.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class FusedTest {
+
+    private static final Charset CHARSET = Files.DEFAULT_CHARSET;
+
+    private static final int NUM_RECORDS = 5000;
+
+    @Test
+    public void testVerbose() throws IOException {
+        testEquivalence(false, false, false);
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        testEquivalence(false, false, true);
+    }
+
+    @Test
+    public void testCompactSkipBoth() throws IOException {
+        testEquivalence(true, true, true);
+    }
+
+    @Test
+    public void testVerboseSkipLeft() throws IOException {
+        testEquivalence(true, false, false);
+    }
+
+    @Test
+    public void testCompactSkipRight() throws IOException {
+        testEquivalence(false, true, true);
+    }
+
+    private static int[][] randomRecords() {
+        final Random rand = new Random(0);
+        final int[][] records = new int[NUM_RECORDS][2];
+        int id1 = 0;
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            if (rand.nextInt(5) == 0)
+                id1 += rand.nextInt(10);
+            records[i][0] = id1;
+            records[i][1] = rand.nextInt(1000);
+        }
+        return records;
+    }
+
+    private static void testEquivalence(boolean skip1, boolean skip2, boolean compact) throws IOException {
+        final int[][] records = randomRecords();
+        final File expectedFile = File.createTempFile("FusedTest.expected.", "", TestConstants.TEST_TMP_DIR);
+        final File actualFile = File.createTempFile("FusedTest.actual.", "", TestConstants.TEST_TMP_DIR);
+        expectedFile.deleteOnExit();
+        actualFile.deleteOnExit();
+
+        DataSink stack = new TSV.Sink(expectedFile, CHARSET);
+        if (skip1)
+            stack = Deltas.deltaInt(stack, new Predicate<Integer>() {
+                @Override
+                public boolean apply(Integer column) {
+                    return column != null && column == 0;
+                }
+            });
+        if (skip2)
+            stack = Deltas.deltaInt(stack, new Predicate<Integer>() {
+                @Override
+                public boolean apply(Integer column) {
+                    return column != null && (column + 1) % 2 == 0;
+                }
+            });
+        if (compact)
+            stack = Compact.compact(stack, 3);
+        write(stack, records);
+
+        write(Fused.fused(new TSV.Sink(actualFile, CHARSET), 3,
+                new boolean[]{skip1, skip2, false}, noEnumerators(), compact), records);
+
+        assertTrue("Fused output differs from decorator stack output.",
+                com.google.common.io.Files.equal(expectedFile, actualFile));
+
+        final SeekableDataSource src = Fused.fused(new TSV.Source(actualFile, CHARSET), 3,
+                new boolean[]{skip1, skip2, false}, noEnumerators());
+        final List<Tell> tells = new ArrayList<Tell>();
+        int i = 0;
+        while (src.canRead()) {
+            tells.add(src.position());
+            assertArrayEquals(records[i], read(src));
+            i++;
+        }
+        assertEquals(records.length, i);
+
+        final Random rand = new Random(1);
+        for (int j = 0; j < 100; j++) {
+            final int k = rand.nextInt(records.length);
+            src.position(tells.get(k));
+            assertEquals(tells.get(k), src.position());
+            assertArrayEquals(records[k], read(src));
+        }
+        src.close();
+    }
+
+    private static void write(DataSink sink, int[][] records) throws IOException {
+        for (int[] record : records) {
+            sink.writeInt(record[0]);
+            sink.writeInt(record[1]);
+            sink.writeDouble(record[0] + record[1] / 8d);
+            sink.endOfRecord();
+        }
+        sink.close();
+    }
+
+    private static int[] read(DataSource src) throws IOException {
+        final int[] record = {src.readInt(), src.readInt()};
+        assertEquals(record[0] + record[1] / 8d, src.readDouble(), 0);
+        src.endOfRecord();
+        return record;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Enumerator<String>[] noEnumerators() {
+        return (Enumerator<String>[]) new Enumerator[3];
+    }
+}
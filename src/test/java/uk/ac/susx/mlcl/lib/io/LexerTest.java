@@ -191,6 +191,33 @@ public class LexerTest {
         seekTest(TestConstants.TEST_FRUIT_SIMS);
     }
 
+    @Test
+    public void markTestFruitEvents() throws IOException {
+        System.out.println("markTestFruitEvents");
+
+        Charset charset = Files.DEFAULT_CHARSET;
+        Lexer lexer = new Lexer(TestConstants.TEST_FRUIT_EVENTS, charset);
+
+        // The marked position must be identical to the position that would
+        // have been produced at the time of marking, no matter how far the
+        // lexer has moved on since.
+        Tell expected = null;
+        int i = 0;
+        while (lexer.hasNext()) {
+            lexer.advance();
+            if (i % 7 == 0) {
+                lexer.markPosition();
+                expected = lexer.position();
+            }
+            assertEquals(expected, lexer.markedPosition());
+            i++;
+        }
+
+        lexer.position(expected);
+        assertEquals(expected, lexer.position());
+        lexer.close();
+    }
+
     void seekTest(File file) throws IOException {
         System.out.println("Test Lexer seek with " + file.toString() + "");
 
@@ -32,6 +32,7 @@ package uk.ac.susx.mlcl.lib.io;
 
 import junit.framework.Assert;
 import org.junit.Test;
+import uk.ac.susx.mlcl.lib.Comparators;
 import uk.ac.susx.mlcl.lib.collect.ArrayUtil;
 import uk.ac.susx.mlcl.testing.AbstractObjectTest;
 
@@ -110,6 +111,64 @@ public class MergingObjectSourceTest extends AbstractObjectTest<MergingObjectSou
         simpleIntegerExampleTest(arrays, expected);
     }
 
+    @Test
+    public void testKWayIsStable() throws IOException {
+        // Equal keys must be emitted in source order
+        final int numLists = 7;
+        final ObjectSource<int[]>[] sources = new ObjectSource[numLists];
+        for (int i = 0; i < numLists; i++) {
+            sources[i] = ObjectIO.asSource(Arrays.asList(
+                    new int[]{1, i}, new int[]{2, i}, new int[]{3, i}));
+        }
+        final Comparator<int[]> byKey = new Comparator<int[]>() {
+            @Override
+            public int compare(int[] o1, int[] o2) {
+                return o1[0] - o2[0];
+            }
+        };
+
+        final ObjectSource<int[]> mergeSource = MergingObjectSource.merge(byKey, sources);
+        Assert.assertEquals(KWayMergingObjectSource.class, mergeSource.getClass());
+        for (int key = 1; key <= 3; key++) {
+            for (int i = 0; i < numLists; i++) {
+                Assert.assertTrue(mergeSource.hasNext());
+                final int[] next = mergeSource.read();
+                Assert.assertEquals(key, next[0]);
+                Assert.assertEquals(i, next[1]);
+            }
+        }
+        Assert.assertFalse(mergeSource.hasNext());
+    }
+
+    @Test
+    public void testPrefetching() throws IOException {
+        final int numLists = 5;
+        final int listLength = 10000;
+        final Random random = newRandom();
+
+        final ObjectSource<Integer>[] sources = new ObjectSource[numLists];
+        final int[] expected = new int[numLists * listLength];
+        for (int i = 0; i < numLists; i++) {
+            final int[] array = new int[listLength];
+            for (int j = 0; j < listLength; j++)
+                array[j] = expected[i * listLength + j] = random.nextInt();
+            Arrays.sort(array);
+            sources[i] = new PrefetchingObjectSource<Integer>(
+                    ObjectIO.asSource(Arrays.asList(ArrayUtil.box(array))), 100);
+        }
+        Arrays.sort(expected);
+
+        final ObjectSource<Integer> mergeSource = MergingObjectSource.merge(
+                Comparators.<Integer>naturalOrder(), sources);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertTrue(mergeSource.hasNext());
+            Assert.assertEquals(expected[i], (int) mergeSource.read());
+        }
+        Assert.assertFalse(mergeSource.hasNext());
+
+        for (ObjectSource<Integer> source : sources)
+            ((PrefetchingObjectSource<Integer>) source).close();
+    }
 
     public void simpleIntegerExampleTest(final int[][] arrays, final int[] expected) throws IOException {
 
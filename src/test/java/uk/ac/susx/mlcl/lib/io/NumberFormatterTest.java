@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import org.junit.Test;
+
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class NumberFormatterTest {
+
+    private final NumberFormatter formatter = new NumberFormatter();
+
+    private final DecimalFormat decimalFormat = new DecimalFormat("###0.0#####;-###0.0#####");
+
+    private String format(double val) {
+        final int length = formatter.format(val);
+        return new String(formatter.buffer(), 0, length);
+    }
+
+    private String format(long val) {
+        final int length = formatter.format(val);
+        return new String(formatter.buffer(), 0, length);
+    }
+
+    private String expected(double val) {
+        if (Math.floor(val) == val && Math.abs(val) < 9.2e18)
+            return Long.toString((long) val);
+        return decimalFormat.format(val);
+    }
+
+    @Test
+    public void testLongs() {
+        for (long val : new long[]{0, 1, -1, 9, 10, -10, 123456789, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE})
+            assertEquals(Long.toString(val), format(val));
+
+        final Random rand = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            final long val = rand.nextLong() >> rand.nextInt(64);
+            assertEquals(Long.toString(val), format(val));
+        }
+    }
+
+    @Test
+    public void testEdgeCases() {
+        for (double val : new double[]{0.0, -0.0, 0.5, -0.5, 1.0 / 128, 3.0 / 128, 1e-7, -1e-7, 5e-7, -5e-7,
+                0.1234565, 999999.9999995, 1e6 + 0.5, 1e300, -1e300, Double.MIN_VALUE, 1.0 / 3, -2.0 / 3}) {
+            assertEquals("value " + val, expected(val), format(val));
+        }
+        assertEquals("NaN", format(Double.NaN));
+        assertEquals("Infinity", format(Double.POSITIVE_INFINITY));
+        assertEquals("-Infinity", format(Double.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    public void testRandomDoubles() {
+        final Random rand = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            final double val = (rand.nextDouble() - 0.5) * Math.pow(10, rand.nextInt(16) - 6);
+            assertEquals("value " + val, expected(val), format(val));
+        }
+    }
+
+    @Test
+    public void testShortDecimals() {
+        // Values with few decimal places are typical of weights read from files
+        final Random rand = new Random(2);
+        for (int i = 0; i < 200000; i++) {
+            final double val = rand.nextInt(100000000) / Math.pow(10, rand.nextInt(9));
+            assertEquals("value " + val, expected(val), format(val));
+        }
+    }
+}
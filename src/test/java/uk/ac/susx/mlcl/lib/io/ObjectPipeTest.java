@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ObjectPipeTest {
+
+    private static Future<Void> produce(ExecutorService executor, final ObjectPipe<Integer> pipe,
+                                        final int count, final AtomicInteger written) {
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                final ObjectSink<Integer> sink = pipe.sink();
+                for (int i = 0; i < count; i++) {
+                    sink.write(i);
+                    written.incrementAndGet();
+                }
+                sink.close();
+                return null;
+            }
+        });
+    }
+
+    @Test(timeout = 10000)
+    public void testRoundTrip() throws Exception {
+        final ObjectPipe<Integer> pipe = new ObjectPipe<Integer>(7, 3);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Void> producer = produce(executor, pipe, 1000, new AtomicInteger());
+
+            final List<Integer> actual = new ArrayList<Integer>();
+            final ObjectSource<Integer> source = pipe.source();
+            while (source.hasNext())
+                actual.add(source.read());
+            source.close();
+            producer.get();
+
+            assertEquals(1000, actual.size());
+            for (int i = 0; i < actual.size(); i++)
+                assertEquals(Integer.valueOf(i), actual.get(i));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testProducerIsHeldBack() throws Exception {
+        final int blockSize = 4;
+        final int capacity = 2;
+        final ObjectPipe<Integer> pipe = new ObjectPipe<Integer>(blockSize, capacity);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AtomicInteger written = new AtomicInteger();
+            final Future<Void> producer = produce(executor, pipe, 100, written);
+
+            Thread.sleep(300);
+            assertFalse(producer.isDone());
+            // The queued blocks, plus the block waiting to be put
+            assertTrue(written.get() <= blockSize * (capacity + 1));
+
+            final ObjectSource<Integer> source = pipe.source();
+            int count = 0;
+            while (source.hasNext()) {
+                source.read();
+                ++count;
+            }
+            producer.get();
+            assertEquals(100, count);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testFailureReachesConsumer() throws Exception {
+        final ObjectPipe<Integer> pipe = new ObjectPipe<Integer>(4, 2);
+        pipe.sink().write(1);
+        pipe.fail(new IllegalStateException("producer failed"));
+
+        try {
+            pipe.source().hasNext();
+            fail("Expected the producer's failure to be rethrown.");
+        } catch (IOException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testConsumerCloseReleasesProducer() throws Exception {
+        final ObjectPipe<Integer> pipe = new ObjectPipe<Integer>(4, 2);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Void> producer = produce(executor, pipe, 1000, new AtomicInteger());
+            Thread.sleep(100);
+            pipe.source().close();
+
+            try {
+                producer.get(5, TimeUnit.SECONDS);
+                fail("Expected the producer to fail once the consumer had gone.");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IOException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
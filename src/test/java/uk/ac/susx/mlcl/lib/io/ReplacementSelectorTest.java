@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.Comparators;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ReplacementSelectorTest {
+
+    private static <T> List<List<T>> generateRuns(List<T> input, Comparator<? super T> comparator, int capacity)
+            throws IOException {
+        final ReplacementSelector<T> selector =
+                new ReplacementSelector<T>(ObjectIO.asSource(input), comparator, capacity);
+        final List<List<T>> runs = new ArrayList<List<T>>();
+        while (selector.hasNextRun()) {
+            final List<T> run = new ArrayList<T>();
+            selector.writeRun(ObjectIO.asSink(run));
+            runs.add(run);
+        }
+        assertEquals(runs.size(), selector.getRunCount());
+        return runs;
+    }
+
+    @Test
+    public void testRandomInputRunsAreTwiceCapacity() throws IOException {
+        final Random random = new Random(0);
+        final List<Integer> input = new ArrayList<Integer>();
+        for (int i = 0; i < 100000; i++)
+            input.add(random.nextInt());
+        final int capacity = 1000;
+
+        final List<List<Integer>> runs = generateRuns(input, Comparators.<Integer>naturalOrder(), capacity);
+
+        int total = 0;
+        for (List<Integer> run : runs) {
+            for (int i = 1; i < run.size(); i++)
+                assertTrue(run.get(i - 1) <= run.get(i));
+            total += run.size();
+        }
+        assertEquals(input.size(), total);
+
+        // Expected run length is 2 * capacity; allow some slack for the first and last runs
+        final double meanRunLength = (double) total / runs.size();
+        assertTrue("mean run length " + meanRunLength, meanRunLength > 1.8 * capacity);
+    }
+
+    @Test
+    public void testSortedInputIsOneRun() throws IOException {
+        final List<Integer> input = new ArrayList<Integer>();
+        for (int i = 0; i < 10000; i++)
+            input.add(i / 3);
+
+        final List<List<Integer>> runs = generateRuns(input, Comparators.<Integer>naturalOrder(), 10);
+
+        assertEquals(1, runs.size());
+        assertEquals(input, runs.get(0));
+    }
+
+    @Test
+    public void testEmptyInput() throws IOException {
+        assertEquals(0, generateRuns(new ArrayList<Integer>(), Comparators.<Integer>naturalOrder(), 10).size());
+    }
+
+    @Test
+    public void testMergedRunsAreStable() throws IOException {
+        final Random random = new Random(1);
+        final List<int[]> input = new ArrayList<int[]>();
+        for (int i = 0; i < 5000; i++)
+            input.add(new int[]{random.nextInt(20), i});
+        final Comparator<int[]> byKey = new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a[0] - b[0];
+            }
+        };
+
+        final List<List<int[]>> runs = generateRuns(input, byKey, 50);
+        final List<ObjectSource<int[]>> sources = new ArrayList<ObjectSource<int[]>>();
+        for (List<int[]> run : runs)
+            sources.add(ObjectIO.asSource(run));
+
+        final List<int[]> expected = new ArrayList<int[]>(input);
+        Collections.sort(expected, byKey);
+
+        final ObjectSource<int[]> merged = MergingObjectSource.merge(byKey, sources);
+        for (int[] e : expected) {
+            assertTrue(merged.hasNext());
+            final int[] actual = merged.read();
+            assertEquals(e[1], actual[1]);
+        }
+        assertTrue(!merged.hasNext());
+    }
+}
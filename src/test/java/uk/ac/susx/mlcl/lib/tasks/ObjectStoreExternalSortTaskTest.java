@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010-2013, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.tasks;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.io.ObjectMemoryStore;
+import uk.ac.susx.mlcl.lib.io.ObjectStore;
+import uk.ac.susx.mlcl.lib.io.StoreFactory;
+import uk.ac.susx.mlcl.lib.tasks.MergeTaskTest.IntegerNaturalOrderComparator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ObjectStoreExternalSortTaskTest {
+
+    @Test
+    public void testSortFitsInMemory() throws Exception {
+        final CountingStoreFactory temp = new CountingStoreFactory();
+        final List<Integer> out = runSort(10000, 0, 64, temp);
+        assertEquals(0, temp.created);
+        assertSorted(10000, out);
+    }
+
+    @Test
+    public void testSortSpillsAndMergesInPasses() throws Exception {
+        // A tiny budget forces small chunks, spilled runs, and several merge passes with a fan-in of 3
+        final CountingStoreFactory temp = new CountingStoreFactory();
+        final List<Integer> out = runSort(10000, 64 * 1024, 3, temp);
+        assertSorted(10000, out);
+        assertEquals(true, temp.created > 3);
+    }
+
+    @Test
+    public void testSortEmpty() throws Exception {
+        final List<Integer> out = runSort(0, 0, 64, new CountingStoreFactory());
+        assertEquals(0, out.size());
+    }
+
+    private static List<Integer> runSort(int n, long maxBytes, int maxFanIn,
+                                         StoreFactory<ObjectStore<Integer, ?>> temp) throws Exception {
+        final Random rand = new Random(0);
+        final List<Integer> in = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++)
+            in.add(rand.nextInt(n + 1));
+
+        final List<Integer> out = new ArrayList<Integer>();
+
+        final ObjectStoreExternalSortTask<Integer> instance = new ObjectStoreExternalSortTask<Integer>(
+                new ObjectMemoryStore<Integer>(in), new ObjectMemoryStore<Integer>(out),
+                new IntegerNaturalOrderComparator(), temp);
+        instance.setMaxBytes(maxBytes);
+        instance.setMaxFanIn(maxFanIn);
+        instance.setBytesPerObject(16);
+        instance.setNumThreads(2);
+
+        instance.run();
+        if (instance.isExceptionTrapped())
+            instance.throwTrappedException();
+
+        Collections.sort(in);
+        assertEquals(in, out);
+        return out;
+    }
+
+    private static void assertSorted(int n, List<Integer> out) {
+        assertEquals(n, out.size());
+        for (int i = 1; i < out.size(); i++)
+            assertEquals(true, out.get(i - 1) <= out.get(i));
+    }
+
+    private static final class CountingStoreFactory implements StoreFactory<ObjectStore<Integer, ?>> {
+
+        int created = 0;
+
+        @Override
+        public ObjectStore<Integer, ?> newStore() {
+            return newStore("temp" + created);
+        }
+
+        @Override
+        public ObjectStore<Integer, ?> newStore(String name) {
+            ++created;
+            return new ObjectMemoryStore<Integer>(name);
+        }
+    }
+}